@@ -1,19 +1,69 @@
 package org.sagebionetworks.bridge.udd.accounts;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
 
+import com.google.common.base.Stopwatch;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.rest.ClientManager;
 import org.sagebionetworks.bridge.rest.api.ForWorkersApi;
 import org.sagebionetworks.bridge.rest.model.StudyParticipant;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
+import org.sagebionetworks.bridge.udd.helper.JodaTicker;
 
-/** Helper to call Bridge server. */
+/**
+ * <p>
+ * Helper to call Bridge server.
+ * </p>
+ * <p>
+ * Account lookups can run in the background (see {@link #getAccountInfoAsync}), so callers can do other work while
+ * waiting on Bridge. Lookups are cached for a short TTL, keyed by study and user ID, so duplicate requests for the same
+ * user don't call Bridge again. Only accounts with a health code and a verified email or phone are cached.
+ * </p>
+ */
 @Component
 public class BridgeHelper {
+    private static final Logger LOG = LoggerFactory.getLogger(BridgeHelper.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_CACHE_MAX_ENTRIES = "account.cache.max.entries";
+    static final String CONFIG_KEY_CACHE_TTL_SECONDS = "account.cache.ttl.seconds";
+
+    // Defaults, used if setConfig() is never called (such as in unit tests). A TTL of 0 disables the cache.
+    private int cacheMaxEntries = 0;
+    private int cacheTtlSeconds = 0;
+
+    private final AtomicLong callCount = new AtomicLong();
+    private final AtomicLong callMillis = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private ExecutorService accountLookupExecutor;
     private ClientManager bridgeClientManager;
+    private Cache<String, AccountInfo> cache;
+
+    /**
+     * Executor for async account lookups. If not set (such as in unit tests), async lookups run in the calling
+     * thread.
+     */
+    @Resource(name = "accountLookupExecutor")
+    public final void setAccountLookupExecutor(ExecutorService accountLookupExecutor) {
+        this.accountLookupExecutor = accountLookupExecutor;
+    }
 
     /** Bridge client. */
     @Autowired
@@ -21,11 +71,135 @@ public class BridgeHelper {
         this.bridgeClientManager = bridgeClientManager;
     }
 
+    /** Bridge config, used to get the account cache TTL and size. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        cacheMaxEntries = config.getInt(CONFIG_KEY_CACHE_MAX_ENTRIES);
+        cacheTtlSeconds = config.getInt(CONFIG_KEY_CACHE_TTL_SECONDS);
+    }
+
+    /** Creates the cache. Called by Spring on startup. */
+    @PostConstruct
+    public void init() {
+        if (cacheMaxEntries > 0 && cacheTtlSeconds > 0) {
+            cache = CacheBuilder.newBuilder().ticker(JodaTicker.INSTANCE).maximumSize(cacheMaxEntries)
+                    .expireAfterWrite(cacheTtlSeconds, TimeUnit.SECONDS).build();
+        }
+    }
+
     /** Gets account information (email address, healthcode) for the given account ID. */
     public AccountInfo getAccountInfo(String studyId, String userId)
             throws IOException, PollSqsWorkerBadRequestException {
-        StudyParticipant participant = bridgeClientManager.getClient(ForWorkersApi.class).getParticipantById(
-                studyId, userId, false).execute().body();
+        return waitForAccountInfo(getAccountInfoAsync(studyId, userId));
+    }
+
+    /**
+     * Waits for an account lookup from {@link #getAccountInfoAsync}, and rethrows the exception it failed with, if
+     * any.
+     *
+     * @param accountInfoFuture
+     *         future from {@link #getAccountInfoAsync}
+     * @return account info
+     */
+    public static AccountInfo waitForAccountInfo(Future<AccountInfo> accountInfoFuture)
+            throws IOException, PollSqsWorkerBadRequestException {
+        try {
+            return accountInfoFuture.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof PollSqsWorkerBadRequestException) {
+                throw (PollSqsWorkerBadRequestException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * <p>
+     * Gets account information (email address, healthcode) for the given account ID, without blocking the calling
+     * thread. If the account is cached, the returned future is already complete.
+     * </p>
+     * <p>
+     * This doesn't use Retrofit's enqueue(), because the Bridge SDK reports errors by throwing unchecked exceptions from
+     * its interceptors, and enqueue() doesn't pass those to the callback. Instead, the blocking call runs on the account
+     * lookup executor.
+     * </p>
+     *
+     * @param studyId
+     *         study the account is in
+     * @param userId
+     *         account's user ID
+     * @return future for the account info, which fails with the same exceptions as {@link #getAccountInfo}
+     */
+    public CompletableFuture<AccountInfo> getAccountInfoAsync(String studyId, String userId) {
+        String cacheKey = studyId + ":" + userId;
+        if (cache != null) {
+            AccountInfo cachedAccountInfo = cache.getIfPresent(cacheKey);
+            if (cachedAccountInfo != null) {
+                hitCount.incrementAndGet();
+                return CompletableFuture.completedFuture(cachedAccountInfo);
+            }
+        }
+
+        CompletableFuture<AccountInfo> future = new CompletableFuture<>();
+        Runnable lookup = () -> {
+            try {
+                AccountInfo accountInfo = callBridge(studyId, userId);
+                if (cache != null) {
+                    cache.put(cacheKey, accountInfo);
+                }
+                future.complete(accountInfo);
+            } catch (IOException | PollSqsWorkerBadRequestException | RuntimeException ex) {
+                future.completeExceptionally(ex);
+            }
+        };
+        if (accountLookupExecutor != null) {
+            accountLookupExecutor.execute(lookup);
+        } else {
+            lookup.run();
+        }
+        return future;
+    }
+
+    /** Number of account lookups that called Bridge. */
+    public long getCallCount() {
+        return callCount.get();
+    }
+
+    /** Total time spent in Bridge calls, in milliseconds. Divide by {@link #getCallCount} for average latency. */
+    public long getCallMillis() {
+        return callMillis.get();
+    }
+
+    /** Number of account lookups served from the cache. */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    // Makes the blocking Bridge call and converts the participant to account info.
+    private AccountInfo callBridge(String studyId, String userId) throws IOException,
+            PollSqsWorkerBadRequestException {
+        Stopwatch callStopwatch = Stopwatch.createStarted();
+        StudyParticipant participant;
+        try {
+            participant = bridgeClientManager.getClient(ForWorkersApi.class).getParticipantById(studyId, userId,
+                    false).execute().body();
+        } finally {
+            long elapsedMillis = callStopwatch.elapsed(TimeUnit.MILLISECONDS);
+            long calls = callCount.incrementAndGet();
+            long totalMillis = callMillis.addAndGet(elapsedMillis);
+            LOG.info("Bridge account lookup took " + elapsedMillis + " ms, average " + (totalMillis / calls) +
+                    " ms over " + calls + " calls, " + hitCount.get() + " cache hits");
+        }
+
         AccountInfo.Builder builder = new AccountInfo.Builder().withHealthCode(participant.getHealthCode())
                 .withUserId(userId);
         if (participant.getEmail() != null && Boolean.TRUE.equals(participant.getEmailVerified())) {
@@ -0,0 +1,122 @@
+package org.sagebionetworks.bridge.udd.concurrent;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.joda.time.DateTimeUtils;
+
+/**
+ * <p>
+ * Cooperative cancellation for a single request. The packager creates one token per request and passes it to every
+ * task and stage for that request. Once the outcome of the request is known (or the request fails), the packager
+ * cancels the token. Stages that haven't started yet are skipped, and Synapse polls stop waiting, so threads and
+ * Synapse workers are freed as soon as possible.
+ * </p>
+ * <p>
+ * A token can also carry a deadline, which is the request's time budget. Once the deadline passes, the token counts
+ * as cancelled, and Synapse polls give up with a timeout.
+ * </p>
+ */
+public class CancellationToken {
+    /** Reason given when the deadline passes, or when the token is cancelled because the deadline passed. */
+    public static final String REASON_DEADLINE_EXCEEDED = "request deadline exceeded";
+
+    private final CountDownLatch cancelledLatch = new CountDownLatch(1);
+    private final Long deadlineMillis;
+    private final AtomicReference<String> reason = new AtomicReference<>();
+
+    /** Creates a token with no deadline. It is only cancelled by calling {@link #cancel}. */
+    public CancellationToken() {
+        this.deadlineMillis = null;
+    }
+
+    /**
+     * Creates a token with a deadline.
+     *
+     * @param deadlineMillis
+     *         deadline, in epoch milliseconds
+     */
+    public CancellationToken(long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Creates a token whose deadline is the given time budget from now.
+     *
+     * @param budgetMillis
+     *         time budget, in milliseconds
+     * @return token with a deadline
+     */
+    public static CancellationToken withTimeBudget(long budgetMillis) {
+        return new CancellationToken(DateTimeUtils.currentTimeMillis() + budgetMillis);
+    }
+
+    /**
+     * Cancels this token. Only the first call has any effect.
+     *
+     * @param reason
+     *         why the token was cancelled, used for logging and exception messages
+     */
+    public void cancel(String reason) {
+        if (this.reason.compareAndSet(null, reason)) {
+            cancelledLatch.countDown();
+        }
+    }
+
+    /** True if this token has been cancelled, or if its deadline has passed. */
+    public boolean isCancelled() {
+        return cancelledLatch.getCount() == 0 || isDeadlinePassed();
+    }
+
+    /** True if this token has a deadline and it has passed. */
+    public boolean isDeadlinePassed() {
+        return deadlineMillis != null && DateTimeUtils.currentTimeMillis() >= deadlineMillis;
+    }
+
+    /**
+     * Milliseconds until the deadline. Returns 0 if the deadline has passed, or Long.MAX_VALUE if there is no
+     * deadline.
+     */
+    public long getRemainingMillis() {
+        if (deadlineMillis == null) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, deadlineMillis - DateTimeUtils.currentTimeMillis());
+    }
+
+    /** Why the token was cancelled, or null if it hasn't been cancelled. */
+    public String getReason() {
+        String cancelReason = reason.get();
+        if (cancelReason == null && isDeadlinePassed()) {
+            return REASON_DEADLINE_EXCEEDED;
+        }
+        return cancelReason;
+    }
+
+    /**
+     * Throws a CancellationException if this token has been cancelled. Long-running work should call this between
+     * steps.
+     */
+    public void throwIfCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException("Cancelled: " + getReason());
+        }
+    }
+
+    /**
+     * Sleeps for the given time, but wakes up early if this token is cancelled or the deadline arrives. This is used
+     * in place of Thread.sleep() in poll loops.
+     *
+     * @param millis
+     *         time to sleep, in milliseconds
+     * @return true if the token was cancelled (either before or during the sleep)
+     * @throws InterruptedException
+     *         if the thread is interrupted while sleeping
+     */
+    public boolean sleep(long millis) throws InterruptedException {
+        cancelledLatch.await(Math.min(millis, getRemainingMillis()), TimeUnit.MILLISECONDS);
+        return isCancelled();
+    }
+}
@@ -0,0 +1,170 @@
+package org.sagebionetworks.bridge.udd.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Stopwatch;
+
+/**
+ * <p>
+ * Runs stages on a thread pool, taking turns between requests. A plain thread pool runs stages first-come,
+ * first-served, so a request for a study with 100+ tables fills the queue, and a small request that arrives right
+ * after waits behind all of them. Instead, each request gets its own queue, and whenever a thread is free, we start a
+ * stage from the next request in round-robin order. A request with a weight greater than 1 may start that many stages
+ * per turn.
+ * </p>
+ * <p>
+ * We never hand the underlying pool more stages than it has threads, so stages wait in our queues (where we can pick
+ * the order) and not in the pool's queue.
+ * </p>
+ */
+public class FairShareExecutor {
+    private final ExecutorService delegate;
+    private final int maxConcurrentStages;
+
+    // All of the following are guarded by "this".
+    private final Deque<RequestQueue> activeQueueDeque = new ArrayDeque<>();
+    private final Map<RequestShare, RequestQueue> queueMap = new IdentityHashMap<>();
+    private int queuedStageCount = 0;
+    private int runningStageCount = 0;
+
+    /**
+     * Creates a fair share executor.
+     *
+     * @param delegate
+     *         thread pool to run stages on
+     * @param maxConcurrentStages
+     *         maximum number of stages to hand to the thread pool at once, generally the number of threads in the pool
+     */
+    public FairShareExecutor(ExecutorService delegate, int maxConcurrentStages) {
+        if (maxConcurrentStages <= 0) {
+            throw new IllegalArgumentException("maxConcurrentStages must be positive");
+        }
+        this.delegate = delegate;
+        this.maxConcurrentStages = maxConcurrentStages;
+    }
+
+    /**
+     * Queues a stage for the given request, and starts it as soon as a thread is free and it's the request's turn.
+     *
+     * @param share
+     *         request the stage belongs to
+     * @param stage
+     *         stage to run
+     * @throws RejectedExecutionException
+     *         if the executor has been shut down
+     */
+    public void execute(RequestShare share, Runnable stage) {
+        if (delegate.isShutdown()) {
+            throw new RejectedExecutionException("FairShareExecutor has been shut down");
+        }
+
+        synchronized (this) {
+            RequestQueue requestQueue = queueMap.get(share);
+            if (requestQueue == null) {
+                // The request has no stages waiting. It joins the back of the line.
+                requestQueue = new RequestQueue(share);
+                queueMap.put(share, requestQueue);
+                activeQueueDeque.addLast(requestQueue);
+            }
+            requestQueue.stageQueue.add(new QueuedStage(stage));
+            queuedStageCount++;
+        }
+        dispatch();
+    }
+
+    /** Number of stages waiting for a thread. */
+    public synchronized int getQueuedStageCount() {
+        return queuedStageCount;
+    }
+
+    /** Shuts down the underlying thread pool. Stages that are still queued are never run. */
+    public void shutdownNow() {
+        delegate.shutdownNow();
+    }
+
+    // Hands stages to the thread pool until we run out of stages or free threads.
+    private void dispatch() {
+        while (true) {
+            RequestQueue requestQueue;
+            QueuedStage queuedStage;
+            synchronized (this) {
+                if (runningStageCount >= maxConcurrentStages) {
+                    return;
+                }
+                requestQueue = activeQueueDeque.peekFirst();
+                if (requestQueue == null) {
+                    return;
+                }
+                queuedStage = pollNextStage(requestQueue);
+                runningStageCount++;
+            }
+
+            requestQueue.share.recordQueueWait(queuedStage.queueStopwatch.elapsed(TimeUnit.MILLISECONDS));
+            try {
+                delegate.execute(() -> runStage(queuedStage));
+            } catch (RejectedExecutionException ex) {
+                // We're shutting down between execute() and now. Run the stage here, so that whoever is waiting on it
+                // sees it finish (most likely as cancelled), instead of waiting forever.
+                runStage(queuedStage);
+            }
+        }
+    }
+
+    // Takes the next stage from the request at the front of the line, and moves the request to the back if its turn
+    // is over. Must be called while holding the lock.
+    private QueuedStage pollNextStage(RequestQueue requestQueue) {
+        QueuedStage queuedStage = requestQueue.stageQueue.poll();
+        queuedStageCount--;
+        requestQueue.turnStageCount++;
+
+        if (requestQueue.stageQueue.isEmpty()) {
+            activeQueueDeque.pollFirst();
+            queueMap.remove(requestQueue.share);
+        } else if (requestQueue.turnStageCount >= requestQueue.share.getWeight()) {
+            activeQueueDeque.pollFirst();
+            requestQueue.turnStageCount = 0;
+            activeQueueDeque.addLast(requestQueue);
+        }
+        return queuedStage;
+    }
+
+    // Runs the stage, then frees up its slot for the next stage.
+    private void runStage(QueuedStage queuedStage) {
+        try {
+            queuedStage.stage.run();
+        } finally {
+            synchronized (this) {
+                runningStageCount--;
+            }
+            dispatch();
+        }
+    }
+
+    // Stages waiting for a single request.
+    private static class RequestQueue {
+        private final RequestShare share;
+        private final Queue<QueuedStage> stageQueue = new ArrayDeque<>();
+        private int turnStageCount = 0;
+
+        RequestQueue(RequestShare share) {
+            this.share = share;
+        }
+    }
+
+    // A stage, and how long it's been waiting.
+    private static class QueuedStage {
+        private final Runnable stage;
+        private final Stopwatch queueStopwatch = Stopwatch.createStarted();
+
+        QueuedStage(Runnable stage) {
+            this.stage = stage;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.sagebionetworks.bridge.udd.concurrent;
+
+/** The stages of packaging a Synapse table into the user's download. Each stage runs on its resource's pool. */
+public enum PackagingStage {
+    /** Start the Synapse table query (async job). */
+    QUERY(StageResource.SYNAPSE),
+
+    /** Poll Synapse until the query results are ready. */
+    POLL(StageResource.POLL),
+
+    /** Download the query result CSV. */
+    DOWNLOAD(StageResource.NETWORK),
+
+    /** Scan the CSV for data, column info, and attachment file handle IDs. */
+    SCAN(StageResource.CPU),
+
+    /** Bulk download attachment file handles. */
+    BULK_DOWNLOAD(StageResource.NETWORK),
+
+    /** Edit the CSV to remove health codes and replace file handle IDs with zip entry names. */
+    EDIT(StageResource.CPU),
+
+    /** Zip files together, or write files as zip segments. */
+    ZIP(StageResource.DISK),
+
+    /** Upload zip segments, and assemble the user's download in S3. */
+    UPLOAD(StageResource.NETWORK);
+
+    private final StageResource resource;
+
+    /** Private constructor. */
+    PackagingStage(StageResource resource) {
+        this.resource = resource;
+    }
+
+    /** The resource this stage mostly spends time on, which determines which pool it runs on. */
+    public StageResource getResource() {
+        return resource;
+    }
+}
@@ -0,0 +1,66 @@
+package org.sagebionetworks.bridge.udd.concurrent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A request's share of the stage thread pools. The {@link FairShareExecutor} takes turns between requests, and on each
+ * turn, a request may start up to its weight in stages. This also keeps track of how long the request's stages waited
+ * in the queue, so we can report it.
+ */
+public class RequestShare {
+    private final String name;
+    private final int weight;
+
+    private final AtomicInteger stageCount = new AtomicInteger();
+    private final AtomicLong maxQueueWaitMillis = new AtomicLong();
+    private final AtomicLong totalQueueWaitMillis = new AtomicLong();
+
+    /**
+     * Creates a request share.
+     *
+     * @param name
+     *         request name, used for logging
+     * @param weight
+     *         number of stages this request may start per turn, must be positive
+     */
+    public RequestShare(String name, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("weight must be positive");
+        }
+        this.name = name;
+        this.weight = weight;
+    }
+
+    /** Request name, used for logging. */
+    public String getName() {
+        return name;
+    }
+
+    /** Number of stages this request may start per turn. */
+    public int getWeight() {
+        return weight;
+    }
+
+    /** Number of stages that have been started for this request. */
+    public int getStageCount() {
+        return stageCount.get();
+    }
+
+    /** Longest time any one of this request's stages waited in the queue, in milliseconds. */
+    public long getMaxQueueWaitMillis() {
+        return maxQueueWaitMillis.get();
+    }
+
+    /** Total time this request's stages waited in the queue, in milliseconds. */
+    public long getTotalQueueWaitMillis() {
+        return totalQueueWaitMillis.get();
+    }
+
+    /** Called by the FairShareExecutor when one of this request's stages leaves the queue. */
+    void recordQueueWait(long queueWaitMillis) {
+        stageCount.incrementAndGet();
+        maxQueueWaitMillis.accumulateAndGet(queueWaitMillis, Math::max);
+        totalQueueWaitMillis.addAndGet(queueWaitMillis);
+    }
+}
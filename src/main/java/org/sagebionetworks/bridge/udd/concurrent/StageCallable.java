@@ -0,0 +1,14 @@
+package org.sagebionetworks.bridge.udd.concurrent;
+
+import java.util.concurrent.Callable;
+
+/**
+ * The body of a single stage in the task graph. This is a Callable, so a stage can throw checked exceptions, which
+ * are surfaced through the stage's future.
+ *
+ * @param <T>
+ *         stage result type
+ */
+@FunctionalInterface
+public interface StageCallable<T> extends Callable<T> {
+}
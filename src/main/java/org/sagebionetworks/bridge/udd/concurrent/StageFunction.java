@@ -0,0 +1,15 @@
+package org.sagebionetworks.bridge.udd.concurrent;
+
+/**
+ * The body of a stage that depends on the result of the previous stage.
+ *
+ * @param <T>
+ *         previous stage's result type
+ * @param <R>
+ *         this stage's result type
+ */
+@FunctionalInterface
+public interface StageFunction<T, R> {
+    /** Executes the stage with the previous stage's result. */
+    R apply(T input) throws Exception;
+}
@@ -0,0 +1,34 @@
+package org.sagebionetworks.bridge.udd.concurrent;
+
+/**
+ * The resource a packaging stage spends most of its time on. Each resource gets its own thread pool, sized for that
+ * resource, so that (for example) threads waiting on Synapse don't starve CPU-bound CSV edits.
+ */
+public enum StageResource {
+    /** Starting Synapse async jobs. Synapse only has a handful of table workers, so this pool should be small. */
+    SYNAPSE("threadpool.aux.count"),
+
+    /** Waiting for Synapse async jobs to complete. These threads mostly sleep, so this pool can be large. */
+    POLL("threadpool.poll.count"),
+
+    /** Downloading files from Synapse. */
+    NETWORK("threadpool.network.count"),
+
+    /** Reading and re-writing CSVs. Generally sized to the number of cores. */
+    CPU("threadpool.cpu.count"),
+
+    /** Writing zip files to local disk. */
+    DISK("threadpool.disk.count");
+
+    private final String threadCountConfigKey;
+
+    /** Private constructor. */
+    StageResource(String threadCountConfigKey) {
+        this.threadCountConfigKey = threadCountConfigKey;
+    }
+
+    /** Config key for the number of threads in this resource's pool. */
+    public String getThreadCountConfigKey() {
+        return threadCountConfigKey;
+    }
+}
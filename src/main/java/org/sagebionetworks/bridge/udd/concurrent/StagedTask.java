@@ -0,0 +1,22 @@
+package org.sagebionetworks.bridge.udd.concurrent;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A task that can be split into stages and run on the {@link TaskGraphExecutor}, such that each stage runs on the
+ * pool for the resource it uses.
+ *
+ * @param <T>
+ *         task result type
+ */
+public interface StagedTask<T> {
+    /**
+     * Submits this task's stages to the given executor, chained so that each stage starts when the previous stage
+     * completes.
+     *
+     * @param executor
+     *         executor to submit the stages to
+     * @return future for the result of the last stage
+     */
+    CompletableFuture<T> submitStages(TaskGraphExecutor executor);
+}
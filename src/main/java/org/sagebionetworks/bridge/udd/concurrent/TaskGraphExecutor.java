@@ -0,0 +1,250 @@
+package org.sagebionetworks.bridge.udd.concurrent;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Resource;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+
+/**
+ * <p>
+ * Executes packaging tasks as a graph of stages. Each stage runs on the thread pool for the resource it uses (see
+ * {@link StageResource}), so Synapse waits, network downloads, CSV edits, and zipping don't compete for the same
+ * threads. Stages are chained with CompletableFutures, so a stage starts as soon as the stage before it finishes,
+ * without holding a thread while it waits.
+ * </p>
+ * <p>
+ * If a stage fails, only that stage is retried, after a delay, up to the configured number of attempts. Earlier
+ * stages aren't re-run, since their results are already held by the task.
+ * </p>
+ * <p>
+ * Every stage belongs to a request's {@link CancellationToken}. Once the token is cancelled, stages that haven't
+ * started yet fail with a CancellationException instead of running, and failed stages aren't retried.
+ * </p>
+ * <p>
+ * Each pool is a {@link FairShareExecutor}, which takes turns between requests, so a request with many tables doesn't
+ * hold up the requests behind it. Callers register each request with {@link #startRequest} (which looks up the study's
+ * weight) and unregister it with {@link #finishRequest} (which logs how long its stages waited in the queue). Stages
+ * for unregistered tokens share a single default queue.
+ * </p>
+ */
+@Component
+public class TaskGraphExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(TaskGraphExecutor.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_RETRY_DELAY_MILLIS = "stage.retry.delay.millis";
+    static final String CONFIG_KEY_RETRY_MAX_ATTEMPTS = "stage.retry.max.attempts";
+    static final String CONFIG_KEY_STUDY_WEIGHTS = "fairshare.study.weights";
+    static final RequestShare DEFAULT_SHARE = new RequestShare("default", 1);
+
+    // Study weights are a comma-separated list of study:weight pairs, for example "study1:4,study2:2".
+    private static final Splitter.MapSplitter STUDY_WEIGHT_SPLITTER = Splitter.on(',').trimResults()
+            .omitEmptyStrings().withKeyValueSeparator(Splitter.on(':').trimResults());
+
+    // Defaults, used if setConfig() is never called (such as in unit tests). By default, stages aren't retried.
+    private int retryDelayMillis = 0;
+    private int retryMaxAttempts = 1;
+    private Map<String, Integer> studyWeightMap = ImmutableMap.of();
+
+    private final ConcurrentMap<CancellationToken, RequestShare> requestShareMap = new ConcurrentHashMap<>();
+    private Map<StageResource, FairShareExecutor> executorMap;
+    private ScheduledExecutorService retryScheduler;
+
+    /** Bridge config, used to get stage retry settings and per-study weights. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        retryDelayMillis = config.getInt(CONFIG_KEY_RETRY_DELAY_MILLIS);
+        retryMaxAttempts = config.getInt(CONFIG_KEY_RETRY_MAX_ATTEMPTS);
+
+        String studyWeights = config.get(CONFIG_KEY_STUDY_WEIGHTS);
+        if (!Strings.isNullOrEmpty(studyWeights)) {
+            ImmutableMap.Builder<String, Integer> studyWeightMapBuilder = ImmutableMap.builder();
+            STUDY_WEIGHT_SPLITTER.split(studyWeights).forEach((studyId, weight) -> studyWeightMapBuilder.put(studyId,
+                    Integer.valueOf(weight)));
+            studyWeightMap = studyWeightMapBuilder.build();
+        }
+    }
+
+    /** Map from stage resource to the thread pool for that resource. Must contain a pool for every resource. */
+    @Resource(name = "stageExecutorMap")
+    public final void setExecutorMap(Map<StageResource, FairShareExecutor> executorMap) {
+        this.executorMap = executorMap;
+    }
+
+    /** Scheduler used to resubmit failed stages after the retry delay. */
+    @Resource(name = "stageRetryScheduler")
+    public final void setRetryScheduler(ScheduledExecutorService retryScheduler) {
+        this.retryScheduler = retryScheduler;
+    }
+
+    /**
+     * Registers a request, so its stages get their own turn on the stage pools. Stages are matched to the request by
+     * cancellation token.
+     *
+     * @param cancellationToken
+     *         cancellation token for the request
+     * @param requestName
+     *         request name, used for logging
+     * @param studyId
+     *         study the request is for, used to look up the request's weight
+     */
+    public void startRequest(CancellationToken cancellationToken, String requestName, String studyId) {
+        int weight = studyWeightMap.getOrDefault(studyId, 1);
+        requestShareMap.put(cancellationToken, new RequestShare(requestName, weight));
+    }
+
+    /**
+     * Unregisters a request, and logs how long its stages waited in the queue. Stages that run after this share the
+     * default queue.
+     *
+     * @param cancellationToken
+     *         cancellation token for the request
+     */
+    public void finishRequest(CancellationToken cancellationToken) {
+        RequestShare share = requestShareMap.remove(cancellationToken);
+        if (share != null) {
+            LOG.info("Request " + share.getName() + " ran " + share.getStageCount() + " stages with weight " +
+                    share.getWeight() + ", total queue wait " + share.getTotalQueueWaitMillis() +
+                    " ms, max queue wait " + share.getMaxQueueWaitMillis() + " ms");
+        }
+    }
+
+    /** Share for the given request, or the default share if it isn't registered. Package-scoped for unit tests. */
+    RequestShare getRequestShare(CancellationToken cancellationToken) {
+        return requestShareMap.getOrDefault(cancellationToken, DEFAULT_SHARE);
+    }
+
+    /**
+     * Submits a staged task. This is a convenience method that calls through to
+     * {@link StagedTask#submitStages}, which exists mainly so that callers have a single hook for submitting tasks.
+     *
+     * @param task
+     *         task to submit
+     * @param <T>
+     *         task result type
+     * @return future for the task result
+     */
+    public <T> CompletableFuture<T> submit(StagedTask<T> task) {
+        return task.submitStages(this);
+    }
+
+    /**
+     * Submits a single stage to the pool for that stage's resource.
+     *
+     * @param stage
+     *         stage to run, which determines the pool and is used for logging
+     * @param taskName
+     *         name of the task this stage belongs to, used for logging
+     * @param cancellationToken
+     *         cancellation token for the request this stage belongs to
+     * @param callable
+     *         stage body
+     * @param <T>
+     *         stage result type
+     * @return future for the stage result
+     */
+    public <T> CompletableFuture<T> submitStage(PackagingStage stage, String taskName,
+            CancellationToken cancellationToken, StageCallable<T> callable) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        runAttempt(stage, taskName, cancellationToken, callable, 1, future);
+        return future;
+    }
+
+    /**
+     * Chains a stage after a previous stage. The new stage is submitted to its own pool once the previous stage
+     * completes, and receives the previous stage's result. If the previous stage failed, this stage is skipped and the
+     * returned future completes with the previous stage's exception.
+     *
+     * @param previous
+     *         future for the previous stage
+     * @param stage
+     *         stage to run
+     * @param taskName
+     *         name of the task this stage belongs to, used for logging
+     * @param cancellationToken
+     *         cancellation token for the request this stage belongs to
+     * @param function
+     *         stage body, which takes the previous stage's result
+     * @param <T>
+     *         previous stage's result type
+     * @param <R>
+     *         this stage's result type
+     * @return future for this stage's result
+     */
+    public <T, R> CompletableFuture<R> thenStage(CompletableFuture<T> previous, PackagingStage stage,
+            String taskName, CancellationToken cancellationToken, StageFunction<T, R> function) {
+        return previous.thenCompose(input -> submitStage(stage, taskName, cancellationToken,
+                () -> function.apply(input)));
+    }
+
+    // Runs one attempt of the stage on the stage's pool. On failure, schedules the next attempt, or fails the future
+    // if we're out of attempts.
+    private <T> void runAttempt(PackagingStage stage, String taskName, CancellationToken cancellationToken,
+            StageCallable<T> callable, int attempt, CompletableFuture<T> future) {
+        FairShareExecutor executor = executorMap.get(stage.getResource());
+        RequestShare share = getRequestShare(cancellationToken);
+        try {
+            executor.execute(share, () -> {
+                if (cancellationToken.isCancelled()) {
+                    // The outcome of the request is already known. Don't bother running this stage.
+                    future.completeExceptionally(new CancellationException("Stage " + stage + " for " + taskName +
+                            " cancelled: " + cancellationToken.getReason()));
+                    return;
+                }
+
+                Stopwatch stageStopwatch = Stopwatch.createStarted();
+                try {
+                    T result = callable.call();
+                    LOG.info("Stage " + stage + " for " + taskName + " took " +
+                            stageStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+                    future.complete(result);
+                } catch (Exception ex) {
+                    LOG.warn("Stage " + stage + " for " + taskName + " failed on attempt " + attempt + " after " +
+                            stageStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms: " + ex.getMessage(), ex);
+                    if (attempt < retryMaxAttempts && !cancellationToken.isCancelled()) {
+                        scheduleRetry(stage, taskName, cancellationToken, callable, attempt + 1, future, ex);
+                    } else {
+                        future.completeExceptionally(ex);
+                    }
+                } catch (Error err) {
+                    // Don't retry on errors, but make sure the future completes, or callers will wait forever.
+                    future.completeExceptionally(err);
+                    throw err;
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // This generally means we're shutting down.
+            future.completeExceptionally(ex);
+        }
+    }
+
+    // Schedules the next attempt of a failed stage after the retry delay.
+    private <T> void scheduleRetry(PackagingStage stage, String taskName, CancellationToken cancellationToken,
+            StageCallable<T> callable, int attempt, CompletableFuture<T> future, Exception cause) {
+        try {
+            retryScheduler.schedule(() -> runAttempt(stage, taskName, cancellationToken, callable, attempt, future),
+                    retryDelayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            future.completeExceptionally(cause);
+        }
+    }
+}
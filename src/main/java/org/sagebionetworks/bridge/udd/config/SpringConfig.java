@@ -4,8 +4,11 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
@@ -14,19 +17,26 @@ import com.amazonaws.services.dynamodbv2.document.Table;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.simpleemail.AmazonSimpleEmailServiceClient;
 import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.config.PropertiesConfig;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 
 import org.sagebionetworks.bridge.dynamodb.DynamoQueryHelper;
+import org.sagebionetworks.bridge.file.FileHelper;
 import org.sagebionetworks.bridge.heartbeat.HeartbeatLogger;
 import org.sagebionetworks.bridge.rest.ClientManager;
 import org.sagebionetworks.bridge.rest.model.ClientInfo;
 import org.sagebionetworks.bridge.rest.model.SignIn;
 import org.sagebionetworks.bridge.s3.S3Helper;
+import org.sagebionetworks.bridge.udd.concurrent.FairShareExecutor;
+import org.sagebionetworks.bridge.udd.concurrent.StageResource;
 
 // These configs get credentials from the default credential chain. For developer desktops, this is ~/.aws/credentials.
 // For EC2 instances, this happens transparently.
@@ -74,14 +84,75 @@ public class SpringConfig {
         return envName + '-' + userName + '-';
     }
 
-    @Bean(name = "auxiliaryExecutorService")
-    public ExecutorService auxiliaryExecutorService() {
-        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.aux.count"));
+    // One thread pool per stage resource, each sized for that resource. See StageResource for details. Each pool takes
+    // turns between requests. See FairShareExecutor for details.
+    @Bean(name = "stageExecutorMap")
+    public Map<StageResource, FairShareExecutor> stageExecutorMap() {
+        Config config = bridgeConfig();
+        Map<StageResource, FairShareExecutor> executorMap = new EnumMap<>(StageResource.class);
+        for (StageResource oneResource : StageResource.values()) {
+            int threadCount = config.getInt(oneResource.getThreadCountConfigKey());
+            String nameFormat = "stage-" + oneResource.name().toLowerCase() + "-%d";
+            ExecutorService executorService = Executors.newFixedThreadPool(threadCount,
+                    new ThreadFactoryBuilder().setNameFormat(nameFormat).build());
+            executorMap.put(oneResource, new FairShareExecutor(executorService, threadCount));
+        }
+        return executorMap;
     }
 
+    @Bean(name = "stageRetryScheduler")
+    public ScheduledExecutorService stageRetryScheduler() {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("stage-retry-%d").build());
+    }
+
+    // Deleting temp files is off the request's critical path. A single thread is enough, and keeps deletes from
+    // competing with requests for disk.
+    @Bean(name = "tempCleanupExecutor")
+    public ExecutorService tempCleanupExecutor() {
+        return Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("temp-cleanup-%d")
+                .build());
+    }
+
+    // Study metadata refreshes are rare and small. One thread is enough.
+    @Bean(name = "studyMetadataRefreshExecutor")
+    public ExecutorService studyMetadataRefreshExecutor() {
+        return Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("study-metadata-refresh-%d").build());
+    }
+
+    // Batch gets for studies with many schemas are split into batches that run in parallel.
+    @Bean(name = "ddbBatchGetExecutor")
+    public ExecutorService ddbBatchGetExecutor() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.ddb.batch.count"),
+                new ThreadFactoryBuilder().setNameFormat("ddb-batch-get-%d").build());
+    }
+
+    // Study and survey table lookups run in parallel with the Synapse table lookup when study metadata is loaded. The
+    // result index also uses this to look up table etags in parallel.
+    @Bean(name = "studyMetadataLoadExecutor")
+    public ExecutorService studyMetadataLoadExecutor() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.study.metadata.load.count"),
+                new ThreadFactoryBuilder().setNameFormat("study-metadata-load-%d").build());
+    }
+
+    // Bridge account lookups run in the background while the request does other work. Lookups mostly wait on the
+    // network, so a few threads are enough.
+    @Bean(name = "accountLookupExecutor")
+    public ExecutorService accountLookupExecutor() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.account.lookup.count"),
+                new ThreadFactoryBuilder().setNameFormat("account-lookup-%d").build());
+    }
+
+    // The endpoint can be overridden to run against a local DynamoDB stand-in.
     @Bean
     public DynamoDB ddbClient() {
-        return new DynamoDB(new AmazonDynamoDBClient());
+        AmazonDynamoDBClient ddbClient = new AmazonDynamoDBClient();
+        String endpoint = bridgeConfig().get("dynamodb.endpoint");
+        if (!Strings.isNullOrEmpty(endpoint)) {
+            ddbClient.setEndpoint(endpoint);
+        }
+        return new DynamoDB(ddbClient);
     }
 
     @Bean
@@ -106,6 +177,16 @@ public class SpringConfig {
         return ddbClient().getTable(ddbPrefix() + "SynapseSurveyTables");
     }
 
+    @Bean(name = "ddbRequestClaimTable")
+    public Table ddbRequestClaimTable() {
+        return ddbClient().getTable(ddbPrefix() + "UddRequestClaim");
+    }
+
+    @Bean(name = "ddbSynapseTableStatsTable")
+    public Table ddbSynapseTableStatsTable() {
+        return ddbClient().getTable(ddbPrefix() + "UddSynapseTableStats");
+    }
+
     @Bean(name = "ddbUploadSchemaTable")
     public Table ddbUploadSchemaTable() {
         return ddbClient().getTable(ddbPrefix() + "UploadSchema");
@@ -116,6 +197,19 @@ public class SpringConfig {
         return ddbUploadSchemaTable().getIndex("studyId-index");
     }
 
+    // One poller thread for each request slot. Threads are only created if the multi-slot worker is on.
+    @Bean(name = "requestSlotExecutor")
+    public ExecutorService requestSlotExecutor() {
+        return Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("request-slot-%d").build());
+    }
+
+    // Message visibility heartbeats for all slots. Heartbeats are quick, so one thread is enough.
+    @Bean(name = "visibilityHeartbeatScheduler")
+    public ScheduledExecutorService visibilityHeartbeatScheduler() {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("visibility-heartbeat-%d").build());
+    }
+
     @Bean
     public HeartbeatLogger heartbeatLogger() throws IOException {
         HeartbeatLogger heartbeatLogger = new HeartbeatLogger();
@@ -123,10 +217,23 @@ public class SpringConfig {
         return heartbeatLogger;
     }
 
+    // S3Helper covers most of what we need. The S3ZipAssembler uses the client directly for multipart uploads.
+    @Bean
+    public AmazonS3Client s3Client() {
+        return new AmazonS3Client();
+    }
+
+    // Default file helper, on disk. Beans that handle request files ask for the HybridFileHelper by name instead.
+    @Bean
+    @Primary
+    public FileHelper fileHelper() {
+        return new FileHelper();
+    }
+
     @Bean
     public S3Helper s3Helper() {
         S3Helper s3Helper = new S3Helper();
-        s3Helper.setS3Client(new AmazonS3Client());
+        s3Helper.setS3Client(s3Client());
         return s3Helper;
     }
 
@@ -139,5 +246,16 @@ public class SpringConfig {
     public AmazonSNSClient snsClient() {
         return new AmazonSNSClient();
     }
+
+    // The endpoint can be overridden to run against a local SQS stand-in.
+    @Bean
+    public AmazonSQSClient sqsClient() {
+        AmazonSQSClient sqsClient = new AmazonSQSClient();
+        String endpoint = bridgeConfig().get("sqs.endpoint");
+        if (!Strings.isNullOrEmpty(endpoint)) {
+            sqsClient.setEndpoint(endpoint);
+        }
+        return sqsClient;
+    }
     
 }
@@ -6,30 +6,72 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import javax.annotation.Resource;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.document.BatchGetItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Index;
 import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.TableKeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import org.sagebionetworks.bridge.dynamodb.DynamoQueryHelper;
 import org.sagebionetworks.bridge.schema.UploadSchema;
+import org.sagebionetworks.bridge.udd.concurrent.PackagingStage;
 
 /** Helper class to wrap some Dynamo DB queries we make. */
 @Component("uddDynamoHelper")
 public class DynamoHelper {
+    // Package-scoped to be available in unit tests
+    static final int BATCH_GET_MAX_KEYS = 100;
+    static final int BATCH_GET_MAX_ATTEMPTS = 5;
+    static final long BATCH_GET_RETRY_BASE_DELAY_MILLIS = 50;
+
+    // Batch gets only fetch the attributes we use. UploadSchema.fromDdbItem() only needs the key, revision, and field
+    // definitions.
+    private static final String[] SYNAPSE_MAP_ATTRIBUTES = { "schemaKey", "tableId" };
+    private static final String[] UPLOAD_SCHEMA_ATTRIBUTES = { "key", "revision", "fieldDefinitions" };
+
+    // Parsed upload schemas, keyed by schema key and revision. A schema revision never changes once it's created, so
+    // entries never go stale.
+    private final Map<String, UploadSchema> schemaCache = new ConcurrentHashMap<>();
+
+    private ExecutorService batchGetExecutor;
+    private DynamoDB ddbClient;
     private Table ddbStudyTable;
     private Table ddbSynapseMapTable;
     private Table ddbSynapseSurveyTablesTable;
+    private Table ddbSynapseTableStatsTable;
     private Table ddbUploadSchemaTable;
     private Index ddbUploadSchemaStudyIndex;
     private DynamoQueryHelper queryHelper;
 
+    /** Executor that runs batch gets in parallel. */
+    @Resource(name = "ddbBatchGetExecutor")
+    public final void setBatchGetExecutor(ExecutorService batchGetExecutor) {
+        this.batchGetExecutor = batchGetExecutor;
+    }
+
+    /** DDB client, used for batch gets, which span tables. */
+    @Autowired
+    public final void setDdbClient(DynamoDB ddbClient) {
+        this.ddbClient = ddbClient;
+    }
+
     /** Study table. */
     @Resource(name = "ddbStudyTable")
     public final void setDdbStudyTable(Table ddbStudyTable) {
@@ -58,6 +100,12 @@ public class DynamoHelper {
         this.ddbSynapseSurveyTablesTable = ddbSynapseSurveyTablesTable;
     }
 
+    /** DDB table with historical download stats for each Synapse table. */
+    @Resource(name = "ddbSynapseTableStatsTable")
+    public final void setDdbSynapseTableStatsTable(Table ddbSynapseTableStatsTable) {
+        this.ddbSynapseTableStatsTable = ddbSynapseTableStatsTable;
+    }
+
     /** Upload schema table. */
     @Resource(name = "ddbUploadSchemaTable")
     public final void setDdbUploadSchemaTable(Table ddbUploadSchemaTable) {
@@ -111,39 +159,62 @@ public class DynamoHelper {
 
     /**
      * Gets the Synapse table IDs associated with this study. The results are returned as a map from the Synapse table
-     * IDs to the Bridge upload schemas.
+     * IDs to the Bridge upload schemas. Schemas and Synapse table mappings are read with parallel batch gets, so
+     * studies with many schema revisions don't need a round trip per revision.
      *
      * @param studyId
      *         ID of the study to query on
      * @return map from the Synapse table IDs to the Bridge upload schema keys, may be empty, but will never be null
      */
     public Map<String, UploadSchema> getSynapseTableIdsForStudy(String studyId) throws IOException {
-        // query and iterate
+        // Query the index. Index only contains study ID, key, and revision. Schemas we've already parsed come from the
+        // cache. The rest are batch loaded from the table to get all fields.
         List<UploadSchema> schemaList = new ArrayList<>();
+        List<PrimaryKey> missingSchemaKeyList = new ArrayList<>();
         Iterable<Item> schemaItemIter = queryHelper.query(ddbUploadSchemaStudyIndex, "studyId", studyId);
         for (Item oneSchemaItem : schemaItemIter) {
-            // Index only contains study ID, key, and revision. Re-query the table to get all fields.
             String key = oneSchemaItem.getString("key");
             int rev = oneSchemaItem.getInt("revision");
-            Item fullSchemaItem = ddbUploadSchemaTable.getItem("key", key, "revision", rev);
+            UploadSchema schema = schemaCache.get(key + ":" + rev);
+            if (schema != null) {
+                schemaList.add(schema);
+            } else {
+                missingSchemaKeyList.add(new PrimaryKey("key", key, "revision", rev));
+            }
+        }
 
-            UploadSchema schema = UploadSchema.fromDdbItem(fullSchemaItem);
+        List<Item> fullSchemaItemList = batchGetItems(ddbUploadSchemaTable.getTableName(), missingSchemaKeyList,
+                UPLOAD_SCHEMA_ATTRIBUTES);
+        for (Item oneFullSchemaItem : fullSchemaItemList) {
+            UploadSchema schema = UploadSchema.fromDdbItem(oneFullSchemaItem);
+            schemaCache.put(oneFullSchemaItem.getString("key") + ":" + oneFullSchemaItem.getInt("revision"),
+                    schema);
             schemaList.add(schema);
         }
 
         // Now query the SynapseTables table to get the Synapse table IDs for the schema. We use a reverse map from
         // Synapse table ID to upload schema, because multiple upload schemas can map to a single Synapse table. (This
         // is due to some early day hacks in the original studies.)
+        List<PrimaryKey> synapseMapKeyList = new ArrayList<>();
+        for (UploadSchema oneSchema : schemaList) {
+            synapseMapKeyList.add(new PrimaryKey("schemaKey", oneSchema.getKey().toString()));
+        }
+        Map<String, String> schemaKeyToTableIdMap = new HashMap<>();
+        for (Item oneSynapseMapRecord : batchGetItems(ddbSynapseMapTable.getTableName(), synapseMapKeyList,
+                SYNAPSE_MAP_ATTRIBUTES)) {
+            schemaKeyToTableIdMap.put(oneSynapseMapRecord.getString("schemaKey"),
+                    oneSynapseMapRecord.getString("tableId"));
+        }
+
         Multimap<String, UploadSchema> synapseToSchemaMultimap = HashMultimap.create();
         for (UploadSchema oneSchema : schemaList) {
-            Item synapseMapRecord = ddbSynapseMapTable.getItem("schemaKey", oneSchema.getKey().toString());
-            if (synapseMapRecord == null) {
+            String synapseTableId = schemaKeyToTableIdMap.get(oneSchema.getKey().toString());
+            if (synapseTableId == null) {
                 // This could happen if the schema was just created, but the Bridge-Exporter hasn't created the
                 // corresponding Synapse table yet. If so, there's obviously no data. Skip this one.
                 continue;
             }
 
-            String synapseTableId = synapseMapRecord.getString("tableId");
             synapseToSchemaMultimap.put(synapseTableId, oneSchema);
         }
 
@@ -166,4 +237,119 @@ public class DynamoHelper {
 
         return synapseToSchemaMap;
     }
+
+    /**
+     * Batch gets the items for the given keys, with only the given attributes. Keys are split into batches of up to
+     * {@link #BATCH_GET_MAX_KEYS}, which run in parallel. Items that don't exist are left out, so the result may have
+     * fewer items than keys, and isn't in any particular order.
+     */
+    private List<Item> batchGetItems(String tableName, List<PrimaryKey> keyList, String... attributeNames) {
+        if (keyList.isEmpty()) {
+            return ImmutableList.of();
+        }
+
+        List<Future<List<Item>>> futureList = new ArrayList<>();
+        for (List<PrimaryKey> oneBatchKeyList : Lists.partition(keyList, BATCH_GET_MAX_KEYS)) {
+            futureList.add(batchGetExecutor.submit(() -> batchGetItemsWithRetry(tableName, oneBatchKeyList,
+                    attributeNames)));
+        }
+
+        List<Item> itemList = new ArrayList<>();
+        for (Future<List<Item>> oneFuture : futureList) {
+            try {
+                itemList.addAll(oneFuture.get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new AmazonClientException("Interrupted batch getting items from table " + tableName, ex);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new AmazonClientException("Error batch getting items from table " + tableName + ": " +
+                        cause.getMessage(), cause);
+            }
+        }
+        return itemList;
+    }
+
+    // Batch gets a single batch of keys. DDB may return some keys as unprocessed, such as when it's throttling.
+    // These are retried with exponential backoff.
+    private List<Item> batchGetItemsWithRetry(String tableName, List<PrimaryKey> batchKeyList,
+            String[] attributeNames) throws InterruptedException {
+        TableKeysAndAttributes keysAndAttributes = new TableKeysAndAttributes(tableName)
+                .withPrimaryKeys(batchKeyList.toArray(new PrimaryKey[batchKeyList.size()]))
+                .withAttributeNames(attributeNames);
+        BatchGetItemOutcome outcome = ddbClient.batchGetItem(keysAndAttributes);
+
+        List<Item> itemList = new ArrayList<>();
+        for (int attempt = 1; ; attempt++) {
+            List<Item> outcomeItemList = outcome.getTableItems().get(tableName);
+            if (outcomeItemList != null) {
+                itemList.addAll(outcomeItemList);
+            }
+
+            Map<String, KeysAndAttributes> unprocessedKeyMap = outcome.getUnprocessedKeys();
+            if (unprocessedKeyMap == null || unprocessedKeyMap.isEmpty()) {
+                return itemList;
+            }
+            if (attempt >= BATCH_GET_MAX_ATTEMPTS) {
+                throw new AmazonClientException("Table " + tableName + " still has unprocessed keys after " +
+                        attempt + " batch get attempts");
+            }
+
+            Thread.sleep(BATCH_GET_RETRY_BASE_DELAY_MILLIS << (attempt - 1));
+            outcome = ddbClient.batchGetItemUnprocessed(unprocessedKeyMap);
+        }
+    }
+
+    /**
+     * Gets the historical download stats for the given Synapse table.
+     *
+     * @param synapseTableId
+     *         Synapse table to get stats for
+     * @return historical stats, or null if we have no stats for this table
+     */
+    public SynapseTableStats getSynapseTableStats(String synapseTableId) {
+        Item item = ddbSynapseTableStatsTable.getItem("synapseTableId", synapseTableId);
+        if (item == null) {
+            return null;
+        }
+
+        SynapseTableStats.Builder statsBuilder = new SynapseTableStats.Builder().withSynapseTableId(synapseTableId)
+                .withRunCount(item.getLong("runCount")).withCsvBytes(item.getLong("csvBytes"))
+                .withAttachmentCount(item.getLong("attachmentCount"));
+
+        Map<String, Object> stageMillisMap = item.getMap("stageMillis");
+        if (stageMillisMap != null) {
+            for (Map.Entry<String, Object> oneStageEntry : stageMillisMap.entrySet()) {
+                PackagingStage stage;
+                try {
+                    stage = PackagingStage.valueOf(oneStageEntry.getKey());
+                } catch (IllegalArgumentException ex) {
+                    // Stage from an older version of the code. Skip.
+                    continue;
+                }
+                statsBuilder.withStageMillis(stage, ((Number) oneStageEntry.getValue()).longValue());
+            }
+        }
+
+        return statsBuilder.build();
+    }
+
+    /**
+     * Writes the historical download stats for a Synapse table, replacing the previous stats.
+     *
+     * @param stats
+     *         stats to write
+     */
+    public void putSynapseTableStats(SynapseTableStats stats) {
+        Map<String, Object> stageMillisMap = new HashMap<>();
+        stats.getStageMillisMap().forEach((stage, millis) -> stageMillisMap.put(stage.name(), millis));
+
+        Item item = new Item().withPrimaryKey("synapseTableId", stats.getSynapseTableId())
+                .withLong("runCount", stats.getRunCount()).withLong("csvBytes", stats.getCsvBytes())
+                .withLong("attachmentCount", stats.getAttachmentCount()).withMap("stageMillis", stageMillisMap);
+        ddbSynapseTableStatsTable.putItem(item);
+    }
 }
@@ -0,0 +1,45 @@
+package org.sagebionetworks.bridge.udd.dynamodb;
+
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import org.sagebionetworks.bridge.schema.UploadSchema;
+
+/**
+ * Snapshot of everything a request needs to know about a study from DDB: the study info, the map from Synapse table
+ * IDs to upload schemas, and the survey table IDs. See {@link StudyMetadataCache}.
+ */
+public class StudyMetadata {
+    private final StudyInfo studyInfo;
+    private final Map<String, UploadSchema> synapseToSchemaMap;
+    private final Set<String> surveyTableIdSet;
+
+    /**
+     * Constructs the snapshot. The map and set are copied into immutable collections, so the snapshot can be shared
+     * between requests.
+     */
+    public StudyMetadata(StudyInfo studyInfo, Map<String, UploadSchema> synapseToSchemaMap,
+            Set<String> surveyTableIdSet) {
+        this.studyInfo = studyInfo;
+        this.synapseToSchemaMap = ImmutableMap.copyOf(synapseToSchemaMap);
+        this.surveyTableIdSet = ImmutableSet.copyOf(surveyTableIdSet);
+    }
+
+    /** Study info. */
+    public StudyInfo getStudyInfo() {
+        return studyInfo;
+    }
+
+    /** Map from Synapse table IDs to upload schemas. May be empty, but never null. */
+    public Map<String, UploadSchema> getSynapseToSchemaMap() {
+        return synapseToSchemaMap;
+    }
+
+    /** Survey table IDs. May be empty, but never null. */
+    public Set<String> getSurveyTableIdSet() {
+        return surveyTableIdSet;
+    }
+}
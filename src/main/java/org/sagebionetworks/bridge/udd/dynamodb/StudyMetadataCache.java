@@ -0,0 +1,181 @@
+package org.sagebionetworks.bridge.udd.dynamodb;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.schema.UploadSchema;
+import org.sagebionetworks.bridge.udd.helper.JodaTicker;
+
+/**
+ * <p>
+ * In-memory cache of {@link StudyMetadata} snapshots, keyed by study ID. Every request needs the study, its Synapse
+ * tables, and its survey tables, which is dozens of DDB round trips for a study with many schemas. Study metadata
+ * rarely changes, so on a warm cache, requests start without going to DDB at all.
+ * </p>
+ * <p>
+ * Once a snapshot is older than the refresh interval, the next request still gets it, but also triggers a reload in
+ * the background. If the reload fails, the old snapshot is kept. Snapshots older than the TTL are never used. The
+ * request that finds one reloads it while it waits. This bounds how stale metadata can get, for example, a new schema
+ * whose Synapse table was just created.
+ * </p>
+ * <p>
+ * Loads look up the study and its survey tables in parallel with its Synapse tables, so a load takes as long as the
+ * slowest lookup instead of all of them.
+ * </p>
+ */
+@Component
+public class StudyMetadataCache {
+    private static final Logger LOG = LoggerFactory.getLogger(StudyMetadataCache.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_REFRESH_MINUTES = "study.metadata.cache.refresh.minutes";
+    static final String CONFIG_KEY_TTL_MINUTES = "study.metadata.cache.ttl.minutes";
+
+    // Defaults, used if setConfig() is never called (such as in unit tests). A TTL of 0 disables the cache.
+    private long refreshMinutes = 0;
+    private long ttlMinutes = 0;
+
+    private LoadingCache<String, StudyMetadata> cache;
+    private DynamoHelper dynamoHelper;
+    private ExecutorService loadExecutor;
+    private ExecutorService refreshExecutor;
+
+    /** Bridge config, used to get the refresh interval and TTL. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        refreshMinutes = config.getInt(CONFIG_KEY_REFRESH_MINUTES);
+        ttlMinutes = config.getInt(CONFIG_KEY_TTL_MINUTES);
+    }
+
+    /** DDB helper, used to load study metadata. */
+    @Autowired
+    public final void setDynamoHelper(DynamoHelper dynamoHelper) {
+        this.dynamoHelper = dynamoHelper;
+    }
+
+    /**
+     * Executor for the study and survey table lookups, which run in parallel with the Synapse table lookup. If not set
+     * (such as in unit tests), lookups run one after another.
+     */
+    @Resource(name = "studyMetadataLoadExecutor")
+    public final void setLoadExecutor(ExecutorService loadExecutor) {
+        this.loadExecutor = loadExecutor;
+    }
+
+    /** Executor for background refreshes, so they don't hold up the request that triggered them. */
+    @Resource(name = "studyMetadataRefreshExecutor")
+    public final void setRefreshExecutor(ExecutorService refreshExecutor) {
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /** Creates the cache. Called by Spring on startup. */
+    @PostConstruct
+    public void init() {
+        if (ttlMinutes <= 0) {
+            return;
+        }
+
+        CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder().ticker(JodaTicker.INSTANCE)
+                .expireAfterWrite(ttlMinutes, TimeUnit.MINUTES);
+        CacheLoader<String, StudyMetadata> loader = new CacheLoader<String, StudyMetadata>() {
+            @Override
+            public StudyMetadata load(String studyId) throws IOException {
+                return loadStudyMetadata(studyId);
+            }
+        };
+        if (refreshMinutes > 0 && refreshMinutes < ttlMinutes) {
+            cacheBuilder.refreshAfterWrite(refreshMinutes, TimeUnit.MINUTES);
+            loader = CacheLoader.asyncReloading(loader, refreshExecutor);
+        }
+        cache = cacheBuilder.build(loader);
+    }
+
+    /**
+     * Gets the metadata snapshot for the given study, loading it from DDB if it's not cached.
+     *
+     * @param studyId
+     *         ID of the study to get metadata for
+     * @return study metadata snapshot
+     * @throws IOException
+     *         if parsing the upload schemas fails
+     */
+    public StudyMetadata getStudyMetadata(String studyId) throws IOException {
+        if (cache == null) {
+            return loadStudyMetadata(studyId);
+        }
+
+        try {
+            return cache.get(studyId);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (UncheckedExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw ex;
+        }
+    }
+
+    // Loads all of the study's metadata from DDB. The study and survey tables are single DDB calls, so they run in the
+    // background while this thread reads the Synapse tables, which can take several batch gets.
+    private StudyMetadata loadStudyMetadata(String studyId) throws IOException {
+        Stopwatch loadStopwatch = Stopwatch.createStarted();
+        CompletableFuture<StudyInfo> studyInfoFuture = startLookup(() -> dynamoHelper.getStudy(studyId));
+        CompletableFuture<Set<String>> surveyTableIdSetFuture = startLookup(
+                () -> dynamoHelper.getSynapseSurveyTablesForStudy(studyId));
+        Map<String, UploadSchema> synapseToSchemaMap = dynamoHelper.getSynapseTableIdsForStudy(studyId);
+        StudyInfo studyInfo = waitForLookup(studyInfoFuture);
+        Set<String> surveyTableIdSet = waitForLookup(surveyTableIdSetFuture);
+        LOG.info("Loading metadata for study " + studyId + " took " + loadStopwatch.elapsed(TimeUnit.MILLISECONDS)
+                + " ms");
+        return new StudyMetadata(studyInfo, synapseToSchemaMap, surveyTableIdSet);
+    }
+
+    // Runs the lookup on the load executor, or in this thread if there isn't one.
+    private <T> CompletableFuture<T> startLookup(Supplier<T> lookup) {
+        if (loadExecutor == null) {
+            return CompletableFuture.completedFuture(lookup.get());
+        }
+        return CompletableFuture.supplyAsync(lookup, loadExecutor);
+    }
+
+    // Waits for a lookup. DDB lookups only throw unchecked exceptions, so those are rethrown as is.
+    private static <T> T waitForLookup(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw ex;
+        }
+    }
+}
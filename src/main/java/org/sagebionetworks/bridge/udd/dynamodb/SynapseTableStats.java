@@ -0,0 +1,125 @@
+package org.sagebionetworks.bridge.udd.dynamodb;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+
+import org.sagebionetworks.bridge.udd.concurrent.PackagingStage;
+
+/**
+ * Statistics for downloading a Synapse table. This is used both for a single run (a sample) and for the historical
+ * averages across runs, which are persisted in DDB and used to start the most expensive tables first.
+ */
+public class SynapseTableStats {
+    private final String synapseTableId;
+    private final long runCount;
+    private final long csvBytes;
+    private final long attachmentCount;
+    private final Map<PackagingStage, Long> stageMillisMap;
+
+    /** Private constructor. To construct, use builder. */
+    private SynapseTableStats(String synapseTableId, long runCount, long csvBytes, long attachmentCount,
+            Map<PackagingStage, Long> stageMillisMap) {
+        this.synapseTableId = synapseTableId;
+        this.runCount = runCount;
+        this.csvBytes = csvBytes;
+        this.attachmentCount = attachmentCount;
+        this.stageMillisMap = stageMillisMap;
+    }
+
+    /** Synapse table ID these stats are for. */
+    public String getSynapseTableId() {
+        return synapseTableId;
+    }
+
+    /** Number of runs these stats are averaged over. 1 for a single sample. */
+    public long getRunCount() {
+        return runCount;
+    }
+
+    /** Size of the downloaded CSV, in bytes. 0 if the table had no data for the request. */
+    public long getCsvBytes() {
+        return csvBytes;
+    }
+
+    /** Number of attachments (file handles) downloaded for the table. */
+    public long getAttachmentCount() {
+        return attachmentCount;
+    }
+
+    /** Time spent in each stage, in milliseconds. Stages that didn't run aren't in the map. Never null. */
+    public Map<PackagingStage, Long> getStageMillisMap() {
+        return stageMillisMap;
+    }
+
+    /** Total time spent in all stages, in milliseconds. This is the expected cost of downloading the table. */
+    public long getTotalStageMillis() {
+        return stageMillisMap.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    /** SynapseTableStats builder. */
+    public static class Builder {
+        private String synapseTableId;
+        private long runCount = 1;
+        private long csvBytes;
+        private long attachmentCount;
+        private final Map<PackagingStage, Long> stageMillisMap = new EnumMap<>(PackagingStage.class);
+
+        /** @see SynapseTableStats#getSynapseTableId */
+        public Builder withSynapseTableId(String synapseTableId) {
+            this.synapseTableId = synapseTableId;
+            return this;
+        }
+
+        /** @see SynapseTableStats#getRunCount */
+        public Builder withRunCount(long runCount) {
+            this.runCount = runCount;
+            return this;
+        }
+
+        /** @see SynapseTableStats#getCsvBytes */
+        public Builder withCsvBytes(long csvBytes) {
+            this.csvBytes = csvBytes;
+            return this;
+        }
+
+        /** @see SynapseTableStats#getAttachmentCount */
+        public Builder withAttachmentCount(long attachmentCount) {
+            this.attachmentCount = attachmentCount;
+            return this;
+        }
+
+        /** @see SynapseTableStats#getStageMillisMap */
+        public Builder withStageMillis(PackagingStage stage, long millis) {
+            this.stageMillisMap.put(stage, millis);
+            return this;
+        }
+
+        /** @see SynapseTableStats#getStageMillisMap */
+        public Builder withStageMillisMap(Map<PackagingStage, Long> stageMillisMap) {
+            this.stageMillisMap.putAll(stageMillisMap);
+            return this;
+        }
+
+        /** Builds and validates a SynapseTableStats object. */
+        public SynapseTableStats build() {
+            if (Strings.isNullOrEmpty(synapseTableId)) {
+                throw new IllegalStateException("synapseTableId must be specified");
+            }
+            if (runCount <= 0) {
+                throw new IllegalStateException("runCount must be positive");
+            }
+            if (csvBytes < 0) {
+                throw new IllegalStateException("csvBytes can't be negative");
+            }
+            if (attachmentCount < 0) {
+                throw new IllegalStateException("attachmentCount can't be negative");
+            }
+
+            return new SynapseTableStats(synapseTableId, runCount, csvBytes, attachmentCount,
+                    ImmutableMap.copyOf(stageMillisMap));
+        }
+    }
+}
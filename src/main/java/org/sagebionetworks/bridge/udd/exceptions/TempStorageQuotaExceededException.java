@@ -0,0 +1,23 @@
+package org.sagebionetworks.bridge.udd.exceptions;
+
+/**
+ * Thrown when this node's temp storage is at its quota, so a new request can't be given a temp dir. This is a
+ * RuntimeException, so the request goes back on the queue and is retried later, possibly on another node.
+ */
+@SuppressWarnings("serial")
+public class TempStorageQuotaExceededException extends RuntimeException {
+    public TempStorageQuotaExceededException() {
+    }
+
+    public TempStorageQuotaExceededException(String message) {
+        super(message);
+    }
+
+    public TempStorageQuotaExceededException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public TempStorageQuotaExceededException(Throwable cause) {
+        super(cause);
+    }
+}
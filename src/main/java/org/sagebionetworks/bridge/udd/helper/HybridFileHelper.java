@@ -0,0 +1,330 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.FileHelper;
+
+/**
+ * <p>
+ * File helper that keeps small files in memory, and spills to disk beyond a size threshold. Most requests only produce
+ * a few KB of CSVs, so writing, renaming, and deleting each of those files on disk is wasted work.
+ * </p>
+ * <p>
+ * A file stays in memory as long as it's under the per-file limit and the files in its dir (generally, the request's
+ * temp dir) are under the per-request limit. Once a write would go over either limit, the file spills to disk, and
+ * writes go straight to disk from then on.
+ * </p>
+ * <p>
+ * Files written outside of the file helper (for example, Synapse downloads) are on disk, and all methods fall back to
+ * disk for files that aren't in memory, so callers don't need to know where a file lives. Dirs are always on disk.
+ * </p>
+ * <p>
+ * This is only for request files. Beans that handle request files ask for it by name. Everything else, such as the
+ * caches' own files, uses the default file helper, so long-lived files never end up on the heap.
+ * </p>
+ */
+@Component
+public class HybridFileHelper extends FileHelper {
+    private static final Logger LOG = LoggerFactory.getLogger(HybridFileHelper.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_MAX_FILE_KB = "hybrid.file.memory.max.file.kb";
+    static final String CONFIG_KEY_MAX_REQUEST_KB = "hybrid.file.memory.max.request.kb";
+
+    private static final long BYTES_PER_KB = 1024;
+
+    // Defaults, used if setConfig() is never called (such as in unit tests).
+    private long maxFileBytes = 1024 * BYTES_PER_KB;
+    private long maxRequestBytes = 8 * 1024 * BYTES_PER_KB;
+
+    // In-memory files, keyed by path, and bytes in memory, keyed by dir path. Both are guarded by "this".
+    private final Map<String, byte[]> memoryFileMap = new HashMap<>();
+    private final Map<String, Long> dirBytesMap = new HashMap<>();
+
+    // Number of files that spilled to disk, for logging.
+    private final AtomicLong spillCount = new AtomicLong();
+
+    /** Bridge config, used to get the in-memory size limits. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        maxFileBytes = config.getInt(CONFIG_KEY_MAX_FILE_KB) * BYTES_PER_KB;
+        maxRequestBytes = config.getInt(CONFIG_KEY_MAX_REQUEST_KB) * BYTES_PER_KB;
+    }
+
+    /** Number of files that have spilled to disk since startup. */
+    public long getSpillCount() {
+        return spillCount.get();
+    }
+
+    /** Package-scoped, so unit tests can check where a file lives. */
+    synchronized boolean isInMemory(File file) {
+        return memoryFileMap.containsKey(file.getPath());
+    }
+
+    /** Bytes in memory for files in the given dir. */
+    public synchronized long getMemoryBytes(File dir) {
+        return dirBytesMap.getOrDefault(dir.getPath(), 0L);
+    }
+
+    /**
+     * Creates the dir on disk, along with any missing parents. Dirs are always on disk.
+     *
+     * @throws IllegalStateException
+     *         if the dir can't be created
+     */
+    public void createDir(File dir) {
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IllegalStateException("Failed to create dir " + dir.getAbsolutePath());
+        }
+    }
+
+    /** Deletes the dir. In-memory files in the dir are dropped, since nothing can reach them once the dir is gone. */
+    @Override
+    public void deleteDir(File dir) {
+        forgetDir(dir);
+        super.deleteDir(dir);
+    }
+
+    /**
+     * Drops the in-memory files in the given dir, without touching the disk. Call this if the dir is deleted some other
+     * way, so its files don't stay in memory forever.
+     */
+    public synchronized void forgetDir(File dir) {
+        String dirPath = dir.getPath();
+        Iterator<Map.Entry<String, byte[]>> memoryFileIter = memoryFileMap.entrySet().iterator();
+        while (memoryFileIter.hasNext()) {
+            if (dirPath.equals(new File(memoryFileIter.next().getKey()).getParent())) {
+                memoryFileIter.remove();
+            }
+        }
+        dirBytesMap.remove(dirPath);
+    }
+
+    /** Deletes the file, from memory if it's there, otherwise from disk. */
+    @Override
+    public void deleteFile(File file) {
+        if (!removeMemoryFile(file)) {
+            super.deleteFile(file);
+        }
+    }
+
+    /** True if the file exists, either in memory or on disk. */
+    @Override
+    public boolean fileExists(File file) {
+        return isInMemory(file) || super.fileExists(file);
+    }
+
+    /** Input stream for the file, from memory if it's there, otherwise from disk. */
+    @Override
+    public InputStream getInputStream(File file) throws FileNotFoundException {
+        byte[] bytes;
+        synchronized (this) {
+            bytes = memoryFileMap.get(file.getPath());
+        }
+        return bytes != null ? new ByteArrayInputStream(bytes) : super.getInputStream(file);
+    }
+
+    /**
+     * Output stream for the file. Writes are buffered in memory until they go over the per-file or per-request limit,
+     * then spill to disk. The file appears (in memory or on disk) when the stream is closed.
+     */
+    @Override
+    public OutputStream getOutputStream(File file) {
+        return new HybridOutputStream(file);
+    }
+
+    /** UTF-8 reader for the file. See {@link #getInputStream}. */
+    @Override
+    public BufferedReader getReader(File file) throws FileNotFoundException {
+        return new BufferedReader(new InputStreamReader(getInputStream(file), StandardCharsets.UTF_8));
+    }
+
+    /** UTF-8 writer for the file. See {@link #getOutputStream}. */
+    @Override
+    public BufferedWriter getWriter(File file) {
+        return new BufferedWriter(new OutputStreamWriter(getOutputStream(file), StandardCharsets.UTF_8));
+    }
+
+    /** Moves the file. In-memory files are moved in memory, replacing anything at the destination. */
+    @Override
+    public void moveFiles(File from, File to) throws IOException {
+        byte[] bytes;
+        synchronized (this) {
+            bytes = memoryFileMap.get(from.getPath());
+            if (bytes != null) {
+                // The destination might be in a different dir, so move the bytes to that dir's total. This may go
+                // over the per-request limit, but the bytes are already in memory anyway.
+                removeMemoryFile(from);
+                removeMemoryFile(to);
+                addBytes(to.getParent(), bytes.length);
+                putMemoryFile(to, bytes);
+            }
+        }
+
+        if (bytes != null) {
+            // The destination might be on disk, for example, if we edited a CSV that Synapse downloaded.
+            deleteDiskFileIfExists(to);
+        } else {
+            removeMemoryFile(to);
+            super.moveFiles(from, to);
+        }
+    }
+
+    // Opens a stream to the file on disk. This is a separate method, so the output stream can call through to the
+    // FileHelper implementation.
+    private OutputStream getDiskOutputStream(File file) throws FileNotFoundException {
+        return super.getOutputStream(file);
+    }
+
+    // Deletes the file from disk, if it's there. Used when a file on disk is replaced by a file in memory.
+    private void deleteDiskFileIfExists(File file) {
+        if (super.fileExists(file)) {
+            super.deleteFile(file);
+        }
+    }
+
+    // Reserves in-memory bytes for the given dir. Returns false if that would go over the per-request limit.
+    private synchronized boolean tryReserveBytes(String dirPath, long numBytes) {
+        long dirBytes = dirBytesMap.getOrDefault(dirPath, 0L);
+        if (dirBytes + numBytes > maxRequestBytes) {
+            return false;
+        }
+        addBytes(dirPath, numBytes);
+        return true;
+    }
+
+    // Adds in-memory bytes to the given dir, regardless of the per-request limit.
+    private synchronized void addBytes(String dirPath, long numBytes) {
+        dirBytesMap.merge(dirPath, numBytes, Long::sum);
+    }
+
+    // Releases in-memory bytes for the given dir.
+    private synchronized void releaseBytes(String dirPath, long numBytes) {
+        long dirBytes = dirBytesMap.getOrDefault(dirPath, 0L) - numBytes;
+        if (dirBytes > 0) {
+            dirBytesMap.put(dirPath, dirBytes);
+        } else {
+            dirBytesMap.remove(dirPath);
+        }
+    }
+
+    // Adds the file to memory. The caller must have already reserved its bytes.
+    private synchronized void putMemoryFile(File file, byte[] bytes) {
+        memoryFileMap.put(file.getPath(), bytes);
+    }
+
+    // Removes the file from memory, and releases its bytes. Returns false if the file wasn't in memory.
+    private synchronized boolean removeMemoryFile(File file) {
+        byte[] bytes = memoryFileMap.remove(file.getPath());
+        if (bytes == null) {
+            return false;
+        }
+        releaseBytes(file.getParent(), bytes.length);
+        return true;
+    }
+
+    // Buffers in memory until the file goes over a limit, then spills to disk.
+    private class HybridOutputStream extends OutputStream {
+        private final File file;
+        private final String dirPath;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private OutputStream diskOutputStream;
+        private long reservedBytes = 0;
+        private boolean closed = false;
+
+        HybridOutputStream(File file) {
+            this.file = file;
+            this.dirPath = file.getParent();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed for file " + file.getPath());
+            }
+
+            if (diskOutputStream == null) {
+                if (buffer.size() + len <= maxFileBytes && tryReserveBytes(dirPath, len)) {
+                    reservedBytes += len;
+                    buffer.write(b, off, len);
+                    return;
+                }
+                spill();
+            }
+            diskOutputStream.write(b, off, len);
+        }
+
+        // Copies the buffer to disk. Writes go to disk from now on.
+        private void spill() throws IOException {
+            diskOutputStream = getDiskOutputStream(file);
+            buffer.writeTo(diskOutputStream);
+            buffer = null;
+            releaseBytes(dirPath, reservedBytes);
+            reservedBytes = 0;
+
+            spillCount.incrementAndGet();
+            LOG.info("Spilled file " + file.getPath() + " to disk");
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (diskOutputStream != null) {
+                diskOutputStream.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            if (diskOutputStream != null) {
+                diskOutputStream.close();
+
+                // An older version of the file might still be in memory.
+                removeMemoryFile(file);
+            } else {
+                synchronized (HybridFileHelper.this) {
+                    // Bytes for this file are already reserved. If there's an older version in memory, release its
+                    // bytes.
+                    removeMemoryFile(file);
+                    putMemoryFile(file, buffer.toByteArray());
+                }
+                buffer = null;
+
+                // An older version of the file might be on disk.
+                deleteDiskFileIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import org.joda.time.DateTimeUtils;
+
+/**
+ * Guava ticker that reads Joda time, so tests can control Guava cache expiration with DateTimeUtils. Use
+ * {@link #INSTANCE}.
+ */
+public class JodaTicker extends Ticker {
+    /** Singleton instance. */
+    public static final JodaTicker INSTANCE = new JodaTicker();
+
+    private JodaTicker() {
+    }
+
+    /** Current Joda time, in nanoseconds. */
+    @Override
+    public long read() {
+        return TimeUnit.MILLISECONDS.toNanos(DateTimeUtils.currentTimeMillis());
+    }
+}
@@ -0,0 +1,249 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.sagebionetworks.bridge.file.FileHelper;
+
+/**
+ * <p>
+ * Local disk cache of files, bounded by total file size. When it's full, the least recently used entries are evicted.
+ * Each entry has a value, such as the version of the data it was cached from. Used by the survey CSV cache and the
+ * attachment cache.
+ * </p>
+ * <p>
+ * The lock only guards the entry map. Files are copied and deleted outside of the lock, so one slow copy doesn't block
+ * every other lookup. An entry is pinned while it's being copied out. If it's evicted or replaced in the meantime, its
+ * file is deleted once the last copy finishes. Each entry gets its own file, so we never overwrite a file that's being
+ * read.
+ * </p>
+ * <p>
+ * Cached files are read and written with the cache file helper, so they stay on disk. Files passed in by callers
+ * (generally request files) are read and written with the request file helper.
+ * </p>
+ * <p>
+ * Errors are logged, and the caller falls back to downloading the file.
+ * </p>
+ *
+ * @param <V>
+ *         type of the value stored with each file
+ */
+public class LruFileCache<V> {
+    private static final Logger LOG = LoggerFactory.getLogger(LruFileCache.class);
+
+    private final FileHelper cacheFileHelper;
+    private final FileHelper requestFileHelper;
+    private final File cacheDir;
+    private final long maxBytes;
+
+    // Entries in access order, so the first entry is the least recently used. Guarded by "this".
+    private final LinkedHashMap<String, CacheEntry<V>> entryMap = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+    private long evictionCount = 0;
+
+    /**
+     * Creates the cache. The cache dir must already exist.
+     *
+     * @param cacheFileHelper
+     *         file helper, used to read, write, and delete cached files
+     * @param requestFileHelper
+     *         file helper, used to read and write the files callers pass in
+     * @param cacheDir
+     *         dir to keep cached files in
+     * @param maxBytes
+     *         max total size of cached files
+     */
+    public LruFileCache(FileHelper cacheFileHelper, FileHelper requestFileHelper, File cacheDir, long maxBytes) {
+        this.cacheFileHelper = cacheFileHelper;
+        this.requestFileHelper = requestFileHelper;
+        this.cacheDir = cacheDir;
+        this.maxBytes = maxBytes;
+    }
+
+    /** Dir the cached files are kept in. */
+    public File getCacheDir() {
+        return cacheDir;
+    }
+
+    /**
+     * Copies the cached file for the given key to the given file, if there's an entry whose value passes the given
+     * check. Entries that fail the check won't hit again, so they're removed.
+     *
+     * @param key
+     *         cache key
+     * @param isCurrent
+     *         check for the entry's value, such as whether it's for the current version of the data
+     * @param to
+     *         file to copy the cached file to
+     * @return the entry's value, or null if there's no current entry or if copying fails
+     */
+    public V copyTo(String key, Predicate<V> isCurrent, File to) {
+        List<File> filesToDelete = new ArrayList<>();
+        CacheEntry<V> entry;
+        synchronized (this) {
+            entry = entryMap.get(key);
+            if (entry != null && !isCurrent.test(entry.value)) {
+                removeEntry(key, filesToDelete);
+                entry = null;
+            }
+            if (entry != null) {
+                entry.pinCount++;
+            }
+        }
+        deleteCachedFiles(filesToDelete);
+        if (entry == null) {
+            return null;
+        }
+
+        boolean copied = false;
+        try {
+            copyFile(cacheFileHelper, entry.file, requestFileHelper, to);
+            copied = true;
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Error copying cached file for " + key + ": " + ex.getMessage(), ex);
+            deleteQuietly(requestFileHelper, to);
+        }
+
+        synchronized (this) {
+            entry.pinCount--;
+            if (!copied && entryMap.get(key) == entry) {
+                removeEntry(key, filesToDelete);
+            } else if (entry.removed && entry.pinCount == 0) {
+                filesToDelete.add(entry.file);
+            }
+        }
+        deleteCachedFiles(filesToDelete);
+        return copied ? entry.value : null;
+    }
+
+    /**
+     * Adds the given file to the cache, replacing any older entry for the key. The file is copied, so the caller still
+     * owns it. Files larger than the whole cache aren't cached.
+     *
+     * @param key
+     *         cache key
+     * @param value
+     *         value to store with the file
+     * @param from
+     *         file to cache
+     * @return the file's length, or -1 if copying failed
+     */
+    public long put(String key, V value, File from) {
+        File cachedFile = cacheFileHelper.newFile(cacheDir, key + "-" + UUID.randomUUID().toString());
+        long length;
+        try {
+            length = copyFile(requestFileHelper, from, cacheFileHelper, cachedFile);
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Error caching file for " + key + ": " + ex.getMessage(), ex);
+            deleteQuietly(cacheFileHelper, cachedFile);
+            return -1;
+        }
+
+        if (length > maxBytes) {
+            LOG.info("File for " + key + " is " + length + " bytes, too big to cache");
+            deleteQuietly(cacheFileHelper, cachedFile);
+            return length;
+        }
+
+        List<File> filesToDelete = new ArrayList<>();
+        synchronized (this) {
+            removeEntry(key, filesToDelete);
+            entryMap.put(key, new CacheEntry<>(cachedFile, length, value));
+            totalBytes += length;
+
+            // Evict least recently used entries until we fit. The new entry is the most recent, so it's evicted last.
+            Iterator<Map.Entry<String, CacheEntry<V>>> entryIterator = entryMap.entrySet().iterator();
+            while (totalBytes > maxBytes && entryIterator.hasNext()) {
+                CacheEntry<V> evicted = entryIterator.next().getValue();
+                entryIterator.remove();
+                markRemoved(evicted, filesToDelete);
+                evictionCount++;
+            }
+        }
+        deleteCachedFiles(filesToDelete);
+        return length;
+    }
+
+    /** Number of entries evicted to make room for new ones. */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /** Total size of cached files, in bytes. Files still being copied out after eviction aren't counted. */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    // Removes the entry for the key, if any. Its file is added to the list to delete, unless it's pinned. Must be
+    // called while holding the lock.
+    private void removeEntry(String key, List<File> filesToDelete) {
+        CacheEntry<V> removed = entryMap.remove(key);
+        if (removed != null) {
+            markRemoved(removed, filesToDelete);
+        }
+    }
+
+    // Must be called while holding the lock, after removing the entry from the map.
+    private void markRemoved(CacheEntry<V> entry, List<File> filesToDelete) {
+        totalBytes -= entry.length;
+        entry.removed = true;
+        if (entry.pinCount == 0) {
+            filesToDelete.add(entry.file);
+        }
+    }
+
+    // Copies the file, between the cache and request file helpers. Returns the number of bytes copied.
+    private static long copyFile(FileHelper fromFileHelper, File from, FileHelper toFileHelper, File to)
+            throws IOException {
+        try (InputStream fromStream = fromFileHelper.getInputStream(from);
+                OutputStream toStream = toFileHelper.getOutputStream(to)) {
+            return ByteStreams.copy(fromStream, toStream);
+        }
+    }
+
+    private void deleteCachedFiles(List<File> fileList) {
+        for (File oneFile : fileList) {
+            deleteQuietly(cacheFileHelper, oneFile);
+        }
+        fileList.clear();
+    }
+
+    // Deletes the file if it exists. Logs errors instead of throwing.
+    private static void deleteQuietly(FileHelper fileHelper, File file) {
+        try {
+            if (fileHelper.fileExists(file)) {
+                fileHelper.deleteFile(file);
+            }
+        } catch (RuntimeException ex) {
+            LOG.error("Error deleting file " + file.getAbsolutePath() + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    // A cached file. Guarded by the cache lock.
+    private static class CacheEntry<V> {
+        private final File file;
+        private final long length;
+        private final V value;
+        private int pinCount = 0;
+        private boolean removed = false;
+
+        CacheEntry(File file, long length, V value) {
+            this.file = file;
+            this.length = length;
+            this.value = value;
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package org.sagebionetworks.bridge.udd.helper;
 
+import java.net.URL;
+import java.util.List;
+
 import com.amazonaws.services.simpleemail.AmazonSimpleEmailServiceClient;
 import com.amazonaws.services.simpleemail.model.Body;
 import com.amazonaws.services.simpleemail.model.Content;
@@ -35,6 +38,25 @@ public class SesHelper {
             "%n" +
             "This link will expire on %s.";
 
+    // Large downloads are split into parts. Part links are formatted with PART_LINK_TEMPLATE_* and joined into the
+    // body.
+    private static final String MULTIPART_BODY_TEMPLATE_HTML = "<html>%n" +
+            "   <body>%n" +
+            "       <p>Your requested data download is now available. Because of its size, it has been split into %d " +
+            "parts:</p>%n" +
+            "       <ul>%n" +
+            "%s" +
+            "       </ul>%n" +
+            "       <p>These links will expire on %s.</p>%n" +
+            "   </body>%n" +
+            "</html>";
+    private static final String MULTIPART_BODY_TEMPLATE_TEXT = "Your requested data download has been split into %d parts. To download your requested data, please click on each of the following links:%n" +
+            "%s" +
+            "%n" +
+            "These links will expire on %s.";
+    private static final String PART_LINK_TEMPLATE_HTML = "           <li><a href=\"%s\">Part %d of %d</a></li>%n";
+    private static final String PART_LINK_TEMPLATE_TEXT = "Part %d of %d: %s%n";
+
     private static final String NO_DATA_BODY_TEXT = "There was no data available for your request. Data will only be available if your sharing\n" +
             "settings are set to share data. Please check your sharing settings and please wait at\n" +
             "least 24 hours for data to finish processing.";
@@ -70,6 +92,7 @@ public class SesHelper {
 
     /**
      * Sends the presigned URL to the specified account. This also uses the study info to construct the email message.
+     * If the download is split into parts, the email has a link for each part.
      *
      * @param studyInfo
      *         study info, used to construct the email message, must be non-null
@@ -81,10 +104,26 @@ public class SesHelper {
      */
     public void sendPresignedUrlToAccount(StudyInfo studyInfo, PresignedUrlInfo presignedUrlInfo,
             AccountInfo accountInfo) {
-        String presignedUrlStr = presignedUrlInfo.getUrl().toString();
+        List<URL> urlList = presignedUrlInfo.getUrlList();
         String expirationTimeStr = presignedUrlInfo.getExpirationTime().toString();
-        String bodyHtmlStr = String.format(BODY_TEMPLATE_HTML, presignedUrlStr, expirationTimeStr);
-        String bodyTextStr = String.format(BODY_TEMPLATE_TEXT, presignedUrlStr, expirationTimeStr);
+        String bodyHtmlStr;
+        String bodyTextStr;
+        if (urlList.size() == 1) {
+            String presignedUrlStr = urlList.get(0).toString();
+            bodyHtmlStr = String.format(BODY_TEMPLATE_HTML, presignedUrlStr, expirationTimeStr);
+            bodyTextStr = String.format(BODY_TEMPLATE_TEXT, presignedUrlStr, expirationTimeStr);
+        } else {
+            int numParts = urlList.size();
+            StringBuilder linksHtml = new StringBuilder();
+            StringBuilder linksText = new StringBuilder();
+            for (int i = 0; i < numParts; i++) {
+                String presignedUrlStr = urlList.get(i).toString();
+                linksHtml.append(String.format(PART_LINK_TEMPLATE_HTML, presignedUrlStr, i + 1, numParts));
+                linksText.append(String.format(PART_LINK_TEMPLATE_TEXT, i + 1, numParts, presignedUrlStr));
+            }
+            bodyHtmlStr = String.format(MULTIPART_BODY_TEMPLATE_HTML, numParts, linksHtml, expirationTimeStr);
+            bodyTextStr = String.format(MULTIPART_BODY_TEMPLATE_TEXT, numParts, linksText, expirationTimeStr);
+        }
         Body body = new Body().withHtml(new Content(bodyHtmlStr)).withText(new Content(bodyTextStr));
 
         sendEmailToAccount(studyInfo, accountInfo, body);
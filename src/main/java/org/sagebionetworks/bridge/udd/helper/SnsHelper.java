@@ -1,5 +1,7 @@
 package org.sagebionetworks.bridge.udd.helper;
 
+import java.net.URL;
+import java.util.List;
 import java.util.Map;
 
 import org.sagebionetworks.bridge.udd.accounts.AccountInfo;
@@ -32,6 +34,7 @@ public class SnsHelper {
     public static final String SMS_TYPE_TRANSACTIONAL = "Transactional";
 
     private static final String MESSAGE_TEMPLATE = "Your requested data from %s: %s";
+    private static final String MULTIPART_MESSAGE_TEMPLATE = "Your requested data from %s, part %d of %d: %s";
     
     private static final String NO_DATA_MESSAGE_TEMPLATE = "There was no data in %s available for your request. Please wait at least a day for data to become available.";
     
@@ -50,8 +53,20 @@ public class SnsHelper {
     
     public void sendPresignedUrlToAccount(StudyInfo studyInfo, PresignedUrlInfo presignedUrlInfo,
             AccountInfo accountInfo) {
-        String body = String.format(MESSAGE_TEMPLATE, getStudyName(studyInfo), presignedUrlInfo.getUrl().toString());
-        sendSmsToAccount(studyInfo, accountInfo, body);
+        // Large downloads are split into parts. Presigned URLs are long, and SMS messages are capped at 1600
+        // characters, so send one message per part.
+        List<URL> urlList = presignedUrlInfo.getUrlList();
+        if (urlList.size() == 1) {
+            String body = String.format(MESSAGE_TEMPLATE, getStudyName(studyInfo), urlList.get(0).toString());
+            sendSmsToAccount(studyInfo, accountInfo, body);
+            return;
+        }
+
+        for (int i = 0; i < urlList.size(); i++) {
+            String body = String.format(MULTIPART_MESSAGE_TEMPLATE, getStudyName(studyInfo), i + 1, urlList.size(),
+                    urlList.get(i).toString());
+            sendSmsToAccount(studyInfo, accountInfo, body);
+        }
     }
     
     private void sendSmsToAccount(StudyInfo studyInfo, AccountInfo accountInfo, String body) {
@@ -0,0 +1,66 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A request's temp dir, as handed out by the {@link TempStorageManager}. This keeps track of how many bytes the
+ * request has written, and how many it's expected to write, so the manager can enforce the node's quota.
+ */
+public class TempStorageAllocation {
+    private final String requestName;
+    private final File dir;
+    private final File volume;
+    private final AtomicLong bytesUsed = new AtomicLong();
+    private final AtomicLong reservedBytes = new AtomicLong();
+
+    /** Package-scoped constructor. Allocations are created by the TempStorageManager. */
+    TempStorageAllocation(String requestName, File dir, File volume) {
+        this.requestName = requestName;
+        this.dir = dir;
+        this.volume = volume;
+    }
+
+    /** Request name, used for logging. */
+    public String getRequestName() {
+        return requestName;
+    }
+
+    /** Temp dir for the request. */
+    public File getDir() {
+        return dir;
+    }
+
+    /** Volume the temp dir is on, or null if the temp dir is in the default temp location. */
+    public File getVolume() {
+        return volume;
+    }
+
+    /** Bytes used by the request, as of the last time the manager measured it. */
+    public long getBytesUsed() {
+        return bytesUsed.get();
+    }
+
+    /** Package-scoped, called by the TempStorageManager when it measures the temp dir. */
+    void setBytesUsed(long bytesUsed) {
+        this.bytesUsed.set(bytesUsed);
+    }
+
+    /** Bytes the request is expected to use, as estimated when the request started. */
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    /** Package-scoped, called by the TempStorageManager when it reserves bytes for the request. */
+    void setReservedBytes(long reservedBytes) {
+        this.reservedBytes.set(reservedBytes);
+    }
+
+    /**
+     * Bytes counted against the node's quota. Until the request has written what it reserved, the reservation counts,
+     * so requests that are still downloading aren't counted as empty.
+     */
+    public long getChargedBytes() {
+        return Math.max(bytesUsed.get(), reservedBytes.get());
+    }
+}
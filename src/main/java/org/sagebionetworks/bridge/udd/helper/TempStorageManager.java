@@ -0,0 +1,389 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.FileHelper;
+import org.sagebionetworks.bridge.udd.exceptions.TempStorageQuotaExceededException;
+
+/**
+ * <p>
+ * Hands out temp dirs to requests, and keeps track of how much temp storage each request uses. If the node is at its
+ * quota, new requests are turned away (and retried later) instead of filling up the disk.
+ * </p>
+ * <p>
+ * Temp dirs are striped across the configured volumes, picking the volume with the fewest bytes in use. Each volume
+ * has its own root dir for our temp dirs, so on startup, anything left in there is from a previous JVM, and we delete
+ * it. If no volumes are configured, temp dirs are created in the default temp location, and there's no orphan cleanup.
+ * </p>
+ * <p>
+ * Node-wide caches, such as the survey CSV cache, get a fixed dir on the first volume (see {@link #initCacheDir}),
+ * outside of the temp root dir. The dir is emptied when the cache starts, so each restart doesn't leave a cache behind.
+ * </p>
+ * <p>
+ * Each request reserves an estimate of the bytes it will use, and counts against the quota as the larger of its
+ * reservation and its measured usage. Otherwise, requests that are still downloading would count as empty, and the
+ * node would take on more than it can hold. Usage is measured through the file helper, so files the
+ * {@link HybridFileHelper} keeps in memory count too.
+ * </p>
+ * <p>
+ * Deleting a request's files happens on a background queue, so it doesn't hold up the request. A request's bytes count
+ * against the quota until its files are actually deleted.
+ * </p>
+ */
+@Component
+public class TempStorageManager {
+    private static final Logger LOG = LoggerFactory.getLogger(TempStorageManager.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_QUOTA_MB = "temp.storage.quota.mb";
+    static final String CONFIG_KEY_REQUEST_ESTIMATE_MB = "temp.storage.request.estimate.mb";
+    static final String CONFIG_KEY_VOLUMES = "temp.storage.volumes";
+    static final String CACHE_ROOT_DIR_NAME = "udd-cache";
+    static final String TEMP_ROOT_DIR_NAME = "udd-tmp";
+
+    private static final long BYTES_PER_MB = 1024 * 1024;
+    private static final Splitter VOLUME_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    // Defaults, used if setConfig() is never called (such as in unit tests). No volumes means temp dirs are created by
+    // the FileHelper. A quota of 0 means no quota. The default reservation is what each request reserves before we know
+    // anything about its tables.
+    private long quotaBytes = 0;
+    private long defaultReservedBytes = 0;
+    private List<File> volumeList = ImmutableList.of();
+
+    // Allocations whose files haven't been deleted yet. This includes allocations waiting in the cleanup queue.
+    private final Set<TempStorageAllocation> activeAllocationSet = ConcurrentHashMap.newKeySet();
+
+    // Used to break ties between volumes, so we take turns. Guarded by "this".
+    private int nextVolumeIndex = 0;
+
+    private ExecutorService cleanupExecutor;
+    private FileHelper fileHelper;
+
+    // The file helper, if it's the HybridFileHelper (as it is outside of unit tests), for what only it can do.
+    private HybridFileHelper hybridFileHelper;
+
+    /** Bridge config, used to get the temp storage volumes, quota, and default reservation. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        quotaBytes = config.getInt(CONFIG_KEY_QUOTA_MB) * BYTES_PER_MB;
+        defaultReservedBytes = config.getInt(CONFIG_KEY_REQUEST_ESTIMATE_MB) * BYTES_PER_MB;
+
+        String volumes = config.get(CONFIG_KEY_VOLUMES);
+        if (volumes != null) {
+            volumeList = VOLUME_SPLITTER.splitToList(volumes).stream().map(File::new).collect(Collectors.toList());
+        }
+    }
+
+    /** Background queue for deleting temp files. */
+    @Resource(name = "tempCleanupExecutor")
+    public final void setCleanupExecutor(ExecutorService cleanupExecutor) {
+        this.cleanupExecutor = cleanupExecutor;
+    }
+
+    /** Request file helper (the HybridFileHelper), used to create temp dirs, measure them, and delete request files. */
+    @Resource(name = "hybridFileHelper")
+    public final void setFileHelper(FileHelper fileHelper) {
+        this.fileHelper = fileHelper;
+        this.hybridFileHelper = fileHelper instanceof HybridFileHelper ? (HybridFileHelper) fileHelper : null;
+    }
+
+    /**
+     * Queues deletion of temp dirs left behind by a previous JVM. Called by Spring on startup, before we take any
+     * requests, so everything in our volumes' root dirs is an orphan.
+     */
+    @PostConstruct
+    public void cleanupOrphans() {
+        for (File oneVolume : volumeList) {
+            File[] orphanDirs = new File(oneVolume, TEMP_ROOT_DIR_NAME).listFiles();
+            if (orphanDirs == null) {
+                // Root dir doesn't exist yet. Nothing to clean up.
+                continue;
+            }
+
+            for (File oneOrphanDir : orphanDirs) {
+                LOG.info("Deleting orphaned temp dir " + oneOrphanDir.getAbsolutePath());
+                cleanupExecutor.execute(() -> {
+                    try {
+                        deleteRecursively(oneOrphanDir);
+                    } catch (IOException | RuntimeException ex) {
+                        LOG.error("Error deleting orphaned temp dir " + oneOrphanDir.getAbsolutePath() + ": " +
+                                ex.getMessage(), ex);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Gets the dir for a node-wide cache, and empties it. The dir is the same on every run, on the first volume (or in
+     * the default temp location, if there are no volumes). Caches call this on startup. Their index doesn't survive a
+     * restart, so anything left in the dir is from a previous JVM, and would never be used or deleted.
+     *
+     * @param cacheName
+     *         name of the cache, used as the dir name
+     * @return the empty cache dir
+     * @throws IllegalStateException
+     *         if the dir can't be emptied or created
+     */
+    public File initCacheDir(String cacheName) {
+        File parentDir = volumeList.isEmpty() ? new File(System.getProperty("java.io.tmpdir")) : volumeList.get(0);
+        File dir = new File(new File(parentDir, CACHE_ROOT_DIR_NAME), cacheName);
+        try {
+            deleteRecursively(dir);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Error emptying cache dir " + dir.getAbsolutePath() + ": " +
+                    ex.getMessage(), ex);
+        }
+        createDir(dir);
+        LOG.info("Initialized cache dir " + dir.getAbsolutePath());
+        return dir;
+    }
+
+    /**
+     * Creates a temp dir for a request, and reserves the default estimate for it. Callers that know more about the
+     * request should call {@link #reserve} once they do.
+     *
+     * @param requestName
+     *         request name, used for logging
+     * @return the request's temp dir allocation
+     * @throws TempStorageQuotaExceededException
+     *         if the node is at its temp storage quota
+     */
+    public synchronized TempStorageAllocation allocate(String requestName) {
+        long nodeBytesUsed = getNodeBytesUsed();
+        if (quotaBytes > 0 && nodeBytesUsed >= quotaBytes) {
+            throw new TempStorageQuotaExceededException("Temp storage is at quota (" + nodeBytesUsed + " of " +
+                    quotaBytes + " bytes used), can't take request " + requestName);
+        }
+
+        TempStorageAllocation allocation;
+        if (volumeList.isEmpty()) {
+            allocation = new TempStorageAllocation(requestName, fileHelper.createTempDir(), null);
+        } else {
+            File volume = pickVolume();
+            File dir = fileHelper.newFile(new File(volume, TEMP_ROOT_DIR_NAME), UUID.randomUUID().toString());
+            createDir(dir);
+            allocation = new TempStorageAllocation(requestName, dir, volume);
+        }
+
+        allocation.setReservedBytes(defaultReservedBytes);
+        activeAllocationSet.add(allocation);
+        LOG.info("Allocated temp dir " + allocation.getDir().getAbsolutePath() + " for request " + requestName);
+        return allocation;
+    }
+
+    // Picks the volume with the fewest bytes in use. Ties go to the next volume in turn. Must be called while holding
+    // the lock.
+    private File pickVolume() {
+        int volumeCount = volumeList.size();
+        File bestVolume = null;
+        long bestBytesUsed = Long.MAX_VALUE;
+        for (int i = 0; i < volumeCount; i++) {
+            File oneVolume = volumeList.get((nextVolumeIndex + i) % volumeCount);
+            long bytesUsed = activeAllocationSet.stream().filter(allocation -> oneVolume.equals(
+                    allocation.getVolume())).mapToLong(TempStorageAllocation::getChargedBytes).sum();
+            if (bytesUsed < bestBytesUsed) {
+                bestVolume = oneVolume;
+                bestBytesUsed = bytesUsed;
+            }
+        }
+        nextVolumeIndex = (nextVolumeIndex + 1) % volumeCount;
+        return bestVolume;
+    }
+
+    /**
+     * Replaces the request's reservation with a better estimate, such as one from the historical stats of the
+     * request's tables. The reservation never goes below the default, since estimates don't cover everything the
+     * request writes.
+     *
+     * @param allocation
+     *         the request's temp dir allocation
+     * @param estimatedBytes
+     *         bytes the request is expected to use
+     */
+    public void reserve(TempStorageAllocation allocation, long estimatedBytes) {
+        allocation.setReservedBytes(Math.max(defaultReservedBytes, estimatedBytes));
+    }
+
+    /**
+     * Measures how many bytes the request has written to its temp dir, and records it against the node's quota. This
+     * includes files the {@link HybridFileHelper} keeps in memory. Call this as the request goes, not just at the end.
+     *
+     * @param allocation
+     *         the request's temp dir allocation
+     * @return bytes used by the request
+     */
+    public long measureUsage(TempStorageAllocation allocation) {
+        File dir = allocation.getDir();
+        long bytesUsed = getDiskBytes(dir);
+        if (hybridFileHelper != null) {
+            bytesUsed += hybridFileHelper.getMemoryBytes(dir);
+        }
+        allocation.setBytesUsed(bytesUsed);
+        return bytesUsed;
+    }
+
+    // Total size of the files on disk in the given dir. Synapse downloads are written straight to disk, so this walks
+    // the dir itself. If the dir isn't on disk, this returns 0.
+    private static long getDiskBytes(File dir) {
+        File[] childFiles = dir.listFiles();
+        if (childFiles == null) {
+            return 0;
+        }
+
+        long totalBytes = 0;
+        for (File oneChild : childFiles) {
+            totalBytes += oneChild.isDirectory() ? getDiskBytes(oneChild) : oneChild.length();
+        }
+        return totalBytes;
+    }
+
+    /** Total bytes counted against the quota by requests whose files haven't been deleted yet. */
+    public long getNodeBytesUsed() {
+        return activeAllocationSet.stream().mapToLong(TempStorageAllocation::getChargedBytes).sum();
+    }
+
+    /**
+     * Temp storage available for new requests: the usable space on the volumes (or in the default temp location, if
+     * there are no volumes), capped by what's left of the quota.
+     */
+    public long getFreeBytes() {
+        long freeBytes;
+        if (volumeList.isEmpty()) {
+            freeBytes = getUsableSpace(new File(System.getProperty("java.io.tmpdir")));
+        } else {
+            freeBytes = volumeList.stream().mapToLong(TempStorageManager::getUsableSpace).sum();
+        }
+        if (quotaBytes > 0) {
+            freeBytes = Math.min(freeBytes, Math.max(0, quotaBytes - getNodeBytesUsed()));
+        }
+        return freeBytes;
+    }
+
+    // Usable space on the file system the given dir is on. The dir might not exist yet (volume root dirs are created
+    // on first use), so this checks the nearest parent that does.
+    private static long getUsableSpace(File dir) {
+        File existingDir = dir.getAbsoluteFile();
+        while (existingDir != null && !existingDir.exists()) {
+            existingDir = existingDir.getParentFile();
+        }
+        return existingDir != null ? existingDir.getUsableSpace() : 0;
+    }
+
+    /** Number of requests whose files haven't been deleted yet. */
+    public int getActiveAllocationCount() {
+        return activeAllocationSet.size();
+    }
+
+    /**
+     * Queues the request's files and temp dir for deletion on the background queue. If the files are null or don't
+     * exist, they're skipped. The request's bytes count against the quota until they're deleted.
+     *
+     * @param allocation
+     *         the request's temp dir allocation
+     * @param fileList
+     *         files the request wrote to its temp dir
+     */
+    public void release(TempStorageAllocation allocation, Collection<File> fileList) {
+        List<File> fileListCopy = fileList.stream().filter(Objects::nonNull).collect(Collectors.toList());
+        try {
+            cleanupExecutor.execute(() -> deleteAllocation(allocation, fileListCopy));
+        } catch (RejectedExecutionException ex) {
+            // We're shutting down. Clean up here instead.
+            deleteAllocation(allocation, fileListCopy);
+        }
+    }
+
+    // Deletes the request's files, then its temp dir.
+    private void deleteAllocation(TempStorageAllocation allocation, List<File> fileList) {
+        File dir = allocation.getDir();
+        Stopwatch cleanupStopwatch = Stopwatch.createStarted();
+        try {
+            for (File oneFile : fileList) {
+                if (!fileHelper.fileExists(oneFile)) {
+                    // No file. No need to cleanup.
+                    continue;
+                }
+                fileHelper.deleteFile(oneFile);
+            }
+            fileHelper.deleteDir(dir);
+        } catch (RuntimeException ex) {
+            // Most likely, there are files we didn't know about. Fall back to deleting everything in the dir. If that
+            // also fails, orphan cleanup gets it on the next startup.
+            LOG.warn("Error deleting temp dir " + dir.getAbsolutePath() + ", deleting recursively: " +
+                    ex.getMessage());
+            try {
+                deleteRecursively(dir);
+            } catch (IOException | RuntimeException recursiveEx) {
+                LOG.error("Error deleting temp dir " + dir.getAbsolutePath() + ": " + recursiveEx.getMessage(),
+                        recursiveEx);
+            }
+
+            // The recursive delete only touches the disk, so drop the dir's in-memory files too.
+            if (hybridFileHelper != null) {
+                hybridFileHelper.forgetDir(dir);
+            }
+        } finally {
+            activeAllocationSet.remove(allocation);
+            LOG.info("Deleting temp dir " + dir.getAbsolutePath() + " for request " + allocation.getRequestName() +
+                    " (" + allocation.getBytesUsed() + " bytes) took " +
+                    cleanupStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+        }
+    }
+
+    // Creates the request's temp dir on its volume, through the file helper if it can. FileHelper itself can only
+    // create dirs in the default temp location.
+    private void createDir(File dir) {
+        if (hybridFileHelper != null) {
+            hybridFileHelper.createDir(dir);
+        } else if (!dir.mkdirs()) {
+            throw new IllegalStateException("Failed to create temp dir " + dir.getAbsolutePath());
+        }
+    }
+
+    // Deletes the given dir and everything in it. Does nothing if the dir isn't on disk.
+    private static void deleteRecursively(File dir) throws IOException {
+        if (!dir.exists()) {
+            return;
+        }
+
+        // Delete children before parents.
+        List<Path> pathList;
+        try (Stream<Path> pathStream = Files.walk(dir.toPath())) {
+            pathList = pathStream.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        for (Path onePath : pathList) {
+            Files.deleteIfExists(onePath);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+
+/**
+ * <p>
+ * Decides how each zip entry should be compressed. Our master zip contains a mix of highly compressible CSVs and
+ * already-compressed data (bulk download zips, attachment media). Deflating already-compressed data burns CPU for no
+ * gain, so we deflate a sample of each input at the fastest level, and if the sample doesn't compress, we write the
+ * entry as STORED.
+ * </p>
+ * <p>
+ * For compressible entries, the deflate level follows current conditions: If the CPU is busy, we use the fastest
+ * level. If uploads are slow, the upload dominates, so we spend more CPU to send fewer bytes. If uploads are fast,
+ * CPU dominates, so we use the fastest level. Otherwise, we use the deflater default.
+ * </p>
+ * <p>
+ * Every decision and its resulting compression ratio is logged, and totals are kept, so we can verify the gain.
+ * </p>
+ */
+@Component
+public class ZipCompressionPolicy {
+    private static final Logger LOG = LoggerFactory.getLogger(ZipCompressionPolicy.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_BANDWIDTH_HIGH_KBPS = "zip.upload.bandwidth.high.kbps";
+    static final String CONFIG_KEY_BANDWIDTH_LOW_KBPS = "zip.upload.bandwidth.low.kbps";
+    static final String CONFIG_KEY_CPU_LOAD_HIGH_PERCENT = "zip.cpu.load.high.percent";
+    static final String CONFIG_KEY_SAMPLE_BYTES = "zip.sample.bytes";
+    static final String CONFIG_KEY_STORE_RATIO_PERCENT = "zip.store.ratio.percent";
+
+    // Defaults, used if setConfig() is never called (such as in unit tests).
+    static final int DEFAULT_BANDWIDTH_HIGH_KBPS = 50000;
+    static final int DEFAULT_BANDWIDTH_LOW_KBPS = 2000;
+    static final int DEFAULT_CPU_LOAD_HIGH_PERCENT = 80;
+    static final int DEFAULT_SAMPLE_BYTES = 64 * 1024;
+    static final int DEFAULT_STORE_RATIO_PERCENT = 90;
+
+    // Weight of the most recent upload in the moving average of upload bandwidth, in percent.
+    private static final int BANDWIDTH_AVERAGE_WEIGHT_PERCENT = 25;
+
+    private int bandwidthHighKbps = DEFAULT_BANDWIDTH_HIGH_KBPS;
+    private int bandwidthLowKbps = DEFAULT_BANDWIDTH_LOW_KBPS;
+    private int cpuLoadHighPercent = DEFAULT_CPU_LOAD_HIGH_PERCENT;
+    private int sampleBytes = DEFAULT_SAMPLE_BYTES;
+    private int storeRatioPercent = DEFAULT_STORE_RATIO_PERCENT;
+
+    // Upload bandwidth moving average. 0 means we haven't measured any uploads yet.
+    private final AtomicLong uploadBandwidthKbps = new AtomicLong();
+
+    // Totals, used to verify the gain.
+    private final AtomicLong deflatedEntryCount = new AtomicLong();
+    private final AtomicLong storedEntryCount = new AtomicLong();
+    private final AtomicLong totalCompressedBytes = new AtomicLong();
+    private final AtomicLong totalUncompressedBytes = new AtomicLong();
+
+    /** Bridge config, used to get sample size and thresholds. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        bandwidthHighKbps = config.getInt(CONFIG_KEY_BANDWIDTH_HIGH_KBPS);
+        bandwidthLowKbps = config.getInt(CONFIG_KEY_BANDWIDTH_LOW_KBPS);
+        cpuLoadHighPercent = config.getInt(CONFIG_KEY_CPU_LOAD_HIGH_PERCENT);
+        sampleBytes = config.getInt(CONFIG_KEY_SAMPLE_BYTES);
+        storeRatioPercent = config.getInt(CONFIG_KEY_STORE_RATIO_PERCENT);
+    }
+
+    /** Number of bytes from the start of each input that should be sampled. */
+    public int getSampleBytes() {
+        return sampleBytes;
+    }
+
+    /**
+     * Decides how to compress the given zip entry, based on a sample from the start of its input.
+     *
+     * @param entryName
+     *         name of the zip entry, used for logging
+     * @param sample
+     *         buffer containing the sample
+     * @param sampleLength
+     *         number of valid bytes in the sample buffer
+     * @return compression decision for this entry
+     */
+    public ZipEntryDecision decide(String entryName, byte[] sample, int sampleLength) {
+        ZipEntryDecision.Builder decisionBuilder = new ZipEntryDecision.Builder().withEntryName(entryName);
+        if (sampleLength <= 0) {
+            // Empty input. Nothing to gain either way, so just use the defaults.
+            return decisionBuilder.withMethod(ZipEntry.DEFLATED).build();
+        }
+
+        int sampleRatioPercent = measureSampleRatioPercent(sample, sampleLength);
+        decisionBuilder.withSampleRatioPercent(sampleRatioPercent);
+        if (sampleRatioPercent >= storeRatioPercent) {
+            return decisionBuilder.withMethod(ZipEntry.STORED).build();
+        }
+
+        return decisionBuilder.withMethod(ZipEntry.DEFLATED).withLevel(chooseDeflateLevel()).build();
+    }
+
+    /**
+     * Deflates the sample at the fastest level and returns the compressed size as a percentage of the sample size.
+     * This is a cheap estimate of how compressible the whole input is.
+     */
+    private static int measureSampleRatioPercent(byte[] sample, int sampleLength) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, sampleLength);
+            deflater.finish();
+
+            // We don't need the compressed output, only its size, so we can keep re-using a small buffer.
+            byte[] discardBuffer = new byte[4096];
+            while (!deflater.finished()) {
+                deflater.deflate(discardBuffer);
+            }
+            return (int) (deflater.getBytesWritten() * 100 / sampleLength);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Picks a deflate level based on current CPU load and measured upload bandwidth. */
+    private int chooseDeflateLevel() {
+        if (getCpuLoadPercent() >= cpuLoadHighPercent) {
+            // CPU is the bottleneck. Spend as little of it as possible.
+            return Deflater.BEST_SPEED;
+        }
+
+        long bandwidthKbps = uploadBandwidthKbps.get();
+        if (bandwidthKbps > 0 && bandwidthKbps < bandwidthLowKbps) {
+            // Upload is the bottleneck. Spend CPU to send fewer bytes.
+            return Deflater.BEST_COMPRESSION;
+        } else if (bandwidthKbps > bandwidthHighKbps) {
+            // Upload is cheap. Extra compression costs more time than it saves.
+            return Deflater.BEST_SPEED;
+        } else {
+            return Deflater.DEFAULT_COMPRESSION;
+        }
+    }
+
+    /**
+     * System load average as a percentage of available processors. Returns 0 if the load average isn't available on
+     * this platform. This is package-scoped so unit tests can override it.
+     */
+    int getCpuLoadPercent() {
+        OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+        double loadAverage = osBean.getSystemLoadAverage();
+        if (loadAverage < 0) {
+            return 0;
+        }
+        return (int) (loadAverage * 100 / osBean.getAvailableProcessors());
+    }
+
+    /**
+     * Records how long it took to upload the given number of bytes. This feeds into the moving average of upload
+     * bandwidth, used to pick deflate levels.
+     *
+     * @param bytes
+     *         number of bytes uploaded
+     * @param millis
+     *         how long the upload took, in milliseconds
+     */
+    public void recordUploadThroughput(long bytes, long millis) {
+        if (bytes <= 0 || millis <= 0) {
+            // Can't compute a meaningful bandwidth from this.
+            return;
+        }
+
+        // bytes per ms * 8 bits per byte = kilobits per second
+        long sampleKbps = bytes * 8 / millis;
+        uploadBandwidthKbps.getAndUpdate(oldKbps -> {
+            if (oldKbps == 0) {
+                return sampleKbps;
+            }
+            return (sampleKbps * BANDWIDTH_AVERAGE_WEIGHT_PERCENT + oldKbps * (100 - BANDWIDTH_AVERAGE_WEIGHT_PERCENT))
+                    / 100;
+        });
+    }
+
+    /**
+     * Records the outcome of a decision, after the entry has been written. This logs the decision and the actual
+     * compression ratio, and adds it to the totals.
+     *
+     * @param decision
+     *         decision that was applied to the entry
+     * @param uncompressedBytes
+     *         uncompressed size of the entry
+     * @param compressedBytes
+     *         size of the entry as written to the zip
+     */
+    public void recordResult(ZipEntryDecision decision, long uncompressedBytes, long compressedBytes) {
+        if (decision.isStored()) {
+            storedEntryCount.incrementAndGet();
+        } else {
+            deflatedEntryCount.incrementAndGet();
+        }
+        totalUncompressedBytes.addAndGet(uncompressedBytes);
+        totalCompressedBytes.addAndGet(compressedBytes);
+
+        long ratioPercent = uncompressedBytes > 0 ? compressedBytes * 100 / uncompressedBytes : 0;
+        LOG.info("Zip entry " + decision.getEntryName() + ": method=" + (decision.isStored() ? "STORED" :
+                "DEFLATED") + ", level=" + decision.getLevel() + ", sampleRatio=" +
+                decision.getSampleRatioPercent() + "%, uncompressedBytes=" + uncompressedBytes +
+                ", compressedBytes=" + compressedBytes + ", ratio=" + ratioPercent + "%");
+    }
+
+    /** Number of entries written as DEFLATED since startup. */
+    public long getDeflatedEntryCount() {
+        return deflatedEntryCount.get();
+    }
+
+    /** Number of entries written as STORED since startup. */
+    public long getStoredEntryCount() {
+        return storedEntryCount.get();
+    }
+
+    /** Total bytes written to zips since startup, after compression. */
+    public long getTotalCompressedBytes() {
+        return totalCompressedBytes.get();
+    }
+
+    /** Total bytes of input zipped since startup, before compression. */
+    public long getTotalUncompressedBytes() {
+        return totalUncompressedBytes.get();
+    }
+
+    /** Current moving average of upload bandwidth in kilobits per second, or 0 if not yet measured. */
+    public long getUploadBandwidthKbps() {
+        return uploadBandwidthKbps.get();
+    }
+}
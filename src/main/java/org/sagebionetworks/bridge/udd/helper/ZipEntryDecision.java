@@ -0,0 +1,102 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * The compression decision for a single zip entry, as made by the {@link ZipCompressionPolicy}. This includes the
+ * zip method (STORED or DEFLATED), the deflate level, and the compression ratio we measured on the input sample, so
+ * that the decision can be logged and verified later.
+ */
+public class ZipEntryDecision {
+    private final String entryName;
+    private final int method;
+    private final int level;
+    private final int sampleRatioPercent;
+
+    /** Private constructor. To construct, use builder. */
+    private ZipEntryDecision(String entryName, int method, int level, int sampleRatioPercent) {
+        this.entryName = entryName;
+        this.method = method;
+        this.level = level;
+        this.sampleRatioPercent = sampleRatioPercent;
+    }
+
+    /** Name of the zip entry this decision applies to. */
+    public String getEntryName() {
+        return entryName;
+    }
+
+    /** Zip method, either {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}. */
+    public int getMethod() {
+        return method;
+    }
+
+    /** True if the entry should be written without compression. */
+    public boolean isStored() {
+        return method == ZipEntry.STORED;
+    }
+
+    /** Deflate level (0-9, or -1 for the deflater default). Not meaningful for STORED entries. */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Compressed size of the input sample as a percentage of its uncompressed size. 100 means the sample didn't
+     * compress at all. This is 0 if the input was empty.
+     */
+    public int getSampleRatioPercent() {
+        return sampleRatioPercent;
+    }
+
+    /** Builder for ZipEntryDecision. */
+    public static class Builder {
+        private String entryName;
+        private Integer method;
+        private int level = Deflater.DEFAULT_COMPRESSION;
+        private int sampleRatioPercent;
+
+        /** @see ZipEntryDecision#getEntryName */
+        public Builder withEntryName(String entryName) {
+            this.entryName = entryName;
+            return this;
+        }
+
+        /** @see ZipEntryDecision#getMethod */
+        public Builder withMethod(int method) {
+            this.method = method;
+            return this;
+        }
+
+        /** @see ZipEntryDecision#getLevel */
+        public Builder withLevel(int level) {
+            this.level = level;
+            return this;
+        }
+
+        /** @see ZipEntryDecision#getSampleRatioPercent */
+        public Builder withSampleRatioPercent(int sampleRatioPercent) {
+            this.sampleRatioPercent = sampleRatioPercent;
+            return this;
+        }
+
+        /** Builds the ZipEntryDecision and validates that all fields are specified. */
+        public ZipEntryDecision build() {
+            if (entryName == null) {
+                throw new IllegalStateException("entryName must be specified");
+            }
+
+            if (method == null || (method != ZipEntry.STORED && method != ZipEntry.DEFLATED)) {
+                throw new IllegalStateException("method must be STORED or DEFLATED");
+            }
+
+            if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION ||
+                    level > Deflater.BEST_COMPRESSION)) {
+                throw new IllegalStateException("level must be between 0 and 9, or -1 for default");
+            }
+
+            return new ZipEntryDecision(entryName, method, level, sampleRatioPercent);
+        }
+    }
+}
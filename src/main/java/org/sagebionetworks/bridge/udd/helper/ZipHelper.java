@@ -1,27 +1,80 @@
 package org.sagebionetworks.bridge.udd.helper;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
+import javax.annotation.Resource;
+
 import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
+import org.joda.time.LocalDateTime;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import org.sagebionetworks.bridge.file.FileHelper;
 
-/** This helper zips the given input files into the given target file. */
+/**
+ * <p>
+ * This helper zips the given input files into the given target file. How each entry is compressed is decided by the
+ * {@link ZipCompressionPolicy}. It can also write each input file as a standalone {@link ZipSegment}, and build the
+ * central directory that joins segments into a complete zip.
+ * </p>
+ * <p>
+ * Every entry gets the same fixed timestamp, so the same input files always produce the same entries. Otherwise, every
+ * zip would differ by the time it was built.
+ * </p>
+ */
 @Component
 public class ZipHelper {
+    private static final int CRC_BUFFER_SIZE = 8192;
+
+    // Fixed timestamp for all entries, the earliest time the zip format can represent. Zip timestamps are local time,
+    // and ZipEntry converts using the JVM's time zone, so this has to be in that time zone too.
+    private static final long ENTRY_TIME_MILLIS = new LocalDateTime(1980, 1, 1, 0, 0).toDate().getTime();
+
+    // Zip format constants. See https://pkware.cachefly.net/webdocs/casestudies/APPNOTE.TXT
+    private static final int CEN_HEADER_LENGTH = 46;
+    private static final int CEN_SIGNATURE = 0x02014b50;
+    private static final int END_HEADER_LENGTH = 22;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int LOC_HEADER_LENGTH = 30;
+    private static final int LOC_FLAGS_OFFSET = 6;
+    private static final int LOC_TIME_OFFSET = 10;
+    private static final int LOC_VERSION_OFFSET = 4;
+    private static final long ZIP32_MAX_BYTES = 0xffffffffL;
+    private static final int ZIP32_MAX_ENTRIES = 0xffff;
+
+    // Room to leave for the central directory when checking the zip fits in 32 bits. This is far more than a central
+    // directory with 65535 entries and reasonable names needs.
+    private static final long CENTRAL_DIRECTORY_RESERVED_BYTES = 64 * 1024 * 1024;
+
+    private ZipCompressionPolicy compressionPolicy;
     private FileHelper fileHelper;
 
-    /** File helper, used to read data from the input files and write to the output file. */
+    /** Compression policy, which decides per entry whether to deflate or store, and at what level. */
     @Autowired
+    public final void setCompressionPolicy(ZipCompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    /** File helper for request files (the HybridFileHelper), used to read the input files and write the output file. */
+    @Resource(name = "hybridFileHelper")
     public final void setFileHelper(FileHelper fileHelper) {
         this.fileHelper = fileHelper;
     }
@@ -40,15 +93,339 @@ public class ZipHelper {
         try (BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(fileHelper.getOutputStream(to));
                 ZipOutputStream zipOutputStream = new ZipOutputStream(bufferedOutputStream, Charsets.UTF_8)) {
             for (File oneFromFile : fromList) {
-                ZipEntry oneZipEntry = new ZipEntry(oneFromFile.getName());
-                zipOutputStream.putNextEntry(oneZipEntry);
+                writeEntry(zipOutputStream, oneFromFile.getName(), oneFromFile);
+            }
+        }
+    }
+
+    /**
+     * Zips the input files under the given entry names, instead of the files' own names. Entry names can include
+     * paths, such as the ones Synapse uses in bulk downloads.
+     *
+     * @param entryNameToFile
+     *         map from zip entry name to input file, in the order the entries should be written
+     * @param to
+     *         output file to write the zip file to
+     * @throws IOException
+     *         if reading from input or writing to output fails
+     */
+    public void zip(Map<String, File> entryNameToFile, File to) throws IOException {
+        try (BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(fileHelper.getOutputStream(to));
+                ZipOutputStream zipOutputStream = new ZipOutputStream(bufferedOutputStream, Charsets.UTF_8)) {
+            for (Map.Entry<String, File> oneEntry : entryNameToFile.entrySet()) {
+                writeEntry(zipOutputStream, oneEntry.getKey(), oneEntry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Extracts each entry in the zip file to its own file in the given dir. Files are named with the given prefix and
+     * a sequence number, rather than the entry name, so entry names with paths can't write outside the dir.
+     *
+     * @param from
+     *         zip file to extract
+     * @param toDir
+     *         dir to extract to
+     * @param filePrefix
+     *         prefix for the extracted file names
+     * @return map from zip entry name to extracted file, in the order they appear in the zip
+     * @throws IOException
+     *         if reading the zip or writing the files fails
+     */
+    public Map<String, File> unzip(File from, File toDir, String filePrefix) throws IOException {
+        Map<String, File> entryNameToFile = new LinkedHashMap<>();
+        try (ZipInputStream zipInputStream = new ZipInputStream(fileHelper.getInputStream(from), Charsets.UTF_8)) {
+            ZipEntry oneZipEntry;
+            while ((oneZipEntry = zipInputStream.getNextEntry()) != null) {
+                if (oneZipEntry.isDirectory()) {
+                    continue;
+                }
 
-                try (InputStream fromFileInputStream = fileHelper.getInputStream(oneFromFile)) {
-                    ByteStreams.copy(fromFileInputStream, zipOutputStream);
+                File toFile = fileHelper.newFile(toDir, filePrefix + entryNameToFile.size());
+                entryNameToFile.put(oneZipEntry.getName(), toFile);
+                try (OutputStream toStream = fileHelper.getOutputStream(toFile)) {
+                    ByteStreams.copy(zipInputStream, toStream);
                 }
+            }
+        }
+        return entryNameToFile;
+    }
+
+    /**
+     * Writes the input file as a standalone zip segment: the zip entry's local header and data, without a central
+     * directory. See {@link ZipSegment}. This also hashes the entry's uncompressed data as it's written.
+     *
+     * @param from
+     *         input file
+     * @param segmentFile
+     *         file to write the segment to
+     * @return the zip segment
+     * @throws IOException
+     *         if reading from input or writing to output fails
+     */
+    public ZipSegment writeSegment(File from, File segmentFile) throws IOException {
+        ZipEntry zipEntry;
+        SegmentOutputStream segmentOutputStream = new SegmentOutputStream(new BufferedOutputStream(
+                fileHelper.getOutputStream(segmentFile)));
+        String contentHash;
+        try (ContentHashingZipOutputStream zipOutputStream = new ContentHashingZipOutputStream(segmentOutputStream)) {
+            zipEntry = writeEntry(zipOutputStream, from.getName(), from);
+            contentHash = zipOutputStream.getContentHash();
+
+            // Everything after this is the central directory, which is written separately for the whole zip.
+            segmentOutputStream.seal();
+        }
+
+        // Version, flags, and time come from the local header, so the central directory matches it exactly.
+        byte[] header = segmentOutputStream.getHeader();
+        return new ZipSegment(segmentFile, zipEntry.getName(), segmentOutputStream.getSealedCount(),
+                readShort(header, LOC_VERSION_OFFSET), readShort(header, LOC_FLAGS_OFFSET), zipEntry.getMethod(),
+                readInt(header, LOC_TIME_OFFSET), zipEntry.getCrc(), zipEntry.getCompressedSize(), zipEntry.getSize(),
+                contentHash, null);
+    }
+
+    /**
+     * Extracts the entry in a zip segment to the given file. A segment is a local header followed by the entry's data,
+     * so it can be read as a zip stream without a central directory. This is used when we only have a segment, but
+     * need to zip the file locally.
+     *
+     * @param segmentInputStream
+     *         stream of the segment's bytes, closed by this method
+     * @param to
+     *         file to extract to
+     * @throws IOException
+     *         if reading the segment or writing the file fails, or if the segment has no entry
+     */
+    public void extractSegment(InputStream segmentInputStream, File to) throws IOException {
+        try (ZipInputStream zipInputStream = new ZipInputStream(segmentInputStream, Charsets.UTF_8)) {
+            if (zipInputStream.getNextEntry() == null) {
+                throw new IOException("Zip segment has no entry, can't extract to file " + to.getAbsolutePath());
+            }
+            try (OutputStream toStream = fileHelper.getOutputStream(to)) {
+                ByteStreams.copy(zipInputStream, toStream);
+            }
+        }
+    }
+
+    /**
+     * True if the segments can be assembled into a zip without ZIP64 extensions, which we don't write. That is, there
+     * are fewer than 65535 entries, and all sizes and offsets fit in 32 bits.
+     *
+     * @param segmentList
+     *         segments to check
+     * @return true if the segments can be assembled
+     */
+    public boolean canAssemble(List<ZipSegment> segmentList) {
+        if (segmentList.size() >= ZIP32_MAX_ENTRIES) {
+            return false;
+        }
 
-                zipOutputStream.closeEntry();
+        long totalLength = 0;
+        for (ZipSegment oneSegment : segmentList) {
+            if (oneSegment.getSize() >= ZIP32_MAX_BYTES || oneSegment.getCompressedSize() >= ZIP32_MAX_BYTES) {
+                return false;
             }
+            totalLength += oneSegment.getLength();
+        }
+
+        // Leave room for the central directory, which goes after the segments.
+        return totalLength < ZIP32_MAX_BYTES - CENTRAL_DIRECTORY_RESERVED_BYTES;
+    }
+
+    /**
+     * Builds the central directory (and end of central directory record) for the given segments. The segments must be
+     * concatenated in the given order, followed by the central directory, to make a complete zip file.
+     *
+     * @param segmentList
+     *         segments, in the order they appear in the zip
+     * @return central directory bytes
+     */
+    public byte[] buildCentralDirectory(List<ZipSegment> segmentList) {
+        if (!canAssemble(segmentList)) {
+            throw new IllegalArgumentException("Segments are too large to assemble without ZIP64");
+        }
+
+        ByteArrayOutputStream centralDirectoryStream = new ByteArrayOutputStream();
+        long offset = 0;
+        for (ZipSegment oneSegment : segmentList) {
+            byte[] nameBytes = oneSegment.getEntryName().getBytes(Charsets.UTF_8);
+            ByteBuffer record = ByteBuffer.allocate(CEN_HEADER_LENGTH + nameBytes.length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            record.putInt(CEN_SIGNATURE);
+            record.putShort((short) oneSegment.getVersionNeeded()); // version made by
+            record.putShort((short) oneSegment.getVersionNeeded());
+            record.putShort((short) oneSegment.getFlags());
+            record.putShort((short) oneSegment.getMethod());
+            record.putInt((int) oneSegment.getDosDateTime());
+            record.putInt((int) oneSegment.getCrc());
+            record.putInt((int) oneSegment.getCompressedSize());
+            record.putInt((int) oneSegment.getSize());
+            record.putShort((short) nameBytes.length);
+            record.putShort((short) 0); // extra field length
+            record.putShort((short) 0); // comment length
+            record.putShort((short) 0); // disk number
+            record.putShort((short) 0); // internal attributes
+            record.putInt(0); // external attributes
+            record.putInt((int) offset);
+            record.put(nameBytes);
+            centralDirectoryStream.write(record.array(), 0, record.position());
+
+            offset += oneSegment.getLength();
+        }
+
+        int centralDirectoryLength = centralDirectoryStream.size();
+        ByteBuffer endRecord = ByteBuffer.allocate(END_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        endRecord.putInt(END_SIGNATURE);
+        endRecord.putShort((short) 0); // disk number
+        endRecord.putShort((short) 0); // disk with central directory
+        endRecord.putShort((short) segmentList.size()); // entries on this disk
+        endRecord.putShort((short) segmentList.size()); // total entries
+        endRecord.putInt(centralDirectoryLength);
+        endRecord.putInt((int) offset);
+        endRecord.putShort((short) 0); // comment length
+        centralDirectoryStream.write(endRecord.array(), 0, endRecord.position());
+
+        return centralDirectoryStream.toByteArray();
+    }
+
+    // Writes the input file as the next entry in the zip output stream, under the given entry name. Returns the zip
+    // entry, with method, CRC, and sizes filled in.
+    private ZipEntry writeEntry(ZipOutputStream zipOutputStream, String entryName, File from) throws IOException {
+        byte[] sampleBuffer = new byte[compressionPolicy.getSampleBytes()];
+        ZipEntry oneZipEntry = new ZipEntry(entryName);
+        oneZipEntry.setTime(ENTRY_TIME_MILLIS);
+        ZipEntryDecision decision;
+        long uncompressedBytes;
+
+        try (InputStream fromFileInputStream = fileHelper.getInputStream(from)) {
+            // Sample the start of the file, so the policy can decide how to compress it.
+            int sampleLength = ByteStreams.read(fromFileInputStream, sampleBuffer, 0, sampleBuffer.length);
+            decision = compressionPolicy.decide(oneZipEntry.getName(), sampleBuffer, sampleLength);
+
+            if (decision.isStored()) {
+                // STORED entries need the size and CRC up front. Finish reading the file to compute them. The file is
+                // then written in a second pass, below. This costs an extra read, but the file is generally
+                // already-compressed data, where a read is much cheaper than a deflate.
+                CRC32 crc = new CRC32();
+                crc.update(sampleBuffer, 0, sampleLength);
+                uncompressedBytes = sampleLength + updateCrc(fromFileInputStream, crc);
+
+                oneZipEntry.setMethod(ZipEntry.STORED);
+                oneZipEntry.setSize(uncompressedBytes);
+                oneZipEntry.setCompressedSize(uncompressedBytes);
+                oneZipEntry.setCrc(crc.getValue());
+                zipOutputStream.putNextEntry(oneZipEntry);
+            } else {
+                // DEFLATED entries can be written in a single pass. Write the sample we already read, then the rest
+                // of the file.
+                zipOutputStream.setLevel(decision.getLevel());
+                oneZipEntry.setMethod(ZipEntry.DEFLATED);
+                zipOutputStream.putNextEntry(oneZipEntry);
+                zipOutputStream.write(sampleBuffer, 0, sampleLength);
+                uncompressedBytes = sampleLength + ByteStreams.copy(fromFileInputStream, zipOutputStream);
+            }
+        }
+
+        if (decision.isStored()) {
+            try (InputStream fromFileInputStream = fileHelper.getInputStream(from)) {
+                ByteStreams.copy(fromFileInputStream, zipOutputStream);
+            }
+        }
+
+        zipOutputStream.closeEntry();
+
+        // closeEntry() fills in the compressed size for DEFLATED entries.
+        long compressedBytes = decision.isStored() ? uncompressedBytes : oneZipEntry.getCompressedSize();
+        compressionPolicy.recordResult(decision, uncompressedBytes, compressedBytes);
+        return oneZipEntry;
+    }
+
+    // Reads the rest of the input stream, updating the CRC. Returns the number of bytes read.
+    private static long updateCrc(InputStream inputStream, CRC32 crc) throws IOException {
+        byte[] buffer = new byte[CRC_BUFFER_SIZE];
+        long totalBytes = 0;
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buffer)) >= 0) {
+            crc.update(buffer, 0, bytesRead);
+            totalBytes += bytesRead;
+        }
+        return totalBytes;
+    }
+
+    // Reads an unsigned little-endian short from the byte array.
+    private static int readShort(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+    }
+
+    // Reads an unsigned little-endian int from the byte array.
+    private static long readInt(byte[] bytes, int offset) {
+        return readShort(bytes, offset) | (long) readShort(bytes, offset + 2) << 16;
+    }
+
+    // Zip output stream that hashes the uncompressed data written to it. Segments have a single entry, so this is the
+    // hash of that entry's data.
+    private static class ContentHashingZipOutputStream extends ZipOutputStream {
+        private final Hasher hasher = Hashing.sha256().newHasher();
+
+        ContentHashingZipOutputStream(OutputStream out) {
+            super(out, Charsets.UTF_8);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            hasher.putBytes(b, off, len);
+        }
+
+        /** SHA-256 of everything written, in hex. */
+        String getContentHash() {
+            return hasher.hash().toString();
+        }
+    }
+
+    // Passes writes through until sealed, then discards them. Also keeps the first bytes written, which are the
+    // segment's local header.
+    private static class SegmentOutputStream extends FilterOutputStream {
+        private final byte[] header = new byte[LOC_HEADER_LENGTH];
+        private long count = 0;
+        private boolean sealed = false;
+
+        SegmentOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (sealed) {
+                return;
+            }
+
+            if (count < LOC_HEADER_LENGTH) {
+                int headerBytes = (int) Math.min(len, LOC_HEADER_LENGTH - count);
+                System.arraycopy(b, off, header, (int) count, headerBytes);
+            }
+            out.write(b, off, len);
+            count += len;
+        }
+
+        /** Discard all writes from now on. */
+        void seal() {
+            sealed = true;
+        }
+
+        /** The local header, which is the first bytes written. */
+        byte[] getHeader() {
+            return header;
+        }
+
+        /** Number of bytes written before the stream was sealed. */
+        long getSealedCount() {
+            return count;
         }
     }
 }
@@ -0,0 +1,195 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * <p>
+ * A single zip entry, written as a standalone segment: the entry's local header and data, without a central directory.
+ * Segments can be concatenated in any order and followed by a central directory (see
+ * {@link ZipHelper#buildCentralDirectory}) to make a complete zip file. This lets us upload each table's entries as
+ * soon as they're ready, and assemble the final zip in S3.
+ * </p>
+ * <p>
+ * This holds everything the central directory needs to know about the entry. Segments are created by the ZipHelper.
+ * Segments stored in S3 carry these fields as object metadata (see {@link #toS3Metadata}), so they can be used
+ * without a local copy.
+ * </p>
+ */
+public class ZipSegment {
+    // S3 user metadata keys.
+    private static final String METADATA_KEY_COMPRESSED_SIZE = "zip-compressed-size";
+    private static final String METADATA_KEY_CONTENT_HASH = "zip-content-sha256";
+    private static final String METADATA_KEY_CRC = "zip-crc";
+    private static final String METADATA_KEY_DOS_DATE_TIME = "zip-dos-date-time";
+    private static final String METADATA_KEY_ENTRY_NAME = "zip-entry-name";
+    private static final String METADATA_KEY_FLAGS = "zip-flags";
+    private static final String METADATA_KEY_METHOD = "zip-method";
+    private static final String METADATA_KEY_SIZE = "zip-size";
+    private static final String METADATA_KEY_VERSION_NEEDED = "zip-version-needed";
+
+    private final File segmentFile;
+    private final String entryName;
+    private final long length;
+    private final int versionNeeded;
+    private final int flags;
+    private final int method;
+    private final long dosDateTime;
+    private final long crc;
+    private final long compressedSize;
+    private final long size;
+    private final String contentHash;
+    private final String s3Key;
+
+    /** Package-scoped constructor. Segments are created by the ZipHelper. */
+    ZipSegment(File segmentFile, String entryName, long length, int versionNeeded, int flags, int method,
+            long dosDateTime, long crc, long compressedSize, long size, String contentHash, String s3Key) {
+        this.segmentFile = segmentFile;
+        this.entryName = entryName;
+        this.length = length;
+        this.versionNeeded = versionNeeded;
+        this.flags = flags;
+        this.method = method;
+        this.dosDateTime = dosDateTime;
+        this.crc = crc;
+        this.compressedSize = compressedSize;
+        this.size = size;
+        this.contentHash = contentHash;
+        this.s3Key = s3Key;
+    }
+
+    /**
+     * Creates a segment from S3 object metadata written by {@link #toS3Metadata}. The segment only exists in S3, so it
+     * has no local file.
+     *
+     * @param s3Key
+     *         S3 key of the segment
+     * @param length
+     *         length of the S3 object
+     * @param metadata
+     *         S3 user metadata of the object
+     * @return the segment
+     * @throws IllegalArgumentException
+     *         if the metadata is missing or malformed
+     */
+    public static ZipSegment fromS3Metadata(String s3Key, long length, Map<String, String> metadata) {
+        try {
+            return new ZipSegment(null, URLDecoder.decode(getRequired(metadata, METADATA_KEY_ENTRY_NAME), "UTF-8"),
+                    length, Integer.parseInt(getRequired(metadata, METADATA_KEY_VERSION_NEEDED)),
+                    Integer.parseInt(getRequired(metadata, METADATA_KEY_FLAGS)),
+                    Integer.parseInt(getRequired(metadata, METADATA_KEY_METHOD)),
+                    Long.parseLong(getRequired(metadata, METADATA_KEY_DOS_DATE_TIME)),
+                    Long.parseLong(getRequired(metadata, METADATA_KEY_CRC)),
+                    Long.parseLong(getRequired(metadata, METADATA_KEY_COMPRESSED_SIZE)),
+                    Long.parseLong(getRequired(metadata, METADATA_KEY_SIZE)),
+                    getRequired(metadata, METADATA_KEY_CONTENT_HASH), s3Key);
+        } catch (NumberFormatException | UnsupportedEncodingException ex) {
+            throw new IllegalArgumentException("Malformed zip segment metadata for " + s3Key + ": " +
+                    ex.getMessage(), ex);
+        }
+    }
+
+    // Gets a metadata value, or throws if it's not there.
+    private static String getRequired(Map<String, String> metadata, String key) {
+        String value = metadata.get(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Zip segment metadata is missing " + key);
+        }
+        return value;
+    }
+
+    /**
+     * Fields the central directory needs, as S3 user metadata. The entry name is URL-encoded, since S3 metadata is
+     * ASCII.
+     */
+    public Map<String, String> toS3Metadata() {
+        String encodedEntryName;
+        try {
+            encodedEntryName = URLEncoder.encode(entryName, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            // UTF-8 is always supported.
+            throw new IllegalStateException(ex);
+        }
+
+        return new ImmutableMap.Builder<String, String>().put(METADATA_KEY_ENTRY_NAME, encodedEntryName)
+                .put(METADATA_KEY_VERSION_NEEDED, String.valueOf(versionNeeded))
+                .put(METADATA_KEY_FLAGS, String.valueOf(flags)).put(METADATA_KEY_METHOD, String.valueOf(method))
+                .put(METADATA_KEY_DOS_DATE_TIME, String.valueOf(dosDateTime)).put(METADATA_KEY_CRC, String.valueOf(crc))
+                .put(METADATA_KEY_COMPRESSED_SIZE, String.valueOf(compressedSize))
+                .put(METADATA_KEY_SIZE, String.valueOf(size)).put(METADATA_KEY_CONTENT_HASH, contentHash).build();
+    }
+
+    /** Local file containing the segment, or null if the segment only exists in S3. */
+    public File getSegmentFile() {
+        return segmentFile;
+    }
+
+    /** Zip entry name. */
+    public String getEntryName() {
+        return entryName;
+    }
+
+    /** Length of the segment (local header, data, and data descriptor, if any), in bytes. */
+    public long getLength() {
+        return length;
+    }
+
+    /** Version needed to extract, as written in the local header. */
+    public int getVersionNeeded() {
+        return versionNeeded;
+    }
+
+    /** General purpose bit flags, as written in the local header. */
+    public int getFlags() {
+        return flags;
+    }
+
+    /** Compression method, STORED or DEFLATED. */
+    public int getMethod() {
+        return method;
+    }
+
+    /** Last modified time and date in MS-DOS format, as written in the local header. Time is the low 16 bits. */
+    public long getDosDateTime() {
+        return dosDateTime;
+    }
+
+    /** CRC-32 of the uncompressed data. */
+    public long getCrc() {
+        return crc;
+    }
+
+    /** Compressed size of the entry data, in bytes. */
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    /** Uncompressed size of the entry data, in bytes. */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * SHA-256 of the entry's uncompressed data, in hex. Unlike the segment's bytes, this doesn't depend on how the
+     * entry was compressed, so it identifies the entry's content across requests.
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    /** S3 key the segment was uploaded to, or null if the segment only exists locally. */
+    public String getS3Key() {
+        return s3Key;
+    }
+
+    /** Returns a copy of this segment, uploaded to the given S3 key. */
+    public ZipSegment withS3Key(String s3Key) {
+        return new ZipSegment(segmentFile, entryName, length, versionNeeded, flags, method, dosDateTime, crc,
+                compressedSize, size, contentHash, s3Key);
+    }
+}
@@ -1,23 +1,44 @@
 package org.sagebionetworks.bridge.udd.s3;
 
 import java.net.URL;
+import java.util.List;
 
+import com.google.common.collect.ImmutableList;
 import org.joda.time.DateTime;
 
-/** Encapsulates information about an S3 pre-signed URL, specifically the URL itself and its expiration time. */
+/**
+ * Encapsulates information about S3 pre-signed URLs, specifically the URLs themselves and their expiration time. Large
+ * downloads are split into several part archives, each with its own URL. All URLs share the same expiration time.
+ */
 public class PresignedUrlInfo {
-    private final URL url;
+    private final List<URL> urlList;
+    private final List<String> objectKeyList;
     private final DateTime expirationTime;
 
     /** Private constructor. To construct, use builder. */
-    private PresignedUrlInfo(URL url, DateTime expirationTime) {
-        this.url = url;
+    private PresignedUrlInfo(List<URL> urlList, List<String> objectKeyList, DateTime expirationTime) {
+        this.urlList = urlList;
+        this.objectKeyList = objectKeyList;
         this.expirationTime = expirationTime;
     }
 
-    /** URL of the pre-signed URL. */
+    /** URL of the pre-signed URL. If the download is split into parts, this is the URL of the first part. */
     public URL getUrl() {
-        return url;
+        return urlList.get(0);
+    }
+
+    /** Pre-signed URLs for all parts of the download, in order. This is never empty. */
+    public List<URL> getUrlList() {
+        return urlList;
+    }
+
+    /**
+     * S3 keys of the objects the URLs point to, in the same order as the URLs. Used to issue new URLs for the same
+     * objects to later identical requests. Empty if not known, or if the download has error logs and shouldn't be
+     * reused.
+     */
+    public List<String> getObjectKeyList() {
+        return objectKeyList;
     }
 
     /** Expiration time of the pre-signed URL. */
@@ -27,12 +48,25 @@ public class PresignedUrlInfo {
 
     /** PresignedUrlInfo builder. */
     public static class Builder {
-        private URL url;
+        private List<URL> urlList;
+        private List<String> objectKeyList;
         private DateTime expirationTime;
 
-        /** @see PresignedUrlInfo#getUrl */
+        /** Sets a single URL, for downloads that aren't split into parts. */
         public Builder withUrl(URL url) {
-            this.url = url;
+            this.urlList = url != null ? ImmutableList.of(url) : null;
+            return this;
+        }
+
+        /** @see PresignedUrlInfo#getUrlList */
+        public Builder withUrlList(List<URL> urlList) {
+            this.urlList = urlList;
+            return this;
+        }
+
+        /** @see PresignedUrlInfo#getObjectKeyList */
+        public Builder withObjectKeyList(List<String> objectKeyList) {
+            this.objectKeyList = objectKeyList;
             return this;
         }
 
@@ -44,15 +78,24 @@ public class PresignedUrlInfo {
 
         /** Builds the PresignedUrlInfo and validates that all fields are specified. */
         public PresignedUrlInfo build() {
-            if (url == null) {
+            if (urlList == null || urlList.isEmpty()) {
                 throw new IllegalStateException("url must be specified");
             }
 
+            if (urlList.contains(null)) {
+                throw new IllegalStateException("url list can't contain nulls");
+            }
+
             if (expirationTime == null) {
                 throw new IllegalStateException("expirationTime must be specified");
             }
 
-            return new PresignedUrlInfo(url, expirationTime);
+            if (objectKeyList != null && objectKeyList.size() != urlList.size()) {
+                throw new IllegalStateException("object key list must match url list");
+            }
+
+            return new PresignedUrlInfo(ImmutableList.copyOf(urlList), objectKeyList != null ?
+                    ImmutableList.copyOf(objectKeyList) : ImmutableList.of(), expirationTime);
         }
     }
 }
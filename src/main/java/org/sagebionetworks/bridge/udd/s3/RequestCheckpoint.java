@@ -0,0 +1,227 @@
+package org.sagebionetworks.bridge.udd.s3;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableList;
+import org.joda.time.LocalDate;
+
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+import org.sagebionetworks.bridge.udd.helper.ZipSegment;
+
+/**
+ * <p>
+ * Progress of one request, saved by the {@link RequestCheckpointStore} so a redelivered request can pick up where the
+ * failed attempt left off. For each table, this holds either the table's finished zip segments in S3 (an empty list
+ * if the table had no data), or the async job token of the table's running Synapse query.
+ * </p>
+ * <p>
+ * Tables finish on stage threads, so this is thread-safe. Call {@link RequestCheckpointStore#save} after each change.
+ * Each change bumps the version, so the store never overwrites a newer save with an older one.
+ * </p>
+ */
+public class RequestCheckpoint {
+    // JSON field names. Package-scoped to be available in unit tests.
+    static final String KEY_LENGTH = "length";
+    static final String KEY_METADATA = "metadata";
+    static final String KEY_QUERY_JOB_TOKEN = "queryJobToken";
+    static final String KEY_QUERY_START_DATE = "queryStartDate";
+    static final String KEY_S3_KEY = "s3Key";
+    static final String KEY_SEGMENTS = "segments";
+    static final String KEY_TABLES = "tables";
+
+    private final String id;
+
+    // Both maps are keyed by Synapse table ID, and guarded by "this". A table is in at most one of them.
+    private final Map<String, List<ZipSegment>> doneSegmentMap = new HashMap<>();
+    private final Map<String, QueryJob> queryJobMap = new HashMap<>();
+
+    // Bumped on each change, and guarded by "this".
+    private long version;
+
+    // Serializes saves, so S3 calls don't hold "this". savedVersion is the version last saved, guarded by saveLock.
+    private final Object saveLock = new Object();
+    private long savedVersion = -1;
+
+    /** Creates an empty checkpoint. Checkpoints are generally loaded from the RequestCheckpointStore. */
+    public RequestCheckpoint(String id) {
+        this.id = id;
+    }
+
+    /** Checkpoint ID, a hash of the user and date range. Identical requests have the same ID. */
+    public String getId() {
+        return id;
+    }
+
+    /** True if nothing has been recorded. */
+    public synchronized boolean isEmpty() {
+        return doneSegmentMap.isEmpty() && queryJobMap.isEmpty();
+    }
+
+    /**
+     * Gets the zip segments of a finished table.
+     *
+     * @param synapseTableId
+     *         Synapse table ID
+     * @return the table's segments in S3 (empty if the table had no data), or null if the table didn't finish
+     */
+    public synchronized List<ZipSegment> getDoneSegmentList(String synapseTableId) {
+        return doneSegmentMap.get(synapseTableId);
+    }
+
+    /**
+     * Gets the job token of a table's Synapse query, if it was started for the same start date. The start date depends
+     * on what was in the user table day store, so a query started for a different start date can't be reused.
+     *
+     * @param synapseTableId
+     *         Synapse table ID
+     * @param queryStartDate
+     *         start of the upload date range the caller would query
+     * @return async job token, or null if there isn't a matching query
+     */
+    public synchronized String getQueryJobToken(String synapseTableId, LocalDate queryStartDate) {
+        QueryJob queryJob = queryJobMap.get(synapseTableId);
+        if (queryJob == null || !queryJob.startDate.equals(queryStartDate)) {
+            return null;
+        }
+        return queryJob.token;
+    }
+
+    /** Records that a table's Synapse query was started for the given start date, with the given job token. */
+    public synchronized void recordQueryStarted(String synapseTableId, LocalDate queryStartDate, String jobToken) {
+        queryJobMap.put(synapseTableId, new QueryJob(queryStartDate, jobToken));
+        version++;
+    }
+
+    /**
+     * Records that a table finished. Segments must already be in S3 (see {@link RequestCheckpointStore#putSegment}).
+     * Tables with no data have an empty list.
+     */
+    public synchronized void recordTableDone(String synapseTableId, List<ZipSegment> segmentList) {
+        queryJobMap.remove(synapseTableId);
+        doneSegmentMap.put(synapseTableId, ImmutableList.copyOf(segmentList));
+        version++;
+    }
+
+    /** Drops a finished table, such as one whose segments were cleaned up. */
+    synchronized void removeTable(String synapseTableId) {
+        doneSegmentMap.remove(synapseTableId);
+        queryJobMap.remove(synapseTableId);
+        version++;
+    }
+
+    /** Synapse table IDs of finished tables. */
+    synchronized List<String> getDoneTableIdList() {
+        return new ArrayList<>(doneSegmentMap.keySet());
+    }
+
+    /** Version of the checkpoint, bumped on each change. */
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /** Lock that the store holds while saving, so saves of this checkpoint happen one at a time. */
+    Object getSaveLock() {
+        return saveLock;
+    }
+
+    /** Version last saved to S3, or -1 if it was never saved. Must be called while holding the save lock. */
+    long getSavedVersion() {
+        return savedVersion;
+    }
+
+    /** Records that the given version was saved to S3. Must be called while holding the save lock. */
+    void setSavedVersion(long savedVersion) {
+        this.savedVersion = savedVersion;
+    }
+
+    /** Serializes the checkpoint as JSON. */
+    synchronized JsonNode toJson() {
+        ObjectNode tablesNode = DefaultObjectMapper.INSTANCE.createObjectNode();
+        for (Map.Entry<String, List<ZipSegment>> oneEntry : doneSegmentMap.entrySet()) {
+            ArrayNode segmentsNode = tablesNode.putObject(oneEntry.getKey()).putArray(KEY_SEGMENTS);
+            for (ZipSegment oneSegment : oneEntry.getValue()) {
+                ObjectNode segmentNode = segmentsNode.addObject();
+                segmentNode.put(KEY_S3_KEY, oneSegment.getS3Key());
+                segmentNode.put(KEY_LENGTH, oneSegment.getLength());
+                ObjectNode metadataNode = segmentNode.putObject(KEY_METADATA);
+                oneSegment.toS3Metadata().forEach(metadataNode::put);
+            }
+        }
+        for (Map.Entry<String, QueryJob> oneEntry : queryJobMap.entrySet()) {
+            ObjectNode tableNode = tablesNode.putObject(oneEntry.getKey());
+            tableNode.put(KEY_QUERY_START_DATE, oneEntry.getValue().startDate.toString());
+            tableNode.put(KEY_QUERY_JOB_TOKEN, oneEntry.getValue().token);
+        }
+
+        ObjectNode checkpointNode = DefaultObjectMapper.INSTANCE.createObjectNode();
+        checkpointNode.set(KEY_TABLES, tablesNode);
+        return checkpointNode;
+    }
+
+    /**
+     * Parses a checkpoint written by {@link #toJson}.
+     *
+     * @throws IllegalArgumentException
+     *         if the JSON is malformed
+     */
+    static RequestCheckpoint fromJson(String id, JsonNode checkpointNode) {
+        RequestCheckpoint checkpoint = new RequestCheckpoint(id);
+        JsonNode tablesNode = checkpointNode.get(KEY_TABLES);
+        if (tablesNode == null || !tablesNode.isObject()) {
+            throw new IllegalArgumentException("Checkpoint " + id + " has no tables");
+        }
+
+        Iterator<Map.Entry<String, JsonNode>> tableIter = tablesNode.fields();
+        while (tableIter.hasNext()) {
+            Map.Entry<String, JsonNode> oneTableEntry = tableIter.next();
+            String synapseTableId = oneTableEntry.getKey();
+            JsonNode tableNode = oneTableEntry.getValue();
+            if (tableNode.has(KEY_SEGMENTS)) {
+                List<ZipSegment> segmentList = new ArrayList<>();
+                for (JsonNode segmentNode : tableNode.get(KEY_SEGMENTS)) {
+                    Map<String, String> metadata = new HashMap<>();
+                    Iterator<Map.Entry<String, JsonNode>> metadataIter = segmentNode.path(KEY_METADATA).fields();
+                    while (metadataIter.hasNext()) {
+                        Map.Entry<String, JsonNode> oneMetadataEntry = metadataIter.next();
+                        metadata.put(oneMetadataEntry.getKey(), oneMetadataEntry.getValue().asText());
+                    }
+                    segmentList.add(ZipSegment.fromS3Metadata(getRequiredText(segmentNode, KEY_S3_KEY),
+                            segmentNode.path(KEY_LENGTH).asLong(), metadata));
+                }
+                checkpoint.recordTableDone(synapseTableId, segmentList);
+            } else {
+                checkpoint.recordQueryStarted(synapseTableId,
+                        LocalDate.parse(getRequiredText(tableNode, KEY_QUERY_START_DATE)),
+                        getRequiredText(tableNode, KEY_QUERY_JOB_TOKEN));
+            }
+        }
+        return checkpoint;
+    }
+
+    // Gets a text field, or throws if it's not there.
+    private static String getRequiredText(JsonNode node, String key) {
+        JsonNode valueNode = node.get(key);
+        if (valueNode == null || !valueNode.isTextual()) {
+            throw new IllegalArgumentException("Checkpoint is missing " + key);
+        }
+        return valueNode.textValue();
+    }
+
+    // A running Synapse query.
+    private static class QueryJob {
+        private final LocalDate startDate;
+        private final String token;
+
+        QueryJob(LocalDate startDate, String token) {
+            this.startDate = startDate;
+            this.token = token;
+        }
+    }
+}
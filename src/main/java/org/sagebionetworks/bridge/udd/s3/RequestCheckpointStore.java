@@ -0,0 +1,233 @@
+package org.sagebionetworks.bridge.udd.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.annotation.Resource;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.FileHelper;
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+import org.sagebionetworks.bridge.udd.helper.ZipSegment;
+
+/**
+ * <p>
+ * Saves each request's progress (see {@link RequestCheckpoint}) in S3, so if a request fails or its node dies, the
+ * redelivered request reuses the tables that finished and resumes polling the Synapse queries that were still running,
+ * instead of starting the whole export over.
+ * </p>
+ * <p>
+ * Finished tables are saved as their zip segments. Large segments are already in S3 (see
+ * {@link S3ZipAssembler#uploadSegment}). Small ones are uploaded under the checkpoint. Checkpoints are keyed by a hash
+ * of the health code and date range, are encrypted at rest, and are deleted once the request finishes. Checkpoints
+ * older than the max age are ignored, so a retry long after the fact gets fresh data.
+ * </p>
+ * <p>
+ * Checkpoints only save work. If S3 fails, we log and carry on, and the retry starts over.
+ * </p>
+ */
+@Component
+public class RequestCheckpointStore {
+    private static final Logger LOG = LoggerFactory.getLogger(RequestCheckpointStore.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CHECKPOINT_KEY_SUFFIX = "checkpoint.json";
+    static final String CONFIG_KEY_ENABLED = "request.checkpoint.enabled";
+    static final String CONFIG_KEY_MAX_AGE_HOURS = "request.checkpoint.max.age.hours";
+    static final String CONFIG_KEY_USERDATA_BUCKET = "userdata.bucket";
+    static final String KEY_PREFIX = "request-checkpoints/";
+    static final String SEGMENT_KEY_INFIX = "segments/";
+
+    private static final String CONTENT_TYPE_JSON = "application/json";
+    private static final int HTTP_NOT_FOUND = 404;
+
+    private boolean enabled;
+    private FileHelper fileHelper;
+    private int maxAgeHours;
+    private AmazonS3Client s3Client;
+    private String userdataBucketName;
+
+    /** Bridge config, used to get the S3 bucket, whether checkpoints are enabled, and their max age. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        enabled = Boolean.parseBoolean(config.get(CONFIG_KEY_ENABLED));
+        maxAgeHours = config.getInt(CONFIG_KEY_MAX_AGE_HOURS);
+        userdataBucketName = config.get(CONFIG_KEY_USERDATA_BUCKET);
+    }
+
+    /** File helper, used to read segment files from the request's temp dir. This is the HybridFileHelper. */
+    @Resource(name = "hybridFileHelper")
+    public final void setFileHelper(FileHelper fileHelper) {
+        this.fileHelper = fileHelper;
+    }
+
+    /** S3 client. S3Helper doesn't support object metadata, so we need the client directly. */
+    @Autowired
+    public final void setS3Client(AmazonS3Client s3Client) {
+        this.s3Client = s3Client;
+    }
+
+    /** True if checkpoints are enabled. If they aren't, callers should never checkpoint. */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Loads the checkpoint for the given user and date range. Finished tables whose segments are gone from S3 are
+     * dropped, so they're downloaded again.
+     *
+     * @param healthCode
+     *         user's health code
+     * @param startDate
+     *         request start date
+     * @param endDate
+     *         request end date
+     * @return the saved checkpoint, or an empty checkpoint if there isn't one, if it's too old, or if S3 fails
+     */
+    public RequestCheckpoint load(String healthCode, LocalDate startDate, LocalDate endDate) {
+        String id = Hashing.sha256().hashString(healthCode + ":" + startDate + ":" + endDate, Charsets.UTF_8)
+                .toString();
+        try (S3Object s3Object = s3Client.getObject(userdataBucketName, getCheckpointKey(id));
+                InputStream s3InputStream = s3Object.getObjectContent()) {
+            DateTime lastModified = new DateTime(s3Object.getObjectMetadata().getLastModified());
+            if (maxAgeHours > 0 && lastModified.isBefore(DateTime.now().minusHours(maxAgeHours))) {
+                LOG.info("Ignoring checkpoint " + id + " from " + lastModified + ", older than " + maxAgeHours +
+                        " hours");
+                return new RequestCheckpoint(id);
+            }
+
+            RequestCheckpoint checkpoint = RequestCheckpoint.fromJson(id, DefaultObjectMapper.INSTANCE.readTree(
+                    s3InputStream));
+            for (String oneTableId : checkpoint.getDoneTableIdList()) {
+                for (ZipSegment oneSegment : checkpoint.getDoneSegmentList(oneTableId)) {
+                    if (!s3Client.doesObjectExist(userdataBucketName, oneSegment.getS3Key())) {
+                        LOG.warn("Checkpoint " + id + " segment " + oneSegment.getS3Key() + " is gone, " +
+                                "downloading table " + oneTableId + " again");
+                        checkpoint.removeTable(oneTableId);
+                        break;
+                    }
+                }
+            }
+
+            LOG.info("Resuming from checkpoint " + id + " with " + checkpoint.getDoneTableIdList().size() +
+                    " finished tables");
+            return checkpoint;
+        } catch (AmazonS3Exception ex) {
+            if (ex.getStatusCode() != HTTP_NOT_FOUND) {
+                LOG.warn("Error loading checkpoint " + id + ", starting over: " + ex.getMessage(), ex);
+            }
+            return new RequestCheckpoint(id);
+        } catch (AmazonClientException | IOException | IllegalArgumentException ex) {
+            LOG.warn("Error loading checkpoint " + id + ", starting over: " + ex.getMessage(), ex);
+            return new RequestCheckpoint(id);
+        }
+    }
+
+    /**
+     * Saves the checkpoint, replacing the previous one. The checkpoint is snapshotted first, so tables can keep
+     * finishing while the snapshot is uploaded. Saves for the same checkpoint are serialized, and a snapshot older than
+     * the last one saved is dropped, so the last change always wins. Errors are logged, since the checkpoint only saves
+     * work.
+     */
+    public void save(RequestCheckpoint checkpoint) {
+        long version;
+        JsonNode checkpointNode;
+        synchronized (checkpoint) {
+            version = checkpoint.getVersion();
+            checkpointNode = checkpoint.toJson();
+        }
+
+        synchronized (checkpoint.getSaveLock()) {
+            if (version <= checkpoint.getSavedVersion()) {
+                // A save that started later already wrote this change, or a newer one.
+                return;
+            }
+
+            try {
+                byte[] content = DefaultObjectMapper.INSTANCE.writeValueAsBytes(checkpointNode);
+                ObjectMetadata metadata = new ObjectMetadata();
+                metadata.setContentLength(content.length);
+                metadata.setContentType(CONTENT_TYPE_JSON);
+                metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+                s3Client.putObject(new PutObjectRequest(userdataBucketName, getCheckpointKey(checkpoint.getId()),
+                        new ByteArrayInputStream(content), metadata));
+                checkpoint.setSavedVersion(version);
+            } catch (AmazonClientException | IOException ex) {
+                LOG.warn("Error saving checkpoint " + checkpoint.getId() + ": " + ex.getMessage(), ex);
+            }
+        }
+    }
+
+    /**
+     * Makes sure the segment is in S3, so it can be saved in the checkpoint. Segments that are already in S3 are
+     * returned unchanged. Others are uploaded under the checkpoint, with the fields the central directory needs as
+     * object metadata.
+     *
+     * @param checkpoint
+     *         the request's checkpoint
+     * @param segment
+     *         segment to save, which must have a local segment file if it isn't in S3
+     * @return the segment with its S3 key
+     * @throws IOException
+     *         if reading the segment file fails
+     */
+    public ZipSegment putSegment(RequestCheckpoint checkpoint, ZipSegment segment) throws IOException {
+        if (segment.getS3Key() != null) {
+            return segment;
+        }
+
+        // Entry names are unique within a request.
+        String key = KEY_PREFIX + checkpoint.getId() + "/" + SEGMENT_KEY_INFIX + segment.getEntryName();
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(segment.getLength());
+        metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+        metadata.setUserMetadata(segment.toS3Metadata());
+        try (InputStream segmentInputStream = fileHelper.getInputStream(segment.getSegmentFile())) {
+            s3Client.putObject(new PutObjectRequest(userdataBucketName, key, segmentInputStream, metadata));
+        }
+        return segment.withS3Key(key);
+    }
+
+    /**
+     * Deletes the checkpoint and the segments uploaded under it, once the request finishes. Segments shared with other
+     * requests are left alone. Errors are logged, and leftovers are cleaned up by the bucket's lifecycle rules.
+     */
+    public void delete(RequestCheckpoint checkpoint) {
+        String prefix = KEY_PREFIX + checkpoint.getId() + "/";
+        try {
+            s3Client.deleteObject(userdataBucketName, getCheckpointKey(checkpoint.getId()));
+            for (String oneTableId : checkpoint.getDoneTableIdList()) {
+                for (ZipSegment oneSegment : checkpoint.getDoneSegmentList(oneTableId)) {
+                    if (oneSegment.getS3Key().startsWith(prefix)) {
+                        s3Client.deleteObject(userdataBucketName, oneSegment.getS3Key());
+                    }
+                }
+            }
+        } catch (AmazonClientException ex) {
+            LOG.warn("Error deleting checkpoint " + checkpoint.getId() + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    private static String getCheckpointKey(String id) {
+        return KEY_PREFIX + id + "/" + CHECKPOINT_KEY_SUFFIX;
+    }
+}
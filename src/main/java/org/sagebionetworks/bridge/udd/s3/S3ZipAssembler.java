@@ -0,0 +1,298 @@
+package org.sagebionetworks.bridge.udd.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Resource;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.FileHelper;
+import org.sagebionetworks.bridge.udd.helper.ZipHelper;
+import org.sagebionetworks.bridge.udd.helper.ZipSegment;
+
+/**
+ * <p>
+ * Assembles the user's zip in S3 from {@link ZipSegment}s, so we don't have to build the whole zip locally and then
+ * upload all of it at the end.
+ * </p>
+ * <p>
+ * Large segments are uploaded as soon as they're ready, keyed by a hash of their contents. If a segment with the same
+ * contents is already in S3, we reuse it instead of uploading it again. The final zip is then assembled with a
+ * multipart upload, where each uploaded segment is copied server-side with UploadPartCopy, and only the small segments
+ * and the central directory are sent from this node, as the last part.
+ * </p>
+ * <p>
+ * S3 requires every part except the last to be at least 5 MB, so smaller segments are never uploaded on their own.
+ * If no segment is large enough, the zip is uploaded in a single request. Small segments that are already in S3 (such
+ * as shared survey segments) are read from S3 and sent as part of the last part.
+ * </p>
+ * <p>
+ * Zips are named by a hash of their content, so if the same zip was recently built for an earlier request, we don't
+ * build it again (see {@link #isZipReusable}).
+ * </p>
+ * <p>
+ * Segments are encrypted at rest, like the zips. Nothing here deletes them, since other requests may reuse them, so the
+ * bucket needs a lifecycle rule that expires zip-segments/ (see the config file). If a reused segment expires before
+ * the zip is assembled, the request fails and is retried, and the retry uploads the segment again.
+ * </p>
+ */
+@Component
+public class S3ZipAssembler {
+    private static final Logger LOG = LoggerFactory.getLogger(S3ZipAssembler.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_REUSE_MAX_AGE_HOURS = "archive.reuse.max.age.hours";
+    static final String CONFIG_KEY_USERDATA_BUCKET = "userdata.bucket";
+    static final long MIN_PART_BYTES = 5 * 1024 * 1024;
+    static final String SEGMENT_KEY_PREFIX = "zip-segments/";
+
+    private FileHelper fileHelper;
+    private int reuseMaxAgeHours;
+    private AmazonS3Client s3Client;
+    private String userdataBucketName;
+    private ZipHelper zipHelper;
+
+    /** Bridge config, used to get the S3 bucket for segments and zips, and how long a zip can be reused. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        reuseMaxAgeHours = config.getInt(CONFIG_KEY_REUSE_MAX_AGE_HOURS);
+        userdataBucketName = config.get(CONFIG_KEY_USERDATA_BUCKET);
+    }
+
+    /** File helper, used to read local segment files. Segments are request files, so this is the HybridFileHelper. */
+    @Resource(name = "hybridFileHelper")
+    public final void setFileHelper(FileHelper fileHelper) {
+        this.fileHelper = fileHelper;
+    }
+
+    /** S3 client. S3Helper doesn't support multipart uploads, so we need the client directly. */
+    @Autowired
+    public final void setS3Client(AmazonS3Client s3Client) {
+        this.s3Client = s3Client;
+    }
+
+    /** Zip helper, used to build the central directory. */
+    @Autowired
+    public final void setZipHelper(ZipHelper zipHelper) {
+        this.zipHelper = zipHelper;
+    }
+
+    /**
+     * Uploads the segment to S3, if it's large enough to be copied as a part. If a segment with the same contents is
+     * already in S3, it's reused instead.
+     *
+     * @param segment
+     *         segment to upload
+     * @return the segment with its S3 key, or the segment unchanged if it's too small to upload on its own
+     * @throws IOException
+     *         if reading the segment file fails
+     */
+    public ZipSegment uploadSegment(ZipSegment segment) throws IOException {
+        if (segment.getLength() < MIN_PART_BYTES) {
+            return segment;
+        }
+
+        // Key by content hash, so identical segments are only uploaded once.
+        Hasher hasher = Hashing.sha256().newHasher();
+        try (InputStream segmentInputStream = fileHelper.getInputStream(segment.getSegmentFile());
+                OutputStream hasherOutputStream = Funnels.asOutputStream(hasher)) {
+            ByteStreams.copy(segmentInputStream, hasherOutputStream);
+        }
+        String segmentKey = SEGMENT_KEY_PREFIX + hasher.hash().toString();
+
+        if (s3Client.doesObjectExist(userdataBucketName, segmentKey)) {
+            LOG.info("Reusing segment " + segmentKey + " for zip entry " + segment.getEntryName());
+        } else {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(segment.getLength());
+            metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+            try (InputStream segmentInputStream = fileHelper.getInputStream(segment.getSegmentFile())) {
+                s3Client.putObject(new PutObjectRequest(userdataBucketName, segmentKey, segmentInputStream,
+                        metadata));
+            }
+            LOG.info("Uploaded segment " + segmentKey + " (" + segment.getLength() + " bytes) for zip entry " +
+                    segment.getEntryName());
+        }
+        return segment.withS3Key(segmentKey);
+    }
+
+    /**
+     * Assembles the segments into a zip in S3. Uploaded segments are copied server-side. Segments that weren't
+     * uploaded are sent from this node, along with the central directory.
+     *
+     * @param zipKey
+     *         S3 key of the zip to create
+     * @param segmentList
+     *         segments to assemble
+     * @return number of bytes sent from this node
+     * @throws IOException
+     *         if reading the segment files fails
+     */
+    public long assemble(String zipKey, List<ZipSegment> segmentList) throws IOException {
+        // Uploaded segments go first, since they become parts of their own. Everything else goes in the last part.
+        // Segments in S3 that are too small to be a part are read back and sent inline.
+        List<ZipSegment> copiedSegmentList = new ArrayList<>();
+        List<ZipSegment> inlineSegmentList = new ArrayList<>();
+        for (ZipSegment oneSegment : segmentList) {
+            if (oneSegment.getS3Key() != null && oneSegment.getLength() >= MIN_PART_BYTES) {
+                copiedSegmentList.add(oneSegment);
+            } else {
+                inlineSegmentList.add(oneSegment);
+            }
+        }
+
+        List<ZipSegment> orderedSegmentList = new ArrayList<>(copiedSegmentList);
+        orderedSegmentList.addAll(inlineSegmentList);
+        byte[] centralDirectory = zipHelper.buildCentralDirectory(orderedSegmentList);
+
+        // Inline segments, followed by the central directory.
+        List<ByteSource> inlineSourceList = new ArrayList<>();
+        long inlineLength = centralDirectory.length;
+        for (ZipSegment oneSegment : inlineSegmentList) {
+            inlineSourceList.add(new SegmentByteSource(oneSegment));
+            inlineLength += oneSegment.getLength();
+        }
+        inlineSourceList.add(ByteSource.wrap(centralDirectory));
+        ByteSource inlineSource = ByteSource.concat(inlineSourceList);
+
+        // The zip is participant data, so it's encrypted at rest, whichever way it's uploaded.
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+        if (copiedSegmentList.isEmpty()) {
+            // Nothing to copy. Just upload the zip.
+            metadata.setContentLength(inlineLength);
+            try (InputStream inlineInputStream = inlineSource.openStream()) {
+                s3Client.putObject(new PutObjectRequest(userdataBucketName, zipKey, inlineInputStream, metadata));
+            }
+            return inlineLength;
+        }
+
+        String uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(userdataBucketName,
+                zipKey).withObjectMetadata(metadata)).getUploadId();
+        try {
+            List<PartETag> partETagList = new ArrayList<>();
+            int partNumber = 1;
+            for (ZipSegment oneSegment : copiedSegmentList) {
+                partETagList.add(s3Client.copyPart(new CopyPartRequest().withSourceBucketName(userdataBucketName)
+                        .withSourceKey(oneSegment.getS3Key()).withDestinationBucketName(userdataBucketName)
+                        .withDestinationKey(zipKey).withUploadId(uploadId).withPartNumber(partNumber++))
+                        .getPartETag());
+            }
+
+            try (InputStream inlineInputStream = inlineSource.openStream()) {
+                partETagList.add(s3Client.uploadPart(new UploadPartRequest().withBucketName(userdataBucketName)
+                        .withKey(zipKey).withUploadId(uploadId).withPartNumber(partNumber)
+                        .withInputStream(inlineInputStream).withPartSize(inlineLength).withLastPart(true))
+                        .getPartETag());
+            }
+
+            s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(userdataBucketName, zipKey, uploadId,
+                    partETagList));
+        } catch (IOException | RuntimeException ex) {
+            // Don't leave the parts lying around. They're billed until the upload is aborted.
+            try {
+                s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(userdataBucketName, zipKey, uploadId));
+            } catch (RuntimeException abortEx) {
+                LOG.error("Error aborting multipart upload for " + zipKey + ": " + abortEx.getMessage(), abortEx);
+            }
+            throw ex;
+        }
+
+        LOG.info("Assembled zip " + zipKey + " from " + copiedSegmentList.size() + " copied segments and " +
+                inlineSegmentList.size() + " inline segments, sent " + inlineLength + " bytes");
+        return inlineLength;
+    }
+
+    /**
+     * True if a zip with the given key is already in S3, and was written recently enough that it won't expire before a
+     * new pre-signed URL for it does. Zip keys contain a hash of the zip's content, so an existing zip is the zip we'd
+     * build. If S3 fails, this returns false, and the zip is built again.
+     *
+     * @param zipKey
+     *         S3 key of the zip
+     * @return true if the zip can be reused instead of built
+     */
+    public boolean isZipReusable(String zipKey) {
+        if (reuseMaxAgeHours <= 0) {
+            return false;
+        }
+
+        try {
+            ListObjectsV2Result listResult = s3Client.listObjectsV2(new ListObjectsV2Request()
+                    .withBucketName(userdataBucketName).withPrefix(zipKey).withMaxKeys(1));
+            for (S3ObjectSummary oneSummary : listResult.getObjectSummaries()) {
+                if (zipKey.equals(oneSummary.getKey()) && new DateTime(oneSummary.getLastModified()).isAfter(
+                        DateTime.now().minusHours(reuseMaxAgeHours))) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (AmazonClientException ex) {
+            LOG.warn("Error checking for existing zip " + zipKey + ", building it again: " + ex.getMessage(), ex);
+            return false;
+        }
+    }
+
+    /**
+     * Opens a stream of the segment's bytes, from the local segment file if there is one, otherwise from S3.
+     *
+     * @param segment
+     *         segment to read
+     * @return stream of the segment's bytes, which the caller must close
+     * @throws IOException
+     *         if opening the local segment file fails
+     */
+    public InputStream openSegmentStream(ZipSegment segment) throws IOException {
+        if (segment.getSegmentFile() != null) {
+            return fileHelper.getInputStream(segment.getSegmentFile());
+        } else if (segment.getS3Key() != null) {
+            return s3Client.getObject(userdataBucketName, segment.getS3Key()).getObjectContent();
+        } else {
+            throw new IllegalArgumentException("Zip segment for entry " + segment.getEntryName() +
+                    " has neither a local file nor an S3 key");
+        }
+    }
+
+    // Reads a segment, locally or from S3.
+    private class SegmentByteSource extends ByteSource {
+        private final ZipSegment segment;
+
+        SegmentByteSource(ZipSegment segment) {
+            this.segment = segment;
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return openSegmentStream(segment);
+        }
+    }
+}
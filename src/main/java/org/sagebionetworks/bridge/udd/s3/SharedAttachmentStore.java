@@ -0,0 +1,182 @@
+package org.sagebionetworks.bridge.udd.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+
+import javax.annotation.Resource;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.FileHelper;
+
+/**
+ * <p>
+ * Second tier of the attachment cache, shared across nodes. Attachments are stored in S3 keyed by their Synapse file
+ * handle ID, along with the zip entry name Synapse gave them in the bulk download.
+ * </p>
+ * <p>
+ * File handles are immutable, so unlike the {@link SharedSurveyStore}, entries never go stale and there's no max age.
+ * Attachments are participant data, so they're encrypted at rest. Nothing here deletes them, so the bucket needs a
+ * lifecycle rule that expires attachments/ (see the config file). The store is a cache. If S3 fails, we log and fall
+ * back to Synapse.
+ * </p>
+ */
+@Component
+public class SharedAttachmentStore {
+    private static final Logger LOG = LoggerFactory.getLogger(SharedAttachmentStore.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_ENABLED = "attachment.shared.enabled";
+    static final String CONFIG_KEY_USERDATA_BUCKET = "userdata.bucket";
+    static final String KEY_PREFIX = "attachments/";
+    static final String METADATA_KEY_ENTRY_NAME = "zip-entry-name";
+
+    private static final int HTTP_NOT_FOUND = 404;
+
+    private boolean enabled;
+    private FileHelper fileHelper;
+    private AmazonS3Client s3Client;
+    private String userdataBucketName;
+
+    /** Bridge config, used to get the S3 bucket and whether the store is enabled. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        enabled = Boolean.parseBoolean(config.get(CONFIG_KEY_ENABLED));
+        userdataBucketName = config.get(CONFIG_KEY_USERDATA_BUCKET);
+    }
+
+    /** File helper, used to read and write attachment files in request temp dirs (the HybridFileHelper). */
+    @Resource(name = "hybridFileHelper")
+    public final void setFileHelper(FileHelper fileHelper) {
+        this.fileHelper = fileHelper;
+    }
+
+    /** S3 client. S3Helper doesn't support object metadata, so we need the client directly. */
+    @Autowired
+    public final void setS3Client(AmazonS3Client s3Client) {
+        this.s3Client = s3Client;
+    }
+
+    /** True if the store is enabled. If it isn't, lookups always miss and puts do nothing. */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Copies the stored attachment for the given file handle to the given file.
+     *
+     * @param fileHandleId
+     *         attachment file handle ID
+     * @param to
+     *         file to copy the attachment to
+     * @return the attachment's zip entry name, or null if there's no stored attachment or if S3 fails
+     */
+    public String copyTo(String fileHandleId, File to) {
+        if (!enabled) {
+            return null;
+        }
+
+        String key = KEY_PREFIX + fileHandleId;
+        try (S3Object s3Object = s3Client.getObject(userdataBucketName, key)) {
+            String encodedEntryName = s3Object.getObjectMetadata().getUserMetadata().get(METADATA_KEY_ENTRY_NAME);
+            if (Strings.isNullOrEmpty(encodedEntryName)) {
+                LOG.warn("Shared attachment " + key + " has no zip entry name, falling back to Synapse");
+                return null;
+            }
+
+            try (InputStream s3InputStream = s3Object.getObjectContent();
+                    OutputStream toStream = fileHelper.getOutputStream(to)) {
+                ByteStreams.copy(s3InputStream, toStream);
+            }
+            return URLDecoder.decode(encodedEntryName, "UTF-8");
+        } catch (AmazonS3Exception ex) {
+            if (ex.getStatusCode() != HTTP_NOT_FOUND) {
+                LOG.warn("Error getting shared attachment " + key + ", falling back to Synapse: " + ex.getMessage(),
+                        ex);
+            }
+            deleteQuietly(to);
+            return null;
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Error getting shared attachment " + key + ", falling back to Synapse: " + ex.getMessage(), ex);
+            deleteQuietly(to);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the attachment for the given file handle, so other nodes can use it. Errors are logged, not thrown, since
+     * the attachment has already been downloaded.
+     *
+     * @param fileHandleId
+     *         attachment file handle ID
+     * @param zipEntryName
+     *         attachment's zip entry name from the Synapse bulk download
+     * @param from
+     *         attachment file
+     * @param length
+     *         attachment file size in bytes
+     */
+    public void put(String fileHandleId, String zipEntryName, File from, long length) {
+        if (!enabled) {
+            return;
+        }
+
+        String key = KEY_PREFIX + fileHandleId;
+        try {
+            if (s3Client.doesObjectExist(userdataBucketName, key)) {
+                // Another request already stored this file handle.
+                return;
+            }
+
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(length);
+            metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+            metadata.setUserMetadata(ImmutableMap.of(METADATA_KEY_ENTRY_NAME, encodeEntryName(zipEntryName)));
+            try (InputStream fromStream = fileHelper.getInputStream(from)) {
+                s3Client.putObject(new PutObjectRequest(userdataBucketName, key, fromStream, metadata));
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Error storing shared attachment " + key + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    // S3 metadata is ASCII, so the entry name is URL-encoded.
+    private static String encodeEntryName(String zipEntryName) {
+        try {
+            return URLEncoder.encode(zipEntryName, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            // UTF-8 is always supported.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // Deletes the file if it exists. Logs errors instead of throwing.
+    private void deleteQuietly(File file) {
+        try {
+            if (fileHelper.fileExists(file)) {
+                fileHelper.deleteFile(file);
+            }
+        } catch (RuntimeException ex) {
+            LOG.error("Error deleting file " + file.getAbsolutePath() + ": " + ex.getMessage(), ex);
+        }
+    }
+}
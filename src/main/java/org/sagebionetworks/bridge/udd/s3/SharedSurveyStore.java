@@ -0,0 +1,165 @@
+package org.sagebionetworks.bridge.udd.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.annotation.Resource;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.FileHelper;
+import org.sagebionetworks.bridge.udd.helper.ZipSegment;
+
+/**
+ * <p>
+ * Survey metadata tables are the same for every participant in a study, so instead of downloading them from Synapse
+ * for every request, we keep one zip segment per survey table version in S3, and every request references it. Large
+ * segments are copied into the user's zip server-side, and small ones are read back from S3, so requests that hit the
+ * store don't run any Synapse jobs for surveys.
+ * </p>
+ * <p>
+ * Segments are keyed by table ID and the table's etag, plus a hash of the segment's contents. Two requests might store
+ * the same table version at the same time, with different compression. The hash keeps them from overwriting each
+ * other, so a segment's metadata always matches its bytes.
+ * </p>
+ * <p>
+ * The table's etag doesn't necessarily change when rows are added, so segments are only used up to a max age. The
+ * store is a cache. If S3 fails, we log and fall back to Synapse.
+ * </p>
+ */
+@Component
+public class SharedSurveyStore {
+    private static final Logger LOG = LoggerFactory.getLogger(SharedSurveyStore.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_MAX_AGE_HOURS = "survey.shared.max.age.hours";
+    static final String CONFIG_KEY_USERDATA_BUCKET = "userdata.bucket";
+    static final String KEY_PREFIX = "survey-segments/";
+
+    private FileHelper fileHelper;
+    private int maxAgeHours;
+    private AmazonS3Client s3Client;
+    private String userdataBucketName;
+
+    /** Bridge config, used to get the S3 bucket and max age of shared segments (0 means no max age). */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        maxAgeHours = config.getInt(CONFIG_KEY_MAX_AGE_HOURS);
+        userdataBucketName = config.get(CONFIG_KEY_USERDATA_BUCKET);
+    }
+
+    /** File helper for the request's temp dir (the HybridFileHelper), used to read segment files. */
+    @Resource(name = "hybridFileHelper")
+    public final void setFileHelper(FileHelper fileHelper) {
+        this.fileHelper = fileHelper;
+    }
+
+    /** S3 client. S3Helper doesn't support listing or object metadata, so we need the client directly. */
+    @Autowired
+    public final void setS3Client(AmazonS3Client s3Client) {
+        this.s3Client = s3Client;
+    }
+
+    /**
+     * Finds the shared segment for the given survey table version.
+     *
+     * @param synapseTableId
+     *         survey table ID
+     * @param etag
+     *         survey table etag
+     * @return the newest shared segment for that table version that's within the max age, or null if there isn't one
+     *         or if S3 fails
+     */
+    public ZipSegment find(String synapseTableId, String etag) {
+        String prefix = getPrefix(synapseTableId, etag);
+        DateTime oldestAllowed = maxAgeHours > 0 ? DateTime.now().minusHours(maxAgeHours) : null;
+        try {
+            S3ObjectSummary newestSummary = null;
+            for (S3ObjectSummary oneSummary : s3Client.listObjectsV2(new ListObjectsV2Request()
+                    .withBucketName(userdataBucketName).withPrefix(prefix)).getObjectSummaries()) {
+                DateTime lastModified = new DateTime(oneSummary.getLastModified());
+                if (oldestAllowed != null && lastModified.isBefore(oldestAllowed)) {
+                    continue;
+                }
+                if (newestSummary == null || lastModified.isAfter(new DateTime(newestSummary.getLastModified()))) {
+                    newestSummary = oneSummary;
+                }
+            }
+
+            if (newestSummary == null) {
+                return null;
+            }
+
+            String key = newestSummary.getKey();
+            ObjectMetadata metadata = s3Client.getObjectMetadata(userdataBucketName, key);
+            ZipSegment segment = ZipSegment.fromS3Metadata(key, metadata.getContentLength(),
+                    metadata.getUserMetadata());
+            LOG.info("Found shared survey segment " + key + " for table " + synapseTableId);
+            return segment;
+        } catch (AmazonClientException | IllegalArgumentException ex) {
+            LOG.warn("Error finding shared survey segment for table " + synapseTableId + ", falling back to " +
+                    "Synapse: " + ex.getMessage(), ex);
+            return null;
+        }
+    }
+
+    /**
+     * Stores a segment for the given survey table version, so later requests can use it. Segments of any size are
+     * stored, since the point is to skip Synapse, not just the upload.
+     *
+     * @param synapseTableId
+     *         survey table ID
+     * @param etag
+     *         survey table etag, as of before the survey was downloaded
+     * @param segment
+     *         segment to store, which must have a local segment file
+     * @return the segment with its S3 key
+     * @throws IOException
+     *         if reading the segment file fails
+     */
+    public ZipSegment put(String synapseTableId, String etag, ZipSegment segment) throws IOException {
+        Hasher hasher = Hashing.sha256().newHasher();
+        try (InputStream segmentInputStream = fileHelper.getInputStream(segment.getSegmentFile());
+                OutputStream hasherOutputStream = Funnels.asOutputStream(hasher)) {
+            ByteStreams.copy(segmentInputStream, hasherOutputStream);
+        }
+        String key = getPrefix(synapseTableId, etag) + hasher.hash().toString();
+
+        if (s3Client.doesObjectExist(userdataBucketName, key)) {
+            // Another request already stored these exact bytes.
+            return segment.withS3Key(key);
+        }
+
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(segment.getLength());
+        metadata.setUserMetadata(segment.toS3Metadata());
+        try (InputStream segmentInputStream = fileHelper.getInputStream(segment.getSegmentFile())) {
+            s3Client.putObject(new PutObjectRequest(userdataBucketName, key, segmentInputStream, metadata));
+        }
+        LOG.info("Stored shared survey segment " + key + " for table " + synapseTableId);
+        return segment.withS3Key(key);
+    }
+
+    // Key prefix for all segments of a table version.
+    private static String getPrefix(String synapseTableId, String etag) {
+        return KEY_PREFIX + synapseTableId + "/" + etag + "/";
+    }
+}
@@ -0,0 +1,285 @@
+package org.sagebionetworks.bridge.udd.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import javax.annotation.Resource;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.FileHelper;
+
+/**
+ * <p>
+ * Stores each user's table query results in S3, one CSV segment per table per upload date, so a user who asks for
+ * overlapping date ranges (such as "all my data" every month) only needs Synapse to query the new days.
+ * </p>
+ * <p>
+ * Each user and table also has a coverage marker, with the range of days that have been stored. Days in the coverage
+ * range that have no segment had no rows. Only final days are stored, which are days old enough that the exporter
+ * won't add more rows to them. Segments and markers are keyed by a hash of the health code, and are encrypted at rest.
+ * </p>
+ * <p>
+ * The store is a cache. If S3 fails, we log and fall back to querying Synapse. Old entries are cleaned up by the
+ * bucket's lifecycle rules. Since a missing day reads as "no rows", coverage must never outlive its segments. Each
+ * marker records when its oldest segment was stored, which carries over when the coverage is extended, and coverage
+ * older than the max age is ignored. The lifecycle rule on table-days/ must expire segments later than that (see the
+ * config file).
+ * </p>
+ */
+@Component
+public class UserTableDayStore {
+    private static final Logger LOG = LoggerFactory.getLogger(UserTableDayStore.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_ENABLED = "table.day.store.enabled";
+    static final String CONFIG_KEY_FINAL_LAG_DAYS = "table.day.store.final.lag.days";
+    static final String CONFIG_KEY_MAX_AGE_DAYS = "table.day.store.max.age.days";
+    static final String CONFIG_KEY_USERDATA_BUCKET = "userdata.bucket";
+    static final String COVERAGE_KEY_SUFFIX = "coverage";
+    static final String DAY_KEY_SUFFIX = ".csv";
+    static final String KEY_PREFIX = "table-days/";
+    static final String METADATA_KEY_COVERAGE_END = "coverage-end";
+    static final String METADATA_KEY_COVERAGE_START = "coverage-start";
+    static final String METADATA_KEY_COVERAGE_STORED_ON = "coverage-stored-on";
+
+    private static final int HTTP_NOT_FOUND = 404;
+
+    private boolean enabled;
+    private FileHelper fileHelper;
+    private int finalLagDays;
+    private int maxAgeDays;
+    private AmazonS3Client s3Client;
+    private String userdataBucketName;
+
+    /**
+     * Bridge config, used to get the S3 bucket, whether the store is enabled, how long until a day is final, and how
+     * long stored days can be used.
+     */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        enabled = Boolean.parseBoolean(config.get(CONFIG_KEY_ENABLED));
+        finalLagDays = config.getInt(CONFIG_KEY_FINAL_LAG_DAYS);
+        maxAgeDays = config.getInt(CONFIG_KEY_MAX_AGE_DAYS);
+        userdataBucketName = config.get(CONFIG_KEY_USERDATA_BUCKET);
+    }
+
+    /** File helper, used to write segment files into the request's temp dir. This is the HybridFileHelper. */
+    @Resource(name = "hybridFileHelper")
+    public final void setFileHelper(FileHelper fileHelper) {
+        this.fileHelper = fileHelper;
+    }
+
+    /** S3 client. S3Helper doesn't support listing or object metadata, so we need the client directly. */
+    @Autowired
+    public final void setS3Client(AmazonS3Client s3Client) {
+        this.s3Client = s3Client;
+    }
+
+    /** True if the store is enabled. If it isn't, callers should always query the whole date range. */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** The latest final upload date. Rows for this day and earlier days won't change. */
+    public LocalDate getLastFinalDate() {
+        return LocalDate.now().minusDays(finalLagDays);
+    }
+
+    /**
+     * Gets the stored coverage for the given user and table.
+     *
+     * @param healthCode
+     *         user's health code
+     * @param synapseTableId
+     *         Synapse table ID
+     * @return range of stored days, or null if nothing is stored, if the oldest stored segment is older than the max
+     *         age (so the bucket's lifecycle rule may have deleted some), or if S3 fails
+     */
+    public DayRange getCoverage(String healthCode, String synapseTableId) {
+        String key = getPrefix(healthCode, synapseTableId) + COVERAGE_KEY_SUFFIX;
+        try {
+            Map<String, String> userMetadata = s3Client.getObjectMetadata(userdataBucketName, key).getUserMetadata();
+            DayRange coverage = new DayRange(LocalDate.parse(userMetadata.get(METADATA_KEY_COVERAGE_START)),
+                    LocalDate.parse(userMetadata.get(METADATA_KEY_COVERAGE_END)),
+                    DateTime.parse(userMetadata.get(METADATA_KEY_COVERAGE_STORED_ON)));
+            if (maxAgeDays > 0 && coverage.getStoredOn().isBefore(DateTime.now().minusDays(maxAgeDays))) {
+                LOG.info("Stored coverage for table " + synapseTableId + " is from " + coverage.getStoredOn() +
+                        ", older than " + maxAgeDays + " days, querying Synapse");
+                return null;
+            }
+            return coverage;
+        } catch (AmazonS3Exception ex) {
+            if (ex.getStatusCode() != HTTP_NOT_FOUND) {
+                LOG.warn("Error getting stored coverage for table " + synapseTableId + ", falling back to Synapse: " +
+                        ex.getMessage(), ex);
+            }
+            return null;
+        } catch (AmazonClientException | IllegalArgumentException | NullPointerException ex) {
+            LOG.warn("Error getting stored coverage for table " + synapseTableId + ", falling back to Synapse: " +
+                    ex.getMessage(), ex);
+            return null;
+        }
+    }
+
+    /**
+     * Lists the days that have a stored segment for the given user and table.
+     *
+     * @param healthCode
+     *         user's health code
+     * @param synapseTableId
+     *         Synapse table ID
+     * @return stored days, in order
+     * @throws AmazonClientException
+     *         if listing fails
+     */
+    public SortedSet<LocalDate> listDays(String healthCode, String synapseTableId) {
+        String prefix = getPrefix(healthCode, synapseTableId);
+        SortedSet<LocalDate> daySet = new TreeSet<>();
+        ListObjectsV2Request listRequest = new ListObjectsV2Request().withBucketName(userdataBucketName)
+                .withPrefix(prefix);
+        ListObjectsV2Result listResult;
+        do {
+            listResult = s3Client.listObjectsV2(listRequest);
+            for (S3ObjectSummary oneSummary : listResult.getObjectSummaries()) {
+                String suffix = oneSummary.getKey().substring(prefix.length());
+                if (suffix.endsWith(DAY_KEY_SUFFIX)) {
+                    daySet.add(LocalDate.parse(suffix.substring(0, suffix.length() - DAY_KEY_SUFFIX.length())));
+                }
+            }
+            listRequest.setContinuationToken(listResult.getNextContinuationToken());
+        } while (listResult.isTruncated());
+        return daySet;
+    }
+
+    /**
+     * Copies the stored segment for the given day to the given file.
+     *
+     * @param healthCode
+     *         user's health code
+     * @param synapseTableId
+     *         Synapse table ID
+     * @param day
+     *         upload date of the segment
+     * @param to
+     *         file to copy the segment to
+     * @throws IOException
+     *         if writing the file fails
+     */
+    public void getDay(String healthCode, String synapseTableId, LocalDate day, File to) throws IOException {
+        try (S3Object s3Object = s3Client.getObject(userdataBucketName, getDayKey(healthCode, synapseTableId, day));
+                InputStream s3InputStream = s3Object.getObjectContent();
+                OutputStream toStream = fileHelper.getOutputStream(to)) {
+            ByteStreams.copy(s3InputStream, toStream);
+        }
+    }
+
+    /**
+     * Stores the segment for the given day. Callers must call {@link #putCoverage} once all days are stored, or the
+     * segments won't be used.
+     *
+     * @param healthCode
+     *         user's health code
+     * @param synapseTableId
+     *         Synapse table ID
+     * @param day
+     *         upload date of the segment
+     * @param content
+     *         segment contents, a CSV with a header row
+     */
+    public void putDay(String healthCode, String synapseTableId, LocalDate day, byte[] content) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(content.length);
+        metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+        s3Client.putObject(new PutObjectRequest(userdataBucketName, getDayKey(healthCode, synapseTableId, day),
+                new ByteArrayInputStream(content), metadata));
+    }
+
+    /**
+     * Writes the coverage marker for the given user and table, replacing the previous one. If the coverage extends
+     * older coverage, its stored-on must be the older coverage's, since those segments weren't written again.
+     *
+     * @param healthCode
+     *         user's health code
+     * @param synapseTableId
+     *         Synapse table ID
+     * @param coverage
+     *         range of stored days
+     */
+    public void putCoverage(String healthCode, String synapseTableId, DayRange coverage) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(0);
+        metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+        metadata.setUserMetadata(ImmutableMap.of(METADATA_KEY_COVERAGE_START, coverage.getStartDate().toString(),
+                METADATA_KEY_COVERAGE_END, coverage.getEndDate().toString(),
+                METADATA_KEY_COVERAGE_STORED_ON, coverage.getStoredOn().toString()));
+        s3Client.putObject(new PutObjectRequest(userdataBucketName, getPrefix(healthCode, synapseTableId) +
+                COVERAGE_KEY_SUFFIX, new ByteArrayInputStream(new byte[0]), metadata));
+    }
+
+    // Key prefix for all of a user's segments for a table. Health codes are hashed, so they don't show up in keys.
+    private static String getPrefix(String healthCode, String synapseTableId) {
+        return KEY_PREFIX + Hashing.sha256().hashString(healthCode, Charsets.UTF_8).toString() + "/" +
+                synapseTableId + "/";
+    }
+
+    private static String getDayKey(String healthCode, String synapseTableId, LocalDate day) {
+        return getPrefix(healthCode, synapseTableId) + day.toString() + DAY_KEY_SUFFIX;
+    }
+
+    /** Range of upload dates, inclusive on both ends, and when the oldest segment in the range was stored. */
+    public static class DayRange {
+        private final LocalDate startDate;
+        private final LocalDate endDate;
+        private final DateTime storedOn;
+
+        /** Constructs the range. */
+        public DayRange(LocalDate startDate, LocalDate endDate, DateTime storedOn) {
+            this.startDate = startDate;
+            this.endDate = endDate;
+            this.storedOn = storedOn;
+        }
+
+        /** First day in the range. */
+        public LocalDate getStartDate() {
+            return startDate;
+        }
+
+        /** Last day in the range. */
+        public LocalDate getEndDate() {
+            return endDate;
+        }
+
+        /** When the oldest segment in the range was stored. */
+        public DateTime getStoredOn() {
+            return storedOn;
+        }
+    }
+}
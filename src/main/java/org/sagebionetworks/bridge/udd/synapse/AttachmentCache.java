@@ -0,0 +1,216 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.FileHelper;
+import org.sagebionetworks.bridge.udd.helper.LruFileCache;
+import org.sagebionetworks.bridge.udd.helper.TempStorageManager;
+import org.sagebionetworks.bridge.udd.s3.SharedAttachmentStore;
+
+/**
+ * <p>
+ * Local disk cache of attachment contents, keyed by Synapse file handle ID. Participants who request their data more
+ * than once get mostly the same attachments every time, so the table task only bulk downloads the attachments that
+ * aren't cached. This is the first tier. The optional second tier is the {@link SharedAttachmentStore}, which is shared
+ * across nodes.
+ * </p>
+ * <p>
+ * File handles are immutable, so entries never go stale. Each entry also remembers the zip entry name Synapse gave the
+ * attachment, so attachments from the cache and from the bulk download end up under the same names, and the CSV edits
+ * point at the right files.
+ * </p>
+ * <p>
+ * Like the {@link SurveyCsvCache}, the local tier is bounded by total file size, and evicts the least recently used
+ * entries (see {@link LruFileCache}). Errors are logged, and the caller falls back to Synapse.
+ * </p>
+ */
+@Component
+public class AttachmentCache {
+    private static final Logger LOG = LoggerFactory.getLogger(AttachmentCache.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_MAX_MB = "attachment.cache.max.mb";
+
+    static final String CACHE_DIR_NAME = "attachments";
+
+    private static final long BYTES_PER_MB = 1024 * 1024;
+
+    // Default, used if setConfig() is never called (such as in unit tests). A size of 0 disables the local tier.
+    private long maxBytes = 0;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    // Local tier, keyed by file handle ID. Each entry's value is the attachment's zip entry name.
+    private LruFileCache<String> fileCache;
+    private FileHelper cacheFileHelper;
+    private FileHelper fileHelper;
+    private TempStorageManager tempStorageManager;
+    private SharedAttachmentStore sharedAttachmentStore;
+
+    /** Bridge config, used to get the cache size. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        maxBytes = config.getInt(CONFIG_KEY_MAX_MB) * BYTES_PER_MB;
+    }
+
+    /**
+     * File helper for the cache's own files. This is the default file helper, so cached files stay on disk instead of
+     * in memory. If it's not set (such as in unit tests), the request file helper is used.
+     */
+    @Autowired
+    public final void setCacheFileHelper(FileHelper cacheFileHelper) {
+        this.cacheFileHelper = cacheFileHelper;
+    }
+
+    /** File helper for the attachment files callers copy in and out, which live in request temp dirs. */
+    @Resource(name = "hybridFileHelper")
+    public final void setFileHelper(FileHelper fileHelper) {
+        this.fileHelper = fileHelper;
+    }
+
+    /**
+     * Temp storage manager, used to get the cache dir. If it's not set (such as in unit tests), the cache is in a new
+     * temp dir.
+     */
+    @Autowired
+    public final void setTempStorageManager(TempStorageManager tempStorageManager) {
+        this.tempStorageManager = tempStorageManager;
+    }
+
+    /** Shared attachment store, the second tier, used on local misses. */
+    @Autowired
+    public final void setSharedAttachmentStore(SharedAttachmentStore sharedAttachmentStore) {
+        this.sharedAttachmentStore = sharedAttachmentStore;
+    }
+
+    /**
+     * Sets up the cache dir. It's the same dir on every run, and it's emptied here, since the cache starts out empty.
+     * If that fails, the cache is disabled. Called by Spring on startup.
+     */
+    @PostConstruct
+    public void init() {
+        if (maxBytes > 0) {
+            FileHelper cacheDirFileHelper = cacheFileHelper != null ? cacheFileHelper : fileHelper;
+            File cacheDir;
+            try {
+                cacheDir = tempStorageManager != null ? tempStorageManager.initCacheDir(CACHE_DIR_NAME) :
+                        cacheDirFileHelper.createTempDir();
+            } catch (RuntimeException ex) {
+                LOG.error("Error setting up attachment cache dir, disabling the cache: " + ex.getMessage(), ex);
+                return;
+            }
+            fileCache = new LruFileCache<>(cacheDirFileHelper, fileHelper, cacheDir, maxBytes);
+            LOG.info("Caching up to " + maxBytes + " bytes of attachments in " + cacheDir.getAbsolutePath());
+        }
+    }
+
+    /** True if either tier is enabled. If not, callers can skip the cache entirely. */
+    public boolean isEnabled() {
+        return fileCache != null || isSharedStoreEnabled();
+    }
+
+    /**
+     * Copies the cached attachment for the given file handle to the given file. Checks the local tier first, then the
+     * shared store. Attachments found in the shared store are added to the local tier.
+     *
+     * @param fileHandleId
+     *         attachment file handle ID
+     * @param to
+     *         file to copy the attachment to
+     * @return the attachment's zip entry name, or null if it's not cached or if copying fails
+     */
+    public String copyTo(String fileHandleId, File to) {
+        // File handles are immutable, so every entry is current.
+        String zipEntryName = null;
+        if (fileCache != null) {
+            zipEntryName = fileCache.copyTo(fileHandleId, cachedZipEntryName -> true, to);
+        }
+
+        if (zipEntryName == null && isSharedStoreEnabled()) {
+            zipEntryName = sharedAttachmentStore.copyTo(fileHandleId, to);
+            if (zipEntryName != null) {
+                putLocal(fileHandleId, zipEntryName, to);
+            }
+        }
+
+        if (zipEntryName != null) {
+            hitCount.incrementAndGet();
+        } else {
+            missCount.incrementAndGet();
+        }
+        return zipEntryName;
+    }
+
+    /**
+     * Adds the given attachment to both tiers. The file is copied, so the caller still owns it. Files larger than the
+     * whole local tier are only stored in the shared store.
+     *
+     * @param fileHandleId
+     *         attachment file handle ID
+     * @param zipEntryName
+     *         attachment's zip entry name from the Synapse bulk download
+     * @param from
+     *         attachment file
+     */
+    public void put(String fileHandleId, String zipEntryName, File from) {
+        long length = putLocal(fileHandleId, zipEntryName, from);
+        if (isSharedStoreEnabled() && length >= 0) {
+            sharedAttachmentStore.put(fileHandleId, zipEntryName, from, length);
+        }
+    }
+
+    /** Number of lookups that copied a cached attachment, from either tier. */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /** Number of lookups that missed both tiers. */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /** Number of local entries evicted to make room for new ones. */
+    public long getEvictionCount() {
+        return fileCache != null ? fileCache.getEvictionCount() : 0;
+    }
+
+    /** Total size of locally cached files, in bytes. */
+    public long getTotalBytes() {
+        return fileCache != null ? fileCache.getTotalBytes() : 0;
+    }
+
+    private boolean isSharedStoreEnabled() {
+        return sharedAttachmentStore != null && sharedAttachmentStore.isEnabled();
+    }
+
+    // Adds the attachment to the local tier, if enabled. Returns the file's length, or -1 if copying failed.
+    private long putLocal(String fileHandleId, String zipEntryName, File from) {
+        if (fileCache != null) {
+            return fileCache.put(fileHandleId, zipEntryName, from);
+        }
+
+        // Still need the length for the shared store. Counting is cheap next to the upload.
+        try (InputStream fromStream = fileHelper.getInputStream(from)) {
+            return ByteStreams.copy(fromStream, ByteStreams.nullOutputStream());
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Error reading attachment " + fileHandleId + ": " + ex.getMessage(), ex);
+            return -1;
+        }
+    }
+}
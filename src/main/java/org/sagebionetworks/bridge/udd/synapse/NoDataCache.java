@@ -0,0 +1,147 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.udd.helper.JodaTicker;
+
+/**
+ * <p>
+ * In-memory cache of tables that have no rows for a participant. Most participants have no data in most of a study's
+ * tables, and each of those still costs a query, a poll, and a CSV download before we find out the CSV is empty. When
+ * a table has no rows for a participant in a date range, we remember that, and later requests whose range falls
+ * inside it skip the table entirely.
+ * </p>
+ * <p>
+ * Only final days are recorded, which are days that ended at least the exporter lag ago, so the exporter won't add rows
+ * to them later. A request that found no rows for today might just be ahead of the exporter, so the recorded range
+ * is capped at the last final day, and a later request that includes newer days still queries the table.
+ * </p>
+ * <p>
+ * Entries are keyed by a hash of the health code and the table ID, so health codes aren't kept in memory. Entries also
+ * expire after the exporter lag, so the cache never holds on to an answer for long.
+ * </p>
+ */
+@Component
+public class NoDataCache {
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_EXPORTER_LAG_HOURS = "nodata.cache.exporter.lag.hours";
+    static final String CONFIG_KEY_MAX_ENTRIES = "nodata.cache.max.entries";
+
+    // Defaults, used if setConfig() is never called (such as in unit tests). 0 entries disables the cache.
+    private int exporterLagHours = 0;
+    private int maxEntries = 0;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private Cache<String, DateRange> cache;
+
+    /** Bridge config, used to get the exporter lag and cache size. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        exporterLagHours = config.getInt(CONFIG_KEY_EXPORTER_LAG_HOURS);
+        maxEntries = config.getInt(CONFIG_KEY_MAX_ENTRIES);
+    }
+
+    /** Creates the cache. Called by Spring on startup. */
+    @PostConstruct
+    public void init() {
+        if (maxEntries > 0 && exporterLagHours > 0) {
+            cache = CacheBuilder.newBuilder().ticker(JodaTicker.INSTANCE).maximumSize(maxEntries)
+                    .expireAfterWrite(exporterLagHours, TimeUnit.HOURS).build();
+        }
+    }
+
+    /**
+     * True if we know the table has no rows for the participant anywhere in the given date range.
+     *
+     * @param healthCode
+     *         participant's health code
+     * @param synapseTableId
+     *         Synapse table ID
+     * @param startDate
+     *         start of the requested upload date range, inclusive
+     * @param endDate
+     *         end of the requested upload date range, inclusive
+     * @return true if the table can be skipped
+     */
+    public boolean hasNoData(String healthCode, String synapseTableId, LocalDate startDate, LocalDate endDate) {
+        if (cache == null) {
+            return false;
+        }
+
+        DateRange noDataRange = cache.getIfPresent(makeKey(healthCode, synapseTableId));
+        if (noDataRange != null && !startDate.isBefore(noDataRange.startDate) &&
+                !endDate.isAfter(noDataRange.endDate)) {
+            hitCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records that the table has no rows for the participant in the given date range. Only the final days in the range
+     * are recorded (see {@link #getLastFinalDate}). If none of them are final, nothing is recorded.
+     *
+     * @param healthCode
+     *         participant's health code
+     * @param synapseTableId
+     *         Synapse table ID
+     * @param startDate
+     *         start of the queried upload date range, inclusive
+     * @param endDate
+     *         end of the queried upload date range, inclusive
+     */
+    public void recordNoData(String healthCode, String synapseTableId, LocalDate startDate, LocalDate endDate) {
+        if (cache == null) {
+            return;
+        }
+
+        LocalDate lastFinalDate = getLastFinalDate();
+        if (startDate.isAfter(lastFinalDate)) {
+            return;
+        }
+        LocalDate finalEndDate = endDate.isBefore(lastFinalDate) ? endDate : lastFinalDate;
+        cache.put(makeKey(healthCode, synapseTableId), new DateRange(startDate, finalEndDate));
+    }
+
+    /**
+     * The latest final upload date. A day is final once it ended at least the exporter lag ago, so the exporter won't
+     * add rows to it later.
+     */
+    public LocalDate getLastFinalDate() {
+        return DateTime.now().minusHours(exporterLagHours).toLocalDate().minusDays(1);
+    }
+
+    /** Number of tables skipped because of the cache. */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    private static String makeKey(String healthCode, String synapseTableId) {
+        return Hashing.sha256().hashString(healthCode, Charsets.UTF_8).toString() + ":" + synapseTableId;
+    }
+
+    // Upload date range with no rows, inclusive on both ends.
+    private static class DateRange {
+        private final LocalDate startDate;
+        private final LocalDate endDate;
+
+        DateRange(LocalDate startDate, LocalDate endDate) {
+            this.startDate = startDate;
+            this.endDate = endDate;
+        }
+    }
+}
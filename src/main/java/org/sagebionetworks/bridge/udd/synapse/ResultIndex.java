@@ -0,0 +1,336 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import java.io.ByteArrayInputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Resource;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.HttpMethod;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.joda.time.DateTime;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.repo.model.table.TableEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.s3.S3Helper;
+import org.sagebionetworks.bridge.schema.UploadSchema;
+import org.sagebionetworks.bridge.udd.s3.PresignedUrlInfo;
+import org.sagebionetworks.bridge.udd.worker.BridgeUddRequest;
+
+/**
+ * <p>
+ * Index of finished downloads, so a repeat of an identical request can skip packaging entirely and get new pre-signed
+ * URLs for the archives the earlier request uploaded.
+ * </p>
+ * <p>
+ * Entries are keyed by a fingerprint of the request: the user's health code, the study, the date range, each Synapse
+ * table's schema and revision, and the etag of every Synapse table and survey table. If a schema or table changes,
+ * the fingerprint changes, and the request misses. A table's etag doesn't necessarily change when rows are added, so
+ * entries are only used while the earlier request's pre-signed URLs would still be valid.
+ * </p>
+ * <p>
+ * Entries are stored in the user data bucket, so every worker shares them. Each entry is an empty object, with the S3
+ * keys of the archive parts in its metadata. The index is a cache. If Synapse or S3 fails, we log and package the
+ * request as usual.
+ * </p>
+ */
+@Component
+public class ResultIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(ResultIndex.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_ENABLED = "result.index.enabled";
+    static final String CONFIG_KEY_EXPIRATION_HOURS = "s3.url.expiration.hours";
+    static final String CONFIG_KEY_USERDATA_BUCKET = "userdata.bucket";
+    static final String KEY_PREFIX = "result-index/";
+    static final String METADATA_KEY_CREATED_ON = "created-on";
+    static final String METADATA_KEY_PARTS = "parts";
+
+    private static final int HTTP_NOT_FOUND = 404;
+    private static final Joiner PART_JOINER = Joiner.on(',');
+    private static final Splitter PART_SPLITTER = Splitter.on(',').omitEmptyStrings();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    private boolean enabled;
+    private ExecutorService etagExecutor;
+    private S3Helper s3Helper;
+    private AmazonS3Client s3Client;
+    private SynapseHelper synapseHelper;
+    private int urlExpirationHours;
+    private String userdataBucketName;
+
+    /** Bridge config, used to get the S3 bucket, whether the index is enabled, and pre-signed URL expiration. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        enabled = Boolean.parseBoolean(config.get(CONFIG_KEY_ENABLED));
+        urlExpirationHours = config.getInt(CONFIG_KEY_EXPIRATION_HOURS);
+        userdataBucketName = config.get(CONFIG_KEY_USERDATA_BUCKET);
+    }
+
+    /**
+     * Executor for table etag lookups, so a fingerprint takes about one Synapse call instead of one per table. This is
+     * shared with study metadata loads, which are also short lookups. If not set (such as in unit tests), lookups run
+     * one after another.
+     */
+    @Resource(name = "studyMetadataLoadExecutor")
+    public final void setEtagExecutor(ExecutorService etagExecutor) {
+        this.etagExecutor = etagExecutor;
+    }
+
+    /** S3 client. S3Helper doesn't support object metadata, so we need the client directly. */
+    @Autowired
+    public final void setS3Client(AmazonS3Client s3Client) {
+        this.s3Client = s3Client;
+    }
+
+    /** S3 helper, used to generate pre-signed URLs. */
+    @Autowired
+    public final void setS3Helper(S3Helper s3Helper) {
+        this.s3Helper = s3Helper;
+    }
+
+    /** Synapse helper, used to get table etags for the fingerprint. */
+    @Autowired
+    public final void setSynapseHelper(SynapseHelper synapseHelper) {
+        this.synapseHelper = synapseHelper;
+    }
+
+    /** True if the index is enabled. If it's not, requests are always packaged. */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Computes the fingerprint of the given request. Callers pass this to {@link #find} and {@link #put}.
+     *
+     * @param healthCode
+     *         user's health code
+     * @param request
+     *         user data download request, used for the study and date range
+     * @param synapseToSchemaMap
+     *         map from Synapse table IDs to schemas
+     * @param surveyTableIdSet
+     *         set of survey table IDs
+     * @return the fingerprint, or null if the index is disabled or if a table's etag can't be determined
+     */
+    public String getFingerprint(String healthCode, BridgeUddRequest request,
+            Map<String, UploadSchema> synapseToSchemaMap, Set<String> surveyTableIdSet) {
+        if (!enabled) {
+            return null;
+        }
+
+        // Sorted, so the same tables always make the same fingerprint.
+        Map<String, String> sortedTableMap = new TreeMap<>();
+        for (Map.Entry<String, UploadSchema> oneEntry : synapseToSchemaMap.entrySet()) {
+            sortedTableMap.put(oneEntry.getKey(), oneEntry.getValue().getKey().toString());
+        }
+        Set<String> sortedSurveyTableIdSet = new TreeSet<>(surveyTableIdSet);
+
+        // Start all etag lookups up front, so they run in parallel.
+        Map<String, Future<String>> etagFutureMap = new HashMap<>();
+        for (String oneTableId : sortedTableMap.keySet()) {
+            etagFutureMap.put(oneTableId, startEtagLookup(oneTableId));
+        }
+        for (String oneSurveyTableId : sortedSurveyTableIdSet) {
+            etagFutureMap.put(oneSurveyTableId, startEtagLookup(oneSurveyTableId));
+        }
+
+        Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putString(healthCode, Charsets.UTF_8).putChar('\n');
+        hasher.putString(request.getStudyId(), Charsets.UTF_8).putChar('\n');
+        hasher.putString(request.getStartDate().toString(), Charsets.UTF_8).putChar('\n');
+        hasher.putString(request.getEndDate().toString(), Charsets.UTF_8).putChar('\n');
+        try {
+            for (Map.Entry<String, String> oneTableEntry : sortedTableMap.entrySet()) {
+                String synapseTableId = oneTableEntry.getKey();
+                String etag = waitForEtag(etagFutureMap.get(synapseTableId));
+                if (etag == null) {
+                    return null;
+                }
+                hasher.putString(synapseTableId + ":" + oneTableEntry.getValue() + ":" + etag, Charsets.UTF_8)
+                        .putChar('\n');
+            }
+            for (String oneSurveyTableId : sortedSurveyTableIdSet) {
+                String etag = waitForEtag(etagFutureMap.get(oneSurveyTableId));
+                if (etag == null) {
+                    return null;
+                }
+                hasher.putString(oneSurveyTableId + ":" + etag, Charsets.UTF_8).putChar('\n');
+            }
+        } catch (SynapseException ex) {
+            LOG.warn("Error getting table etags for result index, packaging as usual: " + ex.getMessage(), ex);
+            return null;
+        } finally {
+            // If we bailed out early, don't bother with the rest.
+            for (Future<String> oneFuture : etagFutureMap.values()) {
+                oneFuture.cancel(true);
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Finds the result of an earlier request with the given fingerprint, and generates new pre-signed URLs for it.
+     *
+     * @param fingerprint
+     *         request fingerprint, from {@link #getFingerprint}, or null
+     * @return pre-signed URLs for the earlier request's archives, or null if there isn't a usable result or if S3
+     *         fails
+     */
+    public PresignedUrlInfo find(String fingerprint) {
+        if (fingerprint == null) {
+            return null;
+        }
+
+        PresignedUrlInfo presignedUrlInfo = null;
+        try {
+            presignedUrlInfo = findInternal(fingerprint);
+        } catch (AmazonClientException | IllegalArgumentException ex) {
+            LOG.warn("Error finding result index entry " + fingerprint + ", packaging as usual: " + ex.getMessage(),
+                    ex);
+        }
+
+        long hits = presignedUrlInfo != null ? hitCount.incrementAndGet() : hitCount.get();
+        long misses = presignedUrlInfo != null ? missCount.get() : missCount.incrementAndGet();
+        LOG.info("Result index " + (presignedUrlInfo != null ? "hit" : "miss") + ", hit rate " + hits + "/" +
+                (hits + misses));
+        return presignedUrlInfo;
+    }
+
+    private PresignedUrlInfo findInternal(String fingerprint) {
+        ObjectMetadata indexMetadata;
+        try {
+            indexMetadata = s3Client.getObjectMetadata(userdataBucketName, KEY_PREFIX + fingerprint);
+        } catch (AmazonS3Exception ex) {
+            if (ex.getStatusCode() == HTTP_NOT_FOUND) {
+                return null;
+            }
+            throw ex;
+        }
+
+        // Only use results whose original URLs would still be valid.
+        Map<String, String> userMetadata = indexMetadata.getUserMetadata();
+        DateTime createdOn = DateTime.parse(userMetadata.get(METADATA_KEY_CREATED_ON));
+        if (createdOn.plusHours(urlExpirationHours).isBeforeNow()) {
+            return null;
+        }
+
+        List<String> partKeyList = PART_SPLITTER.splitToList(userMetadata.get(METADATA_KEY_PARTS));
+        if (partKeyList.isEmpty()) {
+            return null;
+        }
+        for (String onePartKey : partKeyList) {
+            if (!s3Client.doesObjectExist(userdataBucketName, onePartKey)) {
+                LOG.info("Result index entry " + fingerprint + " refers to missing archive " + onePartKey);
+                return null;
+            }
+        }
+
+        DateTime expirationTime = DateTime.now().plusHours(urlExpirationHours);
+        List<URL> presignedUrlList = new ArrayList<>();
+        for (String onePartKey : partKeyList) {
+            presignedUrlList.add(s3Helper.generatePresignedUrl(userdataBucketName, onePartKey, expirationTime,
+                    HttpMethod.GET));
+        }
+        return new PresignedUrlInfo.Builder().withUrlList(presignedUrlList).withObjectKeyList(partKeyList)
+                .withExpirationTime(expirationTime).build();
+    }
+
+    /**
+     * Records the result of a request, so later identical requests can reuse it.
+     *
+     * @param fingerprint
+     *         request fingerprint, from {@link #getFingerprint}, or null
+     * @param presignedUrlInfo
+     *         result of the request
+     */
+    public void put(String fingerprint, PresignedUrlInfo presignedUrlInfo) {
+        if (fingerprint == null || presignedUrlInfo.getObjectKeyList().isEmpty()) {
+            return;
+        }
+
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(0);
+        metadata.setUserMetadata(ImmutableMap.of(METADATA_KEY_CREATED_ON, DateTime.now().toString(),
+                METADATA_KEY_PARTS, PART_JOINER.join(presignedUrlInfo.getObjectKeyList())));
+        try {
+            s3Client.putObject(new PutObjectRequest(userdataBucketName, KEY_PREFIX + fingerprint,
+                    new ByteArrayInputStream(new byte[0]), metadata));
+        } catch (AmazonClientException ex) {
+            LOG.warn("Error writing result index entry " + fingerprint + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    /** Number of requests that reused an earlier result. */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /** Number of requests that looked for an earlier result and didn't find one. */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    // Starts looking up a table's etag on the etag executor, or looks it up right away if there isn't one.
+    private Future<String> startEtagLookup(String synapseTableId) {
+        if (etagExecutor == null) {
+            FutureTask<String> task = new FutureTask<>(() -> getEtag(synapseTableId));
+            task.run();
+            return task;
+        }
+        return etagExecutor.submit(() -> getEtag(synapseTableId));
+    }
+
+    // Waits for an etag lookup, and rethrows the exception it failed with, if any.
+    private static String waitForEtag(Future<String> etagFuture) throws SynapseException {
+        try {
+            return etagFuture.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof SynapseException) {
+                throw (SynapseException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private String getEtag(String synapseTableId) throws SynapseException {
+        TableEntity table = synapseHelper.getTable(synapseTableId);
+        return table != null ? table.getEtag() : null;
+    }
+}
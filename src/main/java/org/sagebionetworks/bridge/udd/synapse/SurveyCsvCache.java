@@ -0,0 +1,215 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import java.io.File;
+import java.util.Date;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.FileHelper;
+import org.sagebionetworks.bridge.udd.helper.LruFileCache;
+import org.sagebionetworks.bridge.udd.helper.TempStorageManager;
+
+/**
+ * <p>
+ * Local disk cache of survey CSVs, keyed by survey table ID. Survey tables are the same for every participant, so a
+ * node that already downloaded a survey can copy it from here instead of running a Synapse query and download. This is
+ * the first tier. The second tier is the {@link org.sagebionetworks.bridge.udd.s3.SharedSurveyStore}, which is shared
+ * across nodes.
+ * </p>
+ * <p>
+ * Each entry remembers the table's etag and modified-on as of when it was downloaded. A lookup only hits if both still
+ * match the table. The etag doesn't necessarily change when rows are added, so entries also expire after a max age.
+ * </p>
+ * <p>
+ * The cache is bounded by total file size, and evicts the least recently used entries (see {@link LruFileCache}).
+ * Errors are logged, and the caller falls back to Synapse.
+ * </p>
+ */
+@Component
+public class SurveyCsvCache {
+    private static final Logger LOG = LoggerFactory.getLogger(SurveyCsvCache.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_MAX_AGE_HOURS = "survey.cache.max.age.hours";
+    static final String CONFIG_KEY_MAX_MB = "survey.cache.max.mb";
+    static final String CONFIG_KEY_STATS_ENABLED = "survey.cache.stats.enabled";
+
+    static final String CACHE_DIR_NAME = "survey-csv";
+
+    private static final long BYTES_PER_MB = 1024 * 1024;
+
+    // Defaults, used if setConfig() is never called (such as in unit tests). A size of 0 disables the cache. A max age
+    // of 0 means no max age.
+    private long maxBytes = 0;
+    private int maxAgeHours = 0;
+    private boolean statsEnabled = false;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    private LruFileCache<TableVersion> fileCache;
+    private FileHelper cacheFileHelper;
+    private FileHelper fileHelper;
+    private TempStorageManager tempStorageManager;
+
+    /** Bridge config, used to get the cache size, max age, and whether to log stats. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        maxAgeHours = config.getInt(CONFIG_KEY_MAX_AGE_HOURS);
+        maxBytes = config.getInt(CONFIG_KEY_MAX_MB) * BYTES_PER_MB;
+        statsEnabled = Boolean.parseBoolean(config.get(CONFIG_KEY_STATS_ENABLED));
+    }
+
+    /**
+     * File helper for the cache's own files. This is the default file helper, so cached files stay on disk instead of
+     * in memory. If it's not set (such as in unit tests), the request file helper is used.
+     */
+    @Autowired
+    public final void setCacheFileHelper(FileHelper cacheFileHelper) {
+        this.cacheFileHelper = cacheFileHelper;
+    }
+
+    /** File helper for the survey CSV files callers copy in and out, which live in request temp dirs. */
+    @Resource(name = "hybridFileHelper")
+    public final void setFileHelper(FileHelper fileHelper) {
+        this.fileHelper = fileHelper;
+    }
+
+    /**
+     * Temp storage manager, used to get the cache dir. If it's not set (such as in unit tests), the cache is in a new
+     * temp dir.
+     */
+    @Autowired
+    public final void setTempStorageManager(TempStorageManager tempStorageManager) {
+        this.tempStorageManager = tempStorageManager;
+    }
+
+    /**
+     * Sets up the cache dir. It's the same dir on every run, and it's emptied here, since the cache starts out empty.
+     * If that fails, the cache is disabled. Called by Spring on startup.
+     */
+    @PostConstruct
+    public void init() {
+        if (maxBytes > 0) {
+            FileHelper cacheDirFileHelper = cacheFileHelper != null ? cacheFileHelper : fileHelper;
+            File cacheDir;
+            try {
+                cacheDir = tempStorageManager != null ? tempStorageManager.initCacheDir(CACHE_DIR_NAME) :
+                        cacheDirFileHelper.createTempDir();
+            } catch (RuntimeException ex) {
+                LOG.error("Error setting up survey CSV cache dir, disabling the cache: " + ex.getMessage(), ex);
+                return;
+            }
+            fileCache = new LruFileCache<>(cacheDirFileHelper, fileHelper, cacheDir, maxBytes);
+            LOG.info("Caching up to " + maxBytes + " bytes of survey CSVs in " + cacheDir.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Copies the cached CSV for the given survey table to the given file, if there's one for the table's current
+     * version.
+     *
+     * @param synapseTableId
+     *         survey table ID
+     * @param etag
+     *         survey table's current etag
+     * @param modifiedOn
+     *         survey table's current modified-on
+     * @param to
+     *         file to copy the CSV to
+     * @return true if the CSV was copied, false if there's no current entry or if copying fails
+     */
+    public boolean copyTo(String synapseTableId, String etag, Date modifiedOn, File to) {
+        if (fileCache == null) {
+            return false;
+        }
+
+        // Entries for an older version of the table, or that are too old, are removed by the file cache.
+        boolean hit = fileCache.copyTo(synapseTableId, version -> version.isCurrent(etag, modifiedOn), to) != null;
+        if (hit) {
+            hitCount.incrementAndGet();
+        } else {
+            missCount.incrementAndGet();
+        }
+        logStats();
+        return hit;
+    }
+
+    /**
+     * Adds the given survey CSV to the cache, replacing any older entry for the table. The file is copied, so the
+     * caller still owns it. Files larger than the whole cache aren't cached.
+     *
+     * @param synapseTableId
+     *         survey table ID
+     * @param etag
+     *         survey table's etag, as of before the CSV was downloaded
+     * @param modifiedOn
+     *         survey table's modified-on, as of before the CSV was downloaded
+     * @param from
+     *         survey CSV
+     */
+    public void put(String synapseTableId, String etag, Date modifiedOn, File from) {
+        if (fileCache != null) {
+            fileCache.put(synapseTableId, new TableVersion(etag, modifiedOn), from);
+        }
+    }
+
+    /** Number of lookups that copied a cached CSV. */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /** Number of lookups that found no current entry. */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /** Number of entries evicted to make room for new ones. */
+    public long getEvictionCount() {
+        return fileCache != null ? fileCache.getEvictionCount() : 0;
+    }
+
+    /** Total size of cached files, in bytes. */
+    public long getTotalBytes() {
+        return fileCache != null ? fileCache.getTotalBytes() : 0;
+    }
+
+    private void logStats() {
+        if (statsEnabled) {
+            LOG.info("Survey CSV cache stats: hits=" + hitCount.get() + ", misses=" + missCount.get() +
+                    ", evictions=" + getEvictionCount() + ", bytes=" + getTotalBytes());
+        }
+    }
+
+    // The table version a cached CSV was downloaded from.
+    private class TableVersion {
+        private final String etag;
+        private final Date modifiedOn;
+        private final DateTime cachedOn = DateTime.now();
+
+        TableVersion(String etag, Date modifiedOn) {
+            this.etag = etag;
+            this.modifiedOn = modifiedOn;
+        }
+
+        // True if the table still has the same etag and modified-on, and the entry isn't too old.
+        boolean isCurrent(String currentEtag, Date currentModifiedOn) {
+            if (maxAgeHours > 0 && cachedOn.isBefore(DateTime.now().minusHours(maxAgeHours))) {
+                return false;
+            }
+            return Objects.equals(etag, currentEtag) && Objects.equals(modifiedOn, currentModifiedOn);
+        }
+    }
+}
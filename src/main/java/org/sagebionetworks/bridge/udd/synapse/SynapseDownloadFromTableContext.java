@@ -2,23 +2,100 @@ package org.sagebionetworks.bridge.udd.synapse;
 
 import java.io.File;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import org.joda.time.LocalDate;
 import org.sagebionetworks.repo.model.file.FileDownloadSummary;
 
+import org.sagebionetworks.bridge.udd.concurrent.PackagingStage;
+import org.sagebionetworks.bridge.udd.s3.UserTableDayStore;
+
 /**
  * State is bad, but necessary. This mutable class keeps track of all of the state for a given
  * SynapseDownloadFromTableTask, plus a few trivial helper methods.
  */
 public class SynapseDownloadFromTableContext {
+    private UserTableDayStore.DayRange storedCoverage;
+    private List<LocalDate> storedDayList = Collections.emptyList();
+    private LocalDate queryStartDate;
+    private String queryJobToken;
+    private boolean queryResumed;
+    private String csvFileHandleId;
     private File csvFile;
     private SynapseTableColumnInfo columnInfo;
     private final Set<String> fileHandleIdSet = new HashSet<>();
     private File bulkDownloadFile;
     private List<FileDownloadSummary> fileSummaryList;
     private File editedCsvFile;
+    private long csvBytes;
+    private final Map<PackagingStage, Long> stageMillisMap = new EnumMap<>(PackagingStage.class);
+
+    /** Coverage from the user table day store, or null if nothing was stored or the store is disabled. */
+    public UserTableDayStore.DayRange getStoredCoverage() {
+        return storedCoverage;
+    }
+
+    /** @see #getStoredCoverage */
+    public void setStoredCoverage(UserTableDayStore.DayRange storedCoverage) {
+        this.storedCoverage = storedCoverage;
+    }
+
+    /** Days in the requested range that are read from the user table day store instead of queried, in order. */
+    public List<LocalDate> getStoredDayList() {
+        return storedDayList;
+    }
+
+    /** @see #getStoredDayList */
+    public void setStoredDayList(List<LocalDate> storedDayList) {
+        this.storedDayList = storedDayList;
+    }
+
+    /**
+     * Start of the upload date range to query from Synapse. This is the requested start date, unless the start of the
+     * range is in the user table day store. Null if the whole range is in the store, and the query is skipped.
+     */
+    public LocalDate getQueryStartDate() {
+        return queryStartDate;
+    }
+
+    /** @see #getQueryStartDate */
+    public void setQueryStartDate(LocalDate queryStartDate) {
+        this.queryStartDate = queryStartDate;
+    }
+
+    /** Async job token for the Synapse table query. */
+    public String getQueryJobToken() {
+        return queryJobToken;
+    }
+
+    /** @see #getQueryJobToken */
+    public void setQueryJobToken(String queryJobToken) {
+        this.queryJobToken = queryJobToken;
+    }
+
+    /** True if the query job token came from the request's checkpoint, instead of a query this task started. */
+    public boolean isQueryResumed() {
+        return queryResumed;
+    }
+
+    /** @see #isQueryResumed */
+    public void setQueryResumed(boolean queryResumed) {
+        this.queryResumed = queryResumed;
+    }
+
+    /** File handle ID of the query results CSV, as returned by the Synapse table query. */
+    public String getCsvFileHandleId() {
+        return csvFileHandleId;
+    }
+
+    /** @see #getCsvFileHandleId */
+    public void setCsvFileHandleId(String csvFileHandleId) {
+        this.csvFileHandleId = csvFileHandleId;
+    }
 
     /** Downloaded CSV from Synapse. */
     public File getCsvFile() {
@@ -84,4 +161,24 @@ public class SynapseDownloadFromTableContext {
     public void setEditedCsvFile(File editedCsvFile) {
         this.editedCsvFile = editedCsvFile;
     }
+
+    /** Size of the downloaded CSV in bytes, as measured when the CSV is edited. Used for table stats. */
+    public long getCsvBytes() {
+        return csvBytes;
+    }
+
+    /** @see #getCsvBytes */
+    public void setCsvBytes(long csvBytes) {
+        this.csvBytes = csvBytes;
+    }
+
+    /** Time spent in each stage, in milliseconds. Used for table stats. */
+    public Map<PackagingStage, Long> getStageMillisMap() {
+        return Collections.unmodifiableMap(stageMillisMap);
+    }
+
+    /** Adds time spent in the given stage. If the stage is retried, time from all attempts is added up. */
+    public void addStageMillis(PackagingStage stage, long millis) {
+        stageMillisMap.merge(stage, millis, Long::sum);
+    }
 }
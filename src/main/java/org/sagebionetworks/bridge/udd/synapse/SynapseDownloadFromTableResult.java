@@ -2,15 +2,22 @@ package org.sagebionetworks.bridge.udd.synapse;
 
 import java.io.File;
 
-/** Contains results from the SynapseDownloadFromTableResult. Namely, the CSV file and the bulk download zip file. */
+import org.sagebionetworks.bridge.udd.dynamodb.SynapseTableStats;
+
+/**
+ * Contains results from the SynapseDownloadFromTableResult. Namely, the CSV file and the bulk download zip file, plus
+ * stats about the run.
+ */
 public class SynapseDownloadFromTableResult {
     private final File csvFile;
     private final File bulkDownloadFile;
+    private final SynapseTableStats stats;
 
     /** Private constructor. To construct, use Builder. */
-    private SynapseDownloadFromTableResult(File csvFile, File bulkDownloadFile) {
+    private SynapseDownloadFromTableResult(File csvFile, File bulkDownloadFile, SynapseTableStats stats) {
         this.csvFile = csvFile;
         this.bulkDownloadFile = bulkDownloadFile;
+        this.stats = stats;
     }
 
     /** CSV file of query against the Synapse table. May be null if the table contained no data for the query. */
@@ -26,10 +33,16 @@ public class SynapseDownloadFromTableResult {
         return bulkDownloadFile;
     }
 
+    /** Stats about the run (CSV size, attachment count, stage times). May be null if stats weren't collected. */
+    public SynapseTableStats getStats() {
+        return stats;
+    }
+
     /** Builder for the SynapseDownloadFromTableResult. */
     public static class Builder {
         private File csvFile;
         private File bulkDownloadFile;
+        private SynapseTableStats stats;
 
         /** @see SynapseDownloadFromTableResult#getCsvFile */
         public Builder withCsvFile(File csvFile) {
@@ -43,10 +56,16 @@ public class SynapseDownloadFromTableResult {
             return this;
         }
 
+        /** @see SynapseDownloadFromTableResult#getStats */
+        public Builder withStats(SynapseTableStats stats) {
+            this.stats = stats;
+            return this;
+        }
+
         /** Builds the SynapseDownloadFromTableResult. */
         public SynapseDownloadFromTableResult build() {
-            // No need to validate, since either field can be null.
-            return new SynapseDownloadFromTableResult(csvFile, bulkDownloadFile);
+            // No need to validate, since any field can be null.
+            return new SynapseDownloadFromTableResult(csvFile, bulkDownloadFile, stats);
         }
     }
 }
@@ -3,18 +3,30 @@ package org.sagebionetworks.bridge.udd.synapse;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 import au.com.bytecode.opencsv.CSVReader;
 import au.com.bytecode.opencsv.CSVWriter;
+import com.amazonaws.AmazonClientException;
+import com.google.common.base.Charsets;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Strings;
+import com.google.common.io.CountingInputStream;
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
 import org.sagebionetworks.client.exceptions.SynapseException;
 import org.sagebionetworks.repo.model.file.BulkFileDownloadResponse;
 import org.sagebionetworks.repo.model.file.FileDownloadSummary;
@@ -23,30 +35,58 @@ import org.slf4j.LoggerFactory;
 
 import org.sagebionetworks.bridge.file.FileHelper;
 import org.sagebionetworks.bridge.schema.UploadSchema;
+import org.sagebionetworks.bridge.udd.concurrent.CancellationToken;
+import org.sagebionetworks.bridge.udd.concurrent.PackagingStage;
+import org.sagebionetworks.bridge.udd.concurrent.StagedTask;
+import org.sagebionetworks.bridge.udd.concurrent.TaskGraphExecutor;
+import org.sagebionetworks.bridge.udd.dynamodb.SynapseTableStats;
 import org.sagebionetworks.bridge.udd.exceptions.AsyncTaskExecutionException;
 import org.sagebionetworks.bridge.udd.exceptions.AsyncTimeoutException;
+import org.sagebionetworks.bridge.udd.helper.ZipHelper;
+import org.sagebionetworks.bridge.udd.s3.RequestCheckpoint;
+import org.sagebionetworks.bridge.udd.s3.RequestCheckpointStore;
+import org.sagebionetworks.bridge.udd.s3.UserTableDayStore;
 
 /**
+ * <p>
  * A one-shot asynchronous task to query a Synapse table and download the CSV. This task returns the struct of files
  * downloaded. This includes the CSV (if the query pulls data from the table) and a ZIP with the attached file handles
  * (if there are any).
+ * </p>
+ * <p>
+ * This task can be run as a single Callable, or as a chain of stages on the {@link TaskGraphExecutor}. Each stage
+ * reads its inputs from and writes its outputs to the context, so a failed stage can be retried without re-running the
+ * stages before it.
+ * </p>
  */
-public class SynapseDownloadFromTableTask implements Callable<SynapseDownloadFromTableResult> {
+public class SynapseDownloadFromTableTask implements Callable<SynapseDownloadFromTableResult>,
+        StagedTask<SynapseDownloadFromTableResult> {
     private static final Logger LOG = LoggerFactory.getLogger(SynapseDownloadFromTableTask.class);
 
     private static final String COL_HEALTH_CODE = "healthCode";
+    private static final String COL_UPLOAD_DATE = "uploadDate";
     private static final String ERROR_DOWNLOADING_ATTACHMENT = "Unknown error downloading attachment";
     private static final String QUERY_TEMPLATE =
             "SELECT * FROM %s WHERE healthCode = '%s' AND uploadDate >= '%s' AND uploadDate <= '%s'";
 
+    // Package-scoped to be available in unit tests. Query results with more rows than this aren't split into stored
+    // days, since the rows are buffered in memory.
+    static final int STORE_MAX_ROWS = 100000;
+
     // Task parameters. Params is passed in by constructor. Context is created by this task.
     private final SynapseDownloadFromTableParameters params;
     private final SynapseDownloadFromTableContext ctx = new SynapseDownloadFromTableContext();
 
     // Helpers and config objects. Originates from Spring configs and is passed in through setters using a similar
     // pattern.
+    private AttachmentCache attachmentCache;
+    private CancellationToken cancellationToken = new CancellationToken();
+    private RequestCheckpoint checkpoint;
+    private RequestCheckpointStore checkpointStore;
     private FileHelper fileHelper;
     private SynapseHelper synapseHelper;
+    private UserTableDayStore userTableDayStore;
+    private ZipHelper zipHelper;
 
     /**
      * Constructs this task with the specified task parameters
@@ -58,6 +98,32 @@ public class SynapseDownloadFromTableTask implements Callable<SynapseDownloadFro
         this.params = params;
     }
 
+    /**
+     * Attachment cache. Attachments in the cache aren't bulk downloaded, and attachments that are bulk downloaded are
+     * added to the cache. If not set, or if the cache is disabled, all attachments are bulk downloaded.
+     */
+    public final void setAttachmentCache(AttachmentCache attachmentCache) {
+        this.attachmentCache = attachmentCache;
+    }
+
+    /**
+     * Cancellation token for the request this task belongs to. Once cancelled, remaining stages and Synapse polls are
+     * skipped. If not set, the task can't be cancelled.
+     */
+    public final void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * The request's checkpoint, and the store to save it to. If the checkpoint has a running query for this table, the
+     * task polls it instead of starting a new one, and queries the task starts are saved to the checkpoint. If not
+     * set, queries are never resumed.
+     */
+    public final void setCheckpoint(RequestCheckpoint checkpoint, RequestCheckpointStore checkpointStore) {
+        this.checkpoint = checkpoint;
+        this.checkpointStore = checkpointStore;
+    }
+
     /**
      * Wrapper class around the file system. Used by unit tests to test the functionality without hitting the real file
      * system.
@@ -71,6 +137,20 @@ public class SynapseDownloadFromTableTask implements Callable<SynapseDownloadFro
         this.synapseHelper = synapseHelper;
     }
 
+    /**
+     * User table day store. Days at the start of the requested range that are in the store aren't queried, and final
+     * days that are queried are added to the store. If not set, or if the store is disabled, the whole range is
+     * queried.
+     */
+    public final void setUserTableDayStore(UserTableDayStore userTableDayStore) {
+        this.userTableDayStore = userTableDayStore;
+    }
+
+    /** Zip helper, used to extract bulk downloads into the attachment cache and re-zip them with cached attachments. */
+    public final void setZipHelper(ZipHelper zipHelper) {
+        this.zipHelper = zipHelper;
+    }
+
     /**
      * Executes the SynapseDownloadFromTableTask. Returns the list of files downloaded. These files all live in the
      * temp directory passed in from the task parameters.
@@ -80,32 +160,20 @@ public class SynapseDownloadFromTableTask implements Callable<SynapseDownloadFro
     @Override
     public SynapseDownloadFromTableResult call() throws AsyncTaskExecutionException {
         try {
+            startQuery();
+            pollQuery();
             downloadCsv();
-            if (filterNoDataCsvFiles()) {
+            if (!scanCsv()) {
                 // return an empty result, to signify no data
-                return new SynapseDownloadFromTableResult.Builder().build();
+                return buildEmptyResult();
             }
-            getColumnInfoFromCsv();
-
-            if (ctx.getColumnInfo().getFileHandleColumnIndexSet().isEmpty()) {
-                LOG.info("No file handles columns in file " + ctx.getCsvFilePath() +
-                        ". Skipping extracting and downloading file handles.");
-            } else {
-                extractFileHandleIdsFromCsv();
 
-                if (ctx.getFileHandleIdSet().isEmpty()) {
-                    // This is rare but possible.
-                    LOG.info("No file handles to download for file " + ctx.getCsvFilePath() +
-                            ". Skipping downloading file handles.");
-                } else {
-                    bulkDownloadFileHandles();
-                }
+            if (hasFileHandlesToDownload()) {
+                bulkDownloadFileHandles();
             }
 
             editCsv();
-
-            return new SynapseDownloadFromTableResult.Builder().withCsvFile(ctx.getCsvFile())
-                    .withBulkDownloadFile(ctx.getBulkDownloadFile()).build();
+            return buildResult();
         } catch (AsyncTaskExecutionException | RuntimeException ex) {
             // Cleanup files. No need to leave garbage behind.
             cleanupFiles();
@@ -114,32 +182,505 @@ public class SynapseDownloadFromTableTask implements Callable<SynapseDownloadFro
     }
 
     /**
-     * Queries a Synapse table based on the params and downloads the result as a CSV. This method reads all params
-     * (except schema) from {@link SynapseDownloadFromTableParameters} to generate the query and writes the resulting
-     * CSV to {@link SynapseDownloadFromTableContext#setCsvFile}.
+     * Submits this task as a chain of stages: query, poll, download, scan, bulk download (if there are file handles),
+     * and edit. If any stage fails (after retries), the returned future fails and intermediate files are cleaned up.
+     *
+     * @param executor
+     *         executor to submit the stages to
+     * @return future for the task result
+     */
+    @Override
+    public CompletableFuture<SynapseDownloadFromTableResult> submitStages(TaskGraphExecutor executor) {
+        String taskName = "table " + params.getSynapseTableId();
+
+        CompletableFuture<Void> queryFuture = executor.submitStage(PackagingStage.QUERY, taskName,
+                cancellationToken, () -> {
+                    startQuery();
+                    return null;
+                });
+        CompletableFuture<Void> pollFuture = executor.thenStage(queryFuture, PackagingStage.POLL, taskName,
+                cancellationToken, input -> {
+                    pollQuery();
+                    return null;
+                });
+        CompletableFuture<Void> downloadFuture = executor.thenStage(pollFuture, PackagingStage.DOWNLOAD, taskName,
+                cancellationToken, input -> {
+                    downloadCsv();
+                    return null;
+                });
+        CompletableFuture<Boolean> scanFuture = executor.thenStage(downloadFuture, PackagingStage.SCAN, taskName,
+                cancellationToken, input -> scanCsv());
+
+        CompletableFuture<SynapseDownloadFromTableResult> resultFuture = scanFuture.thenCompose(hasData -> {
+            if (!hasData) {
+                // return an empty result, to signify no data
+                return CompletableFuture.completedFuture(buildEmptyResult());
+            }
+
+            CompletableFuture<Void> bulkDownloadFuture;
+            if (hasFileHandlesToDownload()) {
+                bulkDownloadFuture = executor.submitStage(PackagingStage.BULK_DOWNLOAD, taskName, cancellationToken,
+                        () -> {
+                            bulkDownloadFileHandles();
+                            return null;
+                        });
+            } else {
+                bulkDownloadFuture = CompletableFuture.completedFuture(null);
+            }
+
+            return executor.thenStage(bulkDownloadFuture, PackagingStage.EDIT, taskName, cancellationToken,
+                    input -> {
+                        editCsv();
+                        return buildResult();
+                    });
+        });
+
+        return resultFuture.whenComplete((result, ex) -> {
+            if (ex != null) {
+                // Cleanup files. No need to leave garbage behind.
+                cleanupFiles();
+            }
+        });
+    }
+
+    /**
+     * Query stage. Kicks off the Synapse table query. This reads all params (except schema and temp dir) from
+     * {@link SynapseDownloadFromTableParameters} to generate the query and writes the async job token to
+     * {@link SynapseDownloadFromTableContext#setQueryJobToken}. Days in the user table day store are left out of the
+     * query. If all days are in the store, the query is skipped. If the request's checkpoint has a running query for
+     * the same days, that query is resumed instead.
+     */
+    private void startQuery() throws AsyncTaskExecutionException {
+        String synapseTableId = params.getSynapseTableId();
+        Stopwatch queryStopwatch = Stopwatch.createStarted();
+        try {
+            planStoredDays();
+            if (ctx.getQueryStartDate() == null) {
+                LOG.info("All requested days for synapse table " + synapseTableId + " are stored. Skipping query.");
+                return;
+            }
+
+            String resumedJobToken = checkpoint != null ? checkpoint.getQueryJobToken(synapseTableId,
+                    ctx.getQueryStartDate()) : null;
+            if (resumedJobToken != null) {
+                LOG.info("Resuming query for synapse table " + synapseTableId + " from checkpoint");
+                ctx.setQueryJobToken(resumedJobToken);
+                ctx.setQueryResumed(true);
+                return;
+            }
+
+            startQueryJob();
+        } catch (SynapseException ex) {
+            throw new AsyncTaskExecutionException("Error querying synapse table " + synapseTableId + ": " +
+                    ex.getMessage(), ex);
+        } finally {
+            ctx.addStageMillis(PackagingStage.QUERY, queryStopwatch.elapsed(TimeUnit.MILLISECONDS));
+        }
+    }
+
+    // Starts the Synapse query for the days that aren't stored, and saves the job token to the checkpoint, if any.
+    private void startQueryJob() throws SynapseException {
+        String synapseTableId = params.getSynapseTableId();
+        String query = String.format(QUERY_TEMPLATE, synapseTableId, params.getHealthCode(), ctx.getQueryStartDate(),
+                params.getEndDate());
+        ctx.setQueryJobToken(synapseHelper.startTableQuery(query, synapseTableId));
+        ctx.setQueryResumed(false);
+
+        if (checkpoint != null) {
+            checkpoint.recordQueryStarted(synapseTableId, ctx.getQueryStartDate(), ctx.getQueryJobToken());
+            checkpointStore.save(checkpoint);
+        }
+    }
+
+    /**
+     * Checks the user table day store for the start of the requested range. Writes the stored coverage to
+     * {@link SynapseDownloadFromTableContext#setStoredCoverage}, the stored days to read instead of querying to
+     * {@link SynapseDownloadFromTableContext#setStoredDayList}, and the first day to query to
+     * {@link SynapseDownloadFromTableContext#setQueryStartDate}. If the store fails, the whole range is queried.
+     */
+    private void planStoredDays() {
+        LocalDate startDate = params.getStartDate();
+        LocalDate endDate = params.getEndDate();
+        ctx.setStoredCoverage(null);
+        ctx.setStoredDayList(Collections.emptyList());
+        ctx.setQueryStartDate(startDate);
+        if (userTableDayStore == null || !userTableDayStore.isEnabled()) {
+            return;
+        }
+
+        String synapseTableId = params.getSynapseTableId();
+        String healthCode = params.getHealthCode();
+        UserTableDayStore.DayRange coverage = userTableDayStore.getCoverage(healthCode, synapseTableId);
+        ctx.setStoredCoverage(coverage);
+        if (coverage == null || startDate.isBefore(coverage.getStartDate()) ||
+                startDate.isAfter(coverage.getEndDate())) {
+            // The start of the range isn't stored, so we have to query all of it.
+            return;
+        }
+
+        LocalDate storedEndDate = endDate.isBefore(coverage.getEndDate()) ? endDate : coverage.getEndDate();
+        try {
+            SortedSet<LocalDate> storedDaySet = userTableDayStore.listDays(healthCode, synapseTableId);
+            ctx.setStoredDayList(new ArrayList<>(storedDaySet.subSet(startDate, storedEndDate.plusDays(1))));
+        } catch (AmazonClientException | IllegalArgumentException ex) {
+            LOG.warn("Error listing stored days for synapse table " + synapseTableId + ", querying all days: " +
+                    ex.getMessage(), ex);
+            return;
+        }
+
+        ctx.setQueryStartDate(storedEndDate.isBefore(endDate) ? storedEndDate.plusDays(1) : null);
+        LOG.info("Found stored days for synapse table " + synapseTableId + " through " + storedEndDate + ", " +
+                ctx.getStoredDayList().size() + " with rows");
+    }
+
+    /**
+     * Poll stage. Waits for the Synapse table query to complete. This reads from
+     * {@link SynapseDownloadFromTableContext#getQueryJobToken} and writes the CSV file handle ID to
+     * {@link SynapseDownloadFromTableContext#setCsvFileHandleId}. If a query resumed from the checkpoint fails (for
+     * example, because Synapse no longer has the job), a new query is started and polled once.
+     */
+    private void pollQuery() throws AsyncTaskExecutionException {
+        if (ctx.getQueryStartDate() == null) {
+            // Query was skipped.
+            return;
+        }
+
+        String synapseTableId = params.getSynapseTableId();
+        Stopwatch pollStopwatch = Stopwatch.createStarted();
+        try {
+            try {
+                ctx.setCsvFileHandleId(synapseHelper.pollTableQuery(ctx.getQueryJobToken(), synapseTableId,
+                        cancellationToken));
+            } catch (SynapseException ex) {
+                if (!ctx.isQueryResumed()) {
+                    throw ex;
+                }
+
+                LOG.warn("Resumed query for synapse table " + synapseTableId + " failed, starting a new query: " +
+                        ex.getMessage());
+                startQueryJob();
+                ctx.setCsvFileHandleId(synapseHelper.pollTableQuery(ctx.getQueryJobToken(), synapseTableId,
+                        cancellationToken));
+            }
+        } catch (AsyncTimeoutException | SynapseException ex) {
+            throw new AsyncTaskExecutionException("Error polling query for synapse table " + synapseTableId + ": " +
+                    ex.getMessage(), ex);
+        } finally {
+            ctx.addStageMillis(PackagingStage.POLL, pollStopwatch.elapsed(TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * <p>
+     * Download stage. Downloads the query results as a CSV. This method reads the file handle from
+     * {@link SynapseDownloadFromTableContext#getCsvFileHandleId} and writes the resulting CSV to
+     * {@link SynapseDownloadFromTableContext#setCsvFile}.
+     * </p>
+     * <p>
+     * If the user table day store is enabled, final days in the query results are added to the store. Stored days
+     * from {@link SynapseDownloadFromTableContext#getStoredDayList} are merged with the query results, so the CSV
+     * looks the same as if the whole range had been queried.
+     * </p>
      */
     private void downloadCsv() throws AsyncTaskExecutionException {
         String synapseTableId = params.getSynapseTableId();
-        File csvFile = fileHelper.newFile(params.getTempDir(), params.getSchema().getKey().toString() + ".csv");
+        String schemaKeyString = params.getSchema().getKey().toString();
+        File csvFile = fileHelper.newFile(params.getTempDir(), schemaKeyString + ".csv");
         String csvFilePath = csvFile.getAbsolutePath();
+        boolean queried = ctx.getQueryStartDate() != null;
+        boolean merge = !queried || !ctx.getStoredDayList().isEmpty();
 
+        File queriedCsvFile = null;
         Stopwatch downloadCsvStopwatch = Stopwatch.createStarted();
         try {
-            String query = String.format(QUERY_TEMPLATE, synapseTableId, params.getHealthCode(), params.getStartDate(),
-                    params.getEndDate());
-            String csvFileHandleId = synapseHelper.generateFileHandleFromTableQuery(query, synapseTableId);
-            synapseHelper.downloadFileHandle(csvFileHandleId, csvFile);
+            if (queried) {
+                // If there's nothing to merge, download straight to the CSV file.
+                queriedCsvFile = merge ? fileHelper.newFile(params.getTempDir(), schemaKeyString + "-queried.csv") :
+                        csvFile;
+                synapseHelper.downloadFileHandle(ctx.getCsvFileHandleId(), queriedCsvFile);
+                storeFinalDays(queriedCsvFile);
+            }
+            if (merge) {
+                mergeStoredDays(queriedCsvFile, csvFile);
+            }
             ctx.setCsvFile(csvFile);
-        } catch (AsyncTimeoutException | SynapseException ex) {
+        } catch (AmazonClientException | IOException | SynapseException ex) {
+            // The download may have partially written the file. Clean it up, since it's not in the context yet.
+            if (fileHelper.fileExists(csvFile)) {
+                fileHelper.deleteFile(csvFile);
+            }
             throw new AsyncTaskExecutionException("Error downloading synapse table " + synapseTableId + " to file " +
                     csvFilePath + ": " + ex.getMessage(), ex);
         } finally {
+            if (queriedCsvFile != null && queriedCsvFile != csvFile && fileHelper.fileExists(queriedCsvFile)) {
+                fileHelper.deleteFile(queriedCsvFile);
+            }
+
             downloadCsvStopwatch.stop();
+            ctx.addStageMillis(PackagingStage.DOWNLOAD, downloadCsvStopwatch.elapsed(TimeUnit.MILLISECONDS));
             LOG.info("Downloading from synapse table " + synapseTableId + " to file " + csvFilePath + " took " +
                     downloadCsvStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
         }
     }
 
+    /**
+     * Splits the query results by upload date and adds the final days to the user table day store, with health codes
+     * cleared, then extends the stored coverage. Days with no rows get no segment, but are still covered. The store
+     * is a cache, so errors are logged and don't fail the task.
+     */
+    private void storeFinalDays(File queriedCsvFile) {
+        if (userTableDayStore == null || !userTableDayStore.isEnabled()) {
+            return;
+        }
+
+        LocalDate queryStartDate = ctx.getQueryStartDate();
+        LocalDate lastFinalDate = userTableDayStore.getLastFinalDate();
+        LocalDate finalEndDate = params.getEndDate().isBefore(lastFinalDate) ? params.getEndDate() : lastFinalDate;
+        if (finalEndDate.isBefore(queryStartDate)) {
+            // None of the queried days are final yet.
+            return;
+        }
+
+        String synapseTableId = params.getSynapseTableId();
+        String healthCode = params.getHealthCode();
+        Stopwatch storeStopwatch = Stopwatch.createStarted();
+        DateTime storeStartedOn = DateTime.now();
+        try {
+            // Sorted by day, so segments are written in order.
+            String[] headerRow;
+            Map<LocalDate, List<String[]>> dayToRowList = new TreeMap<>();
+            try (CSVReader csvFileReader = new CSVReader(fileHelper.getReader(queriedCsvFile))) {
+                headerRow = csvFileReader.readNext();
+                if (headerRow == null) {
+                    LOG.warn("Query results for synapse table " + synapseTableId + " have no headers. Not storing " +
+                            "days.");
+                    return;
+                }
+
+                int healthCodeIdx = -1;
+                int uploadDateIdx = -1;
+                for (int i = 0; i < headerRow.length; i++) {
+                    if (COL_HEALTH_CODE.equals(headerRow[i])) {
+                        healthCodeIdx = i;
+                    } else if (COL_UPLOAD_DATE.equals(headerRow[i])) {
+                        uploadDateIdx = i;
+                    }
+                }
+                if (uploadDateIdx < 0) {
+                    LOG.warn("Query results for synapse table " + synapseTableId + " have no upload date column. " +
+                            "Not storing days.");
+                    return;
+                }
+
+                int numRows = 0;
+                String[] row;
+                while ((row = csvFileReader.readNext()) != null) {
+                    LocalDate uploadDate = LocalDate.parse(row[uploadDateIdx]);
+                    if (uploadDate.isAfter(finalEndDate)) {
+                        continue;
+                    }
+
+                    if (++numRows > STORE_MAX_ROWS) {
+                        LOG.info("Query results for synapse table " + synapseTableId + " have more than " +
+                                STORE_MAX_ROWS + " final rows. Not storing days.");
+                        return;
+                    }
+                    if (healthCodeIdx >= 0) {
+                        row[healthCodeIdx] = null;
+                    }
+                    dayToRowList.computeIfAbsent(uploadDate, key -> new ArrayList<>()).add(row);
+                }
+            }
+
+            for (Map.Entry<LocalDate, List<String[]>> oneDayEntry : dayToRowList.entrySet()) {
+                StringWriter segmentWriter = new StringWriter();
+                try (CSVWriter segmentCsvWriter = new CSVWriter(segmentWriter)) {
+                    segmentCsvWriter.writeNext(headerRow);
+                    segmentCsvWriter.writeAll(oneDayEntry.getValue());
+                }
+                userTableDayStore.putDay(healthCode, synapseTableId, oneDayEntry.getKey(),
+                        segmentWriter.toString().getBytes(Charsets.UTF_8));
+            }
+
+            // Coverage is only written after all segments, so a partial write never shows up as covered. If the new
+            // days touch the old coverage, extend it, keeping the old coverage's stored-on, since its segments are
+            // older. Otherwise, replace it.
+            UserTableDayStore.DayRange coverage = ctx.getStoredCoverage();
+            LocalDate coverageStartDate = queryStartDate;
+            LocalDate coverageEndDate = finalEndDate;
+            DateTime coverageStoredOn = storeStartedOn;
+            if (coverage != null && !queryStartDate.isAfter(coverage.getEndDate().plusDays(1)) &&
+                    !finalEndDate.isBefore(coverage.getStartDate().minusDays(1))) {
+                if (coverage.getStartDate().isBefore(coverageStartDate)) {
+                    coverageStartDate = coverage.getStartDate();
+                }
+                if (coverage.getEndDate().isAfter(coverageEndDate)) {
+                    coverageEndDate = coverage.getEndDate();
+                }
+                if (coverage.getStoredOn().isBefore(coverageStoredOn)) {
+                    coverageStoredOn = coverage.getStoredOn();
+                }
+            }
+            userTableDayStore.putCoverage(healthCode, synapseTableId, new UserTableDayStore.DayRange(
+                    coverageStartDate, coverageEndDate, coverageStoredOn));
+            LOG.info("Stored " + dayToRowList.size() + " days for synapse table " + synapseTableId + ", coverage " +
+                    coverageStartDate + " to " + coverageEndDate + ", took " +
+                    storeStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+        } catch (AmazonClientException | IOException | IllegalArgumentException ex) {
+            LOG.warn("Error storing days for synapse table " + synapseTableId + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Writes the stored days, followed by the query results (if the query wasn't skipped), to the CSV file. Columns
+     * are matched by name, using the query results' headers if there are any, since those match the table's current
+     * columns. Columns a stored day doesn't have are left blank. Stored days are stored without health codes, so the
+     * user's health code is filled back in, and the merged CSV looks the same as query results. If there are no
+     * headers anywhere, the CSV is left empty, so the scan stage filters it out.
+     */
+    private void mergeStoredDays(File queriedCsvFile, File csvFile) throws IOException {
+        String synapseTableId = params.getSynapseTableId();
+        String schemaKeyString = params.getSchema().getKey().toString();
+        List<File> dayFileList = new ArrayList<>();
+        try {
+            for (LocalDate oneDay : ctx.getStoredDayList()) {
+                File dayFile = fileHelper.newFile(params.getTempDir(), schemaKeyString + "-stored-" + oneDay +
+                        ".csv");
+                dayFileList.add(dayFile);
+                userTableDayStore.getDay(params.getHealthCode(), synapseTableId, oneDay, dayFile);
+            }
+
+            String[] headerRow = null;
+            if (queriedCsvFile != null) {
+                headerRow = readHeaderRow(queriedCsvFile);
+            }
+            if (headerRow == null && !dayFileList.isEmpty()) {
+                headerRow = readHeaderRow(dayFileList.get(0));
+            }
+
+            try (CSVWriter csvFileWriter = new CSVWriter(fileHelper.getWriter(csvFile))) {
+                if (headerRow == null) {
+                    return;
+                }
+
+                csvFileWriter.writeNext(headerRow);
+                for (File oneDayFile : dayFileList) {
+                    copyRows(oneDayFile, headerRow, csvFileWriter, true);
+                }
+                if (queriedCsvFile != null) {
+                    copyRows(queriedCsvFile, headerRow, csvFileWriter, false);
+                }
+            }
+        } finally {
+            for (File oneDayFile : dayFileList) {
+                if (fileHelper.fileExists(oneDayFile)) {
+                    fileHelper.deleteFile(oneDayFile);
+                }
+            }
+        }
+    }
+
+    /** Reads the header row of the given CSV, or returns null if the CSV is empty. */
+    private String[] readHeaderRow(File file) throws IOException {
+        try (CSVReader csvFileReader = new CSVReader(fileHelper.getReader(file))) {
+            return csvFileReader.readNext();
+        }
+    }
+
+    /**
+     * Copies the rows of the given CSV to the writer, moving columns to match the given headers. If fillHealthCode is
+     * true, the health code column is set to the user's health code.
+     */
+    private void copyRows(File from, String[] headerRow, CSVWriter to, boolean fillHealthCode) throws IOException {
+        Map<String, Integer> headerToIdx = new HashMap<>();
+        for (int i = 0; i < headerRow.length; i++) {
+            headerToIdx.put(headerRow[i], i);
+        }
+        Integer healthCodeIdx = fillHealthCode ? headerToIdx.get(COL_HEALTH_CODE) : null;
+
+        try (CSVReader fromReader = new CSVReader(fileHelper.getReader(from))) {
+            String[] fromHeaderRow = fromReader.readNext();
+            if (fromHeaderRow == null) {
+                return;
+            }
+
+            int[] toIdxArray = new int[fromHeaderRow.length];
+            for (int i = 0; i < fromHeaderRow.length; i++) {
+                Integer toIdx = headerToIdx.get(fromHeaderRow[i]);
+                toIdxArray[i] = toIdx != null ? toIdx : -1;
+            }
+
+            String[] row;
+            while ((row = fromReader.readNext()) != null) {
+                String[] toRow = new String[headerRow.length];
+                for (int i = 0; i < row.length && i < toIdxArray.length; i++) {
+                    if (toIdxArray[i] >= 0) {
+                        toRow[toIdxArray[i]] = row[i];
+                    }
+                }
+                if (healthCodeIdx != null) {
+                    toRow[healthCodeIdx] = params.getHealthCode();
+                }
+                to.writeNext(toRow);
+            }
+        }
+    }
+
+    /**
+     * Scan stage. Checks the CSV for user data, reads the column info from the headers, and extracts file handle IDs
+     * (if there are file handle columns).
+     *
+     * @return true if the CSV has user data, false if the CSV has been filtered out
+     */
+    private boolean scanCsv() throws AsyncTaskExecutionException {
+        Stopwatch scanStopwatch = Stopwatch.createStarted();
+        try {
+            if (filterNoDataCsvFiles()) {
+                return false;
+            }
+            getColumnInfoFromCsv();
+
+            if (ctx.getColumnInfo().getFileHandleColumnIndexSet().isEmpty()) {
+                LOG.info("No file handles columns in file " + ctx.getCsvFilePath() +
+                        ". Skipping extracting and downloading file handles.");
+            } else {
+                extractFileHandleIdsFromCsv();
+
+                if (ctx.getFileHandleIdSet().isEmpty()) {
+                    // This is rare but possible.
+                    LOG.info("No file handles to download for file " + ctx.getCsvFilePath() +
+                            ". Skipping downloading file handles.");
+                }
+            }
+            return true;
+        } finally {
+            ctx.addStageMillis(PackagingStage.SCAN, scanStopwatch.elapsed(TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /** True if the scan stage found file handles that need to be bulk downloaded. */
+    private boolean hasFileHandlesToDownload() {
+        return !ctx.getFileHandleIdSet().isEmpty();
+    }
+
+    /** Builds the task result from the files in the context. */
+    private SynapseDownloadFromTableResult buildResult() {
+        return new SynapseDownloadFromTableResult.Builder().withCsvFile(ctx.getCsvFile())
+                .withBulkDownloadFile(ctx.getBulkDownloadFile()).withStats(buildStats()).build();
+    }
+
+    /** Builds an empty task result, which signifies the table has no data for this user. */
+    private SynapseDownloadFromTableResult buildEmptyResult() {
+        return new SynapseDownloadFromTableResult.Builder().withStats(buildStats()).build();
+    }
+
+    /** Builds the stats for this run from the context, so the packager can record them. */
+    private SynapseTableStats buildStats() {
+        return new SynapseTableStats.Builder().withSynapseTableId(params.getSynapseTableId())
+                .withCsvBytes(ctx.getCsvBytes()).withAttachmentCount(ctx.getFileHandleIdSet().size())
+                .withStageMillisMap(ctx.getStageMillisMap()).build();
+    }
+
     /**
      * <p>
      * Sometimes, a Synapse table contains no data for the given user and time range. This method counts the lines in
@@ -246,6 +787,7 @@ public class SynapseDownloadFromTableTask implements Callable<SynapseDownloadFro
     }
 
     /**
+     * <p>
      * This method takes the set of file handle IDs and bulk downloads them from Synapse (using the bulk download API).
      * This method reads from {@link SynapseDownloadFromTableParameters#getTempDir} to determine download location,
      * {@link SynapseDownloadFromTableParameters#getSchema} to generate the zip file name,
@@ -253,33 +795,141 @@ public class SynapseDownloadFromTableTask implements Callable<SynapseDownloadFro
      * {@link SynapseDownloadFromTableContext#getFileHandleIdSet}, and writes the results to
      * {@link SynapseDownloadFromTableContext#setFileSummaryList} and
      * {@link SynapseDownloadFromTableContext#setBulkDownloadFile}.
+     * </p>
+     * <p>
+     * If the attachment cache is enabled, only the attachments that aren't cached are bulk downloaded. Those are added
+     * to the cache. If any attachments came from the cache, the zip is rebuilt from the cached and downloaded files,
+     * under the zip entry names Synapse gave them, and the file summary list gets an entry for each cached file, so
+     * {@link #editCsv} replaces file handle IDs the same way either way.
+     * </p>
      */
     private void bulkDownloadFileHandles() throws AsyncTaskExecutionException {
         // download file handles
-        File bulkDownloadFile = fileHelper.newFile(params.getTempDir(), params.getSchema().getKey().toString() +
-                ".zip");
+        String schemaKeyString = params.getSchema().getKey().toString();
+        File bulkDownloadFile = fileHelper.newFile(params.getTempDir(), schemaKeyString + ".zip");
         String bulkDownloadFilePath = bulkDownloadFile.getAbsolutePath();
+        boolean useCache = attachmentCache != null && attachmentCache.isEnabled();
+
+        // Sorted by entry name, so the same attachments always produce the same zip.
+        Map<String, File> entryNameToFile = new TreeMap<>();
+        List<FileDownloadSummary> fileSummaryList = new ArrayList<>();
+        List<File> intermediateFileList = new ArrayList<>();
 
         Stopwatch bulkDownloadStopwatch = Stopwatch.createStarted();
-        BulkFileDownloadResponse bulkDownloadResponse;
         try {
-            bulkDownloadResponse = synapseHelper.generateBulkDownloadFileHandle(params.getSynapseTableId(),
-                    ctx.getFileHandleIdSet());
-            ctx.setFileSummaryList(bulkDownloadResponse.getFileSummary());
+            Set<String> missFileHandleIdSet = ctx.getFileHandleIdSet();
+            if (useCache) {
+                missFileHandleIdSet = copyCachedAttachments(schemaKeyString, entryNameToFile, fileSummaryList,
+                        intermediateFileList);
+            }
 
-            String bulkDownloadFileHandleId = bulkDownloadResponse.getResultZipFileHandleId();
-            synapseHelper.downloadFileHandle(bulkDownloadFileHandleId, bulkDownloadFile);
-            ctx.setBulkDownloadFile(bulkDownloadFile);
-        } catch (AsyncTimeoutException | SynapseException ex) {
+            if (!missFileHandleIdSet.isEmpty()) {
+                // If nothing came from the cache, the bulk download is the whole zip, and doesn't need to be rebuilt.
+                File missZipFile = bulkDownloadFile;
+                if (!entryNameToFile.isEmpty()) {
+                    missZipFile = fileHelper.newFile(params.getTempDir(), schemaKeyString + "-misses.zip");
+                    intermediateFileList.add(missZipFile);
+                }
+
+                BulkFileDownloadResponse bulkDownloadResponse = synapseHelper.generateBulkDownloadFileHandle(
+                        params.getSynapseTableId(), missFileHandleIdSet, cancellationToken);
+                fileSummaryList.addAll(bulkDownloadResponse.getFileSummary());
+
+                String bulkDownloadFileHandleId = bulkDownloadResponse.getResultZipFileHandleId();
+                synapseHelper.downloadFileHandle(bulkDownloadFileHandleId, missZipFile);
+                if (missZipFile == bulkDownloadFile) {
+                    // Set this now, so cleanup deletes it if caching or rebuilding fails.
+                    ctx.setBulkDownloadFile(bulkDownloadFile);
+                }
+
+                if (useCache) {
+                    cacheDownloadedAttachments(schemaKeyString, missZipFile, bulkDownloadResponse.getFileSummary(),
+                            entryNameToFile, intermediateFileList);
+                }
+            }
+
+            if (missFileHandleIdSet.size() < ctx.getFileHandleIdSet().size()) {
+                // Some attachments came from the cache. Rebuild the zip from cached and downloaded attachments.
+                ctx.setBulkDownloadFile(bulkDownloadFile);
+                zipHelper.zip(entryNameToFile, bulkDownloadFile);
+            }
+            ctx.setFileSummaryList(fileSummaryList);
+        } catch (AsyncTimeoutException | IOException | SynapseException ex) {
             throw new AsyncTaskExecutionException("Error bulk downloading file handles to file " +
                     bulkDownloadFilePath + ": " + ex.getMessage(), ex);
         } finally {
+            for (File oneIntermediateFile : intermediateFileList) {
+                if (fileHelper.fileExists(oneIntermediateFile)) {
+                    fileHelper.deleteFile(oneIntermediateFile);
+                }
+            }
+
             bulkDownloadStopwatch.stop();
+            ctx.addStageMillis(PackagingStage.BULK_DOWNLOAD, bulkDownloadStopwatch.elapsed(TimeUnit.MILLISECONDS));
             LOG.info("Bulk downloading file handles to file " + bulkDownloadFilePath + " took " +
                     bulkDownloadStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
         }
     }
 
+    /**
+     * Copies cached attachments to the temp dir, adding them to the entry name map and the file summary list.
+     *
+     * @return set of file handle IDs that weren't cached, and need to be bulk downloaded
+     */
+    private Set<String> copyCachedAttachments(String schemaKeyString, Map<String, File> entryNameToFile,
+            List<FileDownloadSummary> fileSummaryList, List<File> intermediateFileList) {
+        Set<String> missFileHandleIdSet = new HashSet<>();
+        for (String oneFileHandleId : ctx.getFileHandleIdSet()) {
+            File cachedFile = fileHelper.newFile(params.getTempDir(), schemaKeyString + "-cached-" +
+                    oneFileHandleId);
+            String zipEntryName = attachmentCache.copyTo(oneFileHandleId, cachedFile);
+            if (zipEntryName == null) {
+                missFileHandleIdSet.add(oneFileHandleId);
+                continue;
+            }
+
+            intermediateFileList.add(cachedFile);
+            entryNameToFile.put(zipEntryName, cachedFile);
+
+            FileDownloadSummary fileSummary = new FileDownloadSummary();
+            fileSummary.setFileHandleId(oneFileHandleId);
+            fileSummary.setZipEntryName(zipEntryName);
+            fileSummaryList.add(fileSummary);
+        }
+
+        LOG.info("Found " + (ctx.getFileHandleIdSet().size() - missFileHandleIdSet.size()) + " of " +
+                ctx.getFileHandleIdSet().size() + " attachments in cache for file " + ctx.getCsvFilePath());
+        return missFileHandleIdSet;
+    }
+
+    /**
+     * Extracts the bulk downloaded attachments and adds them to the attachment cache and the entry name map.
+     * Extracted files are only needed to build the zip and fill the cache, so they're deleted when the bulk download
+     * stage finishes.
+     */
+    private void cacheDownloadedAttachments(String schemaKeyString, File missZipFile,
+            List<FileDownloadSummary> missFileSummaryList, Map<String, File> entryNameToFile,
+            List<File> intermediateFileList) throws IOException {
+        Map<String, String> entryNameToFileHandleId = new HashMap<>();
+        for (FileDownloadSummary oneFileSummary : missFileSummaryList) {
+            if (!Strings.isNullOrEmpty(oneFileSummary.getFileHandleId()) &&
+                    !Strings.isNullOrEmpty(oneFileSummary.getZipEntryName())) {
+                entryNameToFileHandleId.put(oneFileSummary.getZipEntryName(), oneFileSummary.getFileHandleId());
+            }
+        }
+
+        Map<String, File> downloadedEntryMap = zipHelper.unzip(missZipFile, params.getTempDir(), schemaKeyString +
+                "-downloaded-");
+        intermediateFileList.addAll(downloadedEntryMap.values());
+        for (Map.Entry<String, File> oneEntry : downloadedEntryMap.entrySet()) {
+            String fileHandleId = entryNameToFileHandleId.get(oneEntry.getKey());
+            if (fileHandleId != null) {
+                attachmentCache.put(fileHandleId, oneEntry.getKey(), oneEntry.getValue());
+            }
+        }
+        entryNameToFile.putAll(downloadedEntryMap);
+    }
+
     /**
      * <p>
      * We need to make edits to the CSV: (1) Replace the file handle IDs with zip entry names. (2) Remove health
@@ -323,8 +973,11 @@ public class SynapseDownloadFromTableTask implements Callable<SynapseDownloadFro
         String editedCsvFilePath = editedCsvFile.getAbsolutePath();
         ctx.setEditedCsvFile(editedCsvFile);
 
+        // The edit reads the whole CSV, so count the bytes as we go, for table stats.
         Stopwatch editCsvStopwatch = Stopwatch.createStarted();
-        try (CSVReader csvFileReader = new CSVReader(fileHelper.getReader(ctx.getCsvFile()));
+        try (CountingInputStream csvInputStream = new CountingInputStream(fileHelper.getInputStream(
+                ctx.getCsvFile()));
+                CSVReader csvFileReader = new CSVReader(new InputStreamReader(csvInputStream, Charsets.UTF_8));
                 CSVWriter modifiedCsvFileWriter = new CSVWriter(fileHelper.getWriter(editedCsvFile))) {
             // Copy headers.
             modifiedCsvFileWriter.writeNext(csvFileReader.readNext());
@@ -354,11 +1007,13 @@ public class SynapseDownloadFromTableTask implements Callable<SynapseDownloadFro
                 // Write modified row to modifiedCsvFileWriter
                 modifiedCsvFileWriter.writeNext(row);
             }
+            ctx.setCsvBytes(csvInputStream.getCount());
         } catch (IOException ex) {
             throw new AsyncTaskExecutionException("Error updating attachment file paths in file " +
                     editedCsvFilePath + ": " + ex.getMessage(), ex);
         } finally {
             editCsvStopwatch.stop();
+            ctx.addStageMillis(PackagingStage.EDIT, editCsvStopwatch.elapsed(TimeUnit.MILLISECONDS));
             LOG.info("Updating attachment file paths in file " + editedCsvFilePath + " took " +
                     editCsvStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
         }
@@ -399,6 +1054,11 @@ public class SynapseDownloadFromTableTask implements Callable<SynapseDownloadFro
         }
     }
 
+    /** Returns the cancellation token. Package-scoped to support tests for {@link SynapsePackager}. */
+    CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
     /** Returns the params. Package-scoped to support tests for {@link SynapsePackager}. */
     SynapseDownloadFromTableParameters getParameters() {
         return params;
@@ -0,0 +1,75 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import java.io.File;
+
+import org.sagebionetworks.bridge.udd.helper.ZipSegment;
+
+/**
+ * Contains results from the SynapseDownloadSurveyTask. This is either the survey CSV downloaded from Synapse, or the
+ * shared zip segment for the survey table, if another request already stored it (see
+ * {@link org.sagebionetworks.bridge.udd.s3.SharedSurveyStore}).
+ */
+public class SynapseDownloadSurveyResult {
+    private final File file;
+    private final ZipSegment sharedSegment;
+    private final String etag;
+
+    /** Private constructor. To construct, use Builder. */
+    private SynapseDownloadSurveyResult(File file, ZipSegment sharedSegment, String etag) {
+        this.file = file;
+        this.sharedSegment = sharedSegment;
+        this.etag = etag;
+    }
+
+    /** Survey CSV downloaded from Synapse. Null if the survey came from a shared segment. */
+    public File getFile() {
+        return file;
+    }
+
+    /** Shared zip segment for the survey table, which lives in S3. Null if the survey was downloaded from Synapse. */
+    public ZipSegment getSharedSegment() {
+        return sharedSegment;
+    }
+
+    /**
+     * Etag of the survey table as of before the download, used to store the downloaded survey as a shared segment. May
+     * be null if the table has no etag, or if the survey came from the local survey CSV cache and was already shared.
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    /** Builder for the SynapseDownloadSurveyResult. */
+    public static class Builder {
+        private File file;
+        private ZipSegment sharedSegment;
+        private String etag;
+
+        /** @see SynapseDownloadSurveyResult#getFile */
+        public Builder withFile(File file) {
+            this.file = file;
+            return this;
+        }
+
+        /** @see SynapseDownloadSurveyResult#getSharedSegment */
+        public Builder withSharedSegment(ZipSegment sharedSegment) {
+            this.sharedSegment = sharedSegment;
+            return this;
+        }
+
+        /** @see SynapseDownloadSurveyResult#getEtag */
+        public Builder withEtag(String etag) {
+            this.etag = etag;
+            return this;
+        }
+
+        /** Builds the SynapseDownloadSurveyResult and validates that exactly one of file or shared segment is set. */
+        public SynapseDownloadSurveyResult build() {
+            if ((file == null) == (sharedSegment == null)) {
+                throw new IllegalStateException("exactly one of file or sharedSegment must be specified");
+            }
+
+            return new SynapseDownloadSurveyResult(file, sharedSegment, etag);
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package org.sagebionetworks.bridge.udd.synapse;
 
 import java.io.File;
+import java.util.Date;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 import com.google.common.base.Stopwatch;
@@ -11,13 +13,29 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.sagebionetworks.bridge.file.FileHelper;
+import org.sagebionetworks.bridge.udd.concurrent.CancellationToken;
+import org.sagebionetworks.bridge.udd.concurrent.PackagingStage;
+import org.sagebionetworks.bridge.udd.concurrent.StagedTask;
+import org.sagebionetworks.bridge.udd.concurrent.TaskGraphExecutor;
 import org.sagebionetworks.bridge.udd.exceptions.AsyncTimeoutException;
+import org.sagebionetworks.bridge.udd.helper.ZipSegment;
+import org.sagebionetworks.bridge.udd.s3.SharedSurveyStore;
 
 /**
+ * <p>
  * This one-shot asynchronous task downloads a survey metadata table from Synapse. The survey metadata is downloaded in
- * CSV format.
+ * CSV format. This task can be run as a single Callable, or as a chain of stages (query, poll, download) on the
+ * {@link TaskGraphExecutor}.
+ * </p>
+ * <p>
+ * Before going to Synapse, the task checks two cache tiers. If the local survey CSV cache has the table's current
+ * version, the CSV is copied from there. Otherwise, if the shared survey store has a segment for the table's current
+ * etag, the task returns the shared segment. Either way, the query and download are skipped. CSVs downloaded from
+ * Synapse are added to the local cache.
+ * </p>
  */
-public class SynapseDownloadSurveyTask implements Callable<File> {
+public class SynapseDownloadSurveyTask implements Callable<SynapseDownloadSurveyResult>,
+        StagedTask<SynapseDownloadSurveyResult> {
     private static final Logger LOG = LoggerFactory.getLogger(SynapseDownloadSurveyTask.class);
 
     // Task parameters. Params is passed in by constructor.
@@ -25,9 +43,21 @@ public class SynapseDownloadSurveyTask implements Callable<File> {
 
     // Helpers and config objects. Originates from Spring configs and is passed in through setters using a similar
     // pattern.
+    private CancellationToken cancellationToken = new CancellationToken();
     private FileHelper fileHelper;
+    private SharedSurveyStore sharedSurveyStore;
+    private SurveyCsvCache surveyCsvCache;
     private SynapseHelper synapseHelper;
 
+    // Task state, passed between stages.
+    private String tableName;
+    private String etag;
+    private Date modifiedOn;
+    private File cachedFile;
+    private ZipSegment sharedSegment;
+    private String queryJobToken;
+    private String fileHandleId;
+
     /**
      * Constructs this task with the specified task parameters
      *
@@ -38,6 +68,14 @@ public class SynapseDownloadSurveyTask implements Callable<File> {
         this.params = params;
     }
 
+    /**
+     * Cancellation token for the request this task belongs to. Once cancelled, remaining stages and Synapse polls are
+     * skipped. If not set, the task can't be cancelled.
+     */
+    public final void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
     /**
      * Wrapper class around the file system. Used by unit tests to test the functionality without hitting the real file
      * system.
@@ -46,33 +84,113 @@ public class SynapseDownloadSurveyTask implements Callable<File> {
         this.fileHelper = fileHelper;
     }
 
+    /** Shared survey store, used to skip Synapse if another request already stored this table. Optional. */
+    public final void setSharedSurveyStore(SharedSurveyStore sharedSurveyStore) {
+        this.sharedSurveyStore = sharedSurveyStore;
+    }
+
+    /** Local survey CSV cache, used to skip Synapse if this node already downloaded this table. Optional. */
+    public final void setSurveyCsvCache(SurveyCsvCache surveyCsvCache) {
+        this.surveyCsvCache = surveyCsvCache;
+    }
+
     /** Synapse helper, used to download survey metadata from Synapse. */
     public final void setSynapseHelper(SynapseHelper synapseHelper) {
         this.synapseHelper = synapseHelper;
     }
 
     /**
-     * Executes this task. Downloads the survey metadata from the Synapse table specified in the params.
+     * Executes this task. Downloads the survey metadata from the Synapse table specified in the params, or finds the
+     * shared segment for it.
      *
-     * @return the file containing the survey metadata in CSV format, never null
+     * @return the file containing the survey metadata in CSV format, or the shared segment, never null
      */
     @Override
-    public File call() throws AsyncTimeoutException, SynapseException {
-        String synapseTableId = params.getSynapseTableId();
+    public SynapseDownloadSurveyResult call() throws AsyncTimeoutException, SynapseException {
+        startQuery();
+        pollQuery();
+        return downloadSurvey();
+    }
 
-        // get table name
+    /**
+     * Submits this task as a chain of stages: query (including fetching the table name), poll, and download.
+     *
+     * @param executor
+     *         executor to submit the stages to
+     * @return future for the file containing the survey metadata, or the shared segment
+     */
+    @Override
+    public CompletableFuture<SynapseDownloadSurveyResult> submitStages(TaskGraphExecutor executor) {
+        String taskName = "survey " + params.getSynapseTableId();
+
+        CompletableFuture<Void> queryFuture = executor.submitStage(PackagingStage.QUERY, taskName,
+                cancellationToken, () -> {
+                    startQuery();
+                    return null;
+                });
+        CompletableFuture<Void> pollFuture = executor.thenStage(queryFuture, PackagingStage.POLL, taskName,
+                cancellationToken, input -> {
+                    pollQuery();
+                    return null;
+                });
+        return executor.thenStage(pollFuture, PackagingStage.DOWNLOAD, taskName, cancellationToken,
+                input -> downloadSurvey());
+    }
+
+    // Query stage. Gets the table name (used for the file name), etag, and modified-on. If either cache tier has this
+    // version of the table, we're done. Otherwise, kicks off the query for the whole survey table.
+    private void startQuery() throws SynapseException {
+        String synapseTableId = params.getSynapseTableId();
         TableEntity table = synapseHelper.getTable(synapseTableId);
+        tableName = table.getName();
+        etag = table.getEtag();
+        modifiedOn = table.getModifiedOn();
 
-        // download table
-        File surveyFile = fileHelper.newFile(params.getTempDir(), table.getName() + ".csv");
+        if (surveyCsvCache != null && etag != null) {
+            File surveyFile = fileHelper.newFile(params.getTempDir(), tableName + ".csv");
+            if (surveyCsvCache.copyTo(synapseTableId, etag, modifiedOn, surveyFile)) {
+                cachedFile = surveyFile;
+                return;
+            }
+        }
+
+        if (sharedSurveyStore != null && etag != null) {
+            sharedSegment = sharedSurveyStore.find(synapseTableId, etag);
+            if (sharedSegment != null) {
+                return;
+            }
+        }
+
+        // We want the whole survey table.
+        String query = "SELECT * FROM " + synapseTableId;
+        queryJobToken = synapseHelper.startTableQuery(query, synapseTableId);
+    }
+
+    // Poll stage. Waits for the query to complete and gets the result file handle.
+    private void pollQuery() throws AsyncTimeoutException, SynapseException {
+        if (cachedFile != null || sharedSegment != null) {
+            return;
+        }
+        fileHandleId = synapseHelper.pollTableQuery(queryJobToken, params.getSynapseTableId(), cancellationToken);
+    }
+
+    // Download stage. Downloads the result file handle to the temp dir.
+    private SynapseDownloadSurveyResult downloadSurvey() throws SynapseException {
+        if (cachedFile != null) {
+            // No etag, since this CSV was already shared when it was downloaded.
+            return new SynapseDownloadSurveyResult.Builder().withFile(cachedFile).build();
+        }
+        if (sharedSegment != null) {
+            return new SynapseDownloadSurveyResult.Builder().withSharedSegment(sharedSegment).withEtag(etag).build();
+        }
+
+        String synapseTableId = params.getSynapseTableId();
+        File surveyFile = fileHelper.newFile(params.getTempDir(), tableName + ".csv");
         String surveyFilePath = surveyFile.getAbsolutePath();
         Stopwatch downloadSurveyStopwatch = Stopwatch.createStarted();
         try {
-            // We want the whole survey table.
-            String query = "SELECT * FROM " + synapseTableId;
-            String fileHandleId = synapseHelper.generateFileHandleFromTableQuery(query, synapseTableId);
             synapseHelper.downloadFileHandle(fileHandleId, surveyFile);
-        } catch (AsyncTimeoutException | SynapseException | RuntimeException ex) {
+        } catch (SynapseException | RuntimeException ex) {
             // cleanup file (if it were partially started and not finished)
             if (fileHelper.fileExists(surveyFile)) {
                 fileHelper.deleteFile(surveyFile);
@@ -85,7 +203,15 @@ public class SynapseDownloadSurveyTask implements Callable<File> {
                     downloadSurveyStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
         }
 
-        return surveyFile;
+        if (surveyCsvCache != null && etag != null) {
+            surveyCsvCache.put(synapseTableId, etag, modifiedOn, surveyFile);
+        }
+        return new SynapseDownloadSurveyResult.Builder().withFile(surveyFile).withEtag(etag).build();
+    }
+
+    /** Returns the cancellation token. Package-scoped to support tests for {@link SynapsePackager}. */
+    CancellationToken getCancellationToken() {
+        return cancellationToken;
     }
 
     /** Returns the params. Package-scoped to support tests for {@link SynapsePackager}. */
@@ -24,6 +24,7 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
 import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.udd.concurrent.CancellationToken;
 import org.sagebionetworks.bridge.udd.exceptions.AsyncTimeoutException;
 
 /** Helper class to Synapse, which wraps Synapse async call patterns.. */
@@ -88,6 +89,27 @@ public class SynapseHelper {
      */
     public BulkFileDownloadResponse generateBulkDownloadFileHandle(String synapseTableId, Set<String> fileHandleIdSet)
             throws AsyncTimeoutException, SynapseException {
+        return generateBulkDownloadFileHandle(synapseTableId, fileHandleIdSet, new CancellationToken());
+    }
+
+    /**
+     * Bulk downloads the specified file handles for the specified table. Polling stops early if the given
+     * cancellation token is cancelled.
+     *
+     * @param synapseTableId
+     *         Synapse table associated with the file handles
+     * @param fileHandleIdSet
+     *         file handle IDs to download
+     * @param cancellationToken
+     *         cancellation token for the request
+     * @return bulk download API response
+     * @throws AsyncTimeoutException
+     *         if the async call to Synapse times out, according to the config settings
+     * @throws SynapseException
+     *         if the Synapse call fails
+     */
+    public BulkFileDownloadResponse generateBulkDownloadFileHandle(String synapseTableId, Set<String> fileHandleIdSet,
+            CancellationToken cancellationToken) throws AsyncTimeoutException, SynapseException {
         // Need to create file handle association objects as part of the request.
         List<FileHandleAssociation> fhaList = new ArrayList<>();
         for (String oneFileHandleId : fileHandleIdSet) {
@@ -106,7 +128,7 @@ public class SynapseHelper {
         String asyncJobToken = startBulkFileDownload(request);
 
         // Poll Synapse until results are ready.
-        return pollAsync(() -> getBulkFileDownloadResults(asyncJobToken));
+        return pollAsync(() -> getBulkFileDownloadResults(asyncJobToken), cancellationToken);
     }
 
     /** Wrapper around SynapseClient.startBulkFileDownload to enable retries. */
@@ -143,11 +165,47 @@ public class SynapseHelper {
      */
     public String generateFileHandleFromTableQuery(String query, String synapseTableId) throws AsyncTimeoutException,
             SynapseException {
-        // Kick off async call.
-        String asyncJobToken = downloadCsvFromTableAsyncStart(query, synapseTableId);
+        String asyncJobToken = startTableQuery(query, synapseTableId);
+        return pollTableQuery(asyncJobToken, synapseTableId, new CancellationToken());
+    }
 
-        // Poll Synapse until results are ready.
-        DownloadFromTableResult result = pollAsync(() -> downloadCsvFromTableAsyncGet(asyncJobToken, synapseTableId));
+    /**
+     * Kicks off a Synapse table query, which returns results as a CSV file handle. This is the first half of
+     * {@link #generateFileHandleFromTableQuery}, split out so that callers can start the query and poll for results
+     * on different threads.
+     *
+     * @param query
+     *         query to run
+     * @param synapseTableId
+     *         table to query against
+     * @return async job token, to be passed into {@link #pollTableQuery}
+     * @throws SynapseException
+     *         if the Synapse call fails
+     */
+    public String startTableQuery(String query, String synapseTableId) throws SynapseException {
+        return downloadCsvFromTableAsyncStart(query, synapseTableId);
+    }
+
+    /**
+     * Polls Synapse until the table query started by {@link #startTableQuery} is complete. This is the second half of
+     * {@link #generateFileHandleFromTableQuery}. Polling stops early if the given cancellation token is cancelled.
+     *
+     * @param asyncJobToken
+     *         async job token returned by {@link #startTableQuery}
+     * @param synapseTableId
+     *         table the query was run against
+     * @param cancellationToken
+     *         cancellation token for the request
+     * @return file handle ID of the results in CSV form
+     * @throws AsyncTimeoutException
+     *         if the async call to Synapse times out, according to the config settings
+     * @throws SynapseException
+     *         if the Synapse call fails
+     */
+    public String pollTableQuery(String asyncJobToken, String synapseTableId, CancellationToken cancellationToken)
+            throws AsyncTimeoutException, SynapseException {
+        DownloadFromTableResult result = pollAsync(() -> downloadCsvFromTableAsyncGet(asyncJobToken, synapseTableId),
+                cancellationToken);
         return result.getResultsFileHandleId();
     }
 
@@ -189,28 +247,38 @@ public class SynapseHelper {
     }
 
     /**
-     * Polls the Synapse async call in a loop, according to the poll interval and max tries config.
+     * Polls the Synapse async call in a loop, according to the poll interval and max tries config. If the
+     * cancellation token is cancelled, this stops waiting and throws a CancellationException. If the token's deadline
+     * passes, this stops waiting and throws an AsyncTimeoutException.
      *
      * @param callable
      *         Synapse async call
+     * @param cancellationToken
+     *         cancellation token for the request
      * @param <T>
      *         Synapse async call return type
      * @return async result
      * @throws AsyncTimeoutException
-     *         if the async call to Synapse times out, according to the config settings
+     *         if the async call to Synapse times out, according to the config settings or the request deadline
      * @throws SynapseException
      *         if the Synapse call fails
      */
-    private <T> T pollAsync(SynapseCallable<T> callable) throws AsyncTimeoutException, SynapseException {
+    private <T> T pollAsync(SynapseCallable<T> callable, CancellationToken cancellationToken)
+            throws AsyncTimeoutException, SynapseException {
         T result = null;
         for (int tries = 0; tries < pollMaxTries; tries++) {
             if (pollIntervalMillis > 0) {
                 try {
-                    Thread.sleep(pollIntervalMillis);
+                    cancellationToken.sleep(pollIntervalMillis);
                 } catch (InterruptedException ex) {
                     LOG.warn("Interrupted while sleeping: " + ex.getMessage(), ex);
                 }
             }
+            if (cancellationToken.isDeadlinePassed()) {
+                throw new AsyncTimeoutException("Synapse async call timed out: " +
+                        CancellationToken.REASON_DEADLINE_EXCEEDED);
+            }
+            cancellationToken.throwIfCancelled();
 
             result = callable.call();
             if (result != null) {
@@ -2,23 +2,37 @@ package org.sagebionetworks.bridge.udd.synapse;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Writer;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 import javax.annotation.Resource;
 
 import com.amazonaws.HttpMethod;
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,8 +44,23 @@ import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.file.FileHelper;
 import org.sagebionetworks.bridge.s3.S3Helper;
 import org.sagebionetworks.bridge.schema.UploadSchema;
+import org.sagebionetworks.bridge.udd.concurrent.CancellationToken;
+import org.sagebionetworks.bridge.udd.concurrent.PackagingStage;
+import org.sagebionetworks.bridge.udd.concurrent.StageCallable;
+import org.sagebionetworks.bridge.udd.concurrent.StageFunction;
+import org.sagebionetworks.bridge.udd.concurrent.TaskGraphExecutor;
+import org.sagebionetworks.bridge.udd.dynamodb.SynapseTableStats;
+import org.sagebionetworks.bridge.udd.helper.TempStorageAllocation;
+import org.sagebionetworks.bridge.udd.helper.TempStorageManager;
+import org.sagebionetworks.bridge.udd.helper.ZipCompressionPolicy;
 import org.sagebionetworks.bridge.udd.helper.ZipHelper;
+import org.sagebionetworks.bridge.udd.helper.ZipSegment;
 import org.sagebionetworks.bridge.udd.s3.PresignedUrlInfo;
+import org.sagebionetworks.bridge.udd.s3.RequestCheckpoint;
+import org.sagebionetworks.bridge.udd.s3.RequestCheckpointStore;
+import org.sagebionetworks.bridge.udd.s3.S3ZipAssembler;
+import org.sagebionetworks.bridge.udd.s3.SharedSurveyStore;
+import org.sagebionetworks.bridge.udd.s3.UserTableDayStore;
 import org.sagebionetworks.bridge.udd.worker.BridgeUddRequest;
 
 /**
@@ -44,58 +73,144 @@ public class SynapsePackager {
     private static final Logger LOG = LoggerFactory.getLogger(SynapsePackager.class);
 
     // package-scoped to be available in tests
+    static final String CONFIG_KEY_ARCHIVE_MAX_PART_MB = "archive.max.part.mb";
+    static final String CONFIG_KEY_DRAIN_GRACE_SECONDS = "request.drain.grace.seconds";
     static final String CONFIG_KEY_EXPIRATION_HOURS = "s3.url.expiration.hours";
     static final String CONFIG_KEY_USERDATA_BUCKET = "userdata.bucket";
     static final String ERROR_LOG_FILE_NAME = "error.log";
     static final String METADATA_ERROR_LOG_FILE_NAME = "metadata-error.log";
+    static final String SEGMENT_FILE_SUFFIX = ".zipseg";
 
+    private static final long BYTES_PER_MB = 1024 * 1024;
     private static final Joiner LINE_JOINER = Joiner.on('\n');
 
-    private ExecutorService auxiliaryExecutorService;
+    private AttachmentCache attachmentCache;
+    private int drainGraceSeconds;
     private FileHelper fileHelper;
+    private long maxPartBytes;
+    private NoDataCache noDataCache;
+    private RequestCheckpointStore requestCheckpointStore;
     private S3Helper s3Helper;
+    private S3ZipAssembler s3ZipAssembler;
+    private SharedSurveyStore sharedSurveyStore;
+    private SurveyCsvCache surveyCsvCache;
     private SynapseHelper synapseHelper;
+    private SynapseTableStatsTracker synapseTableStatsTracker;
+    private TaskGraphExecutor taskGraphExecutor;
+    private TempStorageManager tempStorageManager;
     private int urlExpirationHours;
     private String userdataBucketName;
+    private UserTableDayStore userTableDayStore;
+    private ZipCompressionPolicy zipCompressionPolicy;
     private ZipHelper zipHelper;
 
     /**
-     * Auxiliary executor service (thread pool), used secondary thread tasks. (As opposed to listener executor service.
+     * Bridge config, used to get the S3 upload bucket, pre-signed URL expiration, max archive part size (0 means the
+     * download is never split), and how long a finished request waits for its leftover tasks (0 means no limit).
      */
-    @Resource(name = "auxiliaryExecutorService")
-    public final void setAuxiliaryExecutorService(ExecutorService auxiliaryExecutorService) {
-        this.auxiliaryExecutorService = auxiliaryExecutorService;
-    }
-
-    /** Bridge config, used to get the S3 upload bucket and pre-signed URL expiration. */
     @Autowired
     @Qualifier("uddConfigProperties")
     public final void setConfig(Config config) {
+        drainGraceSeconds = config.getInt(CONFIG_KEY_DRAIN_GRACE_SECONDS);
+        maxPartBytes = config.getInt(CONFIG_KEY_ARCHIVE_MAX_PART_MB) * BYTES_PER_MB;
         urlExpirationHours = config.getInt(CONFIG_KEY_EXPIRATION_HOURS);
         userdataBucketName = config.get(CONFIG_KEY_USERDATA_BUCKET);
     }
 
+    /** Attachment cache, used to skip bulk downloading attachments that were already downloaded. */
+    @Autowired
+    public final void setAttachmentCache(AttachmentCache attachmentCache) {
+        this.attachmentCache = attachmentCache;
+    }
+
     /**
      * Wrapper class around the file system. Used by unit tests to test the functionality without hitting the real file
-     * system.
+     * system. This is the HybridFileHelper, so small request files stay in memory. It's also passed to the download
+     * tasks.
      */
-    @Autowired
+    @Resource(name = "hybridFileHelper")
     public final void setFileHelper(FileHelper fileHelper) {
         this.fileHelper = fileHelper;
     }
 
+    /** No-data cache, used to skip tables that recently had no rows for the user. */
+    @Autowired
+    public final void setNoDataCache(NoDataCache noDataCache) {
+        this.noDataCache = noDataCache;
+    }
+
+    /** Request checkpoint store, used to resume a request's finished tables and running queries after a failure. */
+    @Autowired
+    public final void setRequestCheckpointStore(RequestCheckpointStore requestCheckpointStore) {
+        this.requestCheckpointStore = requestCheckpointStore;
+    }
+
     /** S3 Helper, used to upload to S3 and create a pre-signed URL. */
     @Autowired
     public final void setS3Helper(S3Helper s3Helper) {
         this.s3Helper = s3Helper;
     }
 
+    /** S3 zip assembler, used to upload zip segments and assemble the user's zip in S3. */
+    @Autowired
+    public final void setS3ZipAssembler(S3ZipAssembler s3ZipAssembler) {
+        this.s3ZipAssembler = s3ZipAssembler;
+    }
+
+    /** Shared survey store, used to skip downloading surveys that another request already stored. */
+    @Autowired
+    public final void setSharedSurveyStore(SharedSurveyStore sharedSurveyStore) {
+        this.sharedSurveyStore = sharedSurveyStore;
+    }
+
+    /** Local survey CSV cache, used to skip downloading surveys that this node already downloaded. */
+    @Autowired
+    public final void setSurveyCsvCache(SurveyCsvCache surveyCsvCache) {
+        this.surveyCsvCache = surveyCsvCache;
+    }
+
     /** Synapse helper. */
     @Autowired
     public final void setSynapseHelper(SynapseHelper synapseHelper) {
         this.synapseHelper = synapseHelper;
     }
 
+    /** Table stats tracker, used to start the most expensive tables first and to record stats after each run. */
+    @Autowired
+    public final void setSynapseTableStatsTracker(SynapseTableStatsTracker synapseTableStatsTracker) {
+        this.synapseTableStatsTracker = synapseTableStatsTracker;
+    }
+
+    /**
+     * Task graph executor. Synapse download tasks and zipping are split into stages, and each stage runs on a thread
+     * pool sized for the resource it uses.
+     */
+    @Autowired
+    public final void setTaskGraphExecutor(TaskGraphExecutor taskGraphExecutor) {
+        this.taskGraphExecutor = taskGraphExecutor;
+    }
+
+    /**
+     * Temp storage manager, which creates the request's temp dir, counts its bytes against the node's quota, and
+     * deletes its files in the background.
+     */
+    @Autowired
+    public final void setTempStorageManager(TempStorageManager tempStorageManager) {
+        this.tempStorageManager = tempStorageManager;
+    }
+
+    /** User table day store, used to skip querying days that were already queried for the user. */
+    @Autowired
+    public final void setUserTableDayStore(UserTableDayStore userTableDayStore) {
+        this.userTableDayStore = userTableDayStore;
+    }
+
+    /** Zip compression policy. We feed upload timings back into it, so it can pick deflate levels. */
+    @Autowired
+    public final void setZipCompressionPolicy(ZipCompressionPolicy zipCompressionPolicy) {
+        this.zipCompressionPolicy = zipCompressionPolicy;
+    }
+
     /** Zip helper. */
     @Autowired
     public final void setZipHelper(ZipHelper zipHelper) {
@@ -109,6 +224,35 @@ public class SynapsePackager {
      * <p>
      * Schema map and survey table ID set are guaranteed by the DynamoHelper to be non-null.
      * </p>
+     * <p>
+     * Survey downloads are only started once at least one table has data, so if the user has no data, we never
+     * download surveys. If packaging fails, outstanding stages and Synapse polls are cancelled, and we wait for them
+     * to settle so we can clean up the files they leave behind.
+     * </p>
+     * <p>
+     * If the cancellation token has a deadline and the deadline passes, we stop waiting, cancel the pending work, and
+     * package whatever tables have finished, with an error log listing the tables that are missing.
+     * </p>
+     * <p>
+     * As each table finishes, its files are written as zip segments and uploaded, while other tables are still
+     * downloading. Once everything is done, the zip is assembled in S3 from the segments, so we only send the small
+     * segments and the central directory at the end. If the zip is too big to assemble (see
+     * {@link ZipHelper#canAssemble}), we fall back to zipping locally and uploading the whole zip.
+     * </p>
+     * <p>
+     * If the download is bigger than the max part size, it's split into several part archives, which are assembled in
+     * parallel, each with its own pre-signed URL.
+     * </p>
+     * <p>
+     * If request checkpoints are enabled, each finished table's segments and each running Synapse query are saved to
+     * the request's checkpoint as they happen (see {@link RequestCheckpointStore}). If the request fails and is
+     * retried, finished tables are taken from the checkpoint, and running queries are polled instead of started again.
+     * The checkpoint is deleted once the request finishes.
+     * </p>
+     * <p>
+     * This is the same as calling {@link #startPackaging}, then {@link #packageSynapseData(PackagingSession, Map,
+     * String)}, then closing the session.
+     * </p>
      *
      * @param synapseToSchemaMap
      *         map from Synapse table IDs to schemas, used to enumerate Synapse tables and determine file names
@@ -118,51 +262,241 @@ public class SynapsePackager {
      *         user data download request, used to determine start and end dates for requested data
      * @param surveyTableIdSet
      *         set of survey table IDs, which need to be downloaded in their entirety
-     * @return pre-signed URL and expiration time
+     * @param cancellationToken
+     *         cancellation token for the request, which carries the request's deadline (if any)
+     * @return pre-signed URLs and expiration time
      */
     public PresignedUrlInfo packageSynapseData(Map<String, UploadSchema> synapseToSchemaMap, String healthCode,
-            BridgeUddRequest request, Set<String> surveyTableIdSet) throws IOException {
-        List<File> allFileList = new ArrayList<>();
-        File masterZipFile = null;
-        File tmpDir = fileHelper.createTempDir();
-        try {
-            // create and execute Synapse downloads asynchronously
-            List<Future<SynapseDownloadFromTableResult>> queryFutureList = initAsyncQueryTasks(synapseToSchemaMap,
-                    healthCode, request, tmpDir);
-            List<Future<File>> surveyFutureList = initAsyncSurveyTasks(surveyTableIdSet, tmpDir);
-
-            // wait for async tasks - We need to wait for all tasks and gather up all files before we check whether we
-            // have no query results. Otherwise, we won't know to clean up these files, and we'll leave garbage on our
-            // file system.
-            List<File> queryFileList = waitForAsyncQueryTasks(tmpDir, queryFutureList);
-            allFileList.addAll(queryFileList);
-            List<File> surveyFileList = waitForAsyncSurveyTasks(tmpDir, surveyFutureList);
-            allFileList.addAll(surveyFileList);
-
-            if (queryFileList.isEmpty()) {
-                // There are no files to send, meaning there is no user data to send. Return null, to signal that there
-                // is no pre-signed URL to send.
-                return null;
+            BridgeUddRequest request, Set<String> surveyTableIdSet, CancellationToken cancellationToken)
+            throws IOException {
+        try (PackagingSession session = startPackaging(request, surveyTableIdSet, cancellationToken)) {
+            return packageSynapseData(session, synapseToSchemaMap, healthCode);
+        }
+    }
+
+    /**
+     * Starts packaging a request, before the user's health code is known. This allocates the request's temp dir and
+     * registers the request with the stage executor. The caller can then call {@link PackagingSession#startSurveys},
+     * since surveys don't depend on the user, while it looks up the user's account. The caller must close the
+     * session, whether or not it calls {@link #packageSynapseData(PackagingSession, Map, String)}.
+     *
+     * @param request
+     *         user data download request
+     * @param surveyTableIdSet
+     *         set of survey table IDs, which need to be downloaded in their entirety
+     * @param cancellationToken
+     *         cancellation token for the request, which carries the request's deadline (if any)
+     * @return packaging session for the request
+     */
+    public PackagingSession startPackaging(BridgeUddRequest request, Set<String> surveyTableIdSet,
+            CancellationToken cancellationToken) {
+        String requestName = "userId=" + request.getUserId() + ", study=" + request.getStudyId();
+        TempStorageAllocation tempStorageAllocation = tempStorageManager.allocate(requestName);
+        PackagingSession session = new PackagingSession(request, surveyTableIdSet, cancellationToken,
+                tempStorageAllocation);
+
+        // Register the request, so its stages take turns with other requests' stages.
+        taskGraphExecutor.startRequest(cancellationToken, requestName, request.getStudyId());
+        return session;
+    }
+
+    /**
+     * Finishes packaging a request started with {@link #startPackaging}, once the user's health code is known. See
+     * {@link #packageSynapseData(Map, String, BridgeUddRequest, Set, CancellationToken)} for details. This can only be
+     * called once per session.
+     *
+     * @param session
+     *         packaging session, from {@link #startPackaging}
+     * @param synapseToSchemaMap
+     *         map from Synapse table IDs to schemas, used to enumerate Synapse tables and determine file names
+     * @param healthCode
+     *         user health code to filter on
+     * @return pre-signed URLs and expiration time, or null if the user has no data
+     */
+    public PresignedUrlInfo packageSynapseData(PackagingSession session,
+            Map<String, UploadSchema> synapseToSchemaMap, String healthCode) throws IOException {
+        session.markUsed();
+        BridgeUddRequest request = session.request;
+        CancellationToken cancellationToken = session.cancellationToken;
+        TempStorageAllocation tempStorageAllocation = session.tempStorageAllocation;
+        File tmpDir = tempStorageAllocation.getDir();
+        ZipSegmentUploads segmentUploads = session.segmentUploads;
+        LazySurveyTasks surveyTasks = session.surveyTasks;
+        List<File> allFileList = session.allFileList;
+
+        // Tables that finished in an earlier attempt at this request are listed under their file names, and their
+        // segments are handed to the segment uploads, like shared surveys. These files don't exist locally.
+        RequestCheckpoint checkpoint = null;
+        Map<String, UploadSchema> remainingSchemaMap = synapseToSchemaMap;
+        List<File> restoredFileList = new ArrayList<>();
+        if (requestCheckpointStore != null && requestCheckpointStore.isEnabled()) {
+            checkpoint = requestCheckpointStore.load(healthCode, request.getStartDate(), request.getEndDate());
+            if (!checkpoint.isEmpty()) {
+                remainingSchemaMap = new LinkedHashMap<>();
+                for (Map.Entry<String, UploadSchema> oneEntry : synapseToSchemaMap.entrySet()) {
+                    List<ZipSegment> doneSegmentList = checkpoint.getDoneSegmentList(oneEntry.getKey());
+                    if (doneSegmentList == null) {
+                        remainingSchemaMap.put(oneEntry.getKey(), oneEntry.getValue());
+                        continue;
+                    }
+
+                    for (ZipSegment oneSegment : doneSegmentList) {
+                        File restoredFile = fileHelper.newFile(tmpDir, oneSegment.getEntryName());
+                        segmentUploads.addReady(restoredFile, oneSegment);
+                        restoredFileList.add(restoredFile);
+                    }
+                }
+                LOG.info("Restored " + (synapseToSchemaMap.size() - remainingSchemaMap.size()) + " of " +
+                        synapseToSchemaMap.size() + " tables from checkpoint for userId=" + request.getUserId());
             }
+        }
 
-            // Zip up all upload files. Filename is "userdata-[startDate]-to-[endDate]-[random guid].zip". This allows
-            // the filename to be unique, user-friendly, and contain no identifying info.
-            String masterZipFileName = "userdata-" + request.getStartDate() + "-to-" + request.getEndDate() + "-" +
-                    UUID.randomUUID().toString() + ".zip";
-            masterZipFile = fileHelper.newFile(tmpDir, masterZipFileName);
-            zipFiles(allFileList, masterZipFile);
+        // Reserve temp storage for the tables we're about to download, so the node's quota counts them while they
+        // download, not just once they're done.
+        tempStorageManager.reserve(tempStorageAllocation, estimateTempBytes(remainingSchemaMap.keySet()));
 
-            uploadToS3(masterZipFile);
-            return generatePresignedUrlInfo(masterZipFileName);
-        } finally {
-            cleanupFiles(allFileList, masterZipFile, tmpDir);
+        // create and execute Synapse downloads asynchronously
+        RequestCheckpoint finalCheckpoint = checkpoint;
+        session.queryFutureMap.putAll(initAsyncQueryTasks(remainingSchemaMap, healthCode, request, tmpDir,
+                cancellationToken, checkpoint, (synapseTableId, result) -> {
+                    tempStorageManager.measureUsage(tempStorageAllocation);
+                    if (result.getCsvFile() != null) {
+                        surveyTasks.startQuietly();
+                    }
+                    if (finalCheckpoint == null) {
+                        segmentUploads.startQuietly(result.getCsvFile());
+                        segmentUploads.startQuietly(result.getBulkDownloadFile());
+                    } else {
+                        checkpointTable(finalCheckpoint, synapseTableId, result, segmentUploads);
+                    }
+                }));
+
+        // wait for async tasks - We need to wait for all tasks and gather up all files before we check whether we
+        // have no query results. Otherwise, we won't know to clean up these files, and we'll leave garbage on our
+        // file system.
+        List<File> queryFileList = waitForAsyncQueryTasks(tmpDir, session.queryFutureMap, cancellationToken);
+        allFileList.addAll(queryFileList);
+
+        if (queryFileList.isEmpty() && restoredFileList.isEmpty()) {
+            // There are no files to send, meaning there is no user data to send. Return null, to signal that there
+            // is no pre-signed URL to send. Unless the caller started them early, surveys were never started.
+            if (checkpoint != null) {
+                requestCheckpointStore.delete(checkpoint);
+            }
+            return null;
+        }
+        if (!restoredFileList.isEmpty()) {
+            // Restored tables have data, but never reported it, so surveys might not be started yet.
+            surveyTasks.startQuietly();
+        }
+        allFileList.addAll(restoredFileList);
+
+        // If we got this far, we have either data or errors to send to the user, so we need surveys. If no table
+        // has started them yet (for example, if all tables failed), this starts them now, unless the request was
+        // already cancelled, in which case they'd only fail.
+        List<File> surveyFileList;
+        Map<String, Future<SynapseDownloadSurveyResult>> surveyFutureMap = surveyTasks.startUnlessCancelled();
+        if (surveyFutureMap != null) {
+            surveyFileList = waitForAsyncSurveyTasks(tmpDir, surveyFutureMap, cancellationToken, segmentUploads);
+        } else if (session.surveyTableIdSet.isEmpty()) {
+            surveyFileList = ImmutableList.of();
+        } else {
+            String errorMsg = "Surveys were not downloaded, because the request was cancelled (" +
+                    cancellationToken.getReason() + "). They are missing from this download.";
+            LOG.warn(errorMsg);
+            surveyFileList = ImmutableList.of(writeErrorLog(ImmutableList.of(errorMsg), METADATA_ERROR_LOG_FILE_NAME,
+                    tmpDir));
+        }
+        allFileList.addAll(surveyFileList);
+        tempStorageManager.measureUsage(tempStorageAllocation);
+
+        // Zip up all upload files. Filename is "userdata-[startDate]-to-[endDate]-[content hash].zip". This allows
+        // the filename to be unique, user-friendly, and contain no identifying info, and lets a repeated request
+        // reuse the zip from the earlier one. If the download is split, each part gets its own hash, and
+        // "-partN-of-M" before the ".zip". Files are sorted, so the same files always make the same zip.
+        String masterZipFilePrefix = "userdata-" + request.getStartDate() + "-to-" + request.getEndDate();
+        allFileList.sort(Comparator.comparing(File::getName));
+        List<ZipSegment> segmentList = segmentUploads.collect(allFileList);
+        tempStorageManager.measureUsage(tempStorageAllocation);
+
+        List<ArchivePart> partList = splitIntoParts(masterZipFilePrefix, allFileList, segmentList);
+        uploadParts(partList, tmpDir, session.localZipFileList);
+        tempStorageManager.measureUsage(tempStorageAllocation);
+
+        // Downloads with error logs (failed tables or the deadline) aren't reused by later requests.
+        boolean reusable = allFileList.stream().noneMatch(file -> ERROR_LOG_FILE_NAME.equals(file.getName()) ||
+                METADATA_ERROR_LOG_FILE_NAME.equals(file.getName()));
+        PresignedUrlInfo presignedUrlInfo = generatePresignedUrlInfo(partList, reusable);
+
+        // The download is in S3, so a retry wouldn't need the checkpoint.
+        if (checkpoint != null) {
+            requestCheckpointStore.delete(checkpoint);
+        }
+        return presignedUrlInfo;
+    }
+
+    // Estimates the temp storage the given tables will use, from their historical CSV sizes. Each CSV is written once,
+    // and then again as its zip segment. Tables we have no stats for aren't counted, so the estimate is a floor.
+    private long estimateTempBytes(Collection<String> synapseTableIds) {
+        long estimatedBytes = 0;
+        for (String oneTableId : synapseTableIds) {
+            SynapseTableStats stats = synapseTableStatsTracker.getStats(oneTableId);
+            if (stats != null) {
+                estimatedBytes += stats.getCsvBytes() * 2;
+            }
+        }
+        return estimatedBytes;
+    }
+
+    /**
+     * Starts the segments for a finished table, uploading all of them to S3 so they can be saved in the checkpoint.
+     * Once they're uploaded, the table is saved to the checkpoint as done. Tables with no data are saved right away.
+     * Called from table task callbacks, so errors are logged instead of thrown. If a segment fails, the table isn't
+     * saved, and a retry downloads it again.
+     */
+    private void checkpointTable(RequestCheckpoint checkpoint, String synapseTableId,
+            SynapseDownloadFromTableResult result, ZipSegmentUploads segmentUploads) {
+        if (result.getCsvFile() == null) {
+            checkpoint.recordTableDone(synapseTableId, ImmutableList.of());
+            requestCheckpointStore.save(checkpoint);
+            return;
+        }
+
+        StageFunction<ZipSegment, ZipSegment> uploader = segment -> requestCheckpointStore.putSegment(checkpoint,
+                s3ZipAssembler.uploadSegment(segment));
+        List<CompletableFuture<ZipSegment>> futureList = new ArrayList<>();
+        for (File oneFile : Arrays.asList(result.getCsvFile(), result.getBulkDownloadFile())) {
+            if (oneFile != null) {
+                CompletableFuture<ZipSegment> future = segmentUploads.startQuietly(oneFile, uploader);
+                if (future == null) {
+                    return;
+                }
+                futureList.add(future);
+            }
         }
+
+        CompletableFuture.allOf(futureList.toArray(new CompletableFuture[futureList.size()])).whenComplete(
+                (ignored, ex) -> {
+                    if (ex != null) {
+                        LOG.warn("Error uploading segments for table " + synapseTableId + ", not checkpointing it: " +
+                                ex.getMessage());
+                        return;
+                    }
+
+                    List<ZipSegment> segmentList = new ArrayList<>();
+                    for (CompletableFuture<ZipSegment> oneFuture : futureList) {
+                        segmentList.add(oneFuture.join());
+                    }
+                    checkpoint.recordTableDone(synapseTableId, segmentList);
+                    requestCheckpointStore.save(checkpoint);
+                });
     }
 
     /**
      * <p>
      * Kicks off the async SynapseDownloadFromTableTasks. These tasks query the Synapse table and download both the
-     * CSV and the bulk download for attached file handles.
+     * CSV and the bulk download for attached file handles. Tables the {@link NoDataCache} says have no rows for the
+     * user are skipped, and tables that turn out to have no rows are added to it.
      * </p>
      * <p>
      * This is made package-scoped so unit tests can hook into it.
@@ -176,15 +510,32 @@ public class SynapsePackager {
      *         Bridge UDD request, used to get the start and end date
      * @param tmpDir
      *         temp directory that files should be downloaded to
-     * @return list of Futures for the async tasks
+     * @param cancellationToken
+     *         cancellation token for the request
+     * @param checkpoint
+     *         the request's checkpoint, used to resume and save running queries, or null if checkpoints are disabled
+     * @param onTableFinished
+     *         called with the table ID and the task's result when a task completes successfully
+     * @return map from Synapse table ID to the Future for that table's async task
      */
-    List<Future<SynapseDownloadFromTableResult>> initAsyncQueryTasks(Map<String, UploadSchema> synapseToSchemaMap,
-            String healthCode, BridgeUddRequest request, File tmpDir) {
-        List<Future<SynapseDownloadFromTableResult>> taskFutureList = new ArrayList<>();
-        for (Map.Entry<String, UploadSchema> oneSynapseToSchemaEntry : synapseToSchemaMap.entrySet()) {
+    Map<String, Future<SynapseDownloadFromTableResult>> initAsyncQueryTasks(
+            Map<String, UploadSchema> synapseToSchemaMap, String healthCode, BridgeUddRequest request, File tmpDir,
+            CancellationToken cancellationToken, RequestCheckpoint checkpoint,
+            BiConsumer<String, SynapseDownloadFromTableResult> onTableFinished) {
+        // Submit the most expensive tables first. Otherwise, a huge table that starts last stretches the request well
+        // past what it needs.
+        Map<String, Future<SynapseDownloadFromTableResult>> taskFutureMap = new LinkedHashMap<>();
+        int skippedTableCount = 0;
+        for (String synapseTableId : synapseTableStatsTracker.orderLargestFirst(synapseToSchemaMap.keySet())) {
+            // Skip tables we recently found to have no rows for this user in this date range.
+            if (noDataCache != null && noDataCache.hasNoData(healthCode, synapseTableId, request.getStartDate(),
+                    request.getEndDate())) {
+                skippedTableCount++;
+                continue;
+            }
+
             // create params
-            String synapseTableId = oneSynapseToSchemaEntry.getKey();
-            UploadSchema schema = oneSynapseToSchemaEntry.getValue();
+            UploadSchema schema = synapseToSchemaMap.get(synapseTableId);
             SynapseDownloadFromTableParameters param = new SynapseDownloadFromTableParameters.Builder()
                     .withSynapseTableId(synapseTableId).withHealthCode(healthCode)
                     .withStartDate(request.getStartDate()) .withEndDate(request.getEndDate()).withTempDir(tmpDir)
@@ -192,26 +543,53 @@ public class SynapsePackager {
 
             // kick off async task
             SynapseDownloadFromTableTask task = new SynapseDownloadFromTableTask(param);
+            task.setAttachmentCache(attachmentCache);
+            task.setCancellationToken(cancellationToken);
+            if (checkpoint != null) {
+                task.setCheckpoint(checkpoint, requestCheckpointStore);
+            }
             task.setFileHelper(fileHelper);
             task.setSynapseHelper(synapseHelper);
-            Future<SynapseDownloadFromTableResult> taskFuture = auxiliaryExecutorService.submit(task);
-            taskFutureList.add(taskFuture);
+            task.setUserTableDayStore(userTableDayStore);
+            task.setZipHelper(zipHelper);
+            CompletableFuture<SynapseDownloadFromTableResult> taskFuture = taskGraphExecutor.submit(task)
+                    .whenComplete((result, ex) -> {
+                        if (result != null) {
+                            if (noDataCache != null && result.getCsvFile() == null) {
+                                noDataCache.recordNoData(healthCode, synapseTableId, request.getStartDate(),
+                                        request.getEndDate());
+                            }
+                            onTableFinished.accept(synapseTableId, result);
+                        }
+                    });
+            taskFutureMap.put(synapseTableId, taskFuture);
         }
 
-        return taskFutureList;
+        if (skippedTableCount > 0) {
+            LOG.info("Skipped " + skippedTableCount + " of " + synapseToSchemaMap.size() +
+                    " tables with no data for userId=" + request.getUserId());
+        }
+        return taskFutureMap;
     }
 
     /**
-     * Kicks off async tasks to download survey metadata from Synapse.
+     * Kicks off async tasks to download survey metadata from Synapse. Tasks use the shared survey store if it has the
+     * survey. Surveys downloaded from Synapse are written as segments and stored in the shared survey store as soon as
+     * they finish, so later requests can skip Synapse.
      *
      * @param surveyTableIdSet
      *         set of survey metadata table IDs to download
      * @param tmpDir
      *         temp dir to download tables to
-     * @return list of Futures for the async tasks
+     * @param cancellationToken
+     *         cancellation token for the request
+     * @param segmentUploads
+     *         the request's segment uploads
+     * @return map from survey table ID to the Future for that table's async task
      */
-    private List<Future<File>> initAsyncSurveyTasks(Set<String> surveyTableIdSet, File tmpDir) {
-        List<Future<File>> futureList = new ArrayList<>();
+    private Map<String, Future<SynapseDownloadSurveyResult>> initAsyncSurveyTasks(Set<String> surveyTableIdSet,
+            File tmpDir, CancellationToken cancellationToken, ZipSegmentUploads segmentUploads) {
+        Map<String, Future<SynapseDownloadSurveyResult>> futureMap = new LinkedHashMap<>();
         for (String oneTableId : surveyTableIdSet) {
             // create params
             SynapseDownloadSurveyParameters param = new SynapseDownloadSurveyParameters.Builder()
@@ -219,35 +597,53 @@ public class SynapsePackager {
 
             // kick off async task
             SynapseDownloadSurveyTask task = new SynapseDownloadSurveyTask(param);
+            task.setCancellationToken(cancellationToken);
             task.setFileHelper(fileHelper);
+            task.setSharedSurveyStore(sharedSurveyStore);
+            task.setSurveyCsvCache(surveyCsvCache);
             task.setSynapseHelper(synapseHelper);
-            Future<File> future = auxiliaryExecutorService.submit(task);
-            futureList.add(future);
+            Future<SynapseDownloadSurveyResult> future = taskGraphExecutor.submit(task).whenComplete((result, ex) -> {
+                if (sharedSurveyStore != null && result != null && result.getFile() != null &&
+                        result.getEtag() != null) {
+                    segmentUploads.startQuietly(result.getFile(), segment -> sharedSurveyStore.put(oneTableId,
+                            result.getEtag(), segment));
+                }
+            });
+            futureMap.put(oneTableId, future);
         }
 
-        return futureList;
+        return futureMap;
     }
 
     /**
      * Waits on the async tasks, then gathers up all the files downloaded. This also writes a log with error messages
-     * for each failed async task.
+     * for each failed async task, and for each task that didn't finish before the request deadline.
      *
      * @param tmpDir
      *         temp directory files should be downloaded to and error log should be written to
-     * @param taskFutureList
-     *         list of Futures for async tasks that should be waited on
+     * @param taskFutureMap
+     *         map from Synapse table ID to the Future for that table's async task
+     * @param cancellationToken
+     *         cancellation token for the request, which carries the request's deadline (if any)
      * @return list of all files downloaded, plus error log
      * @throws IOException
      *         if writing the error log fails
      */
-    private List<File> waitForAsyncQueryTasks(File tmpDir, List<Future<SynapseDownloadFromTableResult>> taskFutureList)
+    private List<File> waitForAsyncQueryTasks(File tmpDir,
+            Map<String, Future<SynapseDownloadFromTableResult>> taskFutureMap, CancellationToken cancellationToken)
             throws IOException {
-        // join on threads until they're all done
+        // join on threads until they're all done, or until the deadline
         List<File> allFileList = new ArrayList<>();
         List<String> errorList = new ArrayList<>();
-        for (Future<SynapseDownloadFromTableResult> oneTaskFuture : taskFutureList) {
+        for (Map.Entry<String, Future<SynapseDownloadFromTableResult>> oneTaskEntry : taskFutureMap.entrySet()) {
+            String synapseTableId = oneTaskEntry.getKey();
             try {
-                SynapseDownloadFromTableResult taskResult = oneTaskFuture.get();
+                SynapseDownloadFromTableResult taskResult = oneTaskEntry.getValue().get(
+                        cancellationToken.getRemainingMillis(), TimeUnit.MILLISECONDS);
+
+                if (taskResult.getStats() != null) {
+                    synapseTableStatsTracker.recordRun(taskResult.getStats());
+                }
 
                 if (taskResult.getCsvFile() != null) {
                     allFileList.add(taskResult.getCsvFile());
@@ -256,6 +652,8 @@ public class SynapsePackager {
                 if (taskResult.getBulkDownloadFile() != null) {
                     allFileList.add(taskResult.getBulkDownloadFile());
                 }
+            } catch (TimeoutException ex) {
+                errorList.add(handleDeadlineExceeded("Table " + synapseTableId, cancellationToken));
             } catch (ExecutionException | InterruptedException ex) {
                 String errorMsg = "Error downloading CSV: " + ex.getMessage();
                 LOG.error(errorMsg, ex);
@@ -278,24 +676,41 @@ public class SynapsePackager {
 
     /**
      * Waits for the survey metadata async tasks. Returns a list of the downloaded metadata files. The list also
-     * includes an error log, if there are any errors.
+     * includes an error log, if there are any errors or if any tasks didn't finish before the request deadline.
+     * Surveys that came from the shared survey store are listed under the file name they'd have if they were
+     * downloaded, and their shared segments are handed to the segment uploads. These files don't exist locally.
      *
      * @param tmpDir
      *         temp directory files should be downloaded to and error log should be written to
-     * @param futureList
-     *         list of Futures for async tasks that should be waited on
+     * @param futureMap
+     *         map from survey table ID to the Future for that table's async task
+     * @param cancellationToken
+     *         cancellation token for the request, which carries the request's deadline (if any)
+     * @param segmentUploads
+     *         the request's segment uploads
      * @return list of all files downloaded, plus error log
      * @throws IOException
      *         if writing the error log fails
      */
-    private List<File> waitForAsyncSurveyTasks(File tmpDir, List<Future<File>> futureList) throws IOException {
-        // join on threads until they're all done
+    private List<File> waitForAsyncSurveyTasks(File tmpDir, Map<String, Future<SynapseDownloadSurveyResult>> futureMap,
+            CancellationToken cancellationToken, ZipSegmentUploads segmentUploads) throws IOException {
+        // join on threads until they're all done, or until the deadline
         List<File> fileList = new ArrayList<>();
         List<String> errorList = new ArrayList<>();
-        for (Future<File> oneFuture : futureList) {
+        for (Map.Entry<String, Future<SynapseDownloadSurveyResult>> oneEntry : futureMap.entrySet()) {
             try {
-                File file = oneFuture.get();
-                fileList.add(file);
+                SynapseDownloadSurveyResult result = oneEntry.getValue().get(cancellationToken.getRemainingMillis(),
+                        TimeUnit.MILLISECONDS);
+                if (result.getSharedSegment() != null) {
+                    ZipSegment sharedSegment = result.getSharedSegment();
+                    File sharedFile = fileHelper.newFile(tmpDir, sharedSegment.getEntryName());
+                    segmentUploads.addReady(sharedFile, sharedSegment);
+                    fileList.add(sharedFile);
+                } else {
+                    fileList.add(result.getFile());
+                }
+            } catch (TimeoutException ex) {
+                errorList.add(handleDeadlineExceeded("Survey table " + oneEntry.getKey(), cancellationToken));
             } catch (ExecutionException | InterruptedException ex) {
                 String errorMsg = "Error downloading survey: " + ex.getMessage();
                 LOG.error(errorMsg, ex);
@@ -316,6 +731,86 @@ public class SynapsePackager {
         return fileList;
     }
 
+    /**
+     * Called when a task doesn't finish before the request deadline. Cancels the request's pending work (this is a
+     * no-op after the first call), and returns the error message to write to the user's error log.
+     *
+     * @param description
+     *         description of what's missing, used in the error message
+     * @param cancellationToken
+     *         cancellation token for the request
+     * @return error message for the user's error log
+     */
+    private static String handleDeadlineExceeded(String description, CancellationToken cancellationToken) {
+        cancellationToken.cancel(CancellationToken.REASON_DEADLINE_EXCEEDED);
+        String errorMsg = description + " did not finish before the request deadline. Its data is missing from this " +
+                "download.";
+        LOG.warn(errorMsg);
+        return errorMsg;
+    }
+
+    /**
+     * Called after the cancellation token is cancelled. Waits for any tasks that are still running to settle (most
+     * will fail quickly with a CancellationException) and gathers up the files from any that finished, so they can be
+     * cleaned up. Errors are ignored, since they've already been reported (or we're already failing). Tasks that don't
+     * settle before the drain deadline (such as ones stuck on a network call) are abandoned and logged. Their files
+     * are cleaned up with the temp dir, or by orphan cleanup on the next startup.
+     *
+     * @param queryFutureMap
+     *         futures for the table tasks, by table ID
+     * @param surveyFutureMap
+     *         futures for the survey tasks, by table ID, if they were started
+     * @param drainToken
+     *         token whose deadline is the end of the grace period
+     * @return list of files left behind by the tasks
+     */
+    private List<File> drainTasks(Map<String, Future<SynapseDownloadFromTableResult>> queryFutureMap,
+            Map<String, Future<SynapseDownloadSurveyResult>> surveyFutureMap, CancellationToken drainToken) {
+        List<File> fileList = new ArrayList<>();
+        List<String> abandonedList = new ArrayList<>();
+        for (Map.Entry<String, Future<SynapseDownloadFromTableResult>> oneEntry : queryFutureMap.entrySet()) {
+            try {
+                SynapseDownloadFromTableResult taskResult = oneEntry.getValue().get(drainToken.getRemainingMillis(),
+                        TimeUnit.MILLISECONDS);
+                if (taskResult.getCsvFile() != null) {
+                    fileList.add(taskResult.getCsvFile());
+                }
+                if (taskResult.getBulkDownloadFile() != null) {
+                    fileList.add(taskResult.getBulkDownloadFile());
+                }
+            } catch (TimeoutException ex) {
+                oneEntry.getValue().cancel(true);
+                abandonedList.add("table " + oneEntry.getKey());
+            } catch (ExecutionException | RuntimeException ex) {
+                // The task failed or was cancelled. It cleans up its own files.
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Map.Entry<String, Future<SynapseDownloadSurveyResult>> oneEntry : surveyFutureMap.entrySet()) {
+            try {
+                SynapseDownloadSurveyResult result = oneEntry.getValue().get(drainToken.getRemainingMillis(),
+                        TimeUnit.MILLISECONDS);
+                if (result.getFile() != null) {
+                    fileList.add(result.getFile());
+                }
+            } catch (TimeoutException ex) {
+                oneEntry.getValue().cancel(true);
+                abandonedList.add("survey table " + oneEntry.getKey());
+            } catch (ExecutionException | RuntimeException ex) {
+                // The task failed or was cancelled. It cleans up its own files.
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (!abandonedList.isEmpty()) {
+            LOG.warn("Abandoning tasks still running " + drainGraceSeconds + " seconds after the request finished: " +
+                    abandonedList);
+        }
+        return fileList;
+    }
+
     /**
      * Given a list of error messages, a file name, and a directory to write to, this creates the error log with those
      * error messages. This is generally used for packaging an error log to send to users, so they know if their
@@ -341,7 +836,8 @@ public class SynapsePackager {
     }
 
     /**
-     * Helper method that calls through to ZipHelper. This also adds timing metrics and logging.
+     * Helper method that calls through to ZipHelper, on the zip stage of the task graph executor. This also adds
+     * timing metrics and logging.
      *
      * @param allFileList
      *         list of files to zip up
@@ -353,7 +849,10 @@ public class SynapsePackager {
     private void zipFiles(List<File> allFileList, File masterZipFile) throws IOException {
         Stopwatch zipStopwatch = Stopwatch.createStarted();
         try {
-            zipHelper.zip(allFileList, masterZipFile);
+            runFinalStage(PackagingStage.ZIP, masterZipFile.getName(), () -> {
+                zipHelper.zip(allFileList, masterZipFile);
+                return null;
+            });
         } finally {
             zipStopwatch.stop();
             LOG.info("Zipping to file " + masterZipFile.getAbsolutePath() + " took " +
@@ -362,70 +861,589 @@ public class SynapsePackager {
     }
 
     /**
-     * Helper method that calls through to the S3Helper. This also adds timing metrics and logging.
+     * Splits the files into part archives, so that no part is bigger than the max part size (unless a single file is
+     * bigger than that). Files stay in order. If the max part size is 0, or everything fits, there's a single part,
+     * with the usual file name.
+     *
+     * @param masterZipFilePrefix
+     *         master zip file name, without the ".zip"
+     * @param fileList
+     *         files to package
+     * @param segmentList
+     *         zip segment for each file, in the same order
+     * @return list of parts
+     */
+    private List<ArchivePart> splitIntoParts(String masterZipFilePrefix, List<File> fileList,
+            List<ZipSegment> segmentList) {
+        List<List<Integer>> partIndexList = new ArrayList<>();
+        List<Integer> currentPart = new ArrayList<>();
+        long currentPartBytes = 0;
+        for (int i = 0; i < segmentList.size(); i++) {
+            long segmentLength = segmentList.get(i).getLength();
+            if (maxPartBytes > 0 && !currentPart.isEmpty() && currentPartBytes + segmentLength > maxPartBytes) {
+                partIndexList.add(currentPart);
+                currentPart = new ArrayList<>();
+                currentPartBytes = 0;
+            }
+            currentPart.add(i);
+            currentPartBytes += segmentLength;
+        }
+        partIndexList.add(currentPart);
+
+        int numParts = partIndexList.size();
+        List<ArchivePart> partList = new ArrayList<>();
+        for (int partIdx = 0; partIdx < numParts; partIdx++) {
+            List<File> partFileList = new ArrayList<>();
+            List<ZipSegment> partSegmentList = new ArrayList<>();
+            for (int fileIdx : partIndexList.get(partIdx)) {
+                partFileList.add(fileList.get(fileIdx));
+                partSegmentList.add(segmentList.get(fileIdx));
+            }
+
+            String partPrefix = masterZipFilePrefix + "-" + hashContent(partSegmentList);
+            String partName = numParts == 1 ? partPrefix + ".zip" : partPrefix + "-part" + (partIdx + 1) + "-of-" +
+                    numParts + ".zip";
+            partList.add(new ArchivePart(partName, partFileList, partSegmentList));
+        }
+
+        if (numParts > 1) {
+            LOG.info("Split download " + masterZipFilePrefix + " into " + numParts + " parts");
+        }
+        return partList;
+    }
+
+    /**
+     * Hashes the content of a zip: the name and content hash of each entry, in order. This doesn't depend on how the
+     * entries were compressed, so the same files always get the same hash.
+     *
+     * @param segmentList
+     *         zip segments for the zip's entries
+     * @return SHA-256 of the zip's content, in hex
+     */
+    private static String hashContent(List<ZipSegment> segmentList) {
+        Hasher hasher = Hashing.sha256().newHasher();
+        for (ZipSegment oneSegment : segmentList) {
+            // Null separators, so different names and hashes can't run together into the same bytes.
+            hasher.putString(oneSegment.getEntryName(), Charsets.UTF_8).putByte((byte) 0);
+            hasher.putString(oneSegment.getContentHash(), Charsets.UTF_8).putByte((byte) 0);
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Uploads the part archives. Parts are assembled in S3 in parallel, on the upload stage of the task graph executor.
+     * Parts too big to assemble without ZIP64 fall back to being zipped locally and uploaded whole. Parts that were
+     * recently uploaded for an earlier request with the same content are reused instead. This also adds
+     * timing metrics and logging, and records the upload bandwidth for the zip compression policy. Only the bytes sent
+     * from this node count towards the bandwidth, since uploaded segments are copied server-side.
+     *
+     * @param partList
+     *         parts to upload
+     * @param tmpDir
+     *         temp dir, for parts that are zipped locally
+     * @param localZipFileList
+     *         parts that are zipped locally are added to this list, so they can be cleaned up
+     * @throws IOException
+     *         if reading the segment files or zipping fails
+     */
+    private void uploadParts(List<ArchivePart> partList, File tmpDir, List<File> localZipFileList)
+            throws IOException {
+        // Assembling gets its own token, not the request's. If the request hit its deadline, we still need to upload
+        // the tables that finished, so we can deliver partial results.
+        Stopwatch assembleStopwatch = Stopwatch.createStarted();
+        CancellationToken uploadCancellationToken = new CancellationToken();
+        Map<String, CompletableFuture<Long>> assembleFutureMap = new LinkedHashMap<>();
+        for (ArchivePart onePart : partList) {
+            if (zipHelper.canAssemble(onePart.getSegmentList())) {
+                assembleFutureMap.put(onePart.getName(), taskGraphExecutor.submitStage(PackagingStage.UPLOAD,
+                        onePart.getName(), uploadCancellationToken, () -> {
+                            if (s3ZipAssembler.isZipReusable(onePart.getName())) {
+                                LOG.info("Reusing existing zip " + onePart.getName());
+                                return 0L;
+                            }
+                            return s3ZipAssembler.assemble(onePart.getName(), onePart.getSegmentList());
+                        }));
+            }
+        }
+
+        // Too big to assemble without ZIP64. Zip and upload the old way. This is rare, so these go one at a time,
+        // while the other parts are assembled.
+        for (ArchivePart onePart : partList) {
+            if (!assembleFutureMap.containsKey(onePart.getName())) {
+                if (s3ZipAssembler.isZipReusable(onePart.getName())) {
+                    LOG.info("Reusing existing zip " + onePart.getName());
+                    continue;
+                }
+
+                LOG.warn("Zip " + onePart.getName() + " is too big to assemble in S3, zipping locally");
+                extractRemoteSegments(onePart);
+                File partZipFile = fileHelper.newFile(tmpDir, onePart.getName());
+                localZipFileList.add(partZipFile);
+                zipFiles(onePart.getFileList(), partZipFile);
+                uploadToS3(partZipFile);
+            }
+        }
+
+        if (assembleFutureMap.isEmpty()) {
+            return;
+        }
+
+        // Let all parts settle, even if one fails, so we don't leave stages running against files we're about to
+        // clean up. Then report the first failure, if any.
+        for (CompletableFuture<Long> oneFuture : assembleFutureMap.values()) {
+            oneFuture.handle((result, ex) -> null).join();
+        }
+        long sentBytes = 0;
+        for (Map.Entry<String, CompletableFuture<Long>> oneFutureEntry : assembleFutureMap.entrySet()) {
+            sentBytes += waitForFinalStage(PackagingStage.UPLOAD, oneFutureEntry.getKey(), oneFutureEntry.getValue());
+        }
+
+        assembleStopwatch.stop();
+        long assembleMillis = assembleStopwatch.elapsed(TimeUnit.MILLISECONDS);
+        LOG.info("Assembling " + assembleFutureMap.size() + " zips in S3 took " + assembleMillis + " ms");
+        zipCompressionPolicy.recordUploadThroughput(sentBytes, assembleMillis);
+    }
+
+    /**
+     * Shared segments only exist in S3. Before zipping a part locally, extract them to the files they stand in for.
+     *
+     * @param part
+     *         part to be zipped locally
+     * @throws IOException
+     *         if reading the segment or writing the file fails
+     */
+    private void extractRemoteSegments(ArchivePart part) throws IOException {
+        List<File> fileList = part.getFileList();
+        List<ZipSegment> segmentList = part.getSegmentList();
+        for (int i = 0; i < fileList.size(); i++) {
+            ZipSegment oneSegment = segmentList.get(i);
+            if (oneSegment.getSegmentFile() == null) {
+                zipHelper.extractSegment(s3ZipAssembler.openSegmentStream(oneSegment), fileList.get(i));
+            }
+        }
+    }
+
+    /**
+     * Runs one of the final stages (zipping) on the task graph executor and waits for it. The stage gets its own
+     * token, not the request's. If the request hit its deadline, we still need to package the tables that finished,
+     * so we can deliver partial results.
+     *
+     * @param stage
+     *         stage to run
+     * @param taskName
+     *         task name, used for logging
+     * @param callable
+     *         body of the stage
+     * @return the stage's result
+     * @throws IOException
+     *         if the stage fails with an IOException, or with a checked exception, or is interrupted
+     */
+    private <T> T runFinalStage(PackagingStage stage, String taskName, StageCallable<T> callable)
+            throws IOException {
+        return waitForFinalStage(stage, taskName, taskGraphExecutor.submitStage(stage, taskName,
+                new CancellationToken(), callable));
+    }
+
+    /**
+     * Waits for one of the final stages, and unwraps its exception.
+     *
+     * @param stage
+     *         stage being waited on, used for error messages
+     * @param taskName
+     *         task name, used for error messages
+     * @param future
+     *         future for the stage
+     * @return the stage's result
+     * @throws IOException
+     *         if the stage fails with an IOException, or with a checked exception, or is interrupted
+     */
+    private static <T> T waitForFinalStage(PackagingStage stage, String taskName, Future<T> future)
+            throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new IOException("Error in stage " + stage + " for " + taskName + ": " + cause.getMessage(),
+                        cause);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted in stage " + stage + " for " + taskName, ex);
+        }
+    }
+
+    /**
+     * Helper method that calls through to the S3Helper. This also adds timing metrics and logging, and records the
+     * upload bandwidth for the zip compression policy.
      *
      * @param masterZipFile
      *         zip file to upload to S3
+     * @throws IOException
+     *         if reading an in-memory zip file fails
      */
-    private void uploadToS3(File masterZipFile) {
+    private void uploadToS3(File masterZipFile) throws IOException {
+        // Small zips may only exist in memory (see HybridFileHelper). Those are uploaded as bytes. Otherwise, upload
+        // straight from disk.
+        byte[] masterZipBytes = null;
+        long masterZipLength;
+        if (masterZipFile.isFile()) {
+            masterZipLength = masterZipFile.length();
+        } else {
+            try (InputStream masterZipInputStream = fileHelper.getInputStream(masterZipFile)) {
+                masterZipBytes = ByteStreams.toByteArray(masterZipInputStream);
+            }
+            masterZipLength = masterZipBytes.length;
+        }
+
         // upload to S3
         Stopwatch uploadToS3Stopwatch = Stopwatch.createStarted();
         try {
-            s3Helper.writeFileToS3(userdataBucketName, masterZipFile.getName(), masterZipFile);
+            if (masterZipBytes != null) {
+                s3Helper.writeBytesToS3(userdataBucketName, masterZipFile.getName(), masterZipBytes);
+            } else {
+                s3Helper.writeFileToS3(userdataBucketName, masterZipFile.getName(), masterZipFile);
+            }
         } finally {
             uploadToS3Stopwatch.stop();
-            LOG.info("Uploading file " + masterZipFile.getAbsolutePath() + " to S3 took " +
-                    uploadToS3Stopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+            long uploadMillis = uploadToS3Stopwatch.elapsed(TimeUnit.MILLISECONDS);
+            LOG.info("Uploading file " + masterZipFile.getAbsolutePath() + " to S3 took " + uploadMillis + " ms");
+            zipCompressionPolicy.recordUploadThroughput(masterZipLength, uploadMillis);
         }
     }
 
     /**
-     * Generate the pre-signed URL for the master zip file.
+     * Generate the pre-signed URLs for the part archives.
      *
-     * @param masterZipFilename
-     *         master zip file name
-     * @return pre-signed URL info, including the actual URL and the expiration time.
+     * @param partList
+     *         part archives, in order
+     * @param reusable
+     *         true if later identical requests can reuse the part archives, in which case their S3 keys are included
+     * @return pre-signed URL info, including the actual URLs and the expiration time.
      */
-    private PresignedUrlInfo generatePresignedUrlInfo(String masterZipFilename) {
-        // Get pre-signed URL for download. This URL expires after a number of hours, defined by configuration.
+    private PresignedUrlInfo generatePresignedUrlInfo(List<ArchivePart> partList, boolean reusable) {
+        // Get pre-signed URLs for download. These URLs expire after a number of hours, defined by configuration.
         DateTime expirationTime = DateTime.now().plusHours(urlExpirationHours);
-        URL presignedUrl = s3Helper.generatePresignedUrl(userdataBucketName, masterZipFilename, expirationTime,
-                HttpMethod.GET);
-        return new PresignedUrlInfo.Builder().withUrl(presignedUrl).withExpirationTime(expirationTime).build();
+        List<URL> presignedUrlList = new ArrayList<>();
+        List<String> objectKeyList = new ArrayList<>();
+        for (ArchivePart onePart : partList) {
+            presignedUrlList.add(s3Helper.generatePresignedUrl(userdataBucketName, onePart.getName(),
+                    expirationTime, HttpMethod.GET));
+            objectKeyList.add(onePart.getName());
+        }
+        return new PresignedUrlInfo.Builder().withUrlList(presignedUrlList)
+                .withObjectKeyList(reusable ? objectKeyList : null).withExpirationTime(expirationTime).build();
+    }
+
+    /** One part archive of the download: its file name (also its S3 key), its files, and their zip segments. */
+    private static class ArchivePart {
+        private final String name;
+        private final List<File> fileList;
+        private final List<ZipSegment> segmentList;
+
+        ArchivePart(String name, List<File> fileList, List<ZipSegment> segmentList) {
+            this.name = name;
+            this.fileList = fileList;
+            this.segmentList = segmentList;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        List<File> getFileList() {
+            return fileList;
+        }
+
+        List<ZipSegment> getSegmentList() {
+            return segmentList;
+        }
     }
 
     /**
-     * <p>
-     * Cleans up all the files we wrote for the given run. If the files are null or don't exist, skip them.
-     * </p>
-     * <p>
-     * This is package-scoped to allow direct access from unit tests.
-     * </p>
-     *
-     * @param allFileList
-     *         list of files returned by the async tasks
-     * @param masterZipFile
-     *         master zip file, zip of the files returned by the async tasks
-     * @param tmpDir
-     *         temp dir containing all these files, obviously deleted last
+     * One request's packaging: its temp dir, segment uploads, survey tasks, and table tasks. Created by
+     * {@link #startPackaging}. Closing the session cancels anything still outstanding, waits for it to settle, and
+     * releases the temp dir.
      */
-    void cleanupFiles(List<File> allFileList, File masterZipFile, File tmpDir) {
-        // cleanup files
-        List<File> filesToDelete = new ArrayList<>();
-        if (allFileList != null) {
-            filesToDelete.addAll(allFileList);
+    public class PackagingSession implements AutoCloseable {
+        private final BridgeUddRequest request;
+        private final CancellationToken cancellationToken;
+        private final Set<String> surveyTableIdSet;
+        private final TempStorageAllocation tempStorageAllocation;
+        private final ZipSegmentUploads segmentUploads;
+        private final LazySurveyTasks surveyTasks;
+        private final List<File> allFileList = new ArrayList<>();
+        private final List<File> localZipFileList = new ArrayList<>();
+        private final Map<String, Future<SynapseDownloadFromTableResult>> queryFutureMap = new LinkedHashMap<>();
+        private boolean used = false;
+        private boolean closed = false;
+
+        PackagingSession(BridgeUddRequest request, Set<String> surveyTableIdSet, CancellationToken cancellationToken,
+                TempStorageAllocation tempStorageAllocation) {
+            this.request = request;
+            this.cancellationToken = cancellationToken;
+            this.surveyTableIdSet = surveyTableIdSet;
+            this.tempStorageAllocation = tempStorageAllocation;
+            File tmpDir = tempStorageAllocation.getDir();
+
+            // Each table's files are written as zip segments as soon as the table finishes.
+            this.segmentUploads = new ZipSegmentUploads(tmpDir, cancellationToken);
+
+            // Survey downloads are started by the first table that reports data, or by the caller.
+            this.surveyTasks = new LazySurveyTasks(cancellationToken, () -> initAsyncSurveyTasks(surveyTableIdSet,
+                    tmpDir, cancellationToken, segmentUploads));
         }
-        filesToDelete.add(masterZipFile);
 
-        for (File oneFileToDelete : filesToDelete) {
-            if (oneFileToDelete == null || !fileHelper.fileExists(oneFileToDelete)) {
-                // No file. No need to cleanup.
-                continue;
+        /**
+         * Starts the survey downloads now, instead of waiting for a table to report data. Surveys don't depend on the
+         * user, so callers use this to overlap surveys with the account lookup. If the user turns out to have no data,
+         * the surveys are cancelled when the session is closed. Errors are logged, and packaging tries again later.
+         */
+        public void startSurveys() {
+            surveyTasks.startQuietly();
+        }
+
+        // Called by packageSynapseData(), which can only be called once per session.
+        private synchronized void markUsed() {
+            if (closed) {
+                throw new IllegalStateException("Packaging session is already closed");
+            }
+            if (used) {
+                throw new IllegalStateException("Packaging session is already used");
+            }
+            used = true;
+        }
+
+        /**
+         * The outcome is known. Cancels anything still outstanding. If we failed or hit the deadline while tasks were
+         * still running, waits for them to settle, so we can clean up their files. (Tasks that already finished return
+         * immediately.) Files are deleted in the background, so we don't hold up the request. Closing more than once
+         * has no effect.
+         */
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+
+            // Tasks get a grace period to settle, so one stuck task can't hold up the worker forever.
+            cancellationToken.cancel("request finished");
+            CancellationToken drainToken = drainGraceSeconds > 0 ?
+                    CancellationToken.withTimeBudget(TimeUnit.SECONDS.toMillis(drainGraceSeconds)) :
+                    new CancellationToken();
+            allFileList.addAll(drainTasks(queryFutureMap, surveyTasks.getStartedFutureMap(), drainToken));
+            allFileList.addAll(segmentUploads.drain(drainToken));
+            taskGraphExecutor.finishRequest(cancellationToken);
+
+            allFileList.addAll(localZipFileList);
+            tempStorageManager.release(tempStorageAllocation, allFileList);
+        }
+    }
+
+    /**
+     * Starts the survey tasks for a request at most once. Tables complete on stage threads, so whichever table first
+     * reports data starts the surveys. The packager thread may also start them, if no table did.
+     */
+    private static class LazySurveyTasks {
+        private final CancellationToken cancellationToken;
+        private final Supplier<Map<String, Future<SynapseDownloadSurveyResult>>> starter;
+        private Map<String, Future<SynapseDownloadSurveyResult>> futureMap;
+
+        LazySurveyTasks(CancellationToken cancellationToken,
+                Supplier<Map<String, Future<SynapseDownloadSurveyResult>>> starter) {
+            this.cancellationToken = cancellationToken;
+            this.starter = starter;
+        }
+
+        /** Starts the survey tasks, if they haven't been started yet, and returns their futures by table ID. */
+        synchronized Map<String, Future<SynapseDownloadSurveyResult>> start() {
+            if (futureMap == null) {
+                futureMap = starter.get();
+            }
+            return futureMap;
+        }
+
+        /**
+         * Same as start(), but logs errors instead of throwing. Used from table task callbacks, where an exception
+         * would be mistaken for the table task failing. If this fails, the packager thread calls start() again later.
+         */
+        void startQuietly() {
+            try {
+                start();
+            } catch (RuntimeException ex) {
+                LOG.error("Error starting survey downloads: " + ex.getMessage(), ex);
+            }
+        }
+
+        /** Futures for the survey tasks by table ID, or an empty map if they haven't been started. */
+        /**
+         * Same as start(), but if the surveys haven't been started and the request was already cancelled, returns null
+         * instead of starting surveys that are sure to fail.
+         */
+        synchronized Map<String, Future<SynapseDownloadSurveyResult>> startUnlessCancelled() {
+            if (futureMap == null && cancellationToken.isCancelled()) {
+                return null;
+            }
+            return start();
+        }
+
+        synchronized Map<String, Future<SynapseDownloadSurveyResult>> getStartedFutureMap() {
+            return futureMap != null ? futureMap : ImmutableMap.of();
+        }
+    }
+
+    /**
+     * Writes files as zip segments and uploads them, as the files come in. Tables finish on stage threads, so they
+     * start their own segments. At the end, the packager thread collects the segments, and writes segments for
+     * anything that wasn't started (or failed) along the way.
+     */
+    private class ZipSegmentUploads {
+        private final File tmpDir;
+        private final CancellationToken cancellationToken;
+
+        // Segment futures, keyed by the file being zipped, and all segment files written, so we can clean them up.
+        // Both are guarded by "this".
+        private final Map<File, CompletableFuture<ZipSegment>> futureMap = new HashMap<>();
+        private final List<File> segmentFileList = new ArrayList<>();
+
+        ZipSegmentUploads(File tmpDir, CancellationToken cancellationToken) {
+            this.tmpDir = tmpDir;
+            this.cancellationToken = cancellationToken;
+        }
+
+        /**
+         * Starts writing and uploading the segment for the given file. Logs errors instead of throwing, since this is
+         * called from table task callbacks. If this fails, collect() writes the segment later. Null files are
+         * ignored.
+         */
+        void startQuietly(File file) {
+            startQuietly(file, s3ZipAssembler::uploadSegment);
+        }
+
+        /**
+         * Same as startQuietly(File), but uploads the segment with the given function. Returns the future for the
+         * uploaded segment, or null if the file is null or the segment couldn't be started.
+         */
+        CompletableFuture<ZipSegment> startQuietly(File file, StageFunction<ZipSegment, ZipSegment> uploader) {
+            if (file == null) {
+                return null;
+            }
+
+            try {
+                CompletableFuture<ZipSegment> writeFuture = taskGraphExecutor.submitStage(PackagingStage.ZIP,
+                        file.getName(), cancellationToken, () -> zipHelper.writeSegment(file, newSegmentFile(file)));
+                CompletableFuture<ZipSegment> uploadFuture = taskGraphExecutor.thenStage(writeFuture,
+                        PackagingStage.UPLOAD, file.getName(), cancellationToken, uploader);
+                synchronized (this) {
+                    futureMap.put(file, uploadFuture);
+                }
+                return uploadFuture;
+            } catch (RuntimeException ex) {
+                LOG.error("Error starting zip segment for file " + file.getName() + ": " + ex.getMessage(), ex);
+                return null;
+            }
+        }
+
+        /** Adds a segment that's already written, such as a shared survey segment, for the given file. */
+        synchronized void addReady(File file, ZipSegment segment) {
+            futureMap.put(file, CompletableFuture.completedFuture(segment));
+        }
+
+        /**
+         * Waits for the segments for the given files, in order. Files without a segment (error logs, surveys, and
+         * files whose segment failed or was cancelled by the deadline) are written as segments now, on a zip stage.
+         * These aren't uploaded on their own, since they're generally small.
+         */
+        List<ZipSegment> collect(List<File> fileList) throws IOException {
+            ZipSegment[] segments = new ZipSegment[fileList.size()];
+            List<Integer> missingIndexList = new ArrayList<>();
+            for (int i = 0; i < segments.length; i++) {
+                File oneFile = fileList.get(i);
+                CompletableFuture<ZipSegment> future;
+                synchronized (this) {
+                    future = futureMap.get(oneFile);
+                }
+
+                if (future != null) {
+                    try {
+                        segments[i] = future.get();
+                    } catch (ExecutionException | RuntimeException ex) {
+                        LOG.warn("Error writing zip segment for file " + oneFile.getName() + ", retrying: " +
+                                ex.getMessage());
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for zip segment for file " +
+                                oneFile.getName(), ex);
+                    }
+                }
+
+                if (segments[i] == null) {
+                    missingIndexList.add(i);
+                }
+            }
+
+            if (!missingIndexList.isEmpty()) {
+                Stopwatch segmentStopwatch = Stopwatch.createStarted();
+                runFinalStage(PackagingStage.ZIP, "zip segments in " + tmpDir.getName(), () -> {
+                    for (int oneIndex : missingIndexList) {
+                        File oneFile = fileList.get(oneIndex);
+                        segments[oneIndex] = zipHelper.writeSegment(oneFile, newSegmentFile(oneFile));
+                    }
+                    return null;
+                });
+                LOG.info("Writing " + missingIndexList.size() + " remaining zip segments took " +
+                        segmentStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
             }
-            fileHelper.deleteFile(oneFileToDelete);
+
+            return Arrays.asList(segments);
         }
 
-        // clean up temp dir
-        fileHelper.deleteDir(tmpDir);
+        /**
+         * Called after the cancellation token is cancelled. Waits for outstanding segments to settle, until the drain
+         * deadline, and returns all segment files, so they can be cleaned up. Errors are ignored, and stuck segments
+         * are abandoned and logged, like in drainTasks().
+         */
+        List<File> drain(CancellationToken drainToken) {
+            Map<File, CompletableFuture<ZipSegment>> futureMapCopy;
+            synchronized (this) {
+                futureMapCopy = new HashMap<>(futureMap);
+            }
+
+            List<String> abandonedList = new ArrayList<>();
+            for (Map.Entry<File, CompletableFuture<ZipSegment>> oneEntry : futureMapCopy.entrySet()) {
+                try {
+                    oneEntry.getValue().get(drainToken.getRemainingMillis(), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException ex) {
+                    abandonedList.add(oneEntry.getKey().getName());
+                } catch (ExecutionException | RuntimeException ex) {
+                    // Already reported, or we're already failing.
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (!abandonedList.isEmpty()) {
+                LOG.warn("Abandoning zip segments still running after the request finished: " + abandonedList);
+            }
+
+            synchronized (this) {
+                return new ArrayList<>(segmentFileList);
+            }
+        }
+
+        // Creates the segment file for the given file, and remembers it for cleanup.
+        private File newSegmentFile(File file) {
+            File segmentFile = fileHelper.newFile(tmpDir, file.getName() + SEGMENT_FILE_SUFFIX);
+            synchronized (this) {
+                segmentFileList.add(segmentFile);
+            }
+            return segmentFile;
+        }
     }
 }
@@ -0,0 +1,139 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.udd.concurrent.PackagingStage;
+import org.sagebionetworks.bridge.udd.dynamodb.DynamoHelper;
+import org.sagebionetworks.bridge.udd.dynamodb.SynapseTableStats;
+
+/**
+ * <p>
+ * Keeps historical download stats for each Synapse table: CSV size, attachment count, and time spent in each stage.
+ * The packager uses these to start the most expensive tables first. If a huge table starts last, it stretches the
+ * request well past what it needs, whereas if it starts first, the smaller tables finish alongside it.
+ * </p>
+ * <p>
+ * Stats are moving averages, persisted in DDB so they survive restarts, and cached in memory so we only read each
+ * table's stats from DDB once. Stats are best effort. Errors reading or writing them are logged and otherwise ignored.
+ * </p>
+ */
+@Component
+public class SynapseTableStatsTracker {
+    private static final Logger LOG = LoggerFactory.getLogger(SynapseTableStatsTracker.class);
+
+    // Weight of the most recent run in the moving average, in percent.
+    private static final int AVERAGE_WEIGHT_PERCENT = 25;
+
+    // Cache of stats from DDB. Optional.empty() means we checked DDB and have no stats for that table.
+    private final Map<String, Optional<SynapseTableStats>> statsCache = new ConcurrentHashMap<>();
+
+    private DynamoHelper dynamoHelper;
+
+    /** DDB helper, used to read and write the persisted stats. */
+    @Autowired
+    public final void setDynamoHelper(DynamoHelper dynamoHelper) {
+        this.dynamoHelper = dynamoHelper;
+    }
+
+    /**
+     * Gets the historical stats for the given table.
+     *
+     * @param synapseTableId
+     *         Synapse table to get stats for
+     * @return historical stats, or null if we have no stats for this table
+     */
+    public SynapseTableStats getStats(String synapseTableId) {
+        return statsCache.computeIfAbsent(synapseTableId, this::loadStats).orElse(null);
+    }
+
+    /**
+     * Orders the given tables so the most expensive tables (by historical total stage time) come first. Tables we
+     * have no stats for come before all others, since for all we know, they might be the most expensive. Ties keep
+     * their original order.
+     *
+     * @param synapseTableIds
+     *         Synapse tables to order
+     * @return ordered list of Synapse table IDs
+     */
+    public List<String> orderLargestFirst(Collection<String> synapseTableIds) {
+        List<String> orderedTableIdList = new ArrayList<>(synapseTableIds);
+        orderedTableIdList.sort(Comparator.comparingLong(this::getExpectedMillis).reversed());
+        return orderedTableIdList;
+    }
+
+    // Expected total stage time for the table, or Long.MAX_VALUE if we have no stats.
+    private long getExpectedMillis(String synapseTableId) {
+        SynapseTableStats stats = getStats(synapseTableId);
+        return stats != null ? stats.getTotalStageMillis() : Long.MAX_VALUE;
+    }
+
+    /**
+     * Records the stats from a single run, and folds them into the historical stats.
+     *
+     * @param sample
+     *         stats from a single run
+     */
+    public void recordRun(SynapseTableStats sample) {
+        String synapseTableId = sample.getSynapseTableId();
+        LOG.info("Table stats for " + synapseTableId + ": csvBytes=" + sample.getCsvBytes() + ", attachmentCount=" +
+                sample.getAttachmentCount() + ", stageMillis=" + sample.getStageMillisMap());
+
+        SynapseTableStats merged = statsCache.compute(synapseTableId, (tableId, oldStats) -> {
+            if (oldStats == null) {
+                oldStats = loadStats(tableId);
+            }
+            return Optional.of(oldStats.map(stats -> mergeStats(stats, sample)).orElse(sample));
+        }).get();
+
+        try {
+            dynamoHelper.putSynapseTableStats(merged);
+        } catch (RuntimeException ex) {
+            LOG.error("Error writing stats for table " + synapseTableId + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    // Loads stats from DDB. Returns Optional.empty() if there are no stats or if the read fails.
+    private Optional<SynapseTableStats> loadStats(String synapseTableId) {
+        try {
+            return Optional.ofNullable(dynamoHelper.getSynapseTableStats(synapseTableId));
+        } catch (RuntimeException ex) {
+            LOG.error("Error reading stats for table " + synapseTableId + ": " + ex.getMessage(), ex);
+            return Optional.empty();
+        }
+    }
+
+    // Folds a single run into the historical stats, as a moving average.
+    private static SynapseTableStats mergeStats(SynapseTableStats oldStats, SynapseTableStats sample) {
+        Map<PackagingStage, Long> stageMillisMap = new EnumMap<>(PackagingStage.class);
+        for (PackagingStage oneStage : PackagingStage.values()) {
+            Long oldMillis = oldStats.getStageMillisMap().get(oneStage);
+            Long sampleMillis = sample.getStageMillisMap().get(oneStage);
+            if (oldMillis != null || sampleMillis != null) {
+                stageMillisMap.put(oneStage, average(oldMillis != null ? oldMillis : 0,
+                        sampleMillis != null ? sampleMillis : 0));
+            }
+        }
+
+        return new SynapseTableStats.Builder().withSynapseTableId(oldStats.getSynapseTableId())
+                .withRunCount(oldStats.getRunCount() + 1)
+                .withCsvBytes(average(oldStats.getCsvBytes(), sample.getCsvBytes()))
+                .withAttachmentCount(average(oldStats.getAttachmentCount(), sample.getAttachmentCount()))
+                .withStageMillisMap(stageMillisMap).build();
+    }
+
+    private static long average(long oldValue, long sampleValue) {
+        return (sampleValue * AVERAGE_WEIGHT_PERCENT + oldValue * (100 - AVERAGE_WEIGHT_PERCENT)) / 100;
+    }
+}
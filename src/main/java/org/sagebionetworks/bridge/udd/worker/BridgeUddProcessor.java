@@ -3,6 +3,7 @@ package org.sagebionetworks.bridge.udd.worker;
 import java.io.IOException;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 import com.fasterxml.jackson.databind.JsonNode;
@@ -10,19 +11,24 @@ import com.google.common.base.Stopwatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.json.DefaultObjectMapper;
 import org.sagebionetworks.bridge.rest.exceptions.BridgeSDKException;
 import org.sagebionetworks.bridge.schema.UploadSchema;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
 import org.sagebionetworks.bridge.udd.accounts.AccountInfo;
 import org.sagebionetworks.bridge.udd.accounts.BridgeHelper;
-import org.sagebionetworks.bridge.udd.dynamodb.DynamoHelper;
+import org.sagebionetworks.bridge.udd.concurrent.CancellationToken;
 import org.sagebionetworks.bridge.udd.dynamodb.StudyInfo;
+import org.sagebionetworks.bridge.udd.dynamodb.StudyMetadata;
+import org.sagebionetworks.bridge.udd.dynamodb.StudyMetadataCache;
 import org.sagebionetworks.bridge.udd.helper.SesHelper;
 import org.sagebionetworks.bridge.udd.helper.SnsHelper;
 import org.sagebionetworks.bridge.udd.s3.PresignedUrlInfo;
+import org.sagebionetworks.bridge.udd.synapse.ResultIndex;
 import org.sagebionetworks.bridge.udd.synapse.SynapsePackager;
 
 /** SQS callback. Called by the PollSqsWorker. This handles a UDD request. */
@@ -30,10 +36,16 @@ import org.sagebionetworks.bridge.udd.synapse.SynapsePackager;
 public class BridgeUddProcessor {
     private static final Logger LOG = LoggerFactory.getLogger(BridgeUddProcessor.class);
 
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_REQUEST_TIME_BUDGET_MINUTES = "request.time.budget.minutes";
+
     private BridgeHelper bridgeHelper;
-    private DynamoHelper dynamoHelper;
+    private RequestCoalescer requestCoalescer;
+    private long requestTimeBudgetMillis = 0;
+    private ResultIndex resultIndex;
     private SnsHelper snsHelper;
     private SesHelper sesHelper;
+    private StudyMetadataCache studyMetadataCache;
     private SynapsePackager synapsePackager;
 
     /** Bridge helper, used to call Bridge server to get account info, such as email address and health code. */
@@ -42,10 +54,33 @@ public class BridgeUddProcessor {
         this.bridgeHelper = bridgeHelper;
     }
 
-    /** Dynamo DB helper, used to get study info and uploads. */
+    /**
+     * Bridge config, used to get the request time budget. If the budget is 0 (or if this is never called), requests
+     * have no deadline.
+     */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        this.requestTimeBudgetMillis = TimeUnit.MINUTES.toMillis(config.getInt(
+                CONFIG_KEY_REQUEST_TIME_BUDGET_MINUTES));
+    }
+
+    /**
+     * Request coalescer, used to share one packaging run between identical requests running at the same time. If not
+     * set, every request is packaged on its own.
+     */
+    @Autowired
+    public final void setRequestCoalescer(RequestCoalescer requestCoalescer) {
+        this.requestCoalescer = requestCoalescer;
+    }
+
+    /**
+     * Result index, used to reuse the download from an earlier identical request instead of packaging it again. If
+     * not set, every request is packaged.
+     */
     @Autowired
-    public final void setDynamoHelper(DynamoHelper dynamoHelper) {
-        this.dynamoHelper = dynamoHelper;
+    public final void setResultIndex(ResultIndex resultIndex) {
+        this.resultIndex = resultIndex;
     }
 
     /** SES helper, used to email the pre-signed URL to the requesting user. */
@@ -60,6 +95,12 @@ public class BridgeUddProcessor {
         this.snsHelper = snsHelper;
     }
 
+    /** Study metadata cache, used to get study info, upload schemas, and survey tables. */
+    @Autowired
+    public final void setStudyMetadataCache(StudyMetadataCache studyMetadataCache) {
+        this.studyMetadataCache = studyMetadataCache;
+    }
+
     /** Synapse packager. Used to query Synapse and package the results in an S3 pre-signed URL. */
     @Autowired
     public final void setSynapsePackager(SynapsePackager synapsePackager) {
@@ -81,22 +122,27 @@ public class BridgeUddProcessor {
         LOG.info("Received request for userId=" + userId + ", study="
                 + studyId + ", startDate=" + startDateStr + ",endDate=" + endDateStr);
 
+        // The time budget starts when we receive the request. If the budget runs out during packaging, the packager
+        // delivers whatever tables have finished, with an error log listing what's missing.
+        CancellationToken cancellationToken = requestTimeBudgetMillis > 0 ?
+                CancellationToken.withTimeBudget(requestTimeBudgetMillis) : new CancellationToken();
+
+        // Look up the account in the background. It doesn't depend on the study metadata, and surveys don't depend on
+        // the account, so all three overlap.
+        CompletableFuture<AccountInfo> accountInfoFuture = bridgeHelper.getAccountInfoAsync(studyId, userId);
+
         Stopwatch requestStopwatch = Stopwatch.createStarted();
         try {
             // We need the study, because accounts and data are partitioned on study.
-            StudyInfo studyInfo = dynamoHelper.getStudy(studyId);
-
-            AccountInfo accountInfo = bridgeHelper.getAccountInfo(studyId, userId);
-            String healthCode = accountInfo.getHealthCode();
-            if (healthCode == null) {
-                throw new PollSqsWorkerBadRequestException("Health code not found for account " +
-                        accountInfo.getUserId());
-            }
+            StudyMetadata studyMetadata = studyMetadataCache.getStudyMetadata(studyId);
+            StudyInfo studyInfo = studyMetadata.getStudyInfo();
 
-            Map<String, UploadSchema> synapseToSchemaMap = dynamoHelper.getSynapseTableIdsForStudy(studyId);
-            Set<String> surveyTableIdSet = dynamoHelper.getSynapseSurveyTablesForStudy(studyId);
-            PresignedUrlInfo presignedUrlInfo = synapsePackager.packageSynapseData(synapseToSchemaMap,
-                    healthCode, request, surveyTableIdSet);
+            // Identical requests running on this node share one packaging run. Each still sends its own notification.
+            RequestCoalescer.PackagingCall packagingCall = () -> packageRequest(request, studyMetadata,
+                    accountInfoFuture, cancellationToken);
+            PresignedUrlInfo presignedUrlInfo = requestCoalescer != null ?
+                    requestCoalescer.coalesce(request, cancellationToken, packagingCall) : packagingCall.call();
+            AccountInfo accountInfo = BridgeHelper.waitForAccountInfo(accountInfoFuture);
 
             if (presignedUrlInfo == null) {
                 LOG.info("No data for request for account " + accountInfo.getUserId() + ", study=" + studyId
@@ -126,4 +172,56 @@ public class BridgeUddProcessor {
                     ", startDate=" + startDateStr + ",endDate=" + endDateStr);
         }
     }
+
+    // Packages the request, or reuses the download from an earlier identical request. Returns null if the user has no
+    // data.
+    private PresignedUrlInfo packageRequest(BridgeUddRequest request, StudyMetadata studyMetadata,
+            CompletableFuture<AccountInfo> accountInfoFuture, CancellationToken cancellationToken)
+            throws IOException, PollSqsWorkerBadRequestException {
+        Map<String, UploadSchema> synapseToSchemaMap = studyMetadata.getSynapseToSchemaMap();
+        Set<String> surveyTableIdSet = studyMetadata.getSurveyTableIdSet();
+
+        if (resultIndex == null || !resultIndex.isEnabled()) {
+            // Every request is packaged, so start right away. Surveys don't depend on the account, so they start now
+            // and overlap with the account lookup.
+            try (SynapsePackager.PackagingSession packagingSession = synapsePackager.startPackaging(request,
+                    surveyTableIdSet, cancellationToken)) {
+                packagingSession.startSurveys();
+                String healthCode = waitForHealthCode(accountInfoFuture);
+                return synapsePackager.packageSynapseData(packagingSession, synapseToSchemaMap, healthCode);
+            }
+        }
+
+        // If an identical request was already packaged, and its download is still around, send new URLs for it. This
+        // is checked before packaging starts, so a reused download doesn't take temp storage or download surveys.
+        String healthCode = waitForHealthCode(accountInfoFuture);
+        String fingerprint = resultIndex.getFingerprint(healthCode, request, synapseToSchemaMap, surveyTableIdSet);
+        PresignedUrlInfo presignedUrlInfo = resultIndex.find(fingerprint);
+        if (presignedUrlInfo != null) {
+            LOG.info("Reusing download from an earlier identical request for study=" + request.getStudyId() +
+                    ", userId=" + request.getUserId());
+            return presignedUrlInfo;
+        }
+
+        try (SynapsePackager.PackagingSession packagingSession = synapsePackager.startPackaging(request,
+                surveyTableIdSet, cancellationToken)) {
+            presignedUrlInfo = synapsePackager.packageSynapseData(packagingSession, synapseToSchemaMap, healthCode);
+        }
+        if (presignedUrlInfo != null) {
+            resultIndex.put(fingerprint, presignedUrlInfo);
+        }
+        return presignedUrlInfo;
+    }
+
+    // Waits for the account lookup and returns the account's health code.
+    private static String waitForHealthCode(CompletableFuture<AccountInfo> accountInfoFuture)
+            throws IOException, PollSqsWorkerBadRequestException {
+        AccountInfo accountInfo = BridgeHelper.waitForAccountInfo(accountInfoFuture);
+        String healthCode = accountInfo.getHealthCode();
+        if (healthCode == null) {
+            throw new PollSqsWorkerBadRequestException("Health code not found for account " +
+                    accountInfo.getUserId());
+        }
+        return healthCode;
+    }
 }
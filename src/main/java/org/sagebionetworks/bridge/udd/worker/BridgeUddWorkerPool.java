@@ -0,0 +1,300 @@
+package org.sagebionetworks.bridge.udd.worker;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.joda.time.DateTimeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
+
+/**
+ * <p>
+ * Multi-slot worker. Runs one SQS poller per request slot, so this node runs several UDD requests at once. Requests
+ * spend most of their time waiting on Synapse, so one request at a time leaves the node mostly idle.
+ * </p>
+ * <p>
+ * A poller only receives a message once it has a slot from the {@link RequestSlotManager}, so we never hold messages
+ * we don't have room to run. Messages are handled like the single-request SQS poller handles them: they're deleted
+ * once the request succeeds, or if it's a bad request that will never succeed. Otherwise, they're left in the queue,
+ * and SQS makes them visible again to be retried.
+ * </p>
+ * <p>
+ * While a request runs, the {@link VisibilityHeartbeat} keeps its message invisible. Before a request runs, it's claimed
+ * with the {@link RequestClaimManager}. If another node holds the claim and is running the request, the message is a
+ * duplicate, and is deleted without running. If the claim is held for this same message and that request is still
+ * running, the message was redelivered anyway, so it's left in the queue, in case the node running it fails, but hidden
+ * until the claim lapses. If the claim is for a different message that already finished, the user asked again, so the
+ * request runs without a claim and the user is sent the result.
+ * </p>
+ * <p>
+ * This is off if the max slot count is 0. Don't run it alongside the single-request poller on the same node.
+ * </p>
+ */
+@Component
+public class BridgeUddWorkerPool {
+    private static final Logger LOG = LoggerFactory.getLogger(BridgeUddWorkerPool.class);
+
+    // SQS doesn't allow visibility timeouts longer than 12 hours.
+    private static final int MAX_VISIBILITY_TIMEOUT_SECONDS = 12 * 60 * 60;
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_QUEUE_URL = "sqs.queue.url";
+    static final String CONFIG_KEY_SLEEP_TIME_MILLIS = "worker.sleep.time.millis";
+    static final int RECEIVE_WAIT_SECONDS = 20;
+
+    private RequestClaimManager claimManager;
+    private VisibilityHeartbeat heartbeat;
+    private BridgeUddProcessor processor;
+    private String queueUrl;
+    private volatile boolean running = false;
+    private ExecutorService slotExecutor;
+    private RequestSlotManager slotManager;
+    private long sleepTimeMillis;
+    private AmazonSQSClient sqsClient;
+
+    /** Bridge config, used to get the SQS queue URL and how long pollers sleep when there's nothing to do. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        queueUrl = config.get(CONFIG_KEY_QUEUE_URL);
+        sleepTimeMillis = config.getInt(CONFIG_KEY_SLEEP_TIME_MILLIS);
+    }
+
+    /** Request claim manager, used to drop duplicates of requests that other nodes are running. */
+    @Autowired
+    public final void setClaimManager(RequestClaimManager claimManager) {
+        this.claimManager = claimManager;
+    }
+
+    /** Heartbeat, used to keep messages invisible while their requests run. */
+    @Autowired
+    public final void setHeartbeat(VisibilityHeartbeat heartbeat) {
+        this.heartbeat = heartbeat;
+    }
+
+    /** Processor, which runs the requests. */
+    @Autowired
+    public final void setProcessor(BridgeUddProcessor processor) {
+        this.processor = processor;
+    }
+
+    /** Executor for the pollers. Needs a thread for each slot. */
+    @Resource(name = "requestSlotExecutor")
+    public final void setSlotExecutor(ExecutorService slotExecutor) {
+        this.slotExecutor = slotExecutor;
+    }
+
+    /** Slot manager, which limits how many requests run at once. */
+    @Autowired
+    public final void setSlotManager(RequestSlotManager slotManager) {
+        this.slotManager = slotManager;
+    }
+
+    /** SQS client, used to receive and delete request messages. */
+    @Autowired
+    public final void setSqsClient(AmazonSQSClient sqsClient) {
+        this.sqsClient = sqsClient;
+    }
+
+    /** Starts a poller for each slot, if the multi-slot worker is on. Called by Spring on startup. */
+    @PostConstruct
+    public void start() {
+        int slotCount = slotManager.getMaxCount();
+        if (slotCount <= 0) {
+            return;
+        }
+
+        LOG.info("Starting multi-slot worker with " + slotCount + " slots");
+        running = true;
+        for (int i = 0; i < slotCount; i++) {
+            slotExecutor.execute(this::pollLoop);
+        }
+    }
+
+    /** Stops the pollers once their current requests finish. Called by Spring on shutdown. */
+    @PreDestroy
+    public void stop() {
+        running = false;
+    }
+
+    // Polls until stopped, sleeping whenever there's no slot or no message.
+    private void pollLoop() {
+        while (running) {
+            boolean handled;
+            try {
+                handled = pollOnce();
+            } catch (RuntimeException ex) {
+                LOG.error("Error polling SQS: " + ex.getMessage(), ex);
+                handled = false;
+            }
+
+            if (!handled) {
+                try {
+                    Thread.sleep(sleepTimeMillis);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a slot, receives a message, and runs the request. Package-scoped so unit tests can call it directly.
+     *
+     * @return true if a request was run, false if there was no free slot or no message
+     */
+    boolean pollOnce() {
+        RequestSlot slot = slotManager.tryAcquire();
+        if (slot == null) {
+            return false;
+        }
+
+        try {
+            List<Message> messageList = sqsClient.receiveMessage(new ReceiveMessageRequest(queueUrl)
+                    .withMaxNumberOfMessages(1).withWaitTimeSeconds(RECEIVE_WAIT_SECONDS)).getMessages();
+            if (messageList.isEmpty()) {
+                return false;
+            }
+
+            handleMessage(slot, messageList.get(0));
+            return true;
+        } finally {
+            slotManager.release(slot);
+        }
+    }
+
+    // Claims and runs the request in the given slot, deletes the message if it shouldn't be retried, and logs slot
+    // metrics.
+    private void handleMessage(RequestSlot slot, Message message) {
+        slot.startRequest();
+        boolean succeeded = false;
+        boolean deleteMessage = false;
+        RequestClaim claim = null;
+        try {
+            JsonNode body;
+            BridgeUddRequest request;
+            try {
+                body = DefaultObjectMapper.INSTANCE.readTree(message.getBody());
+                request = DefaultObjectMapper.INSTANCE.treeToValue(body, BridgeUddRequest.class);
+            } catch (IOException ex) {
+                throw new PollSqsWorkerBadRequestException("Error parsing message: " + ex.getMessage(), ex);
+            }
+
+            claim = claimManager != null ? claimManager.tryClaim(request, message.getMessageId()) : null;
+            if (claim != null && claim.isHeldDoneByOtherMessage(message.getMessageId())) {
+                // The same request finished for another message, but this user still needs to be sent the result.
+                // Run it without a claim. The processor reuses the earlier result from the result index, if it can.
+                LOG.info("Message " + message.getMessageId() + " repeats finished message " +
+                        claim.getHeldMessageId() + ", running it to send the result");
+                runWithHeartbeat(message, null, body);
+                succeeded = true;
+                deleteMessage = true;
+            } else if (claim != null && !claim.isClaimed()) {
+                if (claim.isHeldByRunningMessage(message.getMessageId())) {
+                    hideUntilClaimLapses(message, claim);
+                } else {
+                    LOG.info("Dropping message " + message.getMessageId() + ", duplicate of message " +
+                            claim.getHeldMessageId());
+                    deleteMessage = true;
+                }
+                succeeded = true;
+            } else {
+                runWithHeartbeat(message, claim, body);
+                succeeded = true;
+                deleteMessage = true;
+            }
+        } catch (PollSqsWorkerBadRequestException ex) {
+            // Bad requests never succeed. Delete them, so they aren't retried.
+            LOG.warn("Bad request in slot " + slot.getIndex() + ", message " + message.getMessageId() + ": " +
+                    ex.getMessage(), ex);
+            deleteMessage = true;
+        } catch (IOException | RuntimeException ex) {
+            LOG.error("Error running request in slot " + slot.getIndex() + ", message " + message.getMessageId() +
+                    " will be retried: " + ex.getMessage(), ex);
+        }
+
+        // Keep the claim for requests that won't be retried, so duplicates are dropped. Release it otherwise, so the
+        // retry can claim it.
+        if (claim != null && claim.isClaimed()) {
+            if (deleteMessage) {
+                claimManager.complete(claim);
+            } else {
+                claimManager.release(claim);
+            }
+        }
+
+        long elapsedMillis = slot.finishRequest(succeeded);
+
+        if (deleteMessage) {
+            try {
+                sqsClient.deleteMessage(queueUrl, message.getReceiptHandle());
+            } catch (AmazonClientException ex) {
+                // The message will be received again. The request will run again, which is wasteful but harmless.
+                LOG.error("Error deleting message " + message.getMessageId() + ": " + ex.getMessage(), ex);
+            }
+        }
+
+        LOG.info("Slot " + slot.getIndex() + " ran request in " + elapsedMillis + " ms, " +
+                (succeeded ? "succeeded" : "failed") + ". Slot has run " + slot.getRequestCount() + " requests, " +
+                slot.getFailureCount() + " failed, busy " + slot.getBusyPercent() + "%. " +
+                slotManager.getBusyCount() + " of " + slotManager.getMaxCount() + " slots busy, slots refused " +
+                slotManager.getDiskRefusalCount() + " times for disk, " + slotManager.getHeapRefusalCount() +
+                " times for heap" + (claimManager != null ? ", " + claimManager.getDuplicateCount() +
+                " duplicates avoided" : ""));
+    }
+
+    // Runs the request, with a heartbeat that keeps the message invisible and renews the claim.
+    private void runWithHeartbeat(Message message, RequestClaim claim, JsonNode body) throws IOException,
+            PollSqsWorkerBadRequestException {
+        ScheduledFuture<?> heartbeatFuture = null;
+        if (heartbeat != null) {
+            Runnable renewClaim = claim != null ? () -> claimManager.renew(claim) : null;
+            heartbeatFuture = heartbeat.start(queueUrl, message.getReceiptHandle(), renewClaim);
+        }
+
+        try {
+            processor.process(body);
+        } finally {
+            if (heartbeatFuture != null) {
+                heartbeatFuture.cancel(false);
+            }
+        }
+    }
+
+    // The message was redelivered while the node holding its claim is still running it. It's left in the queue, in
+    // case that node fails, but hidden until the claim lapses, so it doesn't keep coming back while the request runs.
+    // The claim is renewed while the request runs, so if the message reappears and the claim was renewed, it's hidden
+    // again.
+    private void hideUntilClaimLapses(Message message, RequestClaim claim) {
+        long remainingMillis = claim.getHeldExpiresOnMillis() - DateTimeUtils.currentTimeMillis();
+        int remainingSeconds = (int) Math.min(MAX_VISIBILITY_TIMEOUT_SECONDS, Math.max(0,
+                TimeUnit.MILLISECONDS.toSeconds(remainingMillis)));
+        LOG.warn("Message " + message.getMessageId() + " was redelivered while it's still running, hiding it for " +
+                remainingSeconds + " seconds, until its claim lapses");
+        try {
+            sqsClient.changeMessageVisibility(queueUrl, message.getReceiptHandle(), remainingSeconds);
+        } catch (AmazonClientException ex) {
+            // The message reappears when its visibility timeout runs out, and is checked against the claim again.
+            LOG.error("Error hiding message " + message.getMessageId() + ": " + ex.getMessage(), ex);
+        }
+    }
+}
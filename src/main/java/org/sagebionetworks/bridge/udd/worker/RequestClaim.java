@@ -0,0 +1,110 @@
+package org.sagebionetworks.bridge.udd.worker;
+
+/**
+ * Result of trying to claim a request with the {@link RequestClaimManager}. If the claim succeeded, this node runs the
+ * request, and passes this claim back to the manager to renew, complete, or release it. If not, this says who holds
+ * the claim, so the worker can tell a duplicate from a redelivery of a message that's still running, or from a new
+ * request for something that already finished.
+ */
+public class RequestClaim {
+    private final String requestKey;
+    private final String ownerId;
+    private final boolean claimed;
+    private final boolean tracked;
+    private final String heldMessageId;
+    private final boolean heldDone;
+    private final long heldExpiresOnMillis;
+
+    // Claims are created by the RequestClaimManager.
+    private RequestClaim(String requestKey, String ownerId, boolean claimed, boolean tracked, String heldMessageId,
+            boolean heldDone, long heldExpiresOnMillis) {
+        this.requestKey = requestKey;
+        this.ownerId = ownerId;
+        this.claimed = claimed;
+        this.tracked = tracked;
+        this.heldMessageId = heldMessageId;
+        this.heldDone = heldDone;
+        this.heldExpiresOnMillis = heldExpiresOnMillis;
+    }
+
+    /** Claim that's held in DDB by this node. */
+    static RequestClaim owned(String requestKey, String ownerId) {
+        return new RequestClaim(requestKey, ownerId, true, true, null, false, 0);
+    }
+
+    /** Claim that isn't tracked in DDB, because claims are off or DDB failed. The request runs anyway. */
+    static RequestClaim untracked(String requestKey) {
+        return new RequestClaim(requestKey, null, true, false, null, false, 0);
+    }
+
+    /**
+     * Claim held by someone else, for the given message, which may have already finished. The claim lapses at the
+     * given time (epoch milliseconds), unless the holder renews it.
+     */
+    static RequestClaim heldElsewhere(String requestKey, String heldMessageId, boolean heldDone,
+            long heldExpiresOnMillis) {
+        return new RequestClaim(requestKey, null, false, false, heldMessageId, heldDone, heldExpiresOnMillis);
+    }
+
+    /** Key of the claimed request. Identical requests (same study, user, and date range) have the same key. */
+    public String getRequestKey() {
+        return requestKey;
+    }
+
+    /** Unique ID for this attempt at the request. Null if the claim isn't held in DDB by this node. */
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    /** True if this node should run the request. */
+    public boolean isClaimed() {
+        return claimed;
+    }
+
+    /** True if the claim is held in DDB, and needs to be renewed, completed, or released. */
+    public boolean isTracked() {
+        return tracked;
+    }
+
+    /** If someone else holds the claim, the SQS message ID they're running. */
+    public String getHeldMessageId() {
+        return heldMessageId;
+    }
+
+    /** If someone else holds the claim, true if they've already finished the request. */
+    public boolean isHeldDone() {
+        return heldDone;
+    }
+
+    /**
+     * If someone else holds the claim, when it lapses (epoch milliseconds), unless the holder renews it. Running
+     * claims are renewed by the holder's heartbeat, so this is at most the claim TTL away.
+     */
+    public long getHeldExpiresOnMillis() {
+        return heldExpiresOnMillis;
+    }
+
+    /**
+     * True if someone else holds the claim for the given message and is still running it. This happens if the message
+     * was redelivered, because its visibility timeout ran out before the heartbeat extended it.
+     */
+    public boolean isHeldByRunningMessage(String messageId) {
+        return !claimed && !heldDone && messageId != null && messageId.equals(heldMessageId);
+    }
+
+    /**
+     * True if someone else holds the claim for a different message that already finished. The new message is a new
+     * request from the user, who still needs to be sent the result, so it should run, without a claim.
+     */
+    public boolean isHeldDoneByOtherMessage(String messageId) {
+        return !claimed && heldDone && (messageId == null || !messageId.equals(heldMessageId));
+    }
+
+    /**
+     * True if the given message is a duplicate that can be dropped: either someone else is running the same request
+     * for a different message, or this message was already finished.
+     */
+    public boolean isDuplicate(String messageId) {
+        return !claimed && !isHeldByRunningMessage(messageId) && !isHeldDoneByOtherMessage(messageId);
+    }
+}
@@ -0,0 +1,228 @@
+package org.sagebionetworks.bridge.udd.worker;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Resource;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.DeleteItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import org.joda.time.DateTimeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+
+/**
+ * <p>
+ * Fleet-wide request claims. Before a node runs a request, it claims the request in DDB with a conditional write, keyed
+ * the same way as the {@link RequestCoalescer}. If another node already holds the claim, the request is a duplicate,
+ * and is dropped instead of running the same (possibly hours-long) export again.
+ * </p>
+ * <p>
+ * Running claims expire after the TTL unless they're renewed (see {@link VisibilityHeartbeat}), so requests on a node
+ * that died can be claimed again. Finished claims are kept for the done retention time, so redeliveries of a message
+ * that already finished are dropped too. Claims for requests that failed are released, so the retry can claim them.
+ * </p>
+ * <p>
+ * Claims are keyed by user, so they mustn't stay in DDB forever. Each claim also has its expiration in epoch seconds,
+ * and the table must have DDB Time to Live enabled on that attribute, so DDB deletes expired claims.
+ * </p>
+ * <p>
+ * If DDB fails, we log and run the request anyway. Running a duplicate is wasteful, but dropping a request isn't
+ * acceptable.
+ * </p>
+ */
+@Component
+public class RequestClaimManager {
+    private static final Logger LOG = LoggerFactory.getLogger(RequestClaimManager.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_ENABLED = "request.claim.enabled";
+    static final String CONFIG_KEY_TTL_SECONDS = "request.claim.ttl.seconds";
+    static final String CONFIG_KEY_DONE_RETENTION_MINUTES = "request.claim.done.retention.minutes";
+    static final String KEY_REQUEST_KEY = "requestKey";
+    static final String KEY_OWNER_ID = "ownerId";
+    static final String KEY_MESSAGE_ID = "messageId";
+    static final String KEY_CLAIM_STATUS = "claimStatus";
+    static final String KEY_EXPIRES_ON = "expiresOn";
+    static final String KEY_EXPIRES_ON_SECONDS = "expiresOnSeconds";
+    static final String STATUS_RUNNING = "running";
+    static final String STATUS_DONE = "done";
+
+    // The claim might be released between our failed write and our read. If so, try again, but not forever.
+    private static final int MAX_CLAIM_ATTEMPTS = 3;
+
+    // Defaults, used if setConfig() is never called (such as in unit tests). Claims are off by default.
+    private boolean enabled = false;
+    private long ttlMillis = 0;
+    private long doneRetentionMillis = 0;
+
+    private Table claimTable;
+
+    // Metrics
+    private final AtomicLong duplicateCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong lostCount = new AtomicLong();
+
+    /** Bridge config, used to turn claims on, and to get the claim TTL and done retention time. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        enabled = Boolean.parseBoolean(config.get(CONFIG_KEY_ENABLED));
+        ttlMillis = TimeUnit.SECONDS.toMillis(config.getInt(CONFIG_KEY_TTL_SECONDS));
+        doneRetentionMillis = TimeUnit.MINUTES.toMillis(config.getInt(CONFIG_KEY_DONE_RETENTION_MINUTES));
+    }
+
+    /** DDB table for request claims, keyed by request key. */
+    @Resource(name = "ddbRequestClaimTable")
+    public final void setClaimTable(Table claimTable) {
+        this.claimTable = claimTable;
+    }
+
+    /**
+     * Tries to claim the given request.
+     *
+     * @param request
+     *         request to claim
+     * @param messageId
+     *         ID of the SQS message for the request, so redeliveries of a running message can be told apart from
+     *         duplicates
+     * @return the claim, which says whether this node should run the request
+     */
+    public RequestClaim tryClaim(BridgeUddRequest request, String messageId) {
+        String requestKey = RequestCoalescer.getKey(request);
+        if (!enabled) {
+            return RequestClaim.untracked(requestKey);
+        }
+
+        String ownerId = UUID.randomUUID().toString();
+        try {
+            for (int attempt = 1; attempt <= MAX_CLAIM_ATTEMPTS; attempt++) {
+                long nowMillis = DateTimeUtils.currentTimeMillis();
+                long expiresOnMillis = nowMillis + ttlMillis;
+                Item claimItem = new Item().withPrimaryKey(KEY_REQUEST_KEY, requestKey)
+                        .withString(KEY_OWNER_ID, ownerId).withString(KEY_MESSAGE_ID, messageId)
+                        .withString(KEY_CLAIM_STATUS, STATUS_RUNNING).withLong(KEY_EXPIRES_ON, expiresOnMillis)
+                        .withLong(KEY_EXPIRES_ON_SECONDS, TimeUnit.MILLISECONDS.toSeconds(expiresOnMillis));
+                try {
+                    claimTable.putItem(claimItem, "attribute_not_exists(" + KEY_REQUEST_KEY + ") OR " +
+                            KEY_EXPIRES_ON + " < :now", null, new ValueMap().withLong(":now", nowMillis));
+                    return RequestClaim.owned(requestKey, ownerId);
+                } catch (ConditionalCheckFailedException ex) {
+                    // Someone else holds the claim. Find out who.
+                    Item heldItem = claimTable.getItem(new GetItemSpec().withPrimaryKey(KEY_REQUEST_KEY, requestKey)
+                            .withConsistentRead(true));
+                    if (heldItem != null) {
+                        RequestClaim heldClaim = RequestClaim.heldElsewhere(requestKey,
+                                heldItem.getString(KEY_MESSAGE_ID),
+                                STATUS_DONE.equals(heldItem.getString(KEY_CLAIM_STATUS)),
+                                heldItem.getLong(KEY_EXPIRES_ON));
+                        if (heldClaim.isDuplicate(messageId)) {
+                            long duplicates = duplicateCount.incrementAndGet();
+                            LOG.info("Request " + requestKey + " is already claimed for message " +
+                                    heldClaim.getHeldMessageId() + ", " + duplicates + " duplicates avoided so far");
+                        }
+                        return heldClaim;
+                    }
+                }
+            }
+            LOG.warn("Request " + requestKey + " claim kept changing, running the request without a claim");
+        } catch (AmazonClientException ex) {
+            errorCount.incrementAndGet();
+            LOG.error("Error claiming request " + requestKey + ", running the request without a claim: " +
+                    ex.getMessage(), ex);
+        }
+        return RequestClaim.untracked(requestKey);
+    }
+
+    /**
+     * Pushes back the claim's expiration, so other nodes don't take over a request that's still running. Called by the
+     * heartbeat.
+     *
+     * @return true if the claim is still ours (or isn't tracked), false if it was lost or if the renewal failed
+     */
+    public boolean renew(RequestClaim claim) {
+        if (!claim.isTracked()) {
+            return true;
+        }
+        return updateClaim(claim, STATUS_RUNNING, ttlMillis, "renewing");
+    }
+
+    /** Marks the request as done, so duplicates are dropped for the done retention time. */
+    public void complete(RequestClaim claim) {
+        if (claim.isTracked()) {
+            updateClaim(claim, STATUS_DONE, doneRetentionMillis, "completing");
+        }
+    }
+
+    /** Releases the claim for a request that failed, so the retry can claim it right away. */
+    public void release(RequestClaim claim) {
+        if (!claim.isTracked()) {
+            return;
+        }
+
+        try {
+            claimTable.deleteItem(new DeleteItemSpec().withPrimaryKey(KEY_REQUEST_KEY, claim.getRequestKey())
+                    .withConditionExpression(KEY_OWNER_ID + " = :ownerId")
+                    .withValueMap(new ValueMap().withString(":ownerId", claim.getOwnerId())));
+        } catch (ConditionalCheckFailedException ex) {
+            // Someone else already took over. Leave their claim alone.
+            lostCount.incrementAndGet();
+            LOG.warn("Request " + claim.getRequestKey() + " claim was lost before it was released");
+        } catch (AmazonClientException ex) {
+            // The claim expires on its own after the TTL.
+            errorCount.incrementAndGet();
+            LOG.error("Error releasing claim for request " + claim.getRequestKey() + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    // Sets the claim status and expiration, if we still own the claim.
+    private boolean updateClaim(RequestClaim claim, String status, long expiresInMillis, String action) {
+        long expiresOnMillis = DateTimeUtils.currentTimeMillis() + expiresInMillis;
+        try {
+            claimTable.updateItem(new UpdateItemSpec().withPrimaryKey(KEY_REQUEST_KEY, claim.getRequestKey())
+                    .withUpdateExpression("set " + KEY_CLAIM_STATUS + " = :status, " + KEY_EXPIRES_ON +
+                            " = :expiresOn, " + KEY_EXPIRES_ON_SECONDS + " = :expiresOnSeconds")
+                    .withConditionExpression(KEY_OWNER_ID + " = :ownerId")
+                    .withValueMap(new ValueMap().withString(":status", status)
+                            .withLong(":expiresOn", expiresOnMillis)
+                            .withLong(":expiresOnSeconds", TimeUnit.MILLISECONDS.toSeconds(expiresOnMillis))
+                            .withString(":ownerId", claim.getOwnerId())));
+            return true;
+        } catch (ConditionalCheckFailedException ex) {
+            lostCount.incrementAndGet();
+            LOG.warn("Request " + claim.getRequestKey() + " claim was lost before " + action + " it");
+            return false;
+        } catch (AmazonClientException ex) {
+            errorCount.incrementAndGet();
+            LOG.error("Error " + action + " claim for request " + claim.getRequestKey() + ": " + ex.getMessage(),
+                    ex);
+            return false;
+        }
+    }
+
+    /** Number of duplicate requests that weren't run, because someone else held the claim and was running it. */
+    public long getDuplicateCount() {
+        return duplicateCount.get();
+    }
+
+    /** Number of DDB errors while claiming, renewing, completing, or releasing. */
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    /** Number of claims that expired and were taken over while their request was still running. */
+    public long getLostCount() {
+        return lostCount.get();
+    }
+}
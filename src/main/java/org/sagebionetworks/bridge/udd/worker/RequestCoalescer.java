@@ -0,0 +1,133 @@
+package org.sagebionetworks.bridge.udd.worker;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
+import org.sagebionetworks.bridge.udd.concurrent.CancellationToken;
+import org.sagebionetworks.bridge.udd.s3.PresignedUrlInfo;
+
+/**
+ * <p>
+ * Coalesces identical requests that are running on this node at the same time. Participants often tap "download my
+ * data" several times, so identical requests (same study, user, and date range) arrive within seconds of each other.
+ * The first one packages the data. The others attach to it, wait for it, and share its result. Each request still
+ * sends its own notification.
+ * </p>
+ * <p>
+ * If the request we attached to fails, we try again, so the waiting request packages the data itself (unless another
+ * identical request got there first). Failures aren't shared, since they might be specific to the request that failed,
+ * such as a node running out of temp storage.
+ * </p>
+ */
+@Component
+public class RequestCoalescer {
+    private static final Logger LOG = LoggerFactory.getLogger(RequestCoalescer.class);
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final ConcurrentMap<String, CompletableFuture<PresignedUrlInfo>> inFlightMap =
+            new ConcurrentHashMap<>();
+    private final AtomicInteger waitingCount = new AtomicInteger();
+
+    /** Packages a request. Same as SynapsePackager, this returns null if the user has no data. */
+    @FunctionalInterface
+    public interface PackagingCall {
+        PresignedUrlInfo call() throws IOException, PollSqsWorkerBadRequestException;
+    }
+
+    /**
+     * Runs the packaging call, unless an identical request is already running, in which case this waits for that
+     * request and returns its result.
+     *
+     * @param request
+     *         user data download request, used to find identical requests
+     * @param cancellationToken
+     *         cancellation token for the request, which carries the request's deadline (if any)
+     * @param packagingCall
+     *         packages the request
+     * @return pre-signed URL info, or null if the user has no data
+     */
+    public PresignedUrlInfo coalesce(BridgeUddRequest request, CancellationToken cancellationToken,
+            PackagingCall packagingCall) throws IOException, PollSqsWorkerBadRequestException {
+        String key = getKey(request);
+        while (true) {
+            CompletableFuture<PresignedUrlInfo> ownFuture = new CompletableFuture<>();
+            CompletableFuture<PresignedUrlInfo> inFlightFuture = inFlightMap.putIfAbsent(key, ownFuture);
+            if (inFlightFuture == null) {
+                return runPackagingCall(key, ownFuture, packagingCall);
+            }
+
+            waitingCount.incrementAndGet();
+            try {
+                PresignedUrlInfo presignedUrlInfo = inFlightFuture.get(cancellationToken.getRemainingMillis(),
+                        TimeUnit.MILLISECONDS);
+                long coalesced = coalescedCount.incrementAndGet();
+                LOG.info("Coalesced request for userId=" + request.getUserId() + ", study=" + request.getStudyId() +
+                        " with an identical request in flight, " + coalesced + " requests coalesced so far");
+                return presignedUrlInfo;
+            } catch (ExecutionException ex) {
+                LOG.info("Identical request failed for userId=" + request.getUserId() + ", study=" +
+                        request.getStudyId() + ", packaging this request instead");
+            } catch (TimeoutException ex) {
+                throw new RuntimeException("Request deadline passed while waiting for an identical request for userId="
+                        + request.getUserId() + ", study=" + request.getStudyId());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            } finally {
+                waitingCount.decrementAndGet();
+            }
+        }
+    }
+
+    // Runs the packaging call and shares its result with identical requests that attach to it.
+    private PresignedUrlInfo runPackagingCall(String key, CompletableFuture<PresignedUrlInfo> ownFuture,
+            PackagingCall packagingCall) throws IOException, PollSqsWorkerBadRequestException {
+        try {
+            PresignedUrlInfo presignedUrlInfo = packagingCall.call();
+            ownFuture.complete(presignedUrlInfo);
+            return presignedUrlInfo;
+        } catch (IOException | PollSqsWorkerBadRequestException | RuntimeException ex) {
+            ownFuture.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            // Never leave waiting requests hanging, even on an Error.
+            if (!ownFuture.isDone()) {
+                ownFuture.completeExceptionally(new IllegalStateException("Request did not finish"));
+            }
+            inFlightMap.remove(key, ownFuture);
+        }
+    }
+
+    /** Number of requests that shared the result of an identical request. */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /** Number of distinct requests being packaged right now. */
+    public int getInFlightCount() {
+        return inFlightMap.size();
+    }
+
+    /** Number of requests waiting for an identical request to finish. */
+    public int getWaitingCount() {
+        return waitingCount.get();
+    }
+
+    // Identical requests have the same study, user, and date range. Package-scoped so request claims use the same key.
+    static String getKey(BridgeUddRequest request) {
+        return request.getStudyId() + ":" + request.getUserId() + ":" + request.getStartDate() + ":" +
+                request.getEndDate();
+    }
+}
@@ -0,0 +1,77 @@
+package org.sagebionetworks.bridge.udd.worker;
+
+import org.joda.time.DateTimeUtils;
+
+/**
+ * One of the node's request slots. Slots are handed out by the {@link RequestSlotManager}, and keep their own metrics
+ * (requests run, failures, time spent running requests), so we can see how busy each slot is when sizing the node.
+ */
+public class RequestSlot {
+    private final int index;
+    private final long createdOnMillis;
+
+    // Metrics. All guarded by "this".
+    private long busyMillis = 0;
+    private long failureCount = 0;
+    private long requestCount = 0;
+    private long requestStartMillis = -1;
+
+    /** Creates a slot with the given index. Slots are created by the RequestSlotManager. */
+    RequestSlot(int index) {
+        this.index = index;
+        this.createdOnMillis = DateTimeUtils.currentTimeMillis();
+    }
+
+    /** Slot index, starting at 0. */
+    public int getIndex() {
+        return index;
+    }
+
+    /** Marks the start of a request in this slot. */
+    public synchronized void startRequest() {
+        requestStartMillis = DateTimeUtils.currentTimeMillis();
+    }
+
+    /**
+     * Marks the end of the request in this slot.
+     *
+     * @param succeeded
+     *         true if the request succeeded
+     * @return how long the request took, in milliseconds
+     */
+    public synchronized long finishRequest(boolean succeeded) {
+        if (requestStartMillis < 0) {
+            throw new IllegalStateException("No request running in slot " + index);
+        }
+        long elapsedMillis = DateTimeUtils.currentTimeMillis() - requestStartMillis;
+        requestStartMillis = -1;
+
+        busyMillis += elapsedMillis;
+        requestCount++;
+        if (!succeeded) {
+            failureCount++;
+        }
+        return elapsedMillis;
+    }
+
+    /** Total time this slot has spent running requests, in milliseconds. */
+    public synchronized long getBusyMillis() {
+        return busyMillis;
+    }
+
+    /** Percent of the time since the slot was created that it spent running requests. */
+    public synchronized int getBusyPercent() {
+        long ageMillis = DateTimeUtils.currentTimeMillis() - createdOnMillis;
+        return ageMillis > 0 ? (int) (busyMillis * 100 / ageMillis) : 0;
+    }
+
+    /** Number of requests this slot ran that failed. */
+    public synchronized long getFailureCount() {
+        return failureCount;
+    }
+
+    /** Number of requests this slot has run. */
+    public synchronized long getRequestCount() {
+        return requestCount;
+    }
+}
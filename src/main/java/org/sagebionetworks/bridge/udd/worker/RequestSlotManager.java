@@ -0,0 +1,151 @@
+package org.sagebionetworks.bridge.udd.worker;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.PostConstruct;
+
+import com.google.common.collect.ImmutableList;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.udd.helper.TempStorageManager;
+
+/**
+ * <p>
+ * Hands out request slots, which limit how many requests this node runs at once. There's a max number of slots, but
+ * slots also need room to run: a slot only opens if there's at least the configured free temp storage (see
+ * {@link TempStorageManager#getFreeBytes}) and free heap. The first slot always opens, so a node that's low on disk or
+ * memory still works through requests one at a time.
+ * </p>
+ * <p>
+ * Free heap is measured without a GC, so it includes garbage that hasn't been collected yet. This errs on the side of
+ * running fewer requests.
+ * </p>
+ */
+@Component
+public class RequestSlotManager {
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_MAX_COUNT = "worker.slot.max.count";
+    static final String CONFIG_KEY_MIN_FREE_DISK_MB = "worker.slot.min.free.disk.mb";
+    static final String CONFIG_KEY_MIN_FREE_HEAP_MB = "worker.slot.min.free.heap.mb";
+
+    private static final long BYTES_PER_MB = 1024 * 1024;
+
+    // Defaults, used if setConfig() is never called (such as in unit tests). 0 slots means the multi-slot worker is off.
+    private int maxCount = 0;
+    private long minFreeDiskBytes = 0;
+    private long minFreeHeapBytes = 0;
+
+    // Slots and which of them are busy. Guarded by "this".
+    private List<RequestSlot> slotList = ImmutableList.of();
+    private boolean[] busyArray = new boolean[0];
+    private int busyCount = 0;
+    private long diskRefusalCount = 0;
+    private long heapRefusalCount = 0;
+
+    private TempStorageManager tempStorageManager;
+
+    /** Bridge config, used to get the max slot count and the free disk and heap each slot needs. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        maxCount = config.getInt(CONFIG_KEY_MAX_COUNT);
+        minFreeDiskBytes = config.getInt(CONFIG_KEY_MIN_FREE_DISK_MB) * BYTES_PER_MB;
+        minFreeHeapBytes = config.getInt(CONFIG_KEY_MIN_FREE_HEAP_MB) * BYTES_PER_MB;
+    }
+
+    /** Temp storage manager, used to check free temp storage. */
+    @Autowired
+    public final void setTempStorageManager(TempStorageManager tempStorageManager) {
+        this.tempStorageManager = tempStorageManager;
+    }
+
+    /** Creates the slots. Called by Spring on startup. */
+    @PostConstruct
+    public synchronized void init() {
+        List<RequestSlot> newSlotList = new ArrayList<>();
+        for (int i = 0; i < maxCount; i++) {
+            newSlotList.add(new RequestSlot(i));
+        }
+        slotList = ImmutableList.copyOf(newSlotList);
+        busyArray = new boolean[maxCount];
+        busyCount = 0;
+    }
+
+    /**
+     * Takes a free slot, if there is one and there's room for another request.
+     *
+     * @return the slot, or null if all slots are busy or if there isn't enough free disk or heap
+     */
+    public synchronized RequestSlot tryAcquire() {
+        if (busyCount >= slotList.size()) {
+            return null;
+        }
+
+        if (busyCount > 0) {
+            if (tempStorageManager.getFreeBytes() < minFreeDiskBytes) {
+                diskRefusalCount++;
+                return null;
+            }
+            if (getFreeHeapBytes() < minFreeHeapBytes) {
+                heapRefusalCount++;
+                return null;
+            }
+        }
+
+        for (int i = 0; i < busyArray.length; i++) {
+            if (!busyArray[i]) {
+                busyArray[i] = true;
+                busyCount++;
+                return slotList.get(i);
+            }
+        }
+
+        // Should never happen, since busyCount is less than the number of slots.
+        throw new IllegalStateException("No free slot, but only " + busyCount + " of " + slotList.size() +
+                " slots are busy");
+    }
+
+    /** Returns the slot, so another request can use it. */
+    public synchronized void release(RequestSlot slot) {
+        int index = slot.getIndex();
+        if (!busyArray[index]) {
+            throw new IllegalStateException("Slot " + index + " is not busy");
+        }
+        busyArray[index] = false;
+        busyCount--;
+    }
+
+    /** Number of slots running a request (or waiting for one). */
+    public synchronized int getBusyCount() {
+        return busyCount;
+    }
+
+    /** Max number of slots. 0 means the multi-slot worker is off. */
+    public synchronized int getMaxCount() {
+        return slotList.size();
+    }
+
+    /** Number of times a slot didn't open because there wasn't enough free temp storage. */
+    public synchronized long getDiskRefusalCount() {
+        return diskRefusalCount;
+    }
+
+    /** Number of times a slot didn't open because there wasn't enough free heap. */
+    public synchronized long getHeapRefusalCount() {
+        return heapRefusalCount;
+    }
+
+    /** All slots, for metrics. */
+    public synchronized List<RequestSlot> getSlotList() {
+        return slotList;
+    }
+
+    // Free heap, counting memory the JVM hasn't claimed yet. Package-scoped so unit tests can override it.
+    long getFreeHeapBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    }
+}
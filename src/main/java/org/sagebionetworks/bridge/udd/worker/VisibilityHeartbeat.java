@@ -0,0 +1,113 @@
+package org.sagebionetworks.bridge.udd.worker;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Resource;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+
+/**
+ * Keeps a message invisible while its request runs. Long requests can outlast the queue's visibility timeout, and
+ * then SQS redelivers the message, and another node runs the same export again. Every heartbeat interval, this extends
+ * the message's visibility to the configured timeout, and runs the given callback, which is used to renew the
+ * request's claim (see {@link RequestClaimManager}). This is off if the heartbeat interval is 0.
+ */
+@Component
+public class VisibilityHeartbeat {
+    private static final Logger LOG = LoggerFactory.getLogger(VisibilityHeartbeat.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_HEARTBEAT_SECONDS = "sqs.visibility.heartbeat.seconds";
+    static final String CONFIG_KEY_TIMEOUT_SECONDS = "sqs.visibility.timeout.seconds";
+
+    // Defaults, used if setConfig() is never called (such as in unit tests). 0 means the heartbeat is off.
+    private int heartbeatSeconds = 0;
+    private int timeoutSeconds = 0;
+
+    private ScheduledExecutorService scheduler;
+    private AmazonSQSClient sqsClient;
+
+    // Metrics
+    private final AtomicLong beatCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+
+    /** Bridge config, used to get the heartbeat interval and the visibility timeout each heartbeat sets. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        heartbeatSeconds = config.getInt(CONFIG_KEY_HEARTBEAT_SECONDS);
+        timeoutSeconds = config.getInt(CONFIG_KEY_TIMEOUT_SECONDS);
+    }
+
+    /** Scheduler for heartbeats. Heartbeats are quick, so one thread is enough for all slots. */
+    @Resource(name = "visibilityHeartbeatScheduler")
+    public final void setScheduler(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /** SQS client, used to change message visibility. */
+    @Autowired
+    public final void setSqsClient(AmazonSQSClient sqsClient) {
+        this.sqsClient = sqsClient;
+    }
+
+    /**
+     * Starts the heartbeat for a message. Callers must cancel the returned future once the request finishes.
+     *
+     * @param queueUrl
+     *         queue the message came from
+     * @param receiptHandle
+     *         receipt handle of the message
+     * @param onBeat
+     *         called on every heartbeat, after extending the visibility, may be null
+     * @return future for the heartbeat, or null if the heartbeat is off
+     */
+    public ScheduledFuture<?> start(String queueUrl, String receiptHandle, Runnable onBeat) {
+        if (heartbeatSeconds <= 0) {
+            return null;
+        }
+        return scheduler.scheduleWithFixedDelay(() -> beat(queueUrl, receiptHandle, onBeat), heartbeatSeconds,
+                heartbeatSeconds, TimeUnit.SECONDS);
+    }
+
+    // One heartbeat. Errors are logged and never thrown, since that would cancel the remaining heartbeats.
+    // Package-scoped so unit tests can call it directly.
+    void beat(String queueUrl, String receiptHandle, Runnable onBeat) {
+        try {
+            sqsClient.changeMessageVisibility(queueUrl, receiptHandle, timeoutSeconds);
+            beatCount.incrementAndGet();
+        } catch (AmazonClientException ex) {
+            errorCount.incrementAndGet();
+            LOG.error("Error extending message visibility: " + ex.getMessage(), ex);
+        }
+
+        if (onBeat != null) {
+            try {
+                onBeat.run();
+            } catch (RuntimeException ex) {
+                errorCount.incrementAndGet();
+                LOG.error("Error in heartbeat callback: " + ex.getMessage(), ex);
+            }
+        }
+    }
+
+    /** Number of times a message's visibility was extended. */
+    public long getBeatCount() {
+        return beatCount.get();
+    }
+
+    /** Number of failed heartbeats. */
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+}
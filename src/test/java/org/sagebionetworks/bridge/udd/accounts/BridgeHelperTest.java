@@ -1,14 +1,29 @@
 package org.sagebionetworks.bridge.udd.accounts;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import org.joda.time.DateTimeUtils;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.Test;
 import retrofit2.Call;
 import retrofit2.Response;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.rest.ClientManager;
 import org.sagebionetworks.bridge.rest.api.ForWorkersApi;
 import org.sagebionetworks.bridge.rest.model.Phone;
@@ -23,6 +38,11 @@ public class BridgeHelperTest {
     private static final String STUDY_ID = "test-study";
     private static final String USER_ID = "dummy-user-id";
 
+    @AfterMethod
+    public void cleanup() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
     @Test
     public void getAccountInfo() throws Exception {
         // mock StudyParticipant - We can't set the healthcode, but we need to return it for test.
@@ -111,4 +131,133 @@ public class BridgeHelperTest {
         
         bridgeHelper.getAccountInfo(STUDY_ID, USER_ID);
     }
+
+    @Test
+    public void cacheHit() throws Exception {
+        DateTimeUtils.setCurrentMillisFixed(1000000L);
+        ForWorkersApi mockWorkerApi = mockWorkerApi(mockVerifiedParticipant());
+        BridgeHelper bridgeHelper = makeCachingBridgeHelper(mockWorkerApi);
+
+        AccountInfo accountInfo = bridgeHelper.getAccountInfo(STUDY_ID, USER_ID);
+        assertSame(bridgeHelper.getAccountInfo(STUDY_ID, USER_ID), accountInfo);
+        verify(mockWorkerApi, times(1)).getParticipantById(STUDY_ID, USER_ID, false);
+        assertEquals(bridgeHelper.getCallCount(), 1);
+        assertEquals(bridgeHelper.getHitCount(), 1);
+    }
+
+    @Test
+    public void cacheExpires() throws Exception {
+        DateTimeUtils.setCurrentMillisFixed(1000000L);
+        ForWorkersApi mockWorkerApi = mockWorkerApi(mockVerifiedParticipant());
+        BridgeHelper bridgeHelper = makeCachingBridgeHelper(mockWorkerApi);
+        bridgeHelper.getAccountInfo(STUDY_ID, USER_ID);
+
+        DateTimeUtils.setCurrentMillisFixed(1000000L + TimeUnit.SECONDS.toMillis(61));
+        bridgeHelper.getAccountInfo(STUDY_ID, USER_ID);
+        verify(mockWorkerApi, times(2)).getParticipantById(STUDY_ID, USER_ID, false);
+        assertEquals(bridgeHelper.getHitCount(), 0);
+    }
+
+    @Test
+    public void noCacheByDefault() throws Exception {
+        ForWorkersApi mockWorkerApi = mockWorkerApi(mockVerifiedParticipant());
+        ClientManager mockClientManager = mock(ClientManager.class);
+        when(mockClientManager.getClient(ForWorkersApi.class)).thenReturn(mockWorkerApi);
+
+        BridgeHelper bridgeHelper = new BridgeHelper();
+        bridgeHelper.setBridgeClientManager(mockClientManager);
+        bridgeHelper.init();
+
+        bridgeHelper.getAccountInfo(STUDY_ID, USER_ID);
+        bridgeHelper.getAccountInfo(STUDY_ID, USER_ID);
+        verify(mockWorkerApi, times(2)).getParticipantById(STUDY_ID, USER_ID, false);
+    }
+
+    @Test
+    public void errorsNotCached() throws Exception {
+        StudyParticipant mockParticipant = mock(StudyParticipant.class);
+        when(mockParticipant.getHealthCode()).thenReturn(HEALTH_CODE);
+        ForWorkersApi mockWorkerApi = mockWorkerApi(mockParticipant);
+        BridgeHelper bridgeHelper = makeCachingBridgeHelper(mockWorkerApi);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                bridgeHelper.getAccountInfo(STUDY_ID, USER_ID);
+                fail("expected exception");
+            } catch (PollSqsWorkerBadRequestException ex) {
+                // expected exception
+            }
+        }
+        verify(mockWorkerApi, times(2)).getParticipantById(STUDY_ID, USER_ID, false);
+    }
+
+    @Test
+    public void getAccountInfoAsync() throws Exception {
+        ForWorkersApi mockWorkerApi = mockWorkerApi(mockVerifiedParticipant());
+        BridgeHelper bridgeHelper = makeCachingBridgeHelper(mockWorkerApi);
+        ExecutorService mockExecutor = mock(ExecutorService.class);
+        bridgeHelper.setAccountLookupExecutor(mockExecutor);
+
+        // The lookup is submitted to the executor, and doesn't run until the executor runs it.
+        CompletableFuture<AccountInfo> future = bridgeHelper.getAccountInfoAsync(STUDY_ID, USER_ID);
+        assertFalse(future.isDone());
+
+        bridgeHelper.setAccountLookupExecutor(MoreExecutors.newDirectExecutorService());
+        future = bridgeHelper.getAccountInfoAsync(STUDY_ID, USER_ID);
+        assertTrue(future.isDone());
+        assertEquals(future.get().getHealthCode(), HEALTH_CODE);
+
+        // Now it's cached, so the future completes immediately, even with the mock executor.
+        bridgeHelper.setAccountLookupExecutor(mockExecutor);
+        assertTrue(bridgeHelper.getAccountInfoAsync(STUDY_ID, USER_ID).isDone());
+    }
+
+    @Test
+    public void getAccountInfoAsyncError() throws Exception {
+        ForWorkersApi mockWorkerApi = mock(ForWorkersApi.class);
+        when(mockWorkerApi.getParticipantById(STUDY_ID, USER_ID, false)).thenThrow(new IllegalStateException(
+                "test exception"));
+        BridgeHelper bridgeHelper = makeCachingBridgeHelper(mockWorkerApi);
+
+        CompletableFuture<AccountInfo> future = bridgeHelper.getAccountInfoAsync(STUDY_ID, USER_ID);
+        try {
+            future.get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(bridgeHelper.getCallCount(), 1);
+    }
+
+    private static BridgeHelper makeCachingBridgeHelper(ForWorkersApi mockWorkerApi) {
+        ClientManager mockClientManager = mock(ClientManager.class);
+        when(mockClientManager.getClient(ForWorkersApi.class)).thenReturn(mockWorkerApi);
+
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(BridgeHelper.CONFIG_KEY_CACHE_MAX_ENTRIES)).thenReturn(100);
+        when(mockConfig.getInt(BridgeHelper.CONFIG_KEY_CACHE_TTL_SECONDS)).thenReturn(60);
+
+        BridgeHelper bridgeHelper = new BridgeHelper();
+        bridgeHelper.setBridgeClientManager(mockClientManager);
+        bridgeHelper.setConfig(mockConfig);
+        bridgeHelper.init();
+        return bridgeHelper;
+    }
+
+    private static StudyParticipant mockVerifiedParticipant() {
+        StudyParticipant mockParticipant = mock(StudyParticipant.class);
+        when(mockParticipant.getEmail()).thenReturn(EMAIL);
+        when(mockParticipant.getEmailVerified()).thenReturn(Boolean.TRUE);
+        when(mockParticipant.getHealthCode()).thenReturn(HEALTH_CODE);
+        return mockParticipant;
+    }
+
+    private static ForWorkersApi mockWorkerApi(StudyParticipant participant) throws Exception {
+        Call<StudyParticipant> mockCall = mock(Call.class);
+        when(mockCall.execute()).thenReturn(Response.success(participant));
+
+        ForWorkersApi mockWorkerApi = mock(ForWorkersApi.class);
+        when(mockWorkerApi.getParticipantById(STUDY_ID, USER_ID, false)).thenReturn(mockCall);
+        return mockWorkerApi;
+    }
 }
@@ -0,0 +1,101 @@
+package org.sagebionetworks.bridge.udd.concurrent;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.CancellationException;
+
+import org.joda.time.DateTimeUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class CancellationTokenTest {
+    private static final long MOCK_NOW_MILLIS = 1000000;
+
+    @BeforeMethod
+    public void setup() {
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void noDeadline() throws Exception {
+        CancellationToken token = new CancellationToken();
+        assertFalse(token.isCancelled());
+        assertFalse(token.isDeadlinePassed());
+        assertEquals(token.getRemainingMillis(), Long.MAX_VALUE);
+        assertNull(token.getReason());
+
+        // Doesn't throw.
+        token.throwIfCancelled();
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        CancellationToken token = new CancellationToken();
+        token.cancel("first reason");
+        token.cancel("second reason");
+        assertTrue(token.isCancelled());
+        assertFalse(token.isDeadlinePassed());
+        assertEquals(token.getReason(), "first reason");
+
+        // Sleep returns immediately.
+        assertTrue(token.sleep(Long.MAX_VALUE));
+
+        Exception thrownEx = null;
+        try {
+            token.throwIfCancelled();
+            fail("expected exception");
+        } catch (CancellationException ex) {
+            thrownEx = ex;
+        }
+        assertNotNull(thrownEx);
+        assertTrue(thrownEx.getMessage().contains("first reason"));
+    }
+
+    @Test
+    public void beforeDeadline() throws Exception {
+        CancellationToken token = CancellationToken.withTimeBudget(5000);
+        assertFalse(token.isCancelled());
+        assertFalse(token.isDeadlinePassed());
+        assertEquals(token.getRemainingMillis(), 5000);
+        assertNull(token.getReason());
+    }
+
+    @Test
+    public void deadlinePassed() throws Exception {
+        CancellationToken token = CancellationToken.withTimeBudget(5000);
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS + 5000);
+        assertTrue(token.isCancelled());
+        assertTrue(token.isDeadlinePassed());
+        assertEquals(token.getRemainingMillis(), 0);
+        assertEquals(token.getReason(), CancellationToken.REASON_DEADLINE_EXCEEDED);
+
+        // Sleep returns immediately.
+        assertTrue(token.sleep(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void cancelBeforeDeadline() throws Exception {
+        CancellationToken token = CancellationToken.withTimeBudget(5000);
+        token.cancel("test reason");
+        assertTrue(token.isCancelled());
+        assertFalse(token.isDeadlinePassed());
+        assertEquals(token.getReason(), "test reason");
+    }
+
+    @Test
+    public void sleepUntilTimeElapses() throws Exception {
+        CancellationToken token = new CancellationToken();
+        assertFalse(token.sleep(1));
+    }
+}
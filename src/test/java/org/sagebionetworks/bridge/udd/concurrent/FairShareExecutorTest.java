@@ -0,0 +1,115 @@
+package org.sagebionetworks.bridge.udd.concurrent;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class FairShareExecutorTest {
+    private ExecutorService executorService;
+    private FairShareExecutor executor;
+    private List<String> stageOrderList;
+
+    @BeforeMethod
+    public void setup() {
+        // Single thread, so stages run one at a time and we can check the order.
+        executorService = Executors.newSingleThreadExecutor();
+        executor = new FairShareExecutor(executorService, 1);
+        stageOrderList = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void requestsTakeTurns() throws Exception {
+        RequestShare bigShare = new RequestShare("big", 1);
+        RequestShare smallShare = new RequestShare("small", 1);
+        runWhileBlocked(bigShare, 4, smallShare, 2);
+
+        // The small request doesn't wait behind all of the big request's stages.
+        assertEquals(stageOrderList, ImmutableList.of("big-1", "small-1", "big-2", "small-2", "big-3", "big-4"));
+
+        // Queue waits are recorded per request.
+        assertEquals(bigShare.getStageCount(), 4);
+        assertEquals(smallShare.getStageCount(), 2);
+        assertTrue(bigShare.getMaxQueueWaitMillis() <= bigShare.getTotalQueueWaitMillis());
+    }
+
+    @Test
+    public void weightedRequestStartsMoreStagesPerTurn() throws Exception {
+        RequestShare bigShare = new RequestShare("big", 2);
+        RequestShare smallShare = new RequestShare("small", 1);
+        runWhileBlocked(bigShare, 4, smallShare, 2);
+        assertEquals(stageOrderList, ImmutableList.of("big-1", "big-2", "small-1", "big-3", "big-4", "small-2"));
+    }
+
+    @Test
+    public void rejectedAfterShutdown() {
+        executor.shutdownNow();
+        try {
+            executor.execute(new RequestShare("test", 1), () -> fail("should not run"));
+            fail("expected exception");
+        } catch (RejectedExecutionException ex) {
+            // expected exception
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void zeroWeight() {
+        new RequestShare("test", 0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void zeroConcurrentStages() {
+        new FairShareExecutor(executorService, 0);
+    }
+
+    // Blocks the only thread, queues the first request's stages, then the second request's stages, then unblocks the
+    // thread and waits for all stages to finish.
+    private void runWhileBlocked(RequestShare firstShare, int firstStageCount, RequestShare secondShare,
+            int secondStageCount) throws Exception {
+        CountDownLatch blockerLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(firstStageCount + secondStageCount);
+        executor.execute(new RequestShare("blocker", 1), () -> {
+            try {
+                blockerLatch.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        queueStages(firstShare, firstStageCount, doneLatch);
+        queueStages(secondShare, secondStageCount, doneLatch);
+        assertEquals(executor.getQueuedStageCount(), firstStageCount + secondStageCount);
+
+        blockerLatch.countDown();
+        assertTrue(doneLatch.await(10, TimeUnit.SECONDS));
+        assertEquals(executor.getQueuedStageCount(), 0);
+    }
+
+    private void queueStages(RequestShare share, int stageCount, CountDownLatch doneLatch) {
+        for (int i = 1; i <= stageCount; i++) {
+            String stageName = share.getName() + "-" + i;
+            executor.execute(share, () -> {
+                stageOrderList.add(stageName);
+                doneLatch.countDown();
+            });
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package org.sagebionetworks.bridge.udd.concurrent;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+
+public class TaskGraphExecutorTest {
+    private static final String TASK_NAME = "test-task";
+    private static final CancellationToken TOKEN = new CancellationToken();
+
+    private Map<StageResource, ExecutorService> executorServiceMap;
+    private TaskGraphExecutor executor;
+    private ScheduledExecutorService retryScheduler;
+
+    @BeforeMethod
+    public void setup() {
+        // One single-thread pool per resource, with the resource in the thread name, so we can tell which pool a
+        // stage ran on.
+        executorServiceMap = new EnumMap<>(StageResource.class);
+        for (StageResource oneResource : StageResource.values()) {
+            executorServiceMap.put(oneResource, Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("test-" + oneResource.name() + "-%d").build()));
+        }
+        retryScheduler = Executors.newSingleThreadScheduledExecutor();
+
+        Map<StageResource, FairShareExecutor> executorMap = new EnumMap<>(StageResource.class);
+        executorServiceMap.forEach((resource, executorService) -> executorMap.put(resource,
+                new FairShareExecutor(executorService, 1)));
+
+        executor = new TaskGraphExecutor();
+        executor.setExecutorMap(executorMap);
+        executor.setRetryScheduler(retryScheduler);
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        executorServiceMap.values().forEach(ExecutorService::shutdownNow);
+        retryScheduler.shutdownNow();
+    }
+
+    @Test
+    public void stagesRunOnResourcePools() throws Exception {
+        CompletableFuture<String> queryFuture = executor.submitStage(PackagingStage.QUERY, TASK_NAME, TOKEN,
+                () -> Thread.currentThread().getName());
+        CompletableFuture<String> editFuture = executor.thenStage(queryFuture, PackagingStage.EDIT, TASK_NAME, TOKEN,
+                queryThreadName -> queryThreadName + "," + Thread.currentThread().getName());
+
+        String[] threadNames = editFuture.get().split(",");
+        assertTrue(threadNames[0].startsWith("test-SYNAPSE-"), "Unexpected thread " + threadNames[0]);
+        assertTrue(threadNames[1].startsWith("test-CPU-"), "Unexpected thread " + threadNames[1]);
+    }
+
+    @Test
+    public void failedStageRetriedWithoutRerunningEarlierStages() throws Exception {
+        setRetryConfig(3);
+
+        AtomicInteger firstStageCount = new AtomicInteger();
+        AtomicInteger secondStageCount = new AtomicInteger();
+        CompletableFuture<String> firstFuture = executor.submitStage(PackagingStage.DOWNLOAD, TASK_NAME, TOKEN, () -> {
+            firstStageCount.incrementAndGet();
+            return "first";
+        });
+        CompletableFuture<String> secondFuture = executor.thenStage(firstFuture, PackagingStage.SCAN, TASK_NAME, TOKEN,
+                input -> {
+                    if (secondStageCount.incrementAndGet() < 3) {
+                        throw new IllegalStateException("test exception");
+                    }
+                    return input + "-second";
+                });
+
+        assertEquals(secondFuture.get(), "first-second");
+        assertEquals(firstStageCount.get(), 1);
+        assertEquals(secondStageCount.get(), 3);
+    }
+
+    @Test
+    public void retriesExhausted() throws Exception {
+        setRetryConfig(2);
+
+        AtomicInteger stageCount = new AtomicInteger();
+        Exception testEx = new Exception("test exception");
+        CompletableFuture<String> future = executor.submitStage(PackagingStage.POLL, TASK_NAME, TOKEN, () -> {
+            stageCount.incrementAndGet();
+            throw testEx;
+        });
+
+        try {
+            future.get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertSame(ex.getCause(), testEx);
+        }
+        assertEquals(stageCount.get(), 2);
+    }
+
+    @Test
+    public void noRetryByDefault() throws Exception {
+        AtomicInteger stageCount = new AtomicInteger();
+        CompletableFuture<String> future = executor.submitStage(PackagingStage.ZIP, TASK_NAME, TOKEN, () -> {
+            stageCount.incrementAndGet();
+            throw new IllegalStateException("test exception");
+        });
+
+        try {
+            future.get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(stageCount.get(), 1);
+    }
+
+    @Test
+    public void failedStageSkipsLaterStages() throws Exception {
+        AtomicInteger secondStageCount = new AtomicInteger();
+        CompletableFuture<String> firstFuture = executor.submitStage(PackagingStage.QUERY, TASK_NAME, TOKEN, () -> {
+            throw new IllegalStateException("test exception");
+        });
+        CompletableFuture<String> secondFuture = executor.thenStage(firstFuture, PackagingStage.POLL, TASK_NAME, TOKEN,
+                input -> {
+                    secondStageCount.incrementAndGet();
+                    return input;
+                });
+
+        try {
+            secondFuture.get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(secondStageCount.get(), 0);
+    }
+
+    @Test
+    public void cancelledTokenSkipsStages() throws Exception {
+        CancellationToken token = new CancellationToken();
+        AtomicInteger secondStageCount = new AtomicInteger();
+        CompletableFuture<String> firstFuture = executor.submitStage(PackagingStage.QUERY, TASK_NAME, token, () -> {
+            token.cancel("test cancel");
+            return "first";
+        });
+        CompletableFuture<String> secondFuture = executor.thenStage(firstFuture, PackagingStage.POLL, TASK_NAME,
+                token, input -> {
+                    secondStageCount.incrementAndGet();
+                    return input;
+                });
+
+        try {
+            secondFuture.get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof CancellationException);
+            assertTrue(ex.getCause().getMessage().contains("test cancel"));
+        }
+        assertEquals(secondStageCount.get(), 0);
+    }
+
+    @Test
+    public void noRetryAfterCancel() throws Exception {
+        setRetryConfig(3);
+
+        CancellationToken token = new CancellationToken();
+        AtomicInteger stageCount = new AtomicInteger();
+        CompletableFuture<String> future = executor.submitStage(PackagingStage.POLL, TASK_NAME, token, () -> {
+            stageCount.incrementAndGet();
+            token.cancel("test cancel");
+            throw new IllegalStateException("test exception");
+        });
+
+        try {
+            future.get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(stageCount.get(), 1);
+    }
+
+    @Test
+    public void rejectedStage() throws Exception {
+        executorServiceMap.get(StageResource.NETWORK).shutdown();
+
+        CompletableFuture<String> future = executor.submitStage(PackagingStage.BULK_DOWNLOAD, TASK_NAME, TOKEN,
+                () -> "never");
+        try {
+            future.get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public void submitCallsSubmitStages() throws Exception {
+        StagedTask<String> task = graphExecutor -> graphExecutor.submitStage(PackagingStage.QUERY, TASK_NAME, TOKEN,
+                () -> "result");
+        assertEquals(executor.submit(task).get(), "result");
+    }
+
+    @Test
+    public void registeredRequestsUseStudyWeights() throws Exception {
+        Config config = mock(Config.class);
+        when(config.getInt(TaskGraphExecutor.CONFIG_KEY_RETRY_MAX_ATTEMPTS)).thenReturn(1);
+        when(config.get(TaskGraphExecutor.CONFIG_KEY_STUDY_WEIGHTS)).thenReturn("big-study : 3, other-study:2");
+        executor.setConfig(config);
+
+        CancellationToken bigToken = new CancellationToken();
+        CancellationToken smallToken = new CancellationToken();
+        executor.startRequest(bigToken, "big-request", "big-study");
+        executor.startRequest(smallToken, "small-request", "small-study");
+
+        RequestShare bigShare = executor.getRequestShare(bigToken);
+        assertEquals(bigShare.getName(), "big-request");
+        assertEquals(bigShare.getWeight(), 3);
+        assertEquals(executor.getRequestShare(smallToken).getWeight(), 1);
+
+        // Stages are counted against the request's share.
+        executor.submitStage(PackagingStage.QUERY, TASK_NAME, bigToken, () -> "result").get();
+        assertEquals(bigShare.getStageCount(), 1);
+
+        // Once the request is finished, its token gets the default share.
+        executor.finishRequest(bigToken);
+        assertSame(executor.getRequestShare(bigToken), TaskGraphExecutor.DEFAULT_SHARE);
+    }
+
+    private void setRetryConfig(int maxAttempts) {
+        Config config = mock(Config.class);
+        when(config.getInt(TaskGraphExecutor.CONFIG_KEY_RETRY_DELAY_MILLIS)).thenReturn(0);
+        when(config.getInt(TaskGraphExecutor.CONFIG_KEY_RETRY_MAX_ATTEMPTS)).thenReturn(maxAttempts);
+        executor.setConfig(config);
+    }
+
+    /**
+     * Creates a task graph executor that runs every stage directly on the calling thread, without retries. Used by
+     * tests for staged tasks.
+     */
+    public static TaskGraphExecutor newDirectExecutor() {
+        Map<StageResource, FairShareExecutor> directExecutorMap = new EnumMap<>(StageResource.class);
+        for (StageResource oneResource : StageResource.values()) {
+            directExecutorMap.put(oneResource, new FairShareExecutor(MoreExecutors.newDirectExecutorService(), 1));
+        }
+
+        TaskGraphExecutor directExecutor = new TaskGraphExecutor();
+        directExecutor.setExecutorMap(directExecutorMap);
+        directExecutor.setRetryScheduler(mock(ScheduledExecutorService.class));
+        return directExecutor;
+    }
+}
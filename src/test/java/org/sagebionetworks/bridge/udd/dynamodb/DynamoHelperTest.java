@@ -1,24 +1,49 @@
 package org.sagebionetworks.bridge.udd.dynamodb;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
+import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.document.BatchGetItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Index;
 import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.amazonaws.services.dynamodbv2.document.KeyAttribute;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.TableKeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.dynamodb.DynamoQueryHelper;
 import org.sagebionetworks.bridge.schema.UploadSchema;
+import org.sagebionetworks.bridge.udd.concurrent.PackagingStage;
 
 public class DynamoHelperTest {
+    private static final String SCHEMA_TABLE_NAME = "test-UploadSchema";
+    private static final String SYNAPSE_MAP_TABLE_NAME = "test-SynapseTables";
     private static final String DUMMY_FIELD_DEF_LIST_JSON = "[\n" +
             "   {\n" +
             "       \"name\":\"dummy-field\",\n" +
@@ -104,6 +129,7 @@ public class DynamoHelperTest {
         // * qwerty and asdf schemas both point to the same table
 
         DynamoHelper dynamoHelper = new DynamoHelper();
+        dynamoHelper.setBatchGetExecutor(MoreExecutors.newDirectExecutorService());
 
         // Mock Schema table Study index. This involves stubbing out queryHelper() because indices can't be mocked
         // directly.
@@ -120,34 +146,201 @@ public class DynamoHelperTest {
         dynamoHelper.setDdbUploadSchemaStudyIndex(mockSchemaStudyIndex);
         dynamoHelper.setQueryHelper(mockQueryHelper);
 
-        // mock schema table
+        // mock schema table and synapse map table
         Table mockSchemaTable = mock(Table.class);
-        when(mockSchemaTable.getItem("key", "test-study:foo", "revision", 1)).thenReturn(makeUploadSchemaDdbItem(
-                "test-study", "foo", 1, DUMMY_FIELD_DEF_LIST_JSON));
-        when(mockSchemaTable.getItem("key", "test-study:bar", "revision", 2)).thenReturn(makeUploadSchemaDdbItem(
-                "test-study", "bar", 2, DUMMY_FIELD_DEF_LIST_JSON));
-        when(mockSchemaTable.getItem("key", "test-study:qwerty", "revision", 3)).thenReturn(makeUploadSchemaDdbItem(
-                "test-study", "qwerty", 3, DUMMY_FIELD_DEF_LIST_JSON));
-        when(mockSchemaTable.getItem("key", "test-study:asdf", "revision", 4)).thenReturn(makeUploadSchemaDdbItem(
-                "test-study", "asdf", 4, DUMMY_FIELD_DEF_LIST_JSON));
+        when(mockSchemaTable.getTableName()).thenReturn(SCHEMA_TABLE_NAME);
         dynamoHelper.setDdbUploadSchemaTable(mockSchemaTable);
 
-        // mock synapse map table
         Table mockSynapseMapTable = mock(Table.class);
-        when(mockSynapseMapTable.getItem("schemaKey", "test-study-bar-v2")).thenReturn(makeSynapseMapDdbItem(
-                "test-study-bar-v2", "bar-table-id"));
-        when(mockSynapseMapTable.getItem("schemaKey", "test-study-qwerty-v3")).thenReturn(makeSynapseMapDdbItem(
-                "test-study-qwerty-v3", "qwerty-asdf-table-id"));
-        when(mockSynapseMapTable.getItem("schemaKey", "test-study-asdf-v4")).thenReturn(makeSynapseMapDdbItem(
-                "test-study-asdf-v4", "qwerty-asdf-table-id"));
+        when(mockSynapseMapTable.getTableName()).thenReturn(SYNAPSE_MAP_TABLE_NAME);
         dynamoHelper.setDdbSynapseMapTable(mockSynapseMapTable);
 
+        // mock batch gets
+        Map<String, Item> ddbItemMap = new HashMap<>();
+        ddbItemMap.put(SCHEMA_TABLE_NAME + "|test-study:foo|1", makeUploadSchemaDdbItem("test-study", "foo", 1,
+                DUMMY_FIELD_DEF_LIST_JSON));
+        ddbItemMap.put(SCHEMA_TABLE_NAME + "|test-study:bar|2", makeUploadSchemaDdbItem("test-study", "bar", 2,
+                DUMMY_FIELD_DEF_LIST_JSON));
+        ddbItemMap.put(SCHEMA_TABLE_NAME + "|test-study:qwerty|3", makeUploadSchemaDdbItem("test-study", "qwerty",
+                3, DUMMY_FIELD_DEF_LIST_JSON));
+        ddbItemMap.put(SCHEMA_TABLE_NAME + "|test-study:asdf|4", makeUploadSchemaDdbItem("test-study", "asdf", 4,
+                DUMMY_FIELD_DEF_LIST_JSON));
+        ddbItemMap.put(SYNAPSE_MAP_TABLE_NAME + "|test-study-bar-v2", makeSynapseMapDdbItem("test-study-bar-v2",
+                "bar-table-id"));
+        ddbItemMap.put(SYNAPSE_MAP_TABLE_NAME + "|test-study-qwerty-v3", makeSynapseMapDdbItem(
+                "test-study-qwerty-v3", "qwerty-asdf-table-id"));
+        ddbItemMap.put(SYNAPSE_MAP_TABLE_NAME + "|test-study-asdf-v4", makeSynapseMapDdbItem("test-study-asdf-v4",
+                "qwerty-asdf-table-id"));
+        DynamoDB mockDdbClient = mockBatchGet(ddbItemMap);
+        dynamoHelper.setDdbClient(mockDdbClient);
+
         // execute and validate - Just check the key equals the schema we expect. Deep validation of schemas is done
         // in the schema tests
         Map<String, UploadSchema> synapseToSchemaMap = dynamoHelper.getSynapseTableIdsForStudy("test-study");
         assertEquals(synapseToSchemaMap.size(), 2);
         assertEquals(synapseToSchemaMap.get("bar-table-id").getKey().toString(), "test-study-bar-v2");
         assertEquals(synapseToSchemaMap.get("qwerty-asdf-table-id").getKey().toString(), "test-study-asdf-v4");
+
+        // One batch get per table, each projected to just the attributes we need.
+        ArgumentCaptor<TableKeysAndAttributes> keysAndAttributesCaptor = ArgumentCaptor.forClass(
+                TableKeysAndAttributes.class);
+        verify(mockDdbClient, times(2)).batchGetItem(keysAndAttributesCaptor.capture());
+        List<TableKeysAndAttributes> keysAndAttributesList = keysAndAttributesCaptor.getAllValues();
+        assertEquals(keysAndAttributesList.get(0).getTableName(), SCHEMA_TABLE_NAME);
+        assertEquals(keysAndAttributesList.get(0).getPrimaryKeys().size(), 4);
+        assertEquals(keysAndAttributesList.get(0).getAttributeNames(), ImmutableSet.of("key", "revision",
+                "fieldDefinitions"));
+        assertEquals(keysAndAttributesList.get(1).getTableName(), SYNAPSE_MAP_TABLE_NAME);
+        assertEquals(keysAndAttributesList.get(1).getPrimaryKeys().size(), 4);
+        assertEquals(keysAndAttributesList.get(1).getAttributeNames(), ImmutableSet.of("schemaKey", "tableId"));
+
+        // Schema revisions never change, so the second call reuses the parsed schemas, and only batch gets the
+        // Synapse map table.
+        Map<String, UploadSchema> secondSynapseToSchemaMap = dynamoHelper.getSynapseTableIdsForStudy("test-study");
+        assertEquals(secondSynapseToSchemaMap, synapseToSchemaMap);
+        verify(mockDdbClient, times(3)).batchGetItem(keysAndAttributesCaptor.capture());
+        assertEquals(keysAndAttributesCaptor.getValue().getTableName(), SYNAPSE_MAP_TABLE_NAME);
+    }
+
+    @Test
+    public void batchGetSplitsLargeStudies() throws Exception {
+        // 250 schemas, each with its own table. That's 3 batches per table.
+        int numSchemas = 250;
+        List<Item> mockSchemaStudyIndexResult = new ArrayList<>();
+        Map<String, Item> ddbItemMap = new HashMap<>();
+        for (int i = 0; i < numSchemas; i++) {
+            String schemaId = "schema" + i;
+            mockSchemaStudyIndexResult.add(makeUploadSchemaDdbItem("test-study", schemaId, 1, null));
+            ddbItemMap.put(SCHEMA_TABLE_NAME + "|test-study:" + schemaId + "|1", makeUploadSchemaDdbItem(
+                    "test-study", schemaId, 1, DUMMY_FIELD_DEF_LIST_JSON));
+            ddbItemMap.put(SYNAPSE_MAP_TABLE_NAME + "|test-study-" + schemaId + "-v1", makeSynapseMapDdbItem(
+                    "test-study-" + schemaId + "-v1", "table-" + i));
+        }
+
+        DynamoHelper dynamoHelper = setupBatchGetHelper(mockSchemaStudyIndexResult);
+        DynamoDB mockDdbClient = mockBatchGet(ddbItemMap);
+        dynamoHelper.setDdbClient(mockDdbClient);
+
+        Map<String, UploadSchema> synapseToSchemaMap = dynamoHelper.getSynapseTableIdsForStudy("test-study");
+        assertEquals(synapseToSchemaMap.size(), numSchemas);
+        assertEquals(synapseToSchemaMap.get("table-123").getKey().toString(), "test-study-schema123-v1");
+
+        ArgumentCaptor<TableKeysAndAttributes> keysAndAttributesCaptor = ArgumentCaptor.forClass(
+                TableKeysAndAttributes.class);
+        verify(mockDdbClient, times(6)).batchGetItem(keysAndAttributesCaptor.capture());
+        for (TableKeysAndAttributes oneKeysAndAttributes : keysAndAttributesCaptor.getAllValues()) {
+            assertTrue(oneKeysAndAttributes.getPrimaryKeys().size() <= DynamoHelper.BATCH_GET_MAX_KEYS);
+        }
+    }
+
+    @Test
+    public void batchGetRetriesUnprocessedKeys() throws Exception {
+        List<Item> mockSchemaStudyIndexResult = ImmutableList.of(makeUploadSchemaDdbItem("test-study", "foo", 1,
+                null));
+        DynamoHelper dynamoHelper = setupBatchGetHelper(mockSchemaStudyIndexResult);
+
+        // First schema batch get returns the key as unprocessed. The retry gets it.
+        Item fooSchemaItem = makeUploadSchemaDdbItem("test-study", "foo", 1, DUMMY_FIELD_DEF_LIST_JSON);
+        Map<String, KeysAndAttributes> unprocessedKeyMap = ImmutableMap.of(SCHEMA_TABLE_NAME,
+                new KeysAndAttributes().withKeys(ImmutableMap.of("key", new AttributeValue("test-study:foo"),
+                        "revision", new AttributeValue().withN("1"))));
+        DynamoDB mockDdbClient = mock(DynamoDB.class);
+        when(mockDdbClient.batchGetItem(Matchers.<TableKeysAndAttributes>anyVararg())).thenReturn(
+                new BatchGetItemOutcome(new BatchGetItemResult().withResponses(ImmutableMap.of())
+                        .withUnprocessedKeys(unprocessedKeyMap)),
+                makeBatchGetOutcome(SYNAPSE_MAP_TABLE_NAME, makeSynapseMapDdbItem("test-study-foo-v1",
+                        "foo-table-id")));
+        when(mockDdbClient.batchGetItemUnprocessed(unprocessedKeyMap)).thenReturn(makeBatchGetOutcome(
+                SCHEMA_TABLE_NAME, fooSchemaItem));
+        dynamoHelper.setDdbClient(mockDdbClient);
+
+        Map<String, UploadSchema> synapseToSchemaMap = dynamoHelper.getSynapseTableIdsForStudy("test-study");
+        assertEquals(synapseToSchemaMap.size(), 1);
+        assertEquals(synapseToSchemaMap.get("foo-table-id").getKey().toString(), "test-study-foo-v1");
+        verify(mockDdbClient).batchGetItemUnprocessed(unprocessedKeyMap);
+    }
+
+    @Test
+    public void batchGetGivesUpOnUnprocessedKeys() throws Exception {
+        List<Item> mockSchemaStudyIndexResult = ImmutableList.of(makeUploadSchemaDdbItem("test-study", "foo", 1,
+                null));
+        DynamoHelper dynamoHelper = setupBatchGetHelper(mockSchemaStudyIndexResult);
+
+        Map<String, KeysAndAttributes> unprocessedKeyMap = ImmutableMap.of(SCHEMA_TABLE_NAME,
+                new KeysAndAttributes().withKeys(ImmutableMap.of("key", new AttributeValue("test-study:foo"),
+                        "revision", new AttributeValue().withN("1"))));
+        BatchGetItemOutcome unprocessedOutcome = new BatchGetItemOutcome(new BatchGetItemResult()
+                .withResponses(ImmutableMap.of()).withUnprocessedKeys(unprocessedKeyMap));
+        DynamoDB mockDdbClient = mock(DynamoDB.class);
+        when(mockDdbClient.batchGetItem(Matchers.<TableKeysAndAttributes>anyVararg())).thenReturn(
+                unprocessedOutcome);
+        when(mockDdbClient.batchGetItemUnprocessed(unprocessedKeyMap)).thenReturn(unprocessedOutcome);
+        dynamoHelper.setDdbClient(mockDdbClient);
+
+        try {
+            dynamoHelper.getSynapseTableIdsForStudy("test-study");
+            fail("expected exception");
+        } catch (AmazonClientException ex) {
+            // expected exception
+        }
+        verify(mockDdbClient, times(DynamoHelper.BATCH_GET_MAX_ATTEMPTS - 1)).batchGetItemUnprocessed(
+                unprocessedKeyMap);
+    }
+
+    // Sets up a dynamo helper with the given index results, mock tables, and a direct batch get executor. The caller
+    // sets up the DDB client.
+    private static DynamoHelper setupBatchGetHelper(List<Item> schemaStudyIndexResult) {
+        DynamoHelper dynamoHelper = new DynamoHelper();
+        dynamoHelper.setBatchGetExecutor(MoreExecutors.newDirectExecutorService());
+
+        Index mockSchemaStudyIndex = mock(Index.class);
+        DynamoQueryHelper mockQueryHelper = mock(DynamoQueryHelper.class);
+        when(mockQueryHelper.query(mockSchemaStudyIndex, "studyId", "test-study")).thenReturn(schemaStudyIndexResult);
+        dynamoHelper.setDdbUploadSchemaStudyIndex(mockSchemaStudyIndex);
+        dynamoHelper.setQueryHelper(mockQueryHelper);
+
+        Table mockSchemaTable = mock(Table.class);
+        when(mockSchemaTable.getTableName()).thenReturn(SCHEMA_TABLE_NAME);
+        dynamoHelper.setDdbUploadSchemaTable(mockSchemaTable);
+
+        Table mockSynapseMapTable = mock(Table.class);
+        when(mockSynapseMapTable.getTableName()).thenReturn(SYNAPSE_MAP_TABLE_NAME);
+        dynamoHelper.setDdbSynapseMapTable(mockSynapseMapTable);
+
+        return dynamoHelper;
+    }
+
+    // Mocks a DDB client whose batch gets look up items in the given map. Map keys are the table name and the key
+    // values, separated by "|".
+    private static DynamoDB mockBatchGet(Map<String, Item> ddbItemMap) {
+        DynamoDB mockDdbClient = mock(DynamoDB.class);
+        when(mockDdbClient.batchGetItem(Matchers.<TableKeysAndAttributes>anyVararg())).thenAnswer(invocation -> {
+            TableKeysAndAttributes keysAndAttributes = invocation.getArgumentAt(0, TableKeysAndAttributes.class);
+            String tableName = keysAndAttributes.getTableName();
+            List<Item> itemList = new ArrayList<>();
+            for (PrimaryKey onePrimaryKey : keysAndAttributes.getPrimaryKeys()) {
+                StringBuilder itemMapKeyBuilder = new StringBuilder(tableName);
+                for (KeyAttribute oneKeyAttribute : onePrimaryKey.getComponents()) {
+                    itemMapKeyBuilder.append('|').append(oneKeyAttribute.getValue());
+                }
+
+                Item item = ddbItemMap.get(itemMapKeyBuilder.toString());
+                if (item != null) {
+                    itemList.add(item);
+                }
+            }
+            return makeBatchGetOutcome(tableName, itemList.toArray(new Item[itemList.size()]));
+        });
+        return mockDdbClient;
+    }
+
+    private static BatchGetItemOutcome makeBatchGetOutcome(String tableName, Item... items) {
+        List<Map<String, AttributeValue>> attrValueMapList = new ArrayList<>();
+        for (Item oneItem : items) {
+            attrValueMapList.add(ItemUtils.toAttributeValues(oneItem));
+        }
+        return new BatchGetItemOutcome(new BatchGetItemResult().withResponses(ImmutableMap.of(tableName,
+                attrValueMapList)));
     }
 
     private static Item makeUploadSchemaDdbItem(String studyId, String schemaId, int rev, String fieldDefListJson) {
@@ -162,4 +355,54 @@ public class DynamoHelperTest {
     private static Item makeSynapseMapDdbItem(String schemaKey, String synapseTableId) {
         return new Item().withString("schemaKey", schemaKey).withString("tableId", synapseTableId);
     }
+
+    @Test
+    public void getSynapseTableStats() {
+        // DDB returns numbers in maps as BigDecimals.
+        Item item = new Item().withString("synapseTableId", "test-table").withLong("runCount", 3)
+                .withLong("csvBytes", 1234).withLong("attachmentCount", 5).withMap("stageMillis", ImmutableMap.of(
+                        "QUERY", new BigDecimal(100), "EDIT", new BigDecimal(20), "REMOVED_STAGE", new BigDecimal(7)));
+        Table mockStatsTable = mock(Table.class);
+        when(mockStatsTable.getItem("synapseTableId", "test-table")).thenReturn(item);
+
+        DynamoHelper helper = new DynamoHelper();
+        helper.setDdbSynapseTableStatsTable(mockStatsTable);
+
+        // execute and validate
+        SynapseTableStats stats = helper.getSynapseTableStats("test-table");
+        assertEquals(stats.getSynapseTableId(), "test-table");
+        assertEquals(stats.getRunCount(), 3);
+        assertEquals(stats.getCsvBytes(), 1234);
+        assertEquals(stats.getAttachmentCount(), 5);
+        assertEquals(stats.getStageMillisMap(), ImmutableMap.of(PackagingStage.QUERY, 100L, PackagingStage.EDIT,
+                20L));
+    }
+
+    @Test
+    public void getSynapseTableStatsNoItem() {
+        DynamoHelper helper = new DynamoHelper();
+        helper.setDdbSynapseTableStatsTable(mock(Table.class));
+        assertNull(helper.getSynapseTableStats("test-table"));
+    }
+
+    @Test
+    public void putSynapseTableStats() {
+        Table mockStatsTable = mock(Table.class);
+        DynamoHelper helper = new DynamoHelper();
+        helper.setDdbSynapseTableStatsTable(mockStatsTable);
+
+        // execute
+        helper.putSynapseTableStats(new SynapseTableStats.Builder().withSynapseTableId("test-table").withRunCount(3)
+                .withCsvBytes(1234).withAttachmentCount(5).withStageMillis(PackagingStage.QUERY, 100).build());
+
+        // validate
+        ArgumentCaptor<Item> itemCaptor = ArgumentCaptor.forClass(Item.class);
+        verify(mockStatsTable).putItem(itemCaptor.capture());
+        Item item = itemCaptor.getValue();
+        assertEquals(item.getString("synapseTableId"), "test-table");
+        assertEquals(item.getLong("runCount"), 3);
+        assertEquals(item.getLong("csvBytes"), 1234);
+        assertEquals(item.getLong("attachmentCount"), 5);
+        assertEquals(((Number) item.getMap("stageMillis").get("QUERY")).longValue(), 100);
+    }
 }
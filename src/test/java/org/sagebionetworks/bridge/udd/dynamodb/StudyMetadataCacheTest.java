@@ -0,0 +1,150 @@
+package org.sagebionetworks.bridge.udd.dynamodb;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.schema.UploadSchema;
+
+public class StudyMetadataCacheTest {
+    private static final String STUDY_ID = "test-study";
+    private static final StudyInfo STUDY_INFO = new StudyInfo.Builder().withName("Test Study")
+            .withShortName("Test").withStudyId(STUDY_ID).withSupportEmail("support@sagebase.org").build();
+    private static final StudyInfo STUDY_INFO_2 = new StudyInfo.Builder().withName("Renamed Study")
+            .withShortName("Test").withStudyId(STUDY_ID).withSupportEmail("support@sagebase.org").build();
+
+    private StudyMetadataCache cache;
+    private Config mockConfig;
+    private DynamoHelper mockDynamoHelper;
+    private DateTime now;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        now = DateTime.now();
+        DateTimeUtils.setCurrentMillisFixed(now.getMillis());
+
+        mockConfig = mock(Config.class);
+        when(mockConfig.getInt(StudyMetadataCache.CONFIG_KEY_REFRESH_MINUTES)).thenReturn(5);
+        when(mockConfig.getInt(StudyMetadataCache.CONFIG_KEY_TTL_MINUTES)).thenReturn(60);
+
+        mockDynamoHelper = mock(DynamoHelper.class);
+        when(mockDynamoHelper.getStudy(STUDY_ID)).thenReturn(STUDY_INFO, STUDY_INFO_2);
+        when(mockDynamoHelper.getSynapseTableIdsForStudy(STUDY_ID)).thenReturn(
+                ImmutableMap.<String, UploadSchema>of());
+        when(mockDynamoHelper.getSynapseSurveyTablesForStudy(STUDY_ID)).thenReturn(ImmutableSet.of("survey-table"));
+
+        cache = createCache();
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        when(mockConfig.getInt(StudyMetadataCache.CONFIG_KEY_TTL_MINUTES)).thenReturn(0);
+        cache = createCache();
+
+        assertSame(cache.getStudyMetadata(STUDY_ID).getStudyInfo(), STUDY_INFO);
+        assertSame(cache.getStudyMetadata(STUDY_ID).getStudyInfo(), STUDY_INFO_2);
+        verify(mockDynamoHelper, times(2)).getStudy(STUDY_ID);
+    }
+
+    @Test
+    public void hit() throws Exception {
+        StudyMetadata metadata = cache.getStudyMetadata(STUDY_ID);
+        assertSame(metadata.getStudyInfo(), STUDY_INFO);
+        assertTrue(metadata.getSynapseToSchemaMap().isEmpty());
+        assertEquals(metadata.getSurveyTableIdSet(), ImmutableSet.of("survey-table"));
+
+        // Second call doesn't go to DDB.
+        assertSame(cache.getStudyMetadata(STUDY_ID), metadata);
+        verify(mockDynamoHelper, times(1)).getStudy(STUDY_ID);
+        verify(mockDynamoHelper, times(1)).getSynapseTableIdsForStudy(STUDY_ID);
+        verify(mockDynamoHelper, times(1)).getSynapseSurveyTablesForStudy(STUDY_ID);
+    }
+
+    @Test
+    public void refresh() throws Exception {
+        assertSame(cache.getStudyMetadata(STUDY_ID).getStudyInfo(), STUDY_INFO);
+
+        // Past the refresh interval. The refresh executor runs in the same thread, so the refresh finishes before
+        // the call returns.
+        DateTimeUtils.setCurrentMillisFixed(now.plusMinutes(6).getMillis());
+        assertSame(cache.getStudyMetadata(STUDY_ID).getStudyInfo(), STUDY_INFO_2);
+        verify(mockDynamoHelper, times(2)).getStudy(STUDY_ID);
+    }
+
+    @Test
+    public void refreshFailureKeepsOldSnapshot() throws Exception {
+        StudyMetadata metadata = cache.getStudyMetadata(STUDY_ID);
+
+        when(mockDynamoHelper.getSynapseTableIdsForStudy(STUDY_ID)).thenThrow(IOException.class);
+        DateTimeUtils.setCurrentMillisFixed(now.plusMinutes(6).getMillis());
+        assertSame(cache.getStudyMetadata(STUDY_ID), metadata);
+    }
+
+    @Test
+    public void expired() throws Exception {
+        assertSame(cache.getStudyMetadata(STUDY_ID).getStudyInfo(), STUDY_INFO);
+
+        DateTimeUtils.setCurrentMillisFixed(now.plusMinutes(61).getMillis());
+        assertSame(cache.getStudyMetadata(STUDY_ID).getStudyInfo(), STUDY_INFO_2);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void loadError() throws Exception {
+        when(mockDynamoHelper.getSynapseTableIdsForStudy(STUDY_ID)).thenThrow(IOException.class);
+        cache.getStudyMetadata(STUDY_ID);
+    }
+
+    @Test
+    public void parallelLoad() throws Exception {
+        cache.setLoadExecutor(MoreExecutors.newDirectExecutorService());
+        StudyMetadata metadata = cache.getStudyMetadata(STUDY_ID);
+        assertSame(metadata.getStudyInfo(), STUDY_INFO);
+        assertTrue(metadata.getSynapseToSchemaMap().isEmpty());
+        assertEquals(metadata.getSurveyTableIdSet(), ImmutableSet.of("survey-table"));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void parallelLoadError() throws Exception {
+        // Errors from lookups on the load executor are rethrown as is.
+        when(mockDynamoHelper.getSynapseSurveyTablesForStudy(STUDY_ID)).thenThrow(IllegalStateException.class);
+        cache.setLoadExecutor(MoreExecutors.newDirectExecutorService());
+        cache.getStudyMetadata(STUDY_ID);
+    }
+
+    @Test
+    public void snapshotIsImmutableCopy() throws Exception {
+        Map<String, UploadSchema> synapseToSchemaMap = cache.getStudyMetadata(STUDY_ID).getSynapseToSchemaMap();
+        assertTrue(synapseToSchemaMap instanceof ImmutableMap);
+    }
+
+    private StudyMetadataCache createCache() {
+        StudyMetadataCache studyMetadataCache = new StudyMetadataCache();
+        studyMetadataCache.setConfig(mockConfig);
+        studyMetadataCache.setDynamoHelper(mockDynamoHelper);
+        studyMetadataCache.setRefreshExecutor(MoreExecutors.newDirectExecutorService());
+        studyMetadataCache.init();
+        return studyMetadataCache;
+    }
+}
@@ -0,0 +1,59 @@
+package org.sagebionetworks.bridge.udd.dynamodb;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.udd.concurrent.PackagingStage;
+
+public class SynapseTableStatsTest {
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = ".*synapseTableId.*")
+    public void nullSynapseTableId() {
+        new SynapseTableStats.Builder().build();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = ".*synapseTableId.*")
+    public void emptySynapseTableId() {
+        new SynapseTableStats.Builder().withSynapseTableId("").build();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = ".*runCount.*")
+    public void zeroRunCount() {
+        new SynapseTableStats.Builder().withSynapseTableId("test-table").withRunCount(0).build();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = ".*csvBytes.*")
+    public void negativeCsvBytes() {
+        new SynapseTableStats.Builder().withSynapseTableId("test-table").withCsvBytes(-1).build();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = ".*attachmentCount.*")
+    public void negativeAttachmentCount() {
+        new SynapseTableStats.Builder().withSynapseTableId("test-table").withAttachmentCount(-1).build();
+    }
+
+    @Test
+    public void defaults() {
+        SynapseTableStats stats = new SynapseTableStats.Builder().withSynapseTableId("test-table").build();
+        assertEquals(stats.getSynapseTableId(), "test-table");
+        assertEquals(stats.getRunCount(), 1);
+        assertEquals(stats.getCsvBytes(), 0);
+        assertEquals(stats.getAttachmentCount(), 0);
+        assertTrue(stats.getStageMillisMap().isEmpty());
+        assertEquals(stats.getTotalStageMillis(), 0);
+    }
+
+    @Test
+    public void happyCase() {
+        SynapseTableStats stats = new SynapseTableStats.Builder().withSynapseTableId("test-table").withRunCount(3)
+                .withCsvBytes(1234).withAttachmentCount(5).withStageMillis(PackagingStage.QUERY, 100)
+                .withStageMillis(PackagingStage.EDIT, 20).build();
+        assertEquals(stats.getRunCount(), 3);
+        assertEquals(stats.getCsvBytes(), 1234);
+        assertEquals(stats.getAttachmentCount(), 5);
+        assertEquals(stats.getStageMillisMap().size(), 2);
+        assertEquals(stats.getStageMillisMap().get(PackagingStage.QUERY).longValue(), 100);
+        assertEquals(stats.getTotalStageMillis(), 120);
+    }
+}
@@ -0,0 +1,276 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+
+// These tests use the real file system, since we need to check which files spill to disk.
+public class HybridFileHelperTest {
+    private HybridFileHelper fileHelper;
+    private File tmpDir;
+
+    @BeforeMethod
+    public void setup() {
+        // 1 KB per file, 2 KB per request.
+        fileHelper = new HybridFileHelper();
+        fileHelper.setConfig(mockConfig(1, 2));
+        tmpDir = fileHelper.createTempDir();
+    }
+
+    @AfterMethod
+    public void cleanup() throws Exception {
+        if (!tmpDir.exists()) {
+            // Test already deleted it.
+            return;
+        }
+
+        List<Path> pathList;
+        try (Stream<Path> pathStream = Files.walk(tmpDir.toPath())) {
+            pathList = pathStream.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        for (Path onePath : pathList) {
+            Files.deleteIfExists(onePath);
+        }
+    }
+
+    @Test
+    public void smallFileStaysInMemory() throws Exception {
+        File file = fileHelper.newFile(tmpDir, "foo.csv");
+        writeString(file, "foo content");
+
+        assertTrue(fileHelper.isInMemory(file));
+        assertTrue(fileHelper.fileExists(file));
+        assertFalse(file.exists());
+        assertEquals(readString(file), "foo content");
+        assertEquals(fileHelper.getMemoryBytes(tmpDir), 11);
+
+        fileHelper.deleteFile(file);
+        assertFalse(fileHelper.fileExists(file));
+        assertEquals(fileHelper.getMemoryBytes(tmpDir), 0);
+
+        fileHelper.deleteDir(tmpDir);
+        assertFalse(tmpDir.exists());
+    }
+
+    @Test
+    public void largeFileSpills() throws Exception {
+        // Write one byte at a time, so we spill partway through.
+        File file = fileHelper.newFile(tmpDir, "foo.csv");
+        try (OutputStream outputStream = fileHelper.getOutputStream(file)) {
+            for (int i = 0; i < 1500; i++) {
+                outputStream.write('a' + i % 26);
+            }
+        }
+
+        assertFalse(fileHelper.isInMemory(file));
+        assertTrue(file.isFile());
+        assertEquals(file.length(), 1500);
+        assertEquals(fileHelper.getMemoryBytes(tmpDir), 0);
+        assertEquals(fileHelper.getSpillCount(), 1);
+
+        String content = readString(file);
+        assertEquals(content.length(), 1500);
+        assertTrue(content.startsWith("abcdefghijklmnopqrstuvwxyzabc"));
+    }
+
+    @Test
+    public void requestLimitSpills() throws Exception {
+        // First two files fit in the request's 2 KB. The third doesn't.
+        File fooFile = fileHelper.newFile(tmpDir, "foo.csv");
+        File barFile = fileHelper.newFile(tmpDir, "bar.csv");
+        File bazFile = fileHelper.newFile(tmpDir, "baz.csv");
+        String content = Strings.repeat("x", 800);
+        writeString(fooFile, content);
+        writeString(barFile, content);
+        writeString(bazFile, content);
+
+        assertTrue(fileHelper.isInMemory(fooFile));
+        assertTrue(fileHelper.isInMemory(barFile));
+        assertFalse(fileHelper.isInMemory(bazFile));
+        assertTrue(bazFile.isFile());
+        assertEquals(fileHelper.getMemoryBytes(tmpDir), 1600);
+
+        // Other requests have their own limit.
+        File otherTmpDir = fileHelper.createTempDir();
+        try {
+            File otherFile = fileHelper.newFile(otherTmpDir, "foo.csv");
+            writeString(otherFile, content);
+            assertTrue(fileHelper.isInMemory(otherFile));
+            fileHelper.deleteFile(otherFile);
+        } finally {
+            fileHelper.deleteDir(otherTmpDir);
+        }
+    }
+
+    @Test
+    public void moveMemoryFileOverDiskFile() throws Exception {
+        // This is what happens when we edit a CSV downloaded from Synapse. The original is written straight to disk.
+        File csvFile = fileHelper.newFile(tmpDir, "foo.csv");
+        Files.write(csvFile.toPath(), "original content".getBytes(Charsets.UTF_8));
+
+        File editedCsvFile = fileHelper.newFile(tmpDir, "foo.csv.tmp");
+        writeString(editedCsvFile, "edited content");
+
+        // execute and validate
+        fileHelper.moveFiles(editedCsvFile, csvFile);
+        assertFalse(fileHelper.fileExists(editedCsvFile));
+        assertTrue(fileHelper.isInMemory(csvFile));
+        assertFalse(csvFile.exists());
+        assertEquals(readString(csvFile), "edited content");
+        assertEquals(fileHelper.getMemoryBytes(tmpDir), 14);
+    }
+
+    @Test
+    public void moveDiskFile() throws Exception {
+        File fromFile = fileHelper.newFile(tmpDir, "foo.csv");
+        Files.write(fromFile.toPath(), "foo content".getBytes(Charsets.UTF_8));
+
+        // There's an old version of the destination in memory.
+        File toFile = fileHelper.newFile(tmpDir, "bar.csv");
+        writeString(toFile, "old content");
+
+        // execute and validate
+        fileHelper.moveFiles(fromFile, toFile);
+        assertFalse(fileHelper.fileExists(fromFile));
+        assertFalse(fileHelper.isInMemory(toFile));
+        assertTrue(toFile.isFile());
+        assertEquals(readString(toFile), "foo content");
+        assertEquals(fileHelper.getMemoryBytes(tmpDir), 0);
+    }
+
+    @Test
+    public void overwriteDiskFileWithSmallFile() throws Exception {
+        File file = fileHelper.newFile(tmpDir, "foo.csv");
+        writeString(file, Strings.repeat("x", 1500));
+        assertTrue(file.isFile());
+
+        writeString(file, "foo content");
+        assertTrue(fileHelper.isInMemory(file));
+        assertFalse(file.exists());
+        assertEquals(readString(file), "foo content");
+    }
+
+    @Test
+    public void overwriteMemoryFileWithLargeFile() throws Exception {
+        File file = fileHelper.newFile(tmpDir, "foo.csv");
+        writeString(file, "foo content");
+        assertTrue(fileHelper.isInMemory(file));
+
+        writeString(file, Strings.repeat("x", 1500));
+        assertFalse(fileHelper.isInMemory(file));
+        assertTrue(file.isFile());
+        assertEquals(fileHelper.getMemoryBytes(tmpDir), 0);
+    }
+
+    @Test
+    public void deleteDirDropsMemoryFiles() throws Exception {
+        writeString(fileHelper.newFile(tmpDir, "foo.csv"), "foo content");
+        writeString(fileHelper.newFile(tmpDir, "bar.csv"), "bar content");
+
+        fileHelper.deleteDir(tmpDir);
+        assertFalse(tmpDir.exists());
+        assertEquals(fileHelper.getMemoryBytes(tmpDir), 0);
+    }
+
+    @Test
+    public void forgetDirDropsMemoryFilesOnly() throws Exception {
+        File memoryFile = fileHelper.newFile(tmpDir, "foo.csv");
+        writeString(memoryFile, "foo content");
+        File diskFile = new File(tmpDir, "bar.csv");
+        Files.write(diskFile.toPath(), "bar content".getBytes(Charsets.UTF_8));
+
+        fileHelper.forgetDir(tmpDir);
+        assertFalse(fileHelper.fileExists(memoryFile));
+        assertEquals(fileHelper.getMemoryBytes(tmpDir), 0);
+
+        // Disk is untouched.
+        assertTrue(diskFile.isFile());
+        assertTrue(tmpDir.isDirectory());
+    }
+
+    @Test
+    public void zeroLimitsKeepEverythingOnDisk() throws Exception {
+        fileHelper.setConfig(mockConfig(0, 0));
+
+        File file = fileHelper.newFile(tmpDir, "foo.csv");
+        writeString(file, "foo content");
+        assertFalse(fileHelper.isInMemory(file));
+        assertTrue(file.isFile());
+        assertEquals(readString(file), "foo content");
+    }
+
+    @Test
+    public void zipMemoryAndDiskFiles() throws Exception {
+        // The zip helper works unchanged on top of the hybrid file helper. One input is in memory, and one was written
+        // straight to disk (like a Synapse download).
+        File memoryFile = fileHelper.newFile(tmpDir, "memory.csv");
+        writeString(memoryFile, "memory content");
+
+        File diskFile = fileHelper.newFile(tmpDir, "disk.csv");
+        Files.write(diskFile.toPath(), "disk content".getBytes(Charsets.UTF_8));
+
+        ZipHelper zipHelper = new ZipHelper();
+        zipHelper.setCompressionPolicy(new ZipCompressionPolicy());
+        zipHelper.setFileHelper(fileHelper);
+
+        // execute
+        File zipFile = fileHelper.newFile(tmpDir, "master.zip");
+        zipHelper.zip(ImmutableList.of(memoryFile, diskFile), zipFile);
+
+        // validate
+        assertTrue(fileHelper.isInMemory(zipFile));
+        byte[] zipBytes;
+        try (InputStream zipInputStream = fileHelper.getInputStream(zipFile)) {
+            zipBytes = ByteStreams.toByteArray(zipInputStream);
+        }
+        Map<String, String> unzippedMap = ZipHelperTest.unzipHelper(zipBytes);
+        assertEquals(unzippedMap.size(), 2);
+        assertEquals(unzippedMap.get("memory.csv"), "memory content");
+        assertEquals(unzippedMap.get("disk.csv"), "disk content");
+    }
+
+    private static Config mockConfig(int maxFileKb, int maxRequestKb) {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(HybridFileHelper.CONFIG_KEY_MAX_FILE_KB)).thenReturn(maxFileKb);
+        when(mockConfig.getInt(HybridFileHelper.CONFIG_KEY_MAX_REQUEST_KB)).thenReturn(maxRequestKb);
+        return mockConfig;
+    }
+
+    private String readString(File file) throws Exception {
+        try (Reader reader = fileHelper.getReader(file)) {
+            return CharStreams.toString(reader);
+        }
+    }
+
+    private void writeString(File file, String content) throws Exception {
+        try (Writer writer = fileHelper.getWriter(file)) {
+            writer.write(content);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTimeUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+public class JodaTickerTest {
+    @AfterMethod
+    public void cleanup() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void readsJodaTime() {
+        DateTimeUtils.setCurrentMillisFixed(1500000000000L);
+        assertEquals(JodaTicker.INSTANCE.read(), TimeUnit.MILLISECONDS.toNanos(1500000000000L));
+
+        DateTimeUtils.setCurrentMillisFixed(1500000001000L);
+        assertEquals(JodaTicker.INSTANCE.read(), TimeUnit.MILLISECONDS.toNanos(1500000001000L));
+    }
+}
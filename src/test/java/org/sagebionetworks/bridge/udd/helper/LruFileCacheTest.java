@@ -0,0 +1,125 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.spy;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.file.InMemoryFileHelper;
+
+public class LruFileCacheTest {
+    private static final String KEY = "test-key";
+    private static final String VALUE = "test-value";
+
+    private LruFileCache<String> cache;
+    private File cacheDir;
+    private InMemoryFileHelper inMemoryFileHelper;
+    private File tmpDir;
+
+    @BeforeMethod
+    public void setup() {
+        inMemoryFileHelper = spy(new InMemoryFileHelper());
+        tmpDir = inMemoryFileHelper.createTempDir();
+        cacheDir = inMemoryFileHelper.createTempDir();
+
+        // Room for two 10-byte files.
+        cache = new LruFileCache<>(inMemoryFileHelper, inMemoryFileHelper, cacheDir, 25);
+    }
+
+    @Test
+    public void hit() throws Exception {
+        File file = createFile("file", 10);
+        assertEquals(cache.put(KEY, VALUE, file), 10);
+        assertEquals(cache.getTotalBytes(), 10);
+
+        File copyFile = inMemoryFileHelper.newFile(tmpDir, "copy");
+        assertEquals(cache.copyTo(KEY, value -> true, copyFile), VALUE);
+        assertEquals(inMemoryFileHelper.getBytes(copyFile), inMemoryFileHelper.getBytes(file));
+    }
+
+    @Test
+    public void notCurrentRemoved() throws Exception {
+        cache.put(KEY, VALUE, createFile("file", 10));
+        assertNull(cache.copyTo(KEY, value -> false, inMemoryFileHelper.newFile(tmpDir, "copy")));
+        assertEquals(cache.getTotalBytes(), 0);
+        assertTrue(inMemoryFileHelper.isEmpty(cacheDir));
+    }
+
+    @Test
+    public void evictedWhileCopyingDeletedAfterCopy() throws Exception {
+        cache.put(KEY, VALUE, createFile("file", 10));
+        cache.put("other-key-1", VALUE, createFile("other-file-1", 10));
+
+        // While the entry is being copied out, two more puts evict it.
+        List<File> cachedFileList = new ArrayList<>();
+        doAnswer(invocation -> {
+            File from = invocation.getArgumentAt(0, File.class);
+            if (from.getParentFile().equals(cacheDir) && cachedFileList.isEmpty()) {
+                cachedFileList.add(from);
+                cache.put("other-key-2", VALUE, createFile("other-file-2", 10));
+                cache.put("other-key-3", VALUE, createFile("other-file-3", 10));
+                assertEquals(cache.getEvictionCount(), 2);
+
+                // Pinned, so the file isn't deleted yet.
+                assertTrue(inMemoryFileHelper.fileExists(from));
+            }
+            return invocation.callRealMethod();
+        }).when(inMemoryFileHelper).getInputStream(any(File.class));
+
+        File copyFile = inMemoryFileHelper.newFile(tmpDir, "copy");
+        assertEquals(cache.copyTo(KEY, value -> true, copyFile), VALUE);
+        assertEquals(inMemoryFileHelper.getBytes(copyFile).length, 10);
+
+        // The last copy is done, so the evicted file is deleted.
+        assertFalse(inMemoryFileHelper.fileExists(cachedFileList.get(0)));
+        assertEquals(cache.getTotalBytes(), 20);
+        assertNull(cache.copyTo(KEY, value -> true, inMemoryFileHelper.newFile(tmpDir, "copy-2")));
+    }
+
+    @Test
+    public void copyErrorRemovesEntry() throws Exception {
+        cache.put(KEY, VALUE, createFile("file", 10));
+        doAnswer(invocation -> {
+            if (invocation.getArgumentAt(0, File.class).getParentFile().equals(cacheDir)) {
+                throw new IOException("test exception");
+            }
+            return invocation.callRealMethod();
+        }).when(inMemoryFileHelper).getInputStream(any(File.class));
+
+        File copyFile = inMemoryFileHelper.newFile(tmpDir, "copy");
+        assertNull(cache.copyTo(KEY, value -> true, copyFile));
+        assertFalse(inMemoryFileHelper.fileExists(copyFile));
+        assertEquals(cache.getTotalBytes(), 0);
+        assertTrue(inMemoryFileHelper.isEmpty(cacheDir));
+    }
+
+    @Test
+    public void tooBigNotCached() throws Exception {
+        assertEquals(cache.put(KEY, VALUE, createFile("file", 30)), 30);
+        assertEquals(cache.getTotalBytes(), 0);
+        assertTrue(inMemoryFileHelper.isEmpty(cacheDir));
+    }
+
+    private File createFile(String name, int length) throws IOException {
+        byte[] content = new byte[length];
+        Arrays.fill(content, (byte) 'a');
+        File file = inMemoryFileHelper.newFile(tmpDir, name);
+        try (OutputStream outputStream = inMemoryFileHelper.getOutputStream(file)) {
+            outputStream.write(content);
+        }
+        return file;
+    }
+}
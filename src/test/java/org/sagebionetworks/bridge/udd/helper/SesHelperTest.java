@@ -15,6 +15,7 @@ import com.amazonaws.services.simpleemail.model.Message;
 import com.amazonaws.services.simpleemail.model.SendEmailRequest;
 import com.amazonaws.services.simpleemail.model.SendEmailResult;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import org.joda.time.DateTime;
 import org.mockito.ArgumentCaptor;
 import org.testng.annotations.BeforeMethod;
@@ -89,6 +90,26 @@ public class SesHelperTest {
         assertTrue(textEmail.contains(dummyExpirationDateStr));
     }
 
+    @Test
+    public void testSendMultipartPresignedUrls() throws Exception {
+        DateTime dummyExpirationDate = DateTime.parse("2015-08-22T14:00-07:00");
+        PresignedUrlInfo presignedUrlInfo = new PresignedUrlInfo.Builder().withUrlList(ImmutableList.of(
+                new URL("http://www.example.com/part1"), new URL("http://www.example.com/part2")))
+                .withExpirationTime(dummyExpirationDate).build();
+
+        // execute
+        sesHelper.sendPresignedUrlToAccount(studyInfo, presignedUrlInfo, accountInfo);
+
+        // validate that both bodies contain every link and the expiration date
+        Body emailBody = validateEmailAndExtractBody();
+        for (String oneEmail : ImmutableList.of(emailBody.getHtml().getData(), emailBody.getText().getData())) {
+            assertTrue(oneEmail.contains("http://www.example.com/part1"));
+            assertTrue(oneEmail.contains("http://www.example.com/part2"));
+            assertTrue(oneEmail.contains("Part 2 of 2"));
+            assertTrue(oneEmail.contains(dummyExpirationDate.toString()));
+        }
+    }
+
     private Body validateEmailAndExtractBody() {
         SendEmailRequest sesRequest = sesRequestCaptor.getValue();
         assertEquals(sesRequest.getSource(), "support@sagebase.org");
@@ -7,6 +7,7 @@ import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 
 import java.net.URL;
+import java.util.List;
 
 import org.joda.time.DateTime;
 import org.mockito.ArgumentCaptor;
@@ -21,6 +22,7 @@ import com.amazonaws.services.sns.AmazonSNSClient;
 import com.amazonaws.services.sns.model.PublishRequest;
 import com.amazonaws.services.sns.model.PublishResult;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 
 public class SnsHelperTest {
     private static final Phone PHONE = new Phone().regionCode("US").number("4082588569");
@@ -74,6 +76,51 @@ public class SnsHelperTest {
         assertTrue(message.contains(dummyPresignedUrl));
     }
     
+    @Test
+    public void testSendMultipartPresignedUrls() throws Exception {
+        PresignedUrlInfo presignedUrlInfo = new PresignedUrlInfo.Builder().withUrlList(ImmutableList.of(
+                new URL("http://www.example.com/part1"), new URL("http://www.example.com/part2")))
+                .withExpirationTime(DateTime.parse("2015-08-22T14:00-07:00")).build();
+
+        // execute
+        snsHelper.sendPresignedUrlToAccount(studyInfo, presignedUrlInfo, accountInfo);
+
+        // validate that there's one message per part
+        List<PublishRequest> publishRequestList = publishRequestCaptor.getAllValues();
+        assertEquals(publishRequestList.size(), 2);
+        assertEquals(publishRequestList.get(0).getMessage(),
+                "Your requested data from Short, part 1 of 2: http://www.example.com/part1");
+        assertEquals(publishRequestList.get(1).getMessage(),
+                "Your requested data from Short, part 2 of 2: http://www.example.com/part2");
+    }
+
+    @Test
+    public void testSendMultipartLongPresignedUrls() throws Exception {
+        // Presigned URLs with session tokens run to over a thousand characters. Together, they don't fit in one SMS.
+        String longQuery = "?X-Amz-Security-Token=" + Strings.repeat("a", 1200);
+        List<URL> urlList = ImmutableList.of(new URL("http://www.example.com/part1" + longQuery),
+                new URL("http://www.example.com/part2" + longQuery),
+                new URL("http://www.example.com/part3" + longQuery));
+        PresignedUrlInfo presignedUrlInfo = new PresignedUrlInfo.Builder().withUrlList(urlList)
+                .withExpirationTime(DateTime.parse("2015-08-22T14:00-07:00")).build();
+
+        // execute
+        snsHelper.sendPresignedUrlToAccount(studyInfo, presignedUrlInfo, accountInfo);
+
+        // validate - Each message has one URL, and fits in one SMS.
+        List<PublishRequest> publishRequestList = publishRequestCaptor.getAllValues();
+        assertEquals(publishRequestList.size(), 3);
+        for (int i = 0; i < 3; i++) {
+            PublishRequest publishRequest = publishRequestList.get(i);
+            assertEquals(publishRequest.getPhoneNumber(), PHONE.getNumber());
+
+            String message = publishRequest.getMessage();
+            assertTrue(message.length() <= 1600, "Message " + i + " has length " + message.length());
+            assertTrue(message.contains("part " + (i + 1) + " of 3"));
+            assertTrue(message.endsWith(urlList.get(i).toString()));
+        }
+    }
+
     @Test
     public void useShortNameWhenPresent() {
         // The default studyInfo object has a shortName, so that's what we should get back.
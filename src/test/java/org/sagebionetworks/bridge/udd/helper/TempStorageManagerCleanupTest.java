@@ -1,83 +1,99 @@
-package org.sagebionetworks.bridge.udd.synapse;
+package org.sagebionetworks.bridge.udd.helper;
 
+import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
 
 import java.io.File;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.List;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.file.InMemoryFileHelper;
 
-// Deep tests for SynapsePackager.cleanupFiles()
-public class SynapsePackagerCleanupTest {
+// Deep tests for TempStorageManager.release()
+public class TempStorageManagerCleanupTest {
     private static final byte[] EMPTY_FILE_CONTENT = new byte[0];
 
     private InMemoryFileHelper inMemoryFileHelper;
-    private SynapsePackager packager;
-    private File tmpDir;
+    private TempStorageAllocation allocation;
+    private TempStorageManager manager;
 
     @BeforeMethod
     public void setup() {
-        packager = new SynapsePackager();
-
         inMemoryFileHelper = new InMemoryFileHelper();
-        packager.setFileHelper(inMemoryFileHelper);
 
-        tmpDir = inMemoryFileHelper.createTempDir();
+        // Clean up on the calling thread, so we can check the results right away.
+        manager = new TempStorageManager();
+        manager.setCleanupExecutor(MoreExecutors.newDirectExecutorService());
+        manager.setFileHelper(inMemoryFileHelper);
+
+        allocation = manager.allocate("test-request");
     }
 
     @Test
-    public void nullFileList() {
-        packager.cleanupFiles(null, null, tmpDir);
-        assertTrue(inMemoryFileHelper.isEmpty());
+    public void nullFiles() throws Exception {
+        // The master zip is null if we never got as far as zipping.
+        manager.release(allocation, Arrays.asList(createEmptyFile("foo"), null));
+        assertCleanedUp();
     }
 
     @Test
     public void emptyFileList() {
-        packager.cleanupFiles(ImmutableList.of(), null, tmpDir);
-        assertTrue(inMemoryFileHelper.isEmpty());
+        manager.release(allocation, ImmutableList.of());
+        assertCleanedUp();
     }
 
     @Test
     public void fileListWithNoMasterZip() throws Exception {
         List<File> fileList = ImmutableList.of(createEmptyFile("foo"), createEmptyFile("bar"), createEmptyFile("baz"));
-        packager.cleanupFiles(fileList, null, tmpDir);
-        assertTrue(inMemoryFileHelper.isEmpty());
+        manager.release(allocation, fileList);
+        assertCleanedUp();
     }
 
     @Test
     public void masterZipDoesntExist() throws Exception {
         List<File> fileList = ImmutableList.of(createEmptyFile("foo"), createEmptyFile("bar"), createEmptyFile("baz"));
-        File masterZipFile = inMemoryFileHelper.newFile(tmpDir, "master.zip");
-        packager.cleanupFiles(fileList, masterZipFile, tmpDir);
-        assertTrue(inMemoryFileHelper.isEmpty());
+        File masterZipFile = inMemoryFileHelper.newFile(allocation.getDir(), "master.zip");
+        manager.release(allocation, ImmutableList.<File>builder().addAll(fileList).add(masterZipFile)
+                .build());
+        assertCleanedUp();
     }
 
     @Test
     public void fileListAndMasterZip() throws Exception {
         List<File> fileList = ImmutableList.of(createEmptyFile("foo"), createEmptyFile("bar"), createEmptyFile("baz"));
         File masterZipFile = createEmptyFile("master.zip");
-        packager.cleanupFiles(fileList, masterZipFile, tmpDir);
-        assertTrue(inMemoryFileHelper.isEmpty());
+        manager.release(allocation, ImmutableList.<File>builder().addAll(fileList).add(masterZipFile)
+                .build());
+        assertCleanedUp();
     }
 
     // branch coverage
     @Test
     public void someFilesDontExist() throws Exception {
+        File tmpDir = allocation.getDir();
         List<File> fileList = ImmutableList.of(inMemoryFileHelper.newFile(tmpDir, "foo"),
                 inMemoryFileHelper.newFile(tmpDir, "baz"), inMemoryFileHelper.newFile(tmpDir, "baz"));
         File masterZipFile = inMemoryFileHelper.newFile(tmpDir, "master.zip");
-        packager.cleanupFiles(fileList, masterZipFile, tmpDir);
+        manager.release(allocation, ImmutableList.<File>builder().addAll(fileList).add(masterZipFile)
+                .build());
+        assertCleanedUp();
+    }
+
+    // Files are gone, and the allocation no longer counts against the quota.
+    private void assertCleanedUp() {
         assertTrue(inMemoryFileHelper.isEmpty());
+        assertEquals(manager.getActiveAllocationCount(), 0);
     }
 
     // Creates a trivial empty file, so we can test cleanup.
     private File createEmptyFile(String filename) throws Exception {
-        File file = inMemoryFileHelper.newFile(tmpDir, filename);
+        File file = inMemoryFileHelper.newFile(allocation.getDir(), filename);
         touchFile(file);
         return file;
     }
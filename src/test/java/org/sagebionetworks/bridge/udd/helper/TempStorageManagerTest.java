@@ -0,0 +1,275 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.FileHelper;
+import org.sagebionetworks.bridge.udd.exceptions.TempStorageQuotaExceededException;
+
+// These tests use the real file system, since striping and orphan cleanup are about real volumes.
+public class TempStorageManagerTest {
+    private static final long BYTES_PER_MB = 1024 * 1024;
+
+    private File baseDir;
+    private File volumeA;
+    private File volumeB;
+    private TempStorageManager manager;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        baseDir = Files.createTempDirectory("TempStorageManagerTest").toFile();
+        volumeA = new File(baseDir, "volumeA");
+        volumeB = new File(baseDir, "volumeB");
+
+        // Clean up on the calling thread, so we can check the results right away.
+        manager = new TempStorageManager();
+        manager.setCleanupExecutor(MoreExecutors.newDirectExecutorService());
+        manager.setFileHelper(new FileHelper());
+    }
+
+    @AfterMethod
+    public void cleanup() throws Exception {
+        List<Path> pathList;
+        try (Stream<Path> pathStream = Files.walk(baseDir.toPath())) {
+            pathList = pathStream.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        for (Path onePath : pathList) {
+            Files.deleteIfExists(onePath);
+        }
+    }
+
+    @Test
+    public void noVolumes() {
+        manager.setConfig(mockConfig("", 0));
+
+        TempStorageAllocation allocation = manager.allocate("test-request");
+        assertEquals(allocation.getRequestName(), "test-request");
+        assertNull(allocation.getVolume());
+        assertTrue(allocation.getDir().isDirectory());
+        assertEquals(manager.getActiveAllocationCount(), 1);
+
+        manager.release(allocation, ImmutableList.of());
+        assertFalse(allocation.getDir().exists());
+        assertEquals(manager.getActiveAllocationCount(), 0);
+    }
+
+    @Test
+    public void stripedAcrossVolumes() throws Exception {
+        manager.setConfig(mockConfig(volumeA.getPath() + ", " + volumeB.getPath(), 0));
+
+        // With no bytes used, we take turns.
+        TempStorageAllocation allocation1 = manager.allocate("request-1");
+        TempStorageAllocation allocation2 = manager.allocate("request-2");
+        assertEquals(allocation1.getVolume(), volumeA);
+        assertEquals(allocation2.getVolume(), volumeB);
+        assertEquals(allocation1.getDir().getParentFile(), new File(volumeA, TempStorageManager.TEMP_ROOT_DIR_NAME));
+        assertTrue(allocation1.getDir().isDirectory());
+
+        // Once volume A has bytes on it, new requests go to volume B.
+        writeFile(new File(allocation1.getDir(), "foo.csv"), 1000);
+        assertEquals(manager.measureUsage(allocation1), 1000);
+        assertEquals(allocation1.getBytesUsed(), 1000);
+        assertEquals(manager.allocate("request-3").getVolume(), volumeB);
+        assertEquals(manager.allocate("request-4").getVolume(), volumeB);
+    }
+
+    @Test
+    public void measureUsageIncludesSubdirs() throws Exception {
+        manager.setConfig(mockConfig(volumeA.getPath(), 0));
+
+        TempStorageAllocation allocation = manager.allocate("test-request");
+        File subdir = new File(allocation.getDir(), "subdir");
+        assertTrue(subdir.mkdir());
+        writeFile(new File(allocation.getDir(), "foo.csv"), 100);
+        writeFile(new File(subdir, "bar.csv"), 20);
+
+        assertEquals(manager.measureUsage(allocation), 120);
+        assertEquals(manager.getNodeBytesUsed(), 120);
+    }
+
+    @Test
+    public void quota() throws Exception {
+        manager.setConfig(mockConfig(volumeA.getPath(), 1));
+
+        // Under quota, so we can take more requests.
+        TempStorageAllocation allocation = manager.allocate("request-1");
+        File file = new File(allocation.getDir(), "foo.csv");
+        writeFile(file, (int) BYTES_PER_MB - 1);
+        manager.measureUsage(allocation);
+        manager.allocate("request-2");
+
+        // At quota, new requests are turned away.
+        writeFile(file, (int) BYTES_PER_MB);
+        manager.measureUsage(allocation);
+        try {
+            manager.allocate("request-3");
+            fail("expected exception");
+        } catch (TempStorageQuotaExceededException ex) {
+            // expected exception
+        }
+
+        // Once the files are deleted, we can take requests again.
+        manager.release(allocation, ImmutableList.of(file));
+        assertEquals(manager.getNodeBytesUsed(), 0);
+        manager.allocate("request-3");
+    }
+
+    @Test
+    public void reservationCountsUntilUsed() throws Exception {
+        manager.setConfig(mockConfig(volumeA.getPath(), 1));
+
+        // A request that hasn't written anything yet still counts as its estimate, so the node is at quota.
+        TempStorageAllocation allocation = manager.allocate("request-1");
+        manager.reserve(allocation, BYTES_PER_MB);
+        assertEquals(manager.getNodeBytesUsed(), BYTES_PER_MB);
+        try {
+            manager.allocate("request-2");
+            fail("expected exception");
+        } catch (TempStorageQuotaExceededException ex) {
+            // expected exception
+        }
+
+        // Once it writes more than it reserved, it counts as what it wrote.
+        File file = new File(allocation.getDir(), "foo.csv");
+        writeFile(file, (int) BYTES_PER_MB + 10);
+        manager.measureUsage(allocation);
+        assertEquals(manager.getNodeBytesUsed(), BYTES_PER_MB + 10);
+
+        manager.release(allocation, ImmutableList.of(file));
+        assertEquals(manager.getNodeBytesUsed(), 0);
+    }
+
+    @Test
+    public void measureUsageIncludesMemoryFiles() throws Exception {
+        HybridFileHelper hybridFileHelper = new HybridFileHelper();
+        manager.setFileHelper(hybridFileHelper);
+        manager.setConfig(mockConfig(volumeA.getPath(), 0));
+
+        TempStorageAllocation allocation = manager.allocate("test-request");
+        assertTrue(allocation.getDir().isDirectory());
+        writeFile(new File(allocation.getDir(), "on-disk.csv"), 100);
+        try (OutputStream outputStream = hybridFileHelper.getOutputStream(new File(allocation.getDir(),
+                "in-memory.csv"))) {
+            outputStream.write(new byte[20]);
+        }
+
+        assertEquals(manager.measureUsage(allocation), 120);
+    }
+
+    @Test
+    public void freeBytes() throws Exception {
+        // No quota. Volume A doesn't exist yet, so this uses the space on the file system it will be created on.
+        manager.setConfig(mockConfig(volumeA.getPath(), 0));
+        assertTrue(manager.getFreeBytes() > 0);
+
+        // With a quota, free bytes are capped by what's left of the quota.
+        manager.setConfig(mockConfig(volumeA.getPath(), 1));
+        TempStorageAllocation allocation = manager.allocate("test-request");
+        writeFile(new File(allocation.getDir(), "foo.csv"), 1000);
+        manager.measureUsage(allocation);
+        assertEquals(manager.getFreeBytes(), BYTES_PER_MB - 1000);
+    }
+
+    @Test
+    public void releaseDeletesUnknownFiles() throws Exception {
+        manager.setConfig(mockConfig(volumeA.getPath(), 0));
+
+        // The request doesn't know about this file, for example, if a task failed partway through.
+        TempStorageAllocation allocation = manager.allocate("test-request");
+        writeFile(new File(allocation.getDir(), "unknown.csv"), 10);
+
+        manager.release(allocation, ImmutableList.of());
+        assertFalse(allocation.getDir().exists());
+        assertEquals(manager.getActiveAllocationCount(), 0);
+    }
+
+    @Test
+    public void recursiveDeleteForgetsMemoryFiles() throws Exception {
+        HybridFileHelper hybridFileHelper = new HybridFileHelper();
+        manager.setFileHelper(hybridFileHelper);
+        manager.setConfig(mockConfig(volumeA.getPath(), 0));
+
+        // The unknown file on disk makes the normal delete fail, so the manager falls back to deleting recursively.
+        TempStorageAllocation allocation = manager.allocate("test-request");
+        File memoryFile = new File(allocation.getDir(), "in-memory.csv");
+        try (OutputStream outputStream = hybridFileHelper.getOutputStream(memoryFile)) {
+            outputStream.write(new byte[20]);
+        }
+        writeFile(new File(allocation.getDir(), "unknown.csv"), 10);
+
+        manager.release(allocation, ImmutableList.of());
+        assertFalse(allocation.getDir().exists());
+        assertFalse(hybridFileHelper.fileExists(memoryFile));
+        assertEquals(hybridFileHelper.getMemoryBytes(allocation.getDir()), 0);
+    }
+
+    @Test
+    public void initCacheDirEmptiesOldCache() throws Exception {
+        manager.setConfig(mockConfig(volumeA.getPath() + "," + volumeB.getPath(), 0));
+
+        // A previous JVM left files in the cache dir.
+        File cacheDir = manager.initCacheDir("test-cache");
+        assertEquals(cacheDir, new File(new File(volumeA, TempStorageManager.CACHE_ROOT_DIR_NAME), "test-cache"));
+        writeFile(new File(cacheDir, "foo.csv"), 10);
+
+        // Same dir again, now empty.
+        assertEquals(manager.initCacheDir("test-cache"), cacheDir);
+        assertTrue(cacheDir.isDirectory());
+        assertEquals(cacheDir.listFiles().length, 0);
+
+        // Cache dirs aren't orphaned temp dirs, and don't count against the quota.
+        manager.cleanupOrphans();
+        assertTrue(cacheDir.isDirectory());
+        assertEquals(manager.getNodeBytesUsed(), 0);
+    }
+
+    @Test
+    public void cleanupOrphans() throws Exception {
+        manager.setConfig(mockConfig(volumeA.getPath() + "," + volumeB.getPath(), 0));
+
+        // Volume A has orphans from a previous run. Volume B has never been used.
+        File rootDirA = new File(volumeA, TempStorageManager.TEMP_ROOT_DIR_NAME);
+        File orphanDir = new File(rootDirA, "orphan");
+        assertTrue(orphanDir.mkdirs());
+        writeFile(new File(orphanDir, "foo.csv"), 10);
+
+        // execute and validate
+        manager.cleanupOrphans();
+        assertTrue(rootDirA.isDirectory());
+        assertFalse(orphanDir.exists());
+        assertFalse(volumeB.exists());
+    }
+
+    private static Config mockConfig(String volumes, int quotaMb) {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get(TempStorageManager.CONFIG_KEY_VOLUMES)).thenReturn(volumes);
+        when(mockConfig.getInt(TempStorageManager.CONFIG_KEY_QUOTA_MB)).thenReturn(quotaMb);
+        return mockConfig;
+    }
+
+    private static void writeFile(File file, int numBytes) throws IOException {
+        Files.write(file.toPath(), new byte[numBytes]);
+    }
+}
@@ -0,0 +1,153 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+
+public class ZipCompressionPolicyTest {
+    private static final byte[] COMPRESSIBLE_SAMPLE = new byte[4096];
+    private static final byte[] INCOMPRESSIBLE_SAMPLE = new byte[4096];
+    static {
+        Arrays.fill(COMPRESSIBLE_SAMPLE, (byte) 'a');
+        new Random(42).nextBytes(INCOMPRESSIBLE_SAMPLE);
+    }
+
+    @Test
+    public void emptyInput() {
+        ZipEntryDecision decision = new ZipCompressionPolicy().decide("empty.csv", new byte[16], 0);
+        assertFalse(decision.isStored());
+        assertEquals(decision.getLevel(), Deflater.DEFAULT_COMPRESSION);
+        assertEquals(decision.getSampleRatioPercent(), 0);
+    }
+
+    @Test
+    public void incompressibleInputIsStored() {
+        ZipEntryDecision decision = makePolicy(0).decide("media.zip", INCOMPRESSIBLE_SAMPLE,
+                INCOMPRESSIBLE_SAMPLE.length);
+        assertTrue(decision.isStored());
+        assertTrue(decision.getSampleRatioPercent() >= ZipCompressionPolicy.DEFAULT_STORE_RATIO_PERCENT);
+    }
+
+    @Test
+    public void compressibleInputDefaultLevel() {
+        ZipEntryDecision decision = makePolicy(0).decide("data.csv", COMPRESSIBLE_SAMPLE,
+                COMPRESSIBLE_SAMPLE.length);
+        assertFalse(decision.isStored());
+        assertEquals(decision.getLevel(), Deflater.DEFAULT_COMPRESSION);
+        assertTrue(decision.getSampleRatioPercent() < 10);
+    }
+
+    @Test
+    public void highCpuLoadUsesFastestLevel() {
+        ZipCompressionPolicy policy = makePolicy(95);
+
+        // Even if the upload is slow, CPU load wins.
+        policy.recordUploadThroughput(1000, 1000);
+        ZipEntryDecision decision = policy.decide("data.csv", COMPRESSIBLE_SAMPLE, COMPRESSIBLE_SAMPLE.length);
+        assertEquals(decision.getLevel(), Deflater.BEST_SPEED);
+    }
+
+    @Test
+    public void slowUploadUsesBestCompression() {
+        ZipCompressionPolicy policy = makePolicy(0);
+
+        // 1 MB in 10 sec = 800 kbps, which is below the default low threshold
+        policy.recordUploadThroughput(1000 * 1000, 10000);
+        assertEquals(policy.getUploadBandwidthKbps(), 800);
+
+        ZipEntryDecision decision = policy.decide("data.csv", COMPRESSIBLE_SAMPLE, COMPRESSIBLE_SAMPLE.length);
+        assertEquals(decision.getLevel(), Deflater.BEST_COMPRESSION);
+    }
+
+    @Test
+    public void fastUploadUsesFastestLevel() {
+        ZipCompressionPolicy policy = makePolicy(0);
+
+        // 100 MB in 1 sec = 800,000 kbps, which is above the default high threshold
+        policy.recordUploadThroughput(100 * 1000 * 1000, 1000);
+
+        ZipEntryDecision decision = policy.decide("data.csv", COMPRESSIBLE_SAMPLE, COMPRESSIBLE_SAMPLE.length);
+        assertEquals(decision.getLevel(), Deflater.BEST_SPEED);
+    }
+
+    @Test
+    public void uploadBandwidthMovingAverage() {
+        ZipCompressionPolicy policy = makePolicy(0);
+
+        // Invalid measurements are ignored.
+        policy.recordUploadThroughput(0, 1000);
+        policy.recordUploadThroughput(1000, 0);
+        assertEquals(policy.getUploadBandwidthKbps(), 0);
+
+        // First measurement is taken as-is. Second measurement is weighted at 25%.
+        policy.recordUploadThroughput(1000, 1);
+        assertEquals(policy.getUploadBandwidthKbps(), 8000);
+        policy.recordUploadThroughput(2000, 1);
+        assertEquals(policy.getUploadBandwidthKbps(), 10000);
+    }
+
+    @Test
+    public void recordResult() {
+        ZipCompressionPolicy policy = new ZipCompressionPolicy();
+        ZipEntryDecision storedDecision = new ZipEntryDecision.Builder().withEntryName("media.zip")
+                .withMethod(ZipEntry.STORED).withSampleRatioPercent(100).build();
+        ZipEntryDecision deflatedDecision = new ZipEntryDecision.Builder().withEntryName("data.csv")
+                .withMethod(ZipEntry.DEFLATED).withSampleRatioPercent(20).build();
+
+        policy.recordResult(storedDecision, 100, 100);
+        policy.recordResult(deflatedDecision, 100, 20);
+
+        assertEquals(policy.getStoredEntryCount(), 1);
+        assertEquals(policy.getDeflatedEntryCount(), 1);
+        assertEquals(policy.getTotalUncompressedBytes(), 200);
+        assertEquals(policy.getTotalCompressedBytes(), 120);
+    }
+
+    @Test
+    public void config() {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(ZipCompressionPolicy.CONFIG_KEY_BANDWIDTH_HIGH_KBPS)).thenReturn(100);
+        when(mockConfig.getInt(ZipCompressionPolicy.CONFIG_KEY_BANDWIDTH_LOW_KBPS)).thenReturn(10);
+        when(mockConfig.getInt(ZipCompressionPolicy.CONFIG_KEY_CPU_LOAD_HIGH_PERCENT)).thenReturn(50);
+        when(mockConfig.getInt(ZipCompressionPolicy.CONFIG_KEY_SAMPLE_BYTES)).thenReturn(1024);
+        when(mockConfig.getInt(ZipCompressionPolicy.CONFIG_KEY_STORE_RATIO_PERCENT)).thenReturn(101);
+
+        ZipCompressionPolicy policy = new ZipCompressionPolicy() {
+            @Override
+            int getCpuLoadPercent() {
+                return 0;
+            }
+        };
+        policy.setConfig(mockConfig);
+        assertEquals(policy.getSampleBytes(), 1024);
+
+        // Store ratio is above 100%, so nothing is ever stored.
+        ZipEntryDecision decision = policy.decide("media.zip", INCOMPRESSIBLE_SAMPLE, INCOMPRESSIBLE_SAMPLE.length);
+        assertFalse(decision.isStored());
+
+        // 50 kbps is between the low and high thresholds.
+        policy.recordUploadThroughput(50, 8);
+        decision = policy.decide("data.csv", COMPRESSIBLE_SAMPLE, COMPRESSIBLE_SAMPLE.length);
+        assertEquals(decision.getLevel(), Deflater.DEFAULT_COMPRESSION);
+    }
+
+    private static ZipCompressionPolicy makePolicy(int cpuLoadPercent) {
+        return new ZipCompressionPolicy() {
+            @Override
+            int getCpuLoadPercent() {
+                return cpuLoadPercent;
+            }
+        };
+    }
+}
@@ -0,0 +1,54 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import org.testng.annotations.Test;
+
+public class ZipEntryDecisionTest {
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = "entryName.*")
+    public void nullEntryName() {
+        new ZipEntryDecision.Builder().withMethod(ZipEntry.STORED).build();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = "method.*")
+    public void nullMethod() {
+        new ZipEntryDecision.Builder().withEntryName("foo.csv").build();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = "method.*")
+    public void invalidMethod() {
+        new ZipEntryDecision.Builder().withEntryName("foo.csv").withMethod(42).build();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = "level.*")
+    public void invalidLevel() {
+        new ZipEntryDecision.Builder().withEntryName("foo.csv").withMethod(ZipEntry.DEFLATED).withLevel(10).build();
+    }
+
+    @Test
+    public void stored() {
+        ZipEntryDecision decision = new ZipEntryDecision.Builder().withEntryName("foo.zip")
+                .withMethod(ZipEntry.STORED).withSampleRatioPercent(99).build();
+        assertEquals(decision.getEntryName(), "foo.zip");
+        assertEquals(decision.getMethod(), ZipEntry.STORED);
+        assertTrue(decision.isStored());
+        assertEquals(decision.getLevel(), Deflater.DEFAULT_COMPRESSION);
+        assertEquals(decision.getSampleRatioPercent(), 99);
+    }
+
+    @Test
+    public void deflated() {
+        ZipEntryDecision decision = new ZipEntryDecision.Builder().withEntryName("foo.csv")
+                .withMethod(ZipEntry.DEFLATED).withLevel(Deflater.BEST_SPEED).withSampleRatioPercent(12).build();
+        assertEquals(decision.getEntryName(), "foo.csv");
+        assertEquals(decision.getMethod(), ZipEntry.DEFLATED);
+        assertFalse(decision.isStored());
+        assertEquals(decision.getLevel(), Deflater.BEST_SPEED);
+        assertEquals(decision.getSampleRatioPercent(), 12);
+    }
+}
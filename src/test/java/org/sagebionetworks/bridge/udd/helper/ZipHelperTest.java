@@ -4,23 +4,38 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
+import org.joda.time.LocalDateTime;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.file.FileHelper;
+import org.sagebionetworks.bridge.file.InMemoryFileHelper;
 
 public class ZipHelperTest {
     @Test
@@ -60,7 +75,9 @@ public class ZipHelperTest {
         when(mockFileHelper.getOutputStream(mockZipFile)).thenReturn(mockZipFileOutputStream);
 
         // set up zip helper and execute
+        ZipCompressionPolicy compressionPolicy = new ZipCompressionPolicy();
         ZipHelper zipHelper = new ZipHelper();
+        zipHelper.setCompressionPolicy(compressionPolicy);
         zipHelper.setFileHelper(mockFileHelper);
         zipHelper.zip(ImmutableList.of(mockFooFile, mockBarFile, mockBazFile), mockZipFile);
 
@@ -73,6 +90,272 @@ public class ZipHelperTest {
         assertEquals(unzippedMap.get("foo-file"), "foo content");
         assertEquals(unzippedMap.get("bar-file"), "bar content");
         assertEquals(unzippedMap.get("baz-file"), "baz content");
+
+        // validate policy totals
+        assertEquals(compressionPolicy.getDeflatedEntryCount() + compressionPolicy.getStoredEntryCount(), 3);
+        assertEquals(compressionPolicy.getTotalUncompressedBytes(), 33);
+    }
+
+    @Test
+    public void incompressibleEntryIsStored() throws Exception {
+        // Random bytes don't compress. Highly repetitive text compresses very well.
+        byte[] randomBytes = new byte[200 * 1024];
+        new Random(42).nextBytes(randomBytes);
+
+        StringBuilder csvBuilder = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            csvBuilder.append("\"recordId\",\"2015-09-17\",\"some value\"\n");
+        }
+        byte[] csvBytes = csvBuilder.toString().getBytes(Charsets.UTF_8);
+
+        // mock files
+        FileHelper mockFileHelper = mock(FileHelper.class);
+
+        File mockMediaFile = mock(File.class);
+        when(mockMediaFile.getName()).thenReturn("media.zip");
+        when(mockFileHelper.getInputStream(mockMediaFile)).thenAnswer(invocation -> new ByteArrayInputStream(
+                randomBytes));
+
+        File mockCsvFile = mock(File.class);
+        when(mockCsvFile.getName()).thenReturn("data.csv");
+        when(mockFileHelper.getInputStream(mockCsvFile)).thenAnswer(invocation -> new ByteArrayInputStream(
+                csvBytes));
+
+        ByteArrayOutputStream mockZipFileOutputStream = new ByteArrayOutputStream();
+        File mockZipFile = mock(File.class);
+        when(mockFileHelper.getOutputStream(mockZipFile)).thenReturn(mockZipFileOutputStream);
+
+        // execute
+        ZipCompressionPolicy compressionPolicy = new ZipCompressionPolicy();
+        ZipHelper zipHelper = new ZipHelper();
+        zipHelper.setCompressionPolicy(compressionPolicy);
+        zipHelper.setFileHelper(mockFileHelper);
+        zipHelper.zip(ImmutableList.of(mockMediaFile, mockCsvFile), mockZipFile);
+
+        // validate methods and contents
+        Map<String, Integer> methodMap = new HashMap<>();
+        Map<String, byte[]> contentMap = new HashMap<>();
+        try (ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(
+                mockZipFileOutputStream.toByteArray()), Charsets.UTF_8)) {
+            ZipEntry zipEntry;
+            while ((zipEntry = zipInputStream.getNextEntry()) != null) {
+                methodMap.put(zipEntry.getName(), zipEntry.getMethod());
+                contentMap.put(zipEntry.getName(), ByteStreams.toByteArray(zipInputStream));
+            }
+        }
+
+        assertEquals(methodMap.get("media.zip").intValue(), ZipEntry.STORED);
+        assertEquals(methodMap.get("data.csv").intValue(), ZipEntry.DEFLATED);
+        assertEquals(contentMap.get("media.zip"), randomBytes);
+        assertEquals(contentMap.get("data.csv"), csvBytes);
+
+        assertEquals(compressionPolicy.getStoredEntryCount(), 1);
+        assertEquals(compressionPolicy.getDeflatedEntryCount(), 1);
+        assertEquals(compressionPolicy.getTotalUncompressedBytes(), randomBytes.length + csvBytes.length);
+        assertTrue(compressionPolicy.getTotalCompressedBytes() < compressionPolicy.getTotalUncompressedBytes());
+    }
+
+    @Test
+    public void segmentsAssembleIntoZip() throws Exception {
+        // One incompressible entry (stored) and one compressible entry (deflated).
+        byte[] randomBytes = new byte[200 * 1024];
+        new Random(42).nextBytes(randomBytes);
+
+        StringBuilder csvBuilder = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            csvBuilder.append("\"recordId\",\"2015-09-17\",\"some value\"\n");
+        }
+        byte[] csvBytes = csvBuilder.toString().getBytes(Charsets.UTF_8);
+
+        InMemoryFileHelper inMemoryFileHelper = new InMemoryFileHelper();
+        File tmpDir = inMemoryFileHelper.createTempDir();
+        File mediaFile = createFile(inMemoryFileHelper, tmpDir, "media.zip", randomBytes);
+        File csvFile = createFile(inMemoryFileHelper, tmpDir, "data.csv", csvBytes);
+
+        // execute
+        ZipHelper zipHelper = new ZipHelper();
+        zipHelper.setCompressionPolicy(new ZipCompressionPolicy());
+        zipHelper.setFileHelper(inMemoryFileHelper);
+        ZipSegment mediaSegment = zipHelper.writeSegment(mediaFile, inMemoryFileHelper.newFile(tmpDir,
+                "media.zip.zipseg"));
+        ZipSegment csvSegment = zipHelper.writeSegment(csvFile, inMemoryFileHelper.newFile(tmpDir,
+                "data.csv.zipseg"));
+
+        // validate segments
+        assertEquals(mediaSegment.getEntryName(), "media.zip");
+        assertEquals(mediaSegment.getMethod(), ZipEntry.STORED);
+        assertEquals(mediaSegment.getSize(), randomBytes.length);
+        assertEquals(csvSegment.getEntryName(), "data.csv");
+        assertEquals(csvSegment.getMethod(), ZipEntry.DEFLATED);
+        assertEquals(csvSegment.getSize(), csvBytes.length);
+        assertTrue(csvSegment.getCompressedSize() < csvBytes.length);
+
+        // Assemble in the opposite order, to make sure order doesn't matter.
+        List<ZipSegment> segmentList = ImmutableList.of(csvSegment, mediaSegment);
+        assertTrue(zipHelper.canAssemble(segmentList));
+        ByteArrayOutputStream zipBytesStream = new ByteArrayOutputStream();
+        for (ZipSegment oneSegment : segmentList) {
+            byte[] segmentBytes = inMemoryFileHelper.getBytes(oneSegment.getSegmentFile());
+            assertEquals(segmentBytes.length, oneSegment.getLength());
+            zipBytesStream.write(segmentBytes);
+        }
+        zipBytesStream.write(zipHelper.buildCentralDirectory(segmentList));
+        byte[] zipBytes = zipBytesStream.toByteArray();
+
+        // Streaming readers only read local headers.
+        Map<String, String> unzippedMap = unzipHelper(zipBytes);
+        assertEquals(unzippedMap.size(), 2);
+        assertEquals(unzippedMap.get("data.csv").getBytes(Charsets.UTF_8), csvBytes);
+
+        // ZipFile reads the central directory, so this validates the central directory.
+        File zipFile = File.createTempFile("ZipHelperTest", ".zip");
+        try {
+            Files.write(zipFile.toPath(), zipBytes);
+            try (ZipFile readZipFile = new ZipFile(zipFile)) {
+                List<String> entryNameList = new ArrayList<>();
+                Collections.list(readZipFile.entries()).forEach(entry -> entryNameList.add(entry.getName()));
+                assertEquals(entryNameList, ImmutableList.of("data.csv", "media.zip"));
+
+                try (InputStream mediaInputStream = readZipFile.getInputStream(readZipFile.getEntry("media.zip"))) {
+                    assertEquals(ByteStreams.toByteArray(mediaInputStream), randomBytes);
+                }
+                try (InputStream csvInputStream = readZipFile.getInputStream(readZipFile.getEntry("data.csv"))) {
+                    assertEquals(ByteStreams.toByteArray(csvInputStream), csvBytes);
+                }
+            }
+        } finally {
+            zipFile.delete();
+        }
+    }
+
+    @Test
+    public void canAssembleLimits() {
+        ZipHelper zipHelper = new ZipHelper();
+        ZipSegment smallSegment = new ZipSegment(null, "small", 100, 20, 0, ZipEntry.DEFLATED, 0, 0, 50, 70,
+                "dummy-hash", null);
+        assertTrue(zipHelper.canAssemble(ImmutableList.of(smallSegment)));
+
+        // Too big for 32-bit sizes.
+        ZipSegment hugeSegment = new ZipSegment(null, "huge", 5L * 1024 * 1024 * 1024, 20, 0, ZipEntry.STORED, 0, 0,
+                5L * 1024 * 1024 * 1024, 5L * 1024 * 1024 * 1024, "dummy-hash", null);
+        assertFalse(zipHelper.canAssemble(ImmutableList.of(smallSegment, hugeSegment)));
+
+        // Too many entries.
+        assertFalse(zipHelper.canAssemble(Collections.nCopies(0xffff, smallSegment)));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void buildCentralDirectoryTooBig() {
+        ZipHelper zipHelper = new ZipHelper();
+        ZipSegment smallSegment = new ZipSegment(null, "small", 100, 20, 0, ZipEntry.DEFLATED, 0, 0, 50, 70,
+                "dummy-hash", null);
+        zipHelper.buildCentralDirectory(Collections.nCopies(0xffff, smallSegment));
+    }
+
+    @Test
+    public void segmentsAreDeterministic() throws Exception {
+        byte[] csvBytes = Strings.repeat("\"recordId\",\"2015-09-17\",\"some value\"\n", 1000).getBytes(
+                Charsets.UTF_8);
+
+        InMemoryFileHelper inMemoryFileHelper = new InMemoryFileHelper();
+        File tmpDir = inMemoryFileHelper.createTempDir();
+        File csvFile = createFile(inMemoryFileHelper, tmpDir, "data.csv", csvBytes);
+
+        // The deflate level depends on CPU load. Pin it, so both writes use the same level.
+        ZipCompressionPolicy compressionPolicy = new ZipCompressionPolicy() {
+            @Override
+            int getCpuLoadPercent() {
+                return 0;
+            }
+        };
+        ZipHelper zipHelper = new ZipHelper();
+        zipHelper.setCompressionPolicy(compressionPolicy);
+        zipHelper.setFileHelper(inMemoryFileHelper);
+
+        // Write the same file twice, more than the 2 second resolution of zip timestamps apart.
+        ZipSegment segment1 = zipHelper.writeSegment(csvFile, inMemoryFileHelper.newFile(tmpDir, "data.csv.zipseg1"));
+        Thread.sleep(2100);
+        ZipSegment segment2 = zipHelper.writeSegment(csvFile, inMemoryFileHelper.newFile(tmpDir, "data.csv.zipseg2"));
+        assertEquals(inMemoryFileHelper.getBytes(segment2.getSegmentFile()),
+                inMemoryFileHelper.getBytes(segment1.getSegmentFile()));
+        assertEquals(segment2.getDosDateTime(), segment1.getDosDateTime());
+
+        // Content hash is the hash of the uncompressed data.
+        assertEquals(segment1.getContentHash(), Hashing.sha256().hashBytes(csvBytes).toString());
+
+        // The entry time is fixed at the start of 1980.
+        try (ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(
+                inMemoryFileHelper.getBytes(segment1.getSegmentFile())))) {
+            assertEquals(new LocalDateTime(zipInputStream.getNextEntry().getTime()),
+                    new LocalDateTime(1980, 1, 1, 0, 0));
+        }
+    }
+
+    @Test
+    public void extractSegment() throws Exception {
+        // One stored and one deflated entry, since they're read differently.
+        byte[] randomBytes = new byte[20 * 1024];
+        new Random(42).nextBytes(randomBytes);
+        byte[] csvBytes = Strings.repeat("\"recordId\",\"2015-09-17\",\"some value\"\n", 1000).getBytes(
+                Charsets.UTF_8);
+
+        InMemoryFileHelper inMemoryFileHelper = new InMemoryFileHelper();
+        File tmpDir = inMemoryFileHelper.createTempDir();
+        ZipHelper zipHelper = new ZipHelper();
+        zipHelper.setCompressionPolicy(new ZipCompressionPolicy());
+        zipHelper.setFileHelper(inMemoryFileHelper);
+
+        for (byte[] oneContent : ImmutableList.of(randomBytes, csvBytes)) {
+            File file = createFile(inMemoryFileHelper, tmpDir, "entry", oneContent);
+            ZipSegment segment = zipHelper.writeSegment(file, inMemoryFileHelper.newFile(tmpDir, "entry.zipseg"));
+
+            File extractedFile = inMemoryFileHelper.newFile(tmpDir, "extracted");
+            zipHelper.extractSegment(new ByteArrayInputStream(inMemoryFileHelper.getBytes(segment.getSegmentFile())),
+                    extractedFile);
+            assertEquals(inMemoryFileHelper.getBytes(extractedFile), oneContent);
+        }
+    }
+
+    @Test
+    public void zipWithEntryNamesAndUnzip() throws Exception {
+        InMemoryFileHelper inMemoryFileHelper = new InMemoryFileHelper();
+        File tmpDir = inMemoryFileHelper.createTempDir();
+        ZipHelper zipHelper = new ZipHelper();
+        zipHelper.setCompressionPolicy(new ZipCompressionPolicy());
+        zipHelper.setFileHelper(inMemoryFileHelper);
+
+        // Entry names with paths, like the ones in Synapse bulk downloads.
+        Map<String, File> entryNameToFile = new LinkedHashMap<>();
+        entryNameToFile.put("111/1111/foo.json", createFile(inMemoryFileHelper, tmpDir, "foo",
+                "foo content".getBytes(Charsets.UTF_8)));
+        entryNameToFile.put("222/2222/bar.json", createFile(inMemoryFileHelper, tmpDir, "bar",
+                "bar content".getBytes(Charsets.UTF_8)));
+        File zipFile = inMemoryFileHelper.newFile(tmpDir, "test.zip");
+        zipHelper.zip(entryNameToFile, zipFile);
+
+        Map<String, String> unzippedMap = unzipHelper(inMemoryFileHelper.getBytes(zipFile));
+        assertEquals(unzippedMap.size(), 2);
+        assertEquals(unzippedMap.get("111/1111/foo.json"), "foo content");
+        assertEquals(unzippedMap.get("222/2222/bar.json"), "bar content");
+
+        // Unzip writes flat files, in zip order.
+        Map<String, File> unzippedFileMap = zipHelper.unzip(zipFile, tmpDir, "extracted-");
+        assertEquals(ImmutableList.copyOf(unzippedFileMap.keySet()), ImmutableList.of("111/1111/foo.json",
+                "222/2222/bar.json"));
+        assertEquals(unzippedFileMap.get("111/1111/foo.json").getName(), "extracted-0");
+        assertEquals(inMemoryFileHelper.getBytes(unzippedFileMap.get("111/1111/foo.json")),
+                "foo content".getBytes(Charsets.UTF_8));
+        assertEquals(inMemoryFileHelper.getBytes(unzippedFileMap.get("222/2222/bar.json")),
+                "bar content".getBytes(Charsets.UTF_8));
+    }
+
+    private static File createFile(InMemoryFileHelper fileHelper, File dir, String name, byte[] content)
+            throws IOException {
+        File file = fileHelper.newFile(dir, name);
+        try (OutputStream outputStream = fileHelper.getOutputStream(file)) {
+            outputStream.write(content);
+        }
+        return file;
     }
 
     // Test helper for unzip.
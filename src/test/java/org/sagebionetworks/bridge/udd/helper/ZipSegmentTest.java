@@ -0,0 +1,54 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+import org.testng.annotations.Test;
+
+public class ZipSegmentTest {
+    private static final String S3_KEY = "survey-segments/test-table/test-etag/dummy-hash";
+
+    @Test
+    public void s3MetadataRoundTrip() {
+        // Non-ASCII entry name, since S3 metadata is ASCII.
+        ZipSegment segment = new ZipSegment(new File("dummy.zipseg"), "Überlebens Umfrage.csv", 1234, 20, 0x0800,
+                ZipEntry.DEFLATED, 1234567L, 0xfedcba98L, 1000, 5000, "dummy-hash", null);
+        ZipSegment s3Segment = ZipSegment.fromS3Metadata(S3_KEY, 1234, segment.toS3Metadata());
+
+        assertNull(s3Segment.getSegmentFile());
+        assertEquals(s3Segment.getS3Key(), S3_KEY);
+        assertEquals(s3Segment.getEntryName(), "Überlebens Umfrage.csv");
+        assertEquals(s3Segment.getLength(), 1234);
+        assertEquals(s3Segment.getVersionNeeded(), 20);
+        assertEquals(s3Segment.getFlags(), 0x0800);
+        assertEquals(s3Segment.getMethod(), ZipEntry.DEFLATED);
+        assertEquals(s3Segment.getDosDateTime(), 1234567L);
+        assertEquals(s3Segment.getCrc(), 0xfedcba98L);
+        assertEquals(s3Segment.getCompressedSize(), 1000);
+        assertEquals(s3Segment.getSize(), 5000);
+        assertEquals(s3Segment.getContentHash(), "dummy-hash");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void missingMetadata() {
+        ZipSegment segment = new ZipSegment(null, "foo.csv", 100, 20, 0, ZipEntry.DEFLATED, 0, 0, 50, 70,
+                "dummy-hash", null);
+        Map<String, String> metadata = new HashMap<>(segment.toS3Metadata());
+        metadata.remove("zip-crc");
+        ZipSegment.fromS3Metadata(S3_KEY, 100, metadata);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void malformedMetadata() {
+        ZipSegment segment = new ZipSegment(null, "foo.csv", 100, 20, 0, ZipEntry.DEFLATED, 0, 0, 50, 70,
+                "dummy-hash", null);
+        Map<String, String> metadata = new HashMap<>(segment.toS3Metadata());
+        metadata.put("zip-size", "not a number");
+        ZipSegment.fromS3Metadata(S3_KEY, 100, metadata);
+    }
+}
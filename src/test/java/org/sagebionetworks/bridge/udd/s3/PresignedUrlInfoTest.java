@@ -1,9 +1,11 @@
 package org.sagebionetworks.bridge.udd.s3;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 
 import java.net.URL;
 
+import com.google.common.collect.ImmutableList;
 import org.joda.time.DateTime;
 import org.testng.annotations.Test;
 
@@ -18,6 +20,39 @@ public class PresignedUrlInfoTest {
         new PresignedUrlInfo.Builder().withUrl(new URL("http://www.example.com/")).build();
     }
 
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = ".*url.*")
+    public void emptyUrlList() {
+        new PresignedUrlInfo.Builder().withUrlList(ImmutableList.of())
+                .withExpirationTime(DateTime.parse("2015-08-19T14:00:00-07:00")).build();
+    }
+
+    @Test
+    public void urlList() throws Exception {
+        PresignedUrlInfo presignedUrlInfo = new PresignedUrlInfo.Builder().withUrlList(ImmutableList.of(
+                new URL("http://www.example.com/part1"), new URL("http://www.example.com/part2")))
+                .withExpirationTime(DateTime.parse("2015-08-19T14:00:00-07:00")).build();
+        assertEquals(presignedUrlInfo.getUrlList().size(), 2);
+        assertEquals(presignedUrlInfo.getUrl().toString(), "http://www.example.com/part1");
+        assertEquals(presignedUrlInfo.getUrlList().get(1).toString(), "http://www.example.com/part2");
+        assertTrue(presignedUrlInfo.getObjectKeyList().isEmpty());
+    }
+
+    @Test
+    public void objectKeyList() throws Exception {
+        PresignedUrlInfo presignedUrlInfo = new PresignedUrlInfo.Builder().withUrlList(ImmutableList.of(
+                new URL("http://www.example.com/part1"), new URL("http://www.example.com/part2")))
+                .withObjectKeyList(ImmutableList.of("part1", "part2"))
+                .withExpirationTime(DateTime.parse("2015-08-19T14:00:00-07:00")).build();
+        assertEquals(presignedUrlInfo.getObjectKeyList(), ImmutableList.of("part1", "part2"));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void objectKeyListMismatch() throws Exception {
+        new PresignedUrlInfo.Builder().withUrl(new URL("http://www.example.com/part1"))
+                .withObjectKeyList(ImmutableList.of("part1", "part2"))
+                .withExpirationTime(DateTime.parse("2015-08-19T14:00:00-07:00")).build();
+    }
+
     @Test
     public void happyCase() throws Exception {
         DateTime expirationTime = DateTime.parse("2015-08-19T14:00:00-07:00");
@@ -26,6 +61,7 @@ public class PresignedUrlInfoTest {
         PresignedUrlInfo presignedUrlInfo = new PresignedUrlInfo.Builder().withUrl(new URL("http://www.example.com/"))
                 .withExpirationTime(expirationTime).build();
         assertEquals(presignedUrlInfo.getUrl().toString(), "http://www.example.com/");
+        assertEquals(presignedUrlInfo.getUrlList().size(), 1);
         assertEquals(presignedUrlInfo.getExpirationTime().getMillis(), expirationTimeMillis);
     }
 }
@@ -0,0 +1,253 @@
+package org.sagebionetworks.bridge.udd.s3;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.InMemoryFileHelper;
+import org.sagebionetworks.bridge.udd.helper.ZipCompressionPolicy;
+import org.sagebionetworks.bridge.udd.helper.ZipHelper;
+import org.sagebionetworks.bridge.udd.helper.ZipSegment;
+
+public class RequestCheckpointStoreTest {
+    private static final String DUMMY_USER_DATA_BUCKET = "dummy-user-data-bucket";
+    private static final String HEALTH_CODE = "test-health-code";
+    private static final LocalDate START_DATE = LocalDate.parse("2017-01-01");
+    private static final LocalDate END_DATE = LocalDate.parse("2017-01-31");
+    private static final String CHECKPOINT_ID = Hashing.sha256().hashString(HEALTH_CODE + ":" + START_DATE + ":" +
+            END_DATE, Charsets.UTF_8).toString();
+    private static final String PREFIX = RequestCheckpointStore.KEY_PREFIX + CHECKPOINT_ID + "/";
+    private static final String CHECKPOINT_KEY = PREFIX + RequestCheckpointStore.CHECKPOINT_KEY_SUFFIX;
+    private static final String SHARED_SEGMENT_KEY = "zip-segments/dummy-hash";
+
+    private InMemoryFileHelper inMemoryFileHelper;
+    private AmazonS3Client mockS3Client;
+    private ZipSegment segment;
+    private RequestCheckpointStore store;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        inMemoryFileHelper = new InMemoryFileHelper();
+        File tmpDir = inMemoryFileHelper.createTempDir();
+        File csvFile = inMemoryFileHelper.newFile(tmpDir, "test-table.csv");
+        try (OutputStream outputStream = inMemoryFileHelper.getOutputStream(csvFile)) {
+            outputStream.write("dummy csv content".getBytes());
+        }
+
+        ZipHelper zipHelper = new ZipHelper();
+        zipHelper.setCompressionPolicy(new ZipCompressionPolicy());
+        zipHelper.setFileHelper(inMemoryFileHelper);
+        segment = zipHelper.writeSegment(csvFile, inMemoryFileHelper.newFile(tmpDir, "test-table.csv.zipseg"));
+
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get(RequestCheckpointStore.CONFIG_KEY_ENABLED)).thenReturn("true");
+        when(mockConfig.getInt(RequestCheckpointStore.CONFIG_KEY_MAX_AGE_HOURS)).thenReturn(24);
+        when(mockConfig.get(RequestCheckpointStore.CONFIG_KEY_USERDATA_BUCKET)).thenReturn(DUMMY_USER_DATA_BUCKET);
+
+        mockS3Client = mock(AmazonS3Client.class);
+
+        store = new RequestCheckpointStore();
+        store.setConfig(mockConfig);
+        store.setFileHelper(inMemoryFileHelper);
+        store.setS3Client(mockS3Client);
+    }
+
+    @Test
+    public void loadNone() {
+        AmazonS3Exception notFoundEx = new AmazonS3Exception("not found");
+        notFoundEx.setStatusCode(404);
+        when(mockS3Client.getObject(DUMMY_USER_DATA_BUCKET, CHECKPOINT_KEY)).thenThrow(notFoundEx);
+
+        RequestCheckpoint checkpoint = store.load(HEALTH_CODE, START_DATE, END_DATE);
+        assertEquals(checkpoint.getId(), CHECKPOINT_ID);
+        assertTrue(checkpoint.isEmpty());
+    }
+
+    @Test
+    public void loadError() {
+        when(mockS3Client.getObject(DUMMY_USER_DATA_BUCKET, CHECKPOINT_KEY)).thenThrow(AmazonClientException.class);
+        assertTrue(store.load(HEALTH_CODE, START_DATE, END_DATE).isEmpty());
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        // Small segments are uploaded under the checkpoint, with their zip fields as metadata.
+        RequestCheckpoint checkpoint = new RequestCheckpoint(CHECKPOINT_ID);
+        ZipSegment savedSegment = store.putSegment(checkpoint, segment);
+        assertEquals(savedSegment.getS3Key(), PREFIX + RequestCheckpointStore.SEGMENT_KEY_INFIX +
+                "test-table.csv");
+
+        ArgumentCaptor<PutObjectRequest> putRequestCaptor = ArgumentCaptor.forClass(PutObjectRequest.class);
+        verify(mockS3Client).putObject(putRequestCaptor.capture());
+        PutObjectRequest segmentPutRequest = putRequestCaptor.getValue();
+        assertEquals(segmentPutRequest.getKey(), savedSegment.getS3Key());
+        assertEquals(segmentPutRequest.getMetadata().getUserMetadata(), segment.toS3Metadata());
+        assertEquals(segmentPutRequest.getMetadata().getSSEAlgorithm(),
+                ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+
+        // Segments already in S3 are unchanged.
+        ZipSegment sharedSegment = segment.withS3Key(SHARED_SEGMENT_KEY);
+        assertSame(store.putSegment(checkpoint, sharedSegment), sharedSegment);
+
+        // Save a finished table, a table with no data, and a running query.
+        checkpoint.recordTableDone("done-table", ImmutableList.of(savedSegment, sharedSegment));
+        checkpoint.recordTableDone("no-data-table", ImmutableList.of());
+        checkpoint.recordQueryStarted("running-table", START_DATE, "test-job-token");
+        byte[] checkpointBytes = captureSave(checkpoint);
+
+        // Load it back.
+        mockCheckpointObject(checkpointBytes, DateTime.now().minusHours(1));
+        when(mockS3Client.doesObjectExist(any(String.class), any(String.class))).thenReturn(true);
+
+        RequestCheckpoint loaded = store.load(HEALTH_CODE, START_DATE, END_DATE);
+        List<ZipSegment> loadedSegmentList = loaded.getDoneSegmentList("done-table");
+        assertEquals(loadedSegmentList.size(), 2);
+        assertEquals(loadedSegmentList.get(0).getS3Key(), savedSegment.getS3Key());
+        assertEquals(loadedSegmentList.get(0).getLength(), segment.getLength());
+        assertEquals(loadedSegmentList.get(0).toS3Metadata(), segment.toS3Metadata());
+        assertNull(loadedSegmentList.get(0).getSegmentFile());
+        assertEquals(loadedSegmentList.get(1).getS3Key(), SHARED_SEGMENT_KEY);
+        assertTrue(loaded.getDoneSegmentList("no-data-table").isEmpty());
+        assertNull(loaded.getDoneSegmentList("running-table"));
+        assertEquals(loaded.getQueryJobToken("running-table", START_DATE), "test-job-token");
+        assertNull(loaded.getQueryJobToken("running-table", START_DATE.plusDays(1)));
+    }
+
+    @Test
+    public void loadTooOld() throws Exception {
+        RequestCheckpoint checkpoint = new RequestCheckpoint(CHECKPOINT_ID);
+        checkpoint.recordQueryStarted("running-table", START_DATE, "test-job-token");
+        mockCheckpointObject(captureSave(checkpoint), DateTime.now().minusHours(25));
+
+        assertTrue(store.load(HEALTH_CODE, START_DATE, END_DATE).isEmpty());
+    }
+
+    @Test
+    public void loadDropsTablesWithMissingSegments() throws Exception {
+        RequestCheckpoint checkpoint = new RequestCheckpoint(CHECKPOINT_ID);
+        checkpoint.recordTableDone("done-table", ImmutableList.of(segment.withS3Key(SHARED_SEGMENT_KEY)));
+        checkpoint.recordQueryStarted("running-table", START_DATE, "test-job-token");
+        mockCheckpointObject(captureSave(checkpoint), DateTime.now());
+
+        // The shared segment was cleaned up, so the table is downloaded again.
+        when(mockS3Client.doesObjectExist(DUMMY_USER_DATA_BUCKET, SHARED_SEGMENT_KEY)).thenReturn(false);
+
+        RequestCheckpoint loaded = store.load(HEALTH_CODE, START_DATE, END_DATE);
+        assertNull(loaded.getDoneSegmentList("done-table"));
+        assertEquals(loaded.getQueryJobToken("running-table", START_DATE), "test-job-token");
+    }
+
+    @Test
+    public void saveError() {
+        when(mockS3Client.putObject(any(PutObjectRequest.class))).thenThrow(AmazonClientException.class);
+
+        // Doesn't throw.
+        store.save(new RequestCheckpoint(CHECKPOINT_ID));
+    }
+
+    @Test
+    public void saveSkipsUnchangedCheckpoint() {
+        RequestCheckpoint checkpoint = new RequestCheckpoint(CHECKPOINT_ID);
+        checkpoint.recordQueryStarted("running-table", START_DATE, "test-job-token");
+        store.save(checkpoint);
+        store.save(checkpoint);
+        verify(mockS3Client, times(1)).putObject(any(PutObjectRequest.class));
+
+        checkpoint.recordTableDone("running-table", ImmutableList.of());
+        store.save(checkpoint);
+        verify(mockS3Client, times(2)).putObject(any(PutObjectRequest.class));
+    }
+
+    @Test
+    public void changesDontWaitForSave() throws Exception {
+        RequestCheckpoint checkpoint = new RequestCheckpoint(CHECKPOINT_ID);
+
+        // While the first save is uploading, another table finishes. It mustn't wait for the upload.
+        boolean[] changedDuringSave = new boolean[1];
+        when(mockS3Client.putObject(any(PutObjectRequest.class))).then(invocation -> {
+            if (!changedDuringSave[0]) {
+                Thread changeThread = new Thread(() -> checkpoint.recordTableDone("done-table",
+                        ImmutableList.of()));
+                changeThread.start();
+                changeThread.join(5000);
+                changedDuringSave[0] = !changeThread.isAlive();
+            }
+            return null;
+        });
+        store.save(checkpoint);
+        assertTrue(changedDuringSave[0]);
+
+        // The change is newer than what was saved, so the next save uploads it.
+        store.save(checkpoint);
+        verify(mockS3Client, times(2)).putObject(any(PutObjectRequest.class));
+    }
+
+    @Test
+    public void deleteOnlyOwnSegments() {
+        String ownSegmentKey = PREFIX + RequestCheckpointStore.SEGMENT_KEY_INFIX + "test-table.csv";
+        RequestCheckpoint checkpoint = new RequestCheckpoint(CHECKPOINT_ID);
+        checkpoint.recordTableDone("done-table", ImmutableList.of(segment.withS3Key(ownSegmentKey),
+                segment.withS3Key(SHARED_SEGMENT_KEY)));
+
+        store.delete(checkpoint);
+        verify(mockS3Client).deleteObject(DUMMY_USER_DATA_BUCKET, CHECKPOINT_KEY);
+        verify(mockS3Client).deleteObject(DUMMY_USER_DATA_BUCKET, ownSegmentKey);
+        verify(mockS3Client, never()).deleteObject(DUMMY_USER_DATA_BUCKET, SHARED_SEGMENT_KEY);
+    }
+
+    // Saves the checkpoint, and returns the bytes written to S3.
+    private byte[] captureSave(RequestCheckpoint checkpoint) throws Exception {
+        byte[][] savedBytes = new byte[1][];
+        when(mockS3Client.putObject(any(PutObjectRequest.class))).then(invocation -> {
+            PutObjectRequest putRequest = invocation.getArgumentAt(0, PutObjectRequest.class);
+            assertEquals(putRequest.getBucketName(), DUMMY_USER_DATA_BUCKET);
+            assertEquals(putRequest.getKey(), CHECKPOINT_KEY);
+            assertEquals(putRequest.getMetadata().getSSEAlgorithm(), ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+            try (InputStream inputStream = putRequest.getInputStream()) {
+                savedBytes[0] = ByteStreams.toByteArray(inputStream);
+            }
+            return null;
+        });
+        store.save(checkpoint);
+        return savedBytes[0];
+    }
+
+    private void mockCheckpointObject(byte[] content, DateTime lastModified) {
+        when(mockS3Client.getObject(DUMMY_USER_DATA_BUCKET, CHECKPOINT_KEY)).then(invocation -> {
+            S3Object s3Object = new S3Object();
+            s3Object.setObjectContent(new ByteArrayInputStream(content));
+            s3Object.getObjectMetadata().setLastModified(lastModified.toDate());
+            return s3Object;
+        });
+    }
+}
@@ -0,0 +1,364 @@
+package org.sagebionetworks.bridge.udd.s3;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Random;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import org.joda.time.DateTime;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.InMemoryFileHelper;
+import org.sagebionetworks.bridge.udd.helper.ZipCompressionPolicy;
+import org.sagebionetworks.bridge.udd.helper.ZipHelper;
+import org.sagebionetworks.bridge.udd.helper.ZipHelperTest;
+import org.sagebionetworks.bridge.udd.helper.ZipSegment;
+
+public class S3ZipAssemblerTest {
+    private static final String DUMMY_USER_DATA_BUCKET = "dummy-user-data-bucket";
+    private static final String UPLOAD_ID = "dummy-upload-id";
+    private static final String ZIP_KEY = "userdata-test.zip";
+
+    private S3ZipAssembler assembler;
+    private InMemoryFileHelper inMemoryFileHelper;
+    private Config mockConfig;
+    private AmazonS3Client mockS3Client;
+    private File tmpDir;
+    private ZipHelper zipHelper;
+
+    @BeforeMethod
+    public void setup() {
+        inMemoryFileHelper = new InMemoryFileHelper();
+        tmpDir = inMemoryFileHelper.createTempDir();
+
+        zipHelper = new ZipHelper();
+        zipHelper.setCompressionPolicy(new ZipCompressionPolicy());
+        zipHelper.setFileHelper(inMemoryFileHelper);
+
+        mockConfig = mock(Config.class);
+        when(mockConfig.getInt(S3ZipAssembler.CONFIG_KEY_REUSE_MAX_AGE_HOURS)).thenReturn(24);
+        when(mockConfig.get(S3ZipAssembler.CONFIG_KEY_USERDATA_BUCKET)).thenReturn(DUMMY_USER_DATA_BUCKET);
+
+        mockS3Client = mock(AmazonS3Client.class);
+
+        assembler = new S3ZipAssembler();
+        assembler.setConfig(mockConfig);
+        assembler.setFileHelper(inMemoryFileHelper);
+        assembler.setS3Client(mockS3Client);
+        assembler.setZipHelper(zipHelper);
+    }
+
+    @Test
+    public void smallSegmentNotUploaded() throws Exception {
+        ZipSegment segment = writeSegment("small.csv", "small content".getBytes());
+        ZipSegment uploadedSegment = assembler.uploadSegment(segment);
+        assertSame(uploadedSegment, segment);
+        assertNull(uploadedSegment.getS3Key());
+        verifyZeroInteractions(mockS3Client);
+    }
+
+    @Test
+    public void bigSegmentUploaded() throws Exception {
+        ZipSegment segment = writeSegment("big.zip", randomBytes(S3ZipAssembler.MIN_PART_BYTES));
+        byte[] segmentBytes = inMemoryFileHelper.getBytes(segment.getSegmentFile());
+
+        ArgumentCaptor<PutObjectRequest> putRequestCaptor = ArgumentCaptor.forClass(PutObjectRequest.class);
+        when(mockS3Client.putObject(putRequestCaptor.capture())).then(invocation -> {
+            // Read the stream in the answer, since it's closed after the put.
+            PutObjectRequest putRequest = invocation.getArgumentAt(0, PutObjectRequest.class);
+            try (InputStream segmentInputStream = putRequest.getInputStream()) {
+                assertEquals(ByteStreams.toByteArray(segmentInputStream), segmentBytes);
+            }
+            return null;
+        });
+
+        ZipSegment uploadedSegment = assembler.uploadSegment(segment);
+        String segmentKey = uploadedSegment.getS3Key();
+        assertNotNull(segmentKey);
+        assertTrue(segmentKey.startsWith(S3ZipAssembler.SEGMENT_KEY_PREFIX));
+        assertEquals(uploadedSegment.getEntryName(), "big.zip");
+
+        PutObjectRequest putRequest = putRequestCaptor.getValue();
+        assertEquals(putRequest.getBucketName(), DUMMY_USER_DATA_BUCKET);
+        assertEquals(putRequest.getKey(), segmentKey);
+        assertEquals(putRequest.getMetadata().getContentLength(), segment.getLength());
+        assertEquals(putRequest.getMetadata().getSSEAlgorithm(), ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+    }
+
+    @Test
+    public void existingSegmentReused() throws Exception {
+        ZipSegment segment = writeSegment("big.zip", randomBytes(S3ZipAssembler.MIN_PART_BYTES));
+        when(mockS3Client.doesObjectExist(any(String.class), any(String.class))).thenReturn(true);
+
+        ZipSegment uploadedSegment = assembler.uploadSegment(segment);
+        assertNotNull(uploadedSegment.getS3Key());
+        verify(mockS3Client).doesObjectExist(DUMMY_USER_DATA_BUCKET, uploadedSegment.getS3Key());
+        verify(mockS3Client, never()).putObject(any(PutObjectRequest.class));
+    }
+
+    @Test
+    public void noCopiedSegmentsSinglePut() throws Exception {
+        ZipSegment fooSegment = writeSegment("foo.csv", "foo content".getBytes());
+        ZipSegment barSegment = writeSegment("bar.csv", "bar content".getBytes());
+
+        ByteArrayOutputStream zipBytesStream = new ByteArrayOutputStream();
+        when(mockS3Client.putObject(any(PutObjectRequest.class))).then(invocation -> {
+            PutObjectRequest putRequest = invocation.getArgumentAt(0, PutObjectRequest.class);
+            assertEquals(putRequest.getBucketName(), DUMMY_USER_DATA_BUCKET);
+            assertEquals(putRequest.getKey(), ZIP_KEY);
+            assertEquals(putRequest.getMetadata().getSSEAlgorithm(), ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+            copyStream(putRequest.getInputStream(), zipBytesStream);
+            return null;
+        });
+
+        long sentBytes = assembler.assemble(ZIP_KEY, ImmutableList.of(fooSegment, barSegment));
+        assertEquals(sentBytes, zipBytesStream.size());
+
+        Map<String, String> unzippedMap = ZipHelperTest.unzipHelper(zipBytesStream.toByteArray());
+        assertEquals(unzippedMap.size(), 2);
+        assertEquals(unzippedMap.get("foo.csv"), "foo content");
+        assertEquals(unzippedMap.get("bar.csv"), "bar content");
+
+        verify(mockS3Client, never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void copiedSegmentsMultipart() throws Exception {
+        ZipSegment smallSegment = writeSegment("small.csv", "small content".getBytes());
+        ZipSegment bigSegment = writeSegment("big.zip", randomBytes(S3ZipAssembler.MIN_PART_BYTES)).withS3Key(
+                S3ZipAssembler.SEGMENT_KEY_PREFIX + "dummy-hash");
+        mockMultipartUpload();
+
+        ArgumentCaptor<UploadPartRequest> uploadPartRequestCaptor = ArgumentCaptor.forClass(UploadPartRequest.class);
+        ByteArrayOutputStream lastPartStream = new ByteArrayOutputStream();
+        when(mockS3Client.uploadPart(uploadPartRequestCaptor.capture())).then(invocation -> {
+            UploadPartRequest uploadPartRequest = invocation.getArgumentAt(0, UploadPartRequest.class);
+            copyStream(uploadPartRequest.getInputStream(), lastPartStream);
+            UploadPartResult uploadPartResult = new UploadPartResult();
+            uploadPartResult.setPartNumber(uploadPartRequest.getPartNumber());
+            uploadPartResult.setETag("last-part-etag");
+            return uploadPartResult;
+        });
+
+        // Small segment is listed first, but copied segments always go first in the zip.
+        long sentBytes = assembler.assemble(ZIP_KEY, ImmutableList.of(smallSegment, bigSegment));
+        assertEquals(sentBytes, lastPartStream.size());
+
+        // validate initiate - The zip is encrypted at rest.
+        ArgumentCaptor<InitiateMultipartUploadRequest> initiateRequestCaptor = ArgumentCaptor.forClass(
+                InitiateMultipartUploadRequest.class);
+        verify(mockS3Client).initiateMultipartUpload(initiateRequestCaptor.capture());
+        InitiateMultipartUploadRequest initiateRequest = initiateRequestCaptor.getValue();
+        assertEquals(initiateRequest.getBucketName(), DUMMY_USER_DATA_BUCKET);
+        assertEquals(initiateRequest.getKey(), ZIP_KEY);
+        assertEquals(initiateRequest.getObjectMetadata().getSSEAlgorithm(),
+                ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+
+        // validate copy part
+        ArgumentCaptor<CopyPartRequest> copyPartRequestCaptor = ArgumentCaptor.forClass(CopyPartRequest.class);
+        verify(mockS3Client).copyPart(copyPartRequestCaptor.capture());
+        CopyPartRequest copyPartRequest = copyPartRequestCaptor.getValue();
+        assertEquals(copyPartRequest.getSourceBucketName(), DUMMY_USER_DATA_BUCKET);
+        assertEquals(copyPartRequest.getSourceKey(), bigSegment.getS3Key());
+        assertEquals(copyPartRequest.getDestinationKey(), ZIP_KEY);
+        assertEquals(copyPartRequest.getUploadId(), UPLOAD_ID);
+        assertEquals(copyPartRequest.getPartNumber(), 1);
+
+        // validate last part
+        UploadPartRequest uploadPartRequest = uploadPartRequestCaptor.getValue();
+        assertEquals(uploadPartRequest.getPartNumber(), 2);
+        assertEquals(uploadPartRequest.getPartSize(), sentBytes);
+        assertTrue(uploadPartRequest.isLastPart());
+
+        // validate complete
+        ArgumentCaptor<CompleteMultipartUploadRequest> completeRequestCaptor = ArgumentCaptor.forClass(
+                CompleteMultipartUploadRequest.class);
+        verify(mockS3Client).completeMultipartUpload(completeRequestCaptor.capture());
+        assertEquals(completeRequestCaptor.getValue().getPartETags().size(), 2);
+        verify(mockS3Client, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+
+        // The copied part followed by the last part is the complete zip.
+        ByteArrayOutputStream zipBytesStream = new ByteArrayOutputStream();
+        zipBytesStream.write(inMemoryFileHelper.getBytes(bigSegment.getSegmentFile()));
+        zipBytesStream.write(lastPartStream.toByteArray());
+        Map<String, String> unzippedMap = ZipHelperTest.unzipHelper(zipBytesStream.toByteArray());
+        assertEquals(unzippedMap.size(), 2);
+        assertEquals(unzippedMap.get("small.csv"), "small content");
+    }
+
+    @Test
+    public void smallS3SegmentReadInline() throws Exception {
+        // Shared segments only exist in S3. Small ones can't be copied, so they're read back and sent inline.
+        ZipSegment localSegment = writeSegment("shared.csv", "shared content".getBytes());
+        String sharedKey = SharedSurveyStore.KEY_PREFIX + "test-table/test-etag/dummy-hash";
+        ZipSegment sharedSegment = ZipSegment.fromS3Metadata(sharedKey, localSegment.getLength(),
+                localSegment.toS3Metadata());
+
+        S3Object sharedObject = new S3Object();
+        sharedObject.setObjectContent(new ByteArrayInputStream(inMemoryFileHelper.getBytes(
+                localSegment.getSegmentFile())));
+        when(mockS3Client.getObject(DUMMY_USER_DATA_BUCKET, sharedKey)).thenReturn(sharedObject);
+
+        ByteArrayOutputStream zipBytesStream = new ByteArrayOutputStream();
+        when(mockS3Client.putObject(any(PutObjectRequest.class))).then(invocation -> {
+            copyStream(invocation.getArgumentAt(0, PutObjectRequest.class).getInputStream(), zipBytesStream);
+            return null;
+        });
+
+        assembler.assemble(ZIP_KEY, ImmutableList.of(sharedSegment));
+        Map<String, String> unzippedMap = ZipHelperTest.unzipHelper(zipBytesStream.toByteArray());
+        assertEquals(unzippedMap.size(), 1);
+        assertEquals(unzippedMap.get("shared.csv"), "shared content");
+
+        verify(mockS3Client, never()).copyPart(any(CopyPartRequest.class));
+    }
+
+    @Test
+    public void multipartAbortedOnError() throws Exception {
+        ZipSegment bigSegment = writeSegment("big.zip", randomBytes(S3ZipAssembler.MIN_PART_BYTES)).withS3Key(
+                S3ZipAssembler.SEGMENT_KEY_PREFIX + "dummy-hash");
+        mockMultipartUpload();
+        when(mockS3Client.uploadPart(any(UploadPartRequest.class))).thenThrow(AmazonClientException.class);
+
+        try {
+            assembler.assemble(ZIP_KEY, ImmutableList.of(bigSegment));
+            fail("expected exception");
+        } catch (AmazonClientException ex) {
+            // expected exception
+        }
+
+        ArgumentCaptor<AbortMultipartUploadRequest> abortRequestCaptor = ArgumentCaptor.forClass(
+                AbortMultipartUploadRequest.class);
+        verify(mockS3Client).abortMultipartUpload(abortRequestCaptor.capture());
+        assertEquals(abortRequestCaptor.getValue().getUploadId(), UPLOAD_ID);
+        verify(mockS3Client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void recentZipReusable() {
+        mockListing(summary(ZIP_KEY, DateTime.now().minusHours(1)));
+        assertTrue(assembler.isZipReusable(ZIP_KEY));
+
+        ArgumentCaptor<ListObjectsV2Request> listRequestCaptor = ArgumentCaptor.forClass(ListObjectsV2Request.class);
+        verify(mockS3Client).listObjectsV2(listRequestCaptor.capture());
+        assertEquals(listRequestCaptor.getValue().getBucketName(), DUMMY_USER_DATA_BUCKET);
+        assertEquals(listRequestCaptor.getValue().getPrefix(), ZIP_KEY);
+    }
+
+    @Test
+    public void oldZipNotReusable() {
+        mockListing(summary(ZIP_KEY, DateTime.now().minusHours(25)));
+        assertFalse(assembler.isZipReusable(ZIP_KEY));
+    }
+
+    @Test
+    public void missingZipNotReusable() {
+        // Only a different key with the same prefix.
+        mockListing(summary(ZIP_KEY + ".other", DateTime.now()));
+        assertFalse(assembler.isZipReusable(ZIP_KEY));
+    }
+
+    @Test
+    public void zipNotReusableOnS3Error() {
+        when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenThrow(AmazonClientException.class);
+        assertFalse(assembler.isZipReusable(ZIP_KEY));
+    }
+
+    @Test
+    public void zipReuseDisabled() {
+        when(mockConfig.getInt(S3ZipAssembler.CONFIG_KEY_REUSE_MAX_AGE_HOURS)).thenReturn(0);
+        assembler.setConfig(mockConfig);
+        assertFalse(assembler.isZipReusable(ZIP_KEY));
+        verifyZeroInteractions(mockS3Client);
+    }
+
+    private void mockListing(S3ObjectSummary... summaries) {
+        ListObjectsV2Result listResult = new ListObjectsV2Result();
+        for (S3ObjectSummary oneSummary : summaries) {
+            listResult.getObjectSummaries().add(oneSummary);
+        }
+        when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(listResult);
+    }
+
+    private static S3ObjectSummary summary(String key, DateTime lastModified) {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(key);
+        summary.setLastModified(lastModified.toDate());
+        return summary;
+    }
+
+    private void mockMultipartUpload() {
+        InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+        initiateResult.setUploadId(UPLOAD_ID);
+        when(mockS3Client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(
+                initiateResult);
+
+        when(mockS3Client.copyPart(any(CopyPartRequest.class))).then(invocation -> {
+            CopyPartRequest copyPartRequest = invocation.getArgumentAt(0, CopyPartRequest.class);
+            CopyPartResult copyPartResult = new CopyPartResult();
+            copyPartResult.setPartNumber(copyPartRequest.getPartNumber());
+            copyPartResult.setETag("copy-part-etag-" + copyPartRequest.getPartNumber());
+            return copyPartResult;
+        });
+    }
+
+    private ZipSegment writeSegment(String name, byte[] content) throws IOException {
+        File file = inMemoryFileHelper.newFile(tmpDir, name);
+        try (OutputStream outputStream = inMemoryFileHelper.getOutputStream(file)) {
+            outputStream.write(content);
+        }
+        return zipHelper.writeSegment(file, inMemoryFileHelper.newFile(tmpDir, name + ".zipseg"));
+    }
+
+    // Random bytes don't compress, so the segment is at least this big.
+    private static byte[] randomBytes(long length) {
+        byte[] bytes = new byte[(int) length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void copyStream(InputStream inputStream, OutputStream outputStream) throws IOException {
+        try (InputStream closeableInputStream = inputStream) {
+            ByteStreams.copy(closeableInputStream, outputStream);
+        }
+    }
+}
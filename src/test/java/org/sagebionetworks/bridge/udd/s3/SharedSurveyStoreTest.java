@@ -0,0 +1,168 @@
+package org.sagebionetworks.bridge.udd.s3;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.io.ByteStreams;
+import org.joda.time.DateTime;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.InMemoryFileHelper;
+import org.sagebionetworks.bridge.udd.helper.ZipCompressionPolicy;
+import org.sagebionetworks.bridge.udd.helper.ZipHelper;
+import org.sagebionetworks.bridge.udd.helper.ZipSegment;
+
+public class SharedSurveyStoreTest {
+    private static final String DUMMY_USER_DATA_BUCKET = "dummy-user-data-bucket";
+    private static final String TABLE_ID = "test-table";
+    private static final String ETAG = "test-etag";
+    private static final String PREFIX = SharedSurveyStore.KEY_PREFIX + TABLE_ID + "/" + ETAG + "/";
+
+    private InMemoryFileHelper inMemoryFileHelper;
+    private AmazonS3Client mockS3Client;
+    private ZipSegment segment;
+    private SharedSurveyStore store;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        inMemoryFileHelper = new InMemoryFileHelper();
+        File tmpDir = inMemoryFileHelper.createTempDir();
+        File surveyFile = inMemoryFileHelper.newFile(tmpDir, "Test Survey.csv");
+        try (OutputStream outputStream = inMemoryFileHelper.getOutputStream(surveyFile)) {
+            outputStream.write("dummy survey content".getBytes());
+        }
+
+        ZipHelper zipHelper = new ZipHelper();
+        zipHelper.setCompressionPolicy(new ZipCompressionPolicy());
+        zipHelper.setFileHelper(inMemoryFileHelper);
+        segment = zipHelper.writeSegment(surveyFile, inMemoryFileHelper.newFile(tmpDir, "Test Survey.csv.zipseg"));
+
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(SharedSurveyStore.CONFIG_KEY_MAX_AGE_HOURS)).thenReturn(24);
+        when(mockConfig.get(SharedSurveyStore.CONFIG_KEY_USERDATA_BUCKET)).thenReturn(DUMMY_USER_DATA_BUCKET);
+
+        mockS3Client = mock(AmazonS3Client.class);
+
+        store = new SharedSurveyStore();
+        store.setConfig(mockConfig);
+        store.setFileHelper(inMemoryFileHelper);
+        store.setS3Client(mockS3Client);
+    }
+
+    @Test
+    public void findNone() {
+        mockListing();
+        assertNull(store.find(TABLE_ID, ETAG));
+
+        ArgumentCaptor<ListObjectsV2Request> listRequestCaptor = ArgumentCaptor.forClass(ListObjectsV2Request.class);
+        verify(mockS3Client).listObjectsV2(listRequestCaptor.capture());
+        assertEquals(listRequestCaptor.getValue().getBucketName(), DUMMY_USER_DATA_BUCKET);
+        assertEquals(listRequestCaptor.getValue().getPrefix(), PREFIX);
+    }
+
+    @Test
+    public void findNewest() {
+        mockListing(summary(PREFIX + "older", DateTime.now().minusHours(2)),
+                summary(PREFIX + "newer", DateTime.now().minusHours(1)));
+
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(segment.getLength());
+        metadata.setUserMetadata(segment.toS3Metadata());
+        when(mockS3Client.getObjectMetadata(DUMMY_USER_DATA_BUCKET, PREFIX + "newer")).thenReturn(metadata);
+
+        ZipSegment found = store.find(TABLE_ID, ETAG);
+        assertNull(found.getSegmentFile());
+        assertEquals(found.getS3Key(), PREFIX + "newer");
+        assertEquals(found.getEntryName(), "Test Survey.csv");
+        assertEquals(found.getLength(), segment.getLength());
+        assertEquals(found.getCrc(), segment.getCrc());
+    }
+
+    @Test
+    public void staleSegmentIgnored() {
+        mockListing(summary(PREFIX + "stale", DateTime.now().minusHours(25)));
+        assertNull(store.find(TABLE_ID, ETAG));
+        verify(mockS3Client, never()).getObjectMetadata(any(String.class), any(String.class));
+    }
+
+    @Test
+    public void s3ErrorReturnsNull() {
+        when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenThrow(AmazonClientException.class);
+        assertNull(store.find(TABLE_ID, ETAG));
+    }
+
+    @Test
+    public void malformedMetadataReturnsNull() {
+        mockListing(summary(PREFIX + "bad", DateTime.now()));
+        when(mockS3Client.getObjectMetadata(DUMMY_USER_DATA_BUCKET, PREFIX + "bad")).thenReturn(new ObjectMetadata());
+        assertNull(store.find(TABLE_ID, ETAG));
+    }
+
+    @Test
+    public void put() throws Exception {
+        byte[] segmentBytes = inMemoryFileHelper.getBytes(segment.getSegmentFile());
+        ArgumentCaptor<PutObjectRequest> putRequestCaptor = ArgumentCaptor.forClass(PutObjectRequest.class);
+        when(mockS3Client.putObject(putRequestCaptor.capture())).then(invocation -> {
+            // Read the stream in the answer, since it's closed after the put.
+            PutObjectRequest putRequest = invocation.getArgumentAt(0, PutObjectRequest.class);
+            try (InputStream segmentInputStream = putRequest.getInputStream()) {
+                assertEquals(ByteStreams.toByteArray(segmentInputStream), segmentBytes);
+            }
+            return null;
+        });
+
+        ZipSegment storedSegment = store.put(TABLE_ID, ETAG, segment);
+        assertTrue(storedSegment.getS3Key().startsWith(PREFIX));
+        assertEquals(storedSegment.getSegmentFile(), segment.getSegmentFile());
+
+        PutObjectRequest putRequest = putRequestCaptor.getValue();
+        assertEquals(putRequest.getBucketName(), DUMMY_USER_DATA_BUCKET);
+        assertEquals(putRequest.getKey(), storedSegment.getS3Key());
+        assertEquals(putRequest.getMetadata().getContentLength(), segment.getLength());
+        assertEquals(putRequest.getMetadata().getUserMetadata(), segment.toS3Metadata());
+    }
+
+    @Test
+    public void putExistingSkipsUpload() throws Exception {
+        when(mockS3Client.doesObjectExist(any(String.class), any(String.class))).thenReturn(true);
+
+        ZipSegment storedSegment = store.put(TABLE_ID, ETAG, segment);
+        assertTrue(storedSegment.getS3Key().startsWith(PREFIX));
+        verify(mockS3Client, never()).putObject(any(PutObjectRequest.class));
+    }
+
+    private void mockListing(S3ObjectSummary... summaries) {
+        ListObjectsV2Result listResult = new ListObjectsV2Result();
+        for (S3ObjectSummary oneSummary : summaries) {
+            listResult.getObjectSummaries().add(oneSummary);
+        }
+        when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(listResult);
+    }
+
+    private static S3ObjectSummary summary(String key, DateTime lastModified) {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(key);
+        summary.setLastModified(lastModified.toDate());
+        return summary;
+    }
+}
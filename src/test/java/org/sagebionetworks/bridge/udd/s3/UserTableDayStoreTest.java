@@ -0,0 +1,205 @@
+package org.sagebionetworks.bridge.udd.s3;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.Reader;
+import java.util.List;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CharStreams;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.joda.time.LocalDate;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.InMemoryFileHelper;
+
+public class UserTableDayStoreTest {
+    private static final String DUMMY_USER_DATA_BUCKET = "dummy-user-data-bucket";
+    private static final String HEALTH_CODE = "test-health-code";
+    private static final String TABLE_ID = "test-table";
+    private static final String PREFIX = UserTableDayStore.KEY_PREFIX + Hashing.sha256().hashString(HEALTH_CODE,
+            Charsets.UTF_8).toString() + "/" + TABLE_ID + "/";
+
+    private InMemoryFileHelper inMemoryFileHelper;
+    private AmazonS3Client mockS3Client;
+    private UserTableDayStore store;
+
+    @BeforeMethod
+    public void setup() {
+        DateTimeUtils.setCurrentMillisFixed(LocalDate.parse("2017-06-10").toDateTimeAtStartOfDay().getMillis());
+
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get(UserTableDayStore.CONFIG_KEY_ENABLED)).thenReturn("true");
+        when(mockConfig.getInt(UserTableDayStore.CONFIG_KEY_FINAL_LAG_DAYS)).thenReturn(2);
+        when(mockConfig.getInt(UserTableDayStore.CONFIG_KEY_MAX_AGE_DAYS)).thenReturn(30);
+        when(mockConfig.get(UserTableDayStore.CONFIG_KEY_USERDATA_BUCKET)).thenReturn(DUMMY_USER_DATA_BUCKET);
+
+        inMemoryFileHelper = new InMemoryFileHelper();
+        mockS3Client = mock(AmazonS3Client.class);
+
+        store = new UserTableDayStore();
+        store.setConfig(mockConfig);
+        store.setFileHelper(inMemoryFileHelper);
+        store.setS3Client(mockS3Client);
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void config() {
+        assertTrue(store.isEnabled());
+        assertEquals(store.getLastFinalDate(), LocalDate.parse("2017-06-08"));
+    }
+
+    @Test
+    public void getCoverage() {
+        mockCoverage("2017-06-01T00:00:00.000Z");
+
+        UserTableDayStore.DayRange coverage = store.getCoverage(HEALTH_CODE, TABLE_ID);
+        assertEquals(coverage.getStartDate(), LocalDate.parse("2017-01-01"));
+        assertEquals(coverage.getEndDate(), LocalDate.parse("2017-05-31"));
+        assertEquals(coverage.getStoredOn().getMillis(), DateTime.parse("2017-06-01T00:00:00.000Z").getMillis());
+    }
+
+    @Test
+    public void getCoverageTooOld() {
+        // The oldest segment is past the max age, so the lifecycle rule may have deleted some of them.
+        mockCoverage("2017-05-01T00:00:00.000Z");
+        assertNull(store.getCoverage(HEALTH_CODE, TABLE_ID));
+    }
+
+    @Test
+    public void getCoverageWithoutStoredOn() {
+        // Markers from before stored-on was recorded can't be trusted.
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setUserMetadata(ImmutableMap.of(UserTableDayStore.METADATA_KEY_COVERAGE_START, "2017-01-01",
+                UserTableDayStore.METADATA_KEY_COVERAGE_END, "2017-05-31"));
+        when(mockS3Client.getObjectMetadata(DUMMY_USER_DATA_BUCKET, PREFIX + UserTableDayStore.COVERAGE_KEY_SUFFIX))
+                .thenReturn(metadata);
+        assertNull(store.getCoverage(HEALTH_CODE, TABLE_ID));
+    }
+
+    @Test
+    public void getCoverageNotFound() {
+        AmazonS3Exception notFoundEx = new AmazonS3Exception("not found");
+        notFoundEx.setStatusCode(404);
+        when(mockS3Client.getObjectMetadata(any(String.class), any(String.class))).thenThrow(notFoundEx);
+        assertNull(store.getCoverage(HEALTH_CODE, TABLE_ID));
+    }
+
+    @Test
+    public void getCoverageError() {
+        when(mockS3Client.getObjectMetadata(any(String.class), any(String.class))).thenThrow(
+                new AmazonClientException("test exception"));
+        assertNull(store.getCoverage(HEALTH_CODE, TABLE_ID));
+    }
+
+    @Test
+    public void listDays() {
+        // Two pages. The coverage marker is skipped.
+        ListObjectsV2Result page1 = new ListObjectsV2Result();
+        page1.getObjectSummaries().add(makeSummary(PREFIX + "2017-05-02.csv"));
+        page1.getObjectSummaries().add(makeSummary(PREFIX + UserTableDayStore.COVERAGE_KEY_SUFFIX));
+        page1.setTruncated(true);
+        page1.setNextContinuationToken("next-page");
+
+        ListObjectsV2Result page2 = new ListObjectsV2Result();
+        page2.getObjectSummaries().add(makeSummary(PREFIX + "2017-05-01.csv"));
+        page2.setTruncated(false);
+
+        when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(page1, page2);
+
+        assertEquals(store.listDays(HEALTH_CODE, TABLE_ID), ImmutableSet.of(LocalDate.parse("2017-05-01"),
+                LocalDate.parse("2017-05-02")));
+        verify(mockS3Client, times(2)).listObjectsV2(any(ListObjectsV2Request.class));
+    }
+
+    @Test
+    public void getDay() throws Exception {
+        S3Object s3Object = new S3Object();
+        s3Object.setObjectContent(new ByteArrayInputStream("dummy content".getBytes(Charsets.UTF_8)));
+        when(mockS3Client.getObject(DUMMY_USER_DATA_BUCKET, PREFIX + "2017-05-01.csv")).thenReturn(s3Object);
+
+        File tmpDir = inMemoryFileHelper.createTempDir();
+        File dayFile = inMemoryFileHelper.newFile(tmpDir, "day.csv");
+        store.getDay(HEALTH_CODE, TABLE_ID, LocalDate.parse("2017-05-01"), dayFile);
+        try (Reader dayFileReader = inMemoryFileHelper.getReader(dayFile)) {
+            assertEquals(CharStreams.toString(dayFileReader), "dummy content");
+        }
+    }
+
+    @Test
+    public void putDayAndCoverage() {
+        store.putDay(HEALTH_CODE, TABLE_ID, LocalDate.parse("2017-05-01"), "dummy content".getBytes(
+                Charsets.UTF_8));
+        store.putCoverage(HEALTH_CODE, TABLE_ID, new UserTableDayStore.DayRange(LocalDate.parse("2017-01-01"),
+                LocalDate.parse("2017-06-08"), DateTime.parse("2017-06-01T00:00:00.000Z")));
+
+        ArgumentCaptor<PutObjectRequest> putRequestCaptor = ArgumentCaptor.forClass(PutObjectRequest.class);
+        verify(mockS3Client, times(2)).putObject(putRequestCaptor.capture());
+        List<PutObjectRequest> putRequestList = putRequestCaptor.getAllValues();
+
+        PutObjectRequest dayRequest = putRequestList.get(0);
+        assertEquals(dayRequest.getBucketName(), DUMMY_USER_DATA_BUCKET);
+        assertEquals(dayRequest.getKey(), PREFIX + "2017-05-01.csv");
+        assertEquals(dayRequest.getMetadata().getContentLength(), "dummy content".length());
+        assertEquals(dayRequest.getMetadata().getSSEAlgorithm(), ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+
+        PutObjectRequest coverageRequest = putRequestList.get(1);
+        assertEquals(coverageRequest.getKey(), PREFIX + UserTableDayStore.COVERAGE_KEY_SUFFIX);
+        assertEquals(coverageRequest.getMetadata().getSSEAlgorithm(),
+                ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+        assertEquals(coverageRequest.getMetadata().getUserMetadata(), ImmutableMap.of(
+                UserTableDayStore.METADATA_KEY_COVERAGE_START, "2017-01-01",
+                UserTableDayStore.METADATA_KEY_COVERAGE_END, "2017-06-08",
+                UserTableDayStore.METADATA_KEY_COVERAGE_STORED_ON, "2017-06-01T00:00:00.000Z"));
+
+        // Health codes don't show up in keys.
+        assertFalse(dayRequest.getKey().contains(HEALTH_CODE));
+    }
+
+    private void mockCoverage(String storedOn) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setUserMetadata(ImmutableMap.of(UserTableDayStore.METADATA_KEY_COVERAGE_START, "2017-01-01",
+                UserTableDayStore.METADATA_KEY_COVERAGE_END, "2017-05-31",
+                UserTableDayStore.METADATA_KEY_COVERAGE_STORED_ON, storedOn));
+        when(mockS3Client.getObjectMetadata(DUMMY_USER_DATA_BUCKET, PREFIX + UserTableDayStore.COVERAGE_KEY_SUFFIX))
+                .thenReturn(metadata);
+    }
+
+    private static S3ObjectSummary makeSummary(String key) {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(key);
+        return summary;
+    }
+}
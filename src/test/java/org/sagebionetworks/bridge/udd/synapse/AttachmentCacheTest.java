@@ -0,0 +1,186 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.InMemoryFileHelper;
+import org.sagebionetworks.bridge.udd.s3.SharedAttachmentStore;
+
+public class AttachmentCacheTest {
+    private static final String FILE_HANDLE_ID = "test-file-handle";
+    private static final String ZIP_ENTRY_NAME = "1111/2222/attachment.json";
+    private static final int KB = 1024;
+
+    private AttachmentCache cache;
+    private Config mockConfig;
+    private SharedAttachmentStore mockSharedStore;
+    private InMemoryFileHelper inMemoryFileHelper;
+    private File tmpDir;
+
+    @BeforeMethod
+    public void setup() {
+        inMemoryFileHelper = new InMemoryFileHelper();
+        tmpDir = inMemoryFileHelper.createTempDir();
+
+        mockConfig = mock(Config.class);
+        when(mockConfig.getInt(AttachmentCache.CONFIG_KEY_MAX_MB)).thenReturn(1);
+
+        mockSharedStore = mock(SharedAttachmentStore.class);
+        when(mockSharedStore.isEnabled()).thenReturn(false);
+
+        cache = createCache();
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        when(mockConfig.getInt(AttachmentCache.CONFIG_KEY_MAX_MB)).thenReturn(0);
+        cache = createCache();
+        assertFalse(cache.isEnabled());
+
+        cache.put(FILE_HANDLE_ID, ZIP_ENTRY_NAME, createFile("attachment", 10));
+        assertNull(cache.copyTo(FILE_HANDLE_ID, inMemoryFileHelper.newFile(tmpDir, "copy")));
+        assertEquals(cache.getTotalBytes(), 0);
+        verify(mockSharedStore, never()).put(anyString(), anyString(), any(File.class), anyLong());
+    }
+
+    @Test
+    public void hit() throws Exception {
+        File attachmentFile = createFile("attachment", 10);
+        cache.put(FILE_HANDLE_ID, ZIP_ENTRY_NAME, attachmentFile);
+        assertEquals(cache.getTotalBytes(), 10);
+
+        // The caller still owns the original file.
+        assertTrue(inMemoryFileHelper.fileExists(attachmentFile));
+
+        File copyFile = inMemoryFileHelper.newFile(tmpDir, "copy");
+        assertEquals(cache.copyTo(FILE_HANDLE_ID, copyFile), ZIP_ENTRY_NAME);
+        assertEquals(inMemoryFileHelper.getBytes(copyFile), inMemoryFileHelper.getBytes(attachmentFile));
+        assertEquals(cache.getHitCount(), 1);
+        assertEquals(cache.getMissCount(), 0);
+    }
+
+    @Test
+    public void miss() {
+        assertNull(cache.copyTo(FILE_HANDLE_ID, inMemoryFileHelper.newFile(tmpDir, "copy")));
+        assertEquals(cache.getHitCount(), 0);
+        assertEquals(cache.getMissCount(), 1);
+    }
+
+    @Test
+    public void putReplacesEntry() throws Exception {
+        cache.put(FILE_HANDLE_ID, ZIP_ENTRY_NAME, createFile("attachment", 10));
+        cache.put(FILE_HANDLE_ID, ZIP_ENTRY_NAME, createFile("attachment-again", 10));
+        assertEquals(cache.getTotalBytes(), 10);
+    }
+
+    @Test
+    public void leastRecentlyUsedEvicted() throws Exception {
+        // Cache is 1 MB. Each file is 400 KB, so only two fit.
+        cache.put("handle-1", "entry-1", createFile("attachment-1", 400 * KB));
+        cache.put("handle-2", "entry-2", createFile("attachment-2", 400 * KB));
+
+        // Use handle 1, so handle 2 is the least recently used.
+        assertEquals(cache.copyTo("handle-1", inMemoryFileHelper.newFile(tmpDir, "copy-1")), "entry-1");
+
+        cache.put("handle-3", "entry-3", createFile("attachment-3", 400 * KB));
+        assertEquals(cache.getEvictionCount(), 1);
+        assertEquals(cache.getTotalBytes(), 800 * KB);
+
+        assertEquals(cache.copyTo("handle-1", inMemoryFileHelper.newFile(tmpDir, "copy-1b")), "entry-1");
+        assertNull(cache.copyTo("handle-2", inMemoryFileHelper.newFile(tmpDir, "copy-2")));
+        assertEquals(cache.copyTo("handle-3", inMemoryFileHelper.newFile(tmpDir, "copy-3")), "entry-3");
+    }
+
+    @Test
+    public void tooBigNotCachedLocally() throws Exception {
+        when(mockSharedStore.isEnabled()).thenReturn(true);
+
+        File attachmentFile = createFile("attachment", 2 * 1024 * KB);
+        cache.put(FILE_HANDLE_ID, ZIP_ENTRY_NAME, attachmentFile);
+        assertEquals(cache.getTotalBytes(), 0);
+        assertEquals(cache.getEvictionCount(), 0);
+
+        // Still stored in the shared store.
+        verify(mockSharedStore).put(FILE_HANDLE_ID, ZIP_ENTRY_NAME, attachmentFile, 2 * 1024 * KB);
+    }
+
+    @Test
+    public void putAlsoStoresShared() throws Exception {
+        when(mockSharedStore.isEnabled()).thenReturn(true);
+
+        File attachmentFile = createFile("attachment", 10);
+        cache.put(FILE_HANDLE_ID, ZIP_ENTRY_NAME, attachmentFile);
+        verify(mockSharedStore).put(FILE_HANDLE_ID, ZIP_ENTRY_NAME, attachmentFile, 10);
+    }
+
+    @Test
+    public void sharedHitAddedToLocal() throws Exception {
+        when(mockSharedStore.isEnabled()).thenReturn(true);
+        when(mockSharedStore.copyTo(eq(FILE_HANDLE_ID), any(File.class))).thenAnswer(invocation -> {
+            File to = invocation.getArgumentAt(1, File.class);
+            try (OutputStream outputStream = inMemoryFileHelper.getOutputStream(to)) {
+                outputStream.write(new byte[10]);
+            }
+            return ZIP_ENTRY_NAME;
+        });
+
+        assertEquals(cache.copyTo(FILE_HANDLE_ID, inMemoryFileHelper.newFile(tmpDir, "copy")), ZIP_ENTRY_NAME);
+        assertEquals(cache.getHitCount(), 1);
+        assertEquals(cache.getTotalBytes(), 10);
+
+        // Second lookup is a local hit.
+        assertEquals(cache.copyTo(FILE_HANDLE_ID, inMemoryFileHelper.newFile(tmpDir, "copy-2")), ZIP_ENTRY_NAME);
+        verify(mockSharedStore).copyTo(eq(FILE_HANDLE_ID), any(File.class));
+    }
+
+    @Test
+    public void sharedOnly() throws Exception {
+        when(mockConfig.getInt(AttachmentCache.CONFIG_KEY_MAX_MB)).thenReturn(0);
+        when(mockSharedStore.isEnabled()).thenReturn(true);
+        cache = createCache();
+        assertTrue(cache.isEnabled());
+
+        File attachmentFile = createFile("attachment", 10);
+        cache.put(FILE_HANDLE_ID, ZIP_ENTRY_NAME, attachmentFile);
+        assertEquals(cache.getTotalBytes(), 0);
+        verify(mockSharedStore).put(FILE_HANDLE_ID, ZIP_ENTRY_NAME, attachmentFile, 10);
+    }
+
+    private AttachmentCache createCache() {
+        AttachmentCache attachmentCache = new AttachmentCache();
+        attachmentCache.setConfig(mockConfig);
+        attachmentCache.setFileHelper(inMemoryFileHelper);
+        attachmentCache.setSharedAttachmentStore(mockSharedStore);
+        attachmentCache.init();
+        return attachmentCache;
+    }
+
+    private File createFile(String name, int length) throws IOException {
+        byte[] content = new byte[length];
+        Arrays.fill(content, (byte) 'a');
+        File file = inMemoryFileHelper.newFile(tmpDir, name);
+        try (OutputStream outputStream = inMemoryFileHelper.getOutputStream(file)) {
+            outputStream.write(content);
+        }
+        return file;
+    }
+}
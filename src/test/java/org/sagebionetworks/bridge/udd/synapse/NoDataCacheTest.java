@@ -0,0 +1,122 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.joda.time.LocalDate;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+
+public class NoDataCacheTest {
+    private static final String HEALTH_CODE = "test-health-code";
+    private static final String TABLE_ID = "test-table";
+    private static final LocalDate START_DATE = LocalDate.parse("2017-06-01");
+    private static final LocalDate END_DATE = LocalDate.parse("2017-06-30");
+
+    private NoDataCache cache;
+    private Config mockConfig;
+    private DateTime now;
+
+    @BeforeMethod
+    public void setup() {
+        now = DateTime.now();
+        DateTimeUtils.setCurrentMillisFixed(now.getMillis());
+
+        mockConfig = mock(Config.class);
+        when(mockConfig.getInt(NoDataCache.CONFIG_KEY_EXPORTER_LAG_HOURS)).thenReturn(24);
+        when(mockConfig.getInt(NoDataCache.CONFIG_KEY_MAX_ENTRIES)).thenReturn(100);
+
+        cache = new NoDataCache();
+        cache.setConfig(mockConfig);
+        cache.init();
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void disabled() {
+        when(mockConfig.getInt(NoDataCache.CONFIG_KEY_MAX_ENTRIES)).thenReturn(0);
+        cache = new NoDataCache();
+        cache.setConfig(mockConfig);
+        cache.init();
+
+        cache.recordNoData(HEALTH_CODE, TABLE_ID, START_DATE, END_DATE);
+        assertFalse(cache.hasNoData(HEALTH_CODE, TABLE_ID, START_DATE, END_DATE));
+    }
+
+    @Test
+    public void miss() {
+        assertFalse(cache.hasNoData(HEALTH_CODE, TABLE_ID, START_DATE, END_DATE));
+        assertEquals(cache.getHitCount(), 0);
+    }
+
+    @Test
+    public void sameRange() {
+        cache.recordNoData(HEALTH_CODE, TABLE_ID, START_DATE, END_DATE);
+        assertTrue(cache.hasNoData(HEALTH_CODE, TABLE_ID, START_DATE, END_DATE));
+        assertEquals(cache.getHitCount(), 1);
+    }
+
+    @Test
+    public void rangeInside() {
+        cache.recordNoData(HEALTH_CODE, TABLE_ID, START_DATE, END_DATE);
+        assertTrue(cache.hasNoData(HEALTH_CODE, TABLE_ID, START_DATE.plusDays(5), END_DATE.minusDays(5)));
+    }
+
+    @Test
+    public void rangeOutside() {
+        cache.recordNoData(HEALTH_CODE, TABLE_ID, START_DATE, END_DATE);
+        assertFalse(cache.hasNoData(HEALTH_CODE, TABLE_ID, START_DATE.minusDays(1), END_DATE));
+        assertFalse(cache.hasNoData(HEALTH_CODE, TABLE_ID, START_DATE, END_DATE.plusDays(1)));
+    }
+
+    @Test
+    public void otherUserOrTable() {
+        cache.recordNoData(HEALTH_CODE, TABLE_ID, START_DATE, END_DATE);
+        assertFalse(cache.hasNoData("other-health-code", TABLE_ID, START_DATE, END_DATE));
+        assertFalse(cache.hasNoData(HEALTH_CODE, "other-table", START_DATE, END_DATE));
+    }
+
+    @Test
+    public void rangeEndingTodayOnlyRecordsFinalDays() {
+        // The exporter may not have written today's rows yet, so only days through the last final day are recorded.
+        LocalDate today = now.toLocalDate();
+        LocalDate lastFinalDate = now.minusHours(24).toLocalDate().minusDays(1);
+        assertEquals(cache.getLastFinalDate(), lastFinalDate);
+
+        cache.recordNoData(HEALTH_CODE, TABLE_ID, today.minusDays(10), today);
+        assertFalse(cache.hasNoData(HEALTH_CODE, TABLE_ID, today.minusDays(10), today));
+        assertFalse(cache.hasNoData(HEALTH_CODE, TABLE_ID, today.minusDays(10), lastFinalDate.plusDays(1)));
+        assertTrue(cache.hasNoData(HEALTH_CODE, TABLE_ID, today.minusDays(10), lastFinalDate));
+    }
+
+    @Test
+    public void rangeWithNoFinalDaysNotRecorded() {
+        LocalDate today = now.toLocalDate();
+        cache.recordNoData(HEALTH_CODE, TABLE_ID, today.minusDays(1), today);
+        assertFalse(cache.hasNoData(HEALTH_CODE, TABLE_ID, today.minusDays(1), today.minusDays(1)));
+        assertFalse(cache.hasNoData(HEALTH_CODE, TABLE_ID, today, today));
+    }
+
+    @Test
+    public void expiresAfterExporterLag() {
+        cache.recordNoData(HEALTH_CODE, TABLE_ID, START_DATE, END_DATE);
+
+        DateTimeUtils.setCurrentMillisFixed(now.plusHours(23).getMillis());
+        assertTrue(cache.hasNoData(HEALTH_CODE, TABLE_ID, START_DATE, END_DATE));
+
+        DateTimeUtils.setCurrentMillisFixed(now.plusHours(25).getMillis());
+        assertFalse(cache.hasNoData(HEALTH_CODE, TABLE_ID, START_DATE, END_DATE));
+    }
+}
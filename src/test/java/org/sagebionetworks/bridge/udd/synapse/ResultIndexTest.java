@@ -0,0 +1,265 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.HttpMethod;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.joda.time.LocalDate;
+import org.mockito.ArgumentCaptor;
+import org.sagebionetworks.repo.model.table.TableEntity;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.s3.S3Helper;
+import org.sagebionetworks.bridge.schema.UploadSchema;
+import org.sagebionetworks.bridge.schema.UploadSchemaKey;
+import org.sagebionetworks.bridge.udd.s3.PresignedUrlInfo;
+import org.sagebionetworks.bridge.udd.worker.BridgeUddRequest;
+
+public class ResultIndexTest {
+    private static final String DUMMY_USER_DATA_BUCKET = "dummy-user-data-bucket";
+    private static final String FINGERPRINT = "test-fingerprint";
+    private static final String HEALTH_CODE = "test-health-code";
+    private static final String INDEX_KEY = ResultIndex.KEY_PREFIX + FINGERPRINT;
+    private static final String PART_1 = "userdata-part1.zip";
+    private static final String PART_2 = "userdata-part2.zip";
+    private static final BridgeUddRequest REQUEST = new BridgeUddRequest.Builder().withStudyId("test-study")
+            .withUserId("test-user").withStartDate(LocalDate.parse("2017-01-01"))
+            .withEndDate(LocalDate.parse("2017-06-30")).build();
+    private static final Set<String> SURVEY_TABLE_ID_SET = ImmutableSet.of("survey-table");
+
+    private DateTime now;
+    private Map<String, UploadSchema> synapseToSchemaMap;
+    private ResultIndex index;
+    private AmazonS3Client mockS3Client;
+    private S3Helper mockS3Helper;
+    private SynapseHelper mockSynapseHelper;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        DateTimeUtils.setCurrentMillisFixed(DateTime.parse("2017-07-01T12:00:00Z").getMillis());
+        now = DateTime.now();
+
+        UploadSchemaKey schemaKey = new UploadSchemaKey.Builder().withStudyId("test-study").withSchemaId("schema")
+                .withRevision(1).build();
+        synapseToSchemaMap = ImmutableMap.of("data-table", new UploadSchema.Builder().withKey(schemaKey)
+                .addField("foo", "INT").build());
+
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get(ResultIndex.CONFIG_KEY_ENABLED)).thenReturn("true");
+        when(mockConfig.getInt(ResultIndex.CONFIG_KEY_EXPIRATION_HOURS)).thenReturn(12);
+        when(mockConfig.get(ResultIndex.CONFIG_KEY_USERDATA_BUCKET)).thenReturn(DUMMY_USER_DATA_BUCKET);
+
+        mockS3Client = mock(AmazonS3Client.class);
+        mockS3Helper = mock(S3Helper.class);
+        mockSynapseHelper = mock(SynapseHelper.class);
+        mockTableEtag("data-table", "data-etag");
+        mockTableEtag("survey-table", "survey-etag");
+
+        index = new ResultIndex();
+        index.setConfig(mockConfig);
+        index.setS3Client(mockS3Client);
+        index.setS3Helper(mockS3Helper);
+        index.setSynapseHelper(mockSynapseHelper);
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void fingerprintChangesWithEtag() throws Exception {
+        String fingerprint = index.getFingerprint(HEALTH_CODE, REQUEST, synapseToSchemaMap, SURVEY_TABLE_ID_SET);
+        assertNotNull(fingerprint);
+        assertEquals(index.getFingerprint(HEALTH_CODE, REQUEST, synapseToSchemaMap, SURVEY_TABLE_ID_SET),
+                fingerprint);
+
+        mockTableEtag("survey-table", "new-survey-etag");
+        assertNotEquals(index.getFingerprint(HEALTH_CODE, REQUEST, synapseToSchemaMap, SURVEY_TABLE_ID_SET),
+                fingerprint);
+    }
+
+    @Test
+    public void fingerprintWithEtagExecutor() {
+        String serialFingerprint = index.getFingerprint(HEALTH_CODE, REQUEST, synapseToSchemaMap,
+                SURVEY_TABLE_ID_SET);
+
+        ExecutorService etagExecutor = Executors.newFixedThreadPool(2);
+        try {
+            index.setEtagExecutor(etagExecutor);
+            assertEquals(index.getFingerprint(HEALTH_CODE, REQUEST, synapseToSchemaMap, SURVEY_TABLE_ID_SET),
+                    serialFingerprint);
+        } finally {
+            etagExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void noFingerprintWhenSynapseFailsWithEtagExecutor() throws Exception {
+        when(mockSynapseHelper.getTable("survey-table")).thenThrow(TestSynapseException.class);
+
+        ExecutorService etagExecutor = Executors.newFixedThreadPool(2);
+        try {
+            index.setEtagExecutor(etagExecutor);
+            assertNull(index.getFingerprint(HEALTH_CODE, REQUEST, synapseToSchemaMap, SURVEY_TABLE_ID_SET));
+        } finally {
+            etagExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void fingerprintChangesWithUser() {
+        assertNotEquals(index.getFingerprint(HEALTH_CODE, REQUEST, synapseToSchemaMap, SURVEY_TABLE_ID_SET),
+                index.getFingerprint("other-health-code", REQUEST, synapseToSchemaMap, SURVEY_TABLE_ID_SET));
+    }
+
+    @Test
+    public void noFingerprintWithoutEtag() throws Exception {
+        mockTableEtag("data-table", null);
+        assertNull(index.getFingerprint(HEALTH_CODE, REQUEST, synapseToSchemaMap, SURVEY_TABLE_ID_SET));
+    }
+
+    @Test
+    public void noFingerprintWhenSynapseFails() throws Exception {
+        when(mockSynapseHelper.getTable("data-table")).thenThrow(TestSynapseException.class);
+        assertNull(index.getFingerprint(HEALTH_CODE, REQUEST, synapseToSchemaMap, SURVEY_TABLE_ID_SET));
+    }
+
+    @Test
+    public void noFingerprintWhenDisabled() {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get(ResultIndex.CONFIG_KEY_ENABLED)).thenReturn("false");
+        index.setConfig(mockConfig);
+        assertNull(index.getFingerprint(HEALTH_CODE, REQUEST, synapseToSchemaMap, SURVEY_TABLE_ID_SET));
+    }
+
+    @Test
+    public void hit() throws Exception {
+        mockIndexEntry(now.minusHours(1));
+        when(mockS3Client.doesObjectExist(DUMMY_USER_DATA_BUCKET, PART_1)).thenReturn(true);
+        when(mockS3Client.doesObjectExist(DUMMY_USER_DATA_BUCKET, PART_2)).thenReturn(true);
+        when(mockS3Helper.generatePresignedUrl(eq(DUMMY_USER_DATA_BUCKET), eq(PART_1), any(DateTime.class),
+                eq(HttpMethod.GET))).thenReturn(new URL("https://example.com/part1"));
+        when(mockS3Helper.generatePresignedUrl(eq(DUMMY_USER_DATA_BUCKET), eq(PART_2), any(DateTime.class),
+                eq(HttpMethod.GET))).thenReturn(new URL("https://example.com/part2"));
+
+        PresignedUrlInfo presignedUrlInfo = index.find(FINGERPRINT);
+        assertEquals(presignedUrlInfo.getUrlList(), ImmutableList.of(new URL("https://example.com/part1"),
+                new URL("https://example.com/part2")));
+        assertEquals(presignedUrlInfo.getObjectKeyList(), ImmutableList.of(PART_1, PART_2));
+        assertEquals(presignedUrlInfo.getExpirationTime(), now.plusHours(12));
+        assertEquals(index.getHitCount(), 1);
+        assertEquals(index.getMissCount(), 0);
+    }
+
+    @Test
+    public void missNotFound() {
+        AmazonS3Exception notFoundEx = new AmazonS3Exception("not found");
+        notFoundEx.setStatusCode(404);
+        when(mockS3Client.getObjectMetadata(DUMMY_USER_DATA_BUCKET, INDEX_KEY)).thenThrow(notFoundEx);
+        assertNull(index.find(FINGERPRINT));
+        assertEquals(index.getMissCount(), 1);
+    }
+
+    @Test
+    public void missExpired() {
+        mockIndexEntry(now.minusHours(13));
+        assertNull(index.find(FINGERPRINT));
+        verify(mockS3Client, never()).doesObjectExist(any(String.class), any(String.class));
+    }
+
+    @Test
+    public void missArchiveDeleted() {
+        mockIndexEntry(now.minusHours(1));
+        when(mockS3Client.doesObjectExist(DUMMY_USER_DATA_BUCKET, PART_1)).thenReturn(true);
+        when(mockS3Client.doesObjectExist(DUMMY_USER_DATA_BUCKET, PART_2)).thenReturn(false);
+        assertNull(index.find(FINGERPRINT));
+    }
+
+    @Test
+    public void missS3Error() {
+        when(mockS3Client.getObjectMetadata(DUMMY_USER_DATA_BUCKET, INDEX_KEY)).thenThrow(
+                new AmazonClientException("test exception"));
+        assertNull(index.find(FINGERPRINT));
+    }
+
+    @Test
+    public void nullFingerprint() throws Exception {
+        assertNull(index.find(null));
+        index.put(null, makePresignedUrlInfo(ImmutableList.of(PART_1)));
+        verify(mockS3Client, never()).putObject(any(PutObjectRequest.class));
+    }
+
+    @Test
+    public void put() throws Exception {
+        index.put(FINGERPRINT, makePresignedUrlInfo(ImmutableList.of(PART_1, PART_2)));
+
+        ArgumentCaptor<PutObjectRequest> putRequestCaptor = ArgumentCaptor.forClass(PutObjectRequest.class);
+        verify(mockS3Client).putObject(putRequestCaptor.capture());
+        PutObjectRequest putRequest = putRequestCaptor.getValue();
+        assertEquals(putRequest.getBucketName(), DUMMY_USER_DATA_BUCKET);
+        assertEquals(putRequest.getKey(), INDEX_KEY);
+        assertEquals(putRequest.getMetadata().getUserMetadata(), ImmutableMap.of(
+                ResultIndex.METADATA_KEY_CREATED_ON, now.toString(),
+                ResultIndex.METADATA_KEY_PARTS, PART_1 + "," + PART_2));
+    }
+
+    @Test
+    public void putNotReusable() throws Exception {
+        // No object keys means the download had errors.
+        index.put(FINGERPRINT, makePresignedUrlInfo(null));
+        verify(mockS3Client, never()).putObject(any(PutObjectRequest.class));
+    }
+
+    private void mockIndexEntry(DateTime createdOn) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setUserMetadata(ImmutableMap.of(ResultIndex.METADATA_KEY_CREATED_ON, createdOn.toString(),
+                ResultIndex.METADATA_KEY_PARTS, PART_1 + "," + PART_2));
+        when(mockS3Client.getObjectMetadata(DUMMY_USER_DATA_BUCKET, INDEX_KEY)).thenReturn(metadata);
+    }
+
+    private void mockTableEtag(String synapseTableId, String etag) throws Exception {
+        TableEntity table = new TableEntity();
+        table.setId(synapseTableId);
+        table.setEtag(etag);
+        when(mockSynapseHelper.getTable(synapseTableId)).thenReturn(table);
+    }
+
+    private static PresignedUrlInfo makePresignedUrlInfo(List<String> objectKeyList) throws Exception {
+        ImmutableList.Builder<URL> urlListBuilder = ImmutableList.builder();
+        int numUrls = objectKeyList != null ? objectKeyList.size() : 1;
+        for (int i = 0; i < numUrls; i++) {
+            urlListBuilder.add(new URL("https://example.com/part" + i));
+        }
+        return new PresignedUrlInfo.Builder().withUrlList(urlListBuilder.build()).withObjectKeyList(objectKeyList)
+                .withExpirationTime(DateTime.now().plusHours(12)).build();
+    }
+}
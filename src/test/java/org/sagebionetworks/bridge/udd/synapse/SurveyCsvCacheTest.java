@@ -0,0 +1,162 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.InMemoryFileHelper;
+
+public class SurveyCsvCacheTest {
+    private static final String TABLE_ID = "test-table";
+    private static final String ETAG = "test-etag";
+    private static final Date MODIFIED_ON = DateTime.parse("2017-06-01T12:00:00Z").toDate();
+    private static final int KB = 1024;
+
+    private SurveyCsvCache cache;
+    private Config mockConfig;
+    private InMemoryFileHelper inMemoryFileHelper;
+    private File tmpDir;
+
+    @BeforeMethod
+    public void setup() {
+        inMemoryFileHelper = new InMemoryFileHelper();
+        tmpDir = inMemoryFileHelper.createTempDir();
+
+        mockConfig = mock(Config.class);
+        when(mockConfig.getInt(SurveyCsvCache.CONFIG_KEY_MAX_AGE_HOURS)).thenReturn(24);
+        when(mockConfig.getInt(SurveyCsvCache.CONFIG_KEY_MAX_MB)).thenReturn(1);
+        when(mockConfig.get(SurveyCsvCache.CONFIG_KEY_STATS_ENABLED)).thenReturn("true");
+
+        cache = new SurveyCsvCache();
+        cache.setConfig(mockConfig);
+        cache.setFileHelper(inMemoryFileHelper);
+        cache.init();
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        when(mockConfig.getInt(SurveyCsvCache.CONFIG_KEY_MAX_MB)).thenReturn(0);
+        cache = new SurveyCsvCache();
+        cache.setConfig(mockConfig);
+        cache.setFileHelper(inMemoryFileHelper);
+        cache.init();
+
+        cache.put(TABLE_ID, ETAG, MODIFIED_ON, createFile("survey.csv", 10));
+        assertFalse(cache.copyTo(TABLE_ID, ETAG, MODIFIED_ON, inMemoryFileHelper.newFile(tmpDir, "copy.csv")));
+        assertEquals(cache.getTotalBytes(), 0);
+    }
+
+    @Test
+    public void hit() throws Exception {
+        File surveyFile = createFile("survey.csv", 10);
+        cache.put(TABLE_ID, ETAG, MODIFIED_ON, surveyFile);
+        assertEquals(cache.getTotalBytes(), 10);
+
+        File copyFile = inMemoryFileHelper.newFile(tmpDir, "copy.csv");
+        assertTrue(cache.copyTo(TABLE_ID, ETAG, MODIFIED_ON, copyFile));
+        assertEquals(inMemoryFileHelper.getBytes(copyFile), inMemoryFileHelper.getBytes(surveyFile));
+        assertEquals(cache.getHitCount(), 1);
+        assertEquals(cache.getMissCount(), 0);
+    }
+
+    @Test
+    public void miss() {
+        assertFalse(cache.copyTo(TABLE_ID, ETAG, MODIFIED_ON, inMemoryFileHelper.newFile(tmpDir, "copy.csv")));
+        assertEquals(cache.getHitCount(), 0);
+        assertEquals(cache.getMissCount(), 1);
+    }
+
+    @Test
+    public void etagChanged() throws Exception {
+        cache.put(TABLE_ID, ETAG, MODIFIED_ON, createFile("survey.csv", 10));
+
+        File copyFile = inMemoryFileHelper.newFile(tmpDir, "copy.csv");
+        assertFalse(cache.copyTo(TABLE_ID, "new-etag", MODIFIED_ON, copyFile));
+        assertFalse(inMemoryFileHelper.fileExists(copyFile));
+
+        // The stale entry is removed.
+        assertEquals(cache.getTotalBytes(), 0);
+        assertFalse(cache.copyTo(TABLE_ID, ETAG, MODIFIED_ON, copyFile));
+    }
+
+    @Test
+    public void modifiedOnChanged() throws Exception {
+        cache.put(TABLE_ID, ETAG, MODIFIED_ON, createFile("survey.csv", 10));
+        assertFalse(cache.copyTo(TABLE_ID, ETAG, new Date(MODIFIED_ON.getTime() + 1000),
+                inMemoryFileHelper.newFile(tmpDir, "copy.csv")));
+    }
+
+    @Test
+    public void expired() throws Exception {
+        DateTime now = DateTime.now();
+        DateTimeUtils.setCurrentMillisFixed(now.getMillis());
+        cache.put(TABLE_ID, ETAG, MODIFIED_ON, createFile("survey.csv", 10));
+
+        DateTimeUtils.setCurrentMillisFixed(now.plusHours(25).getMillis());
+        assertFalse(cache.copyTo(TABLE_ID, ETAG, MODIFIED_ON, inMemoryFileHelper.newFile(tmpDir, "copy.csv")));
+    }
+
+    @Test
+    public void putReplacesOlderEntry() throws Exception {
+        cache.put(TABLE_ID, ETAG, MODIFIED_ON, createFile("old.csv", 10));
+        cache.put(TABLE_ID, "new-etag", MODIFIED_ON, createFile("new.csv", 20));
+        assertEquals(cache.getTotalBytes(), 20);
+        assertTrue(cache.copyTo(TABLE_ID, "new-etag", MODIFIED_ON, inMemoryFileHelper.newFile(tmpDir, "copy.csv")));
+    }
+
+    @Test
+    public void leastRecentlyUsedEvicted() throws Exception {
+        // Cache is 1 MB. Each file is 400 KB, so only two fit.
+        cache.put("table-1", ETAG, MODIFIED_ON, createFile("survey-1.csv", 400 * KB));
+        cache.put("table-2", ETAG, MODIFIED_ON, createFile("survey-2.csv", 400 * KB));
+
+        // Use table 1, so table 2 is the least recently used.
+        assertTrue(cache.copyTo("table-1", ETAG, MODIFIED_ON, inMemoryFileHelper.newFile(tmpDir, "copy-1.csv")));
+
+        cache.put("table-3", ETAG, MODIFIED_ON, createFile("survey-3.csv", 400 * KB));
+        assertEquals(cache.getEvictionCount(), 1);
+        assertEquals(cache.getTotalBytes(), 800 * KB);
+
+        assertTrue(cache.copyTo("table-1", ETAG, MODIFIED_ON, inMemoryFileHelper.newFile(tmpDir, "copy-1b.csv")));
+        assertFalse(cache.copyTo("table-2", ETAG, MODIFIED_ON, inMemoryFileHelper.newFile(tmpDir, "copy-2.csv")));
+        assertTrue(cache.copyTo("table-3", ETAG, MODIFIED_ON, inMemoryFileHelper.newFile(tmpDir, "copy-3.csv")));
+    }
+
+    @Test
+    public void tooBigNotCached() throws Exception {
+        cache.put(TABLE_ID, ETAG, MODIFIED_ON, createFile("survey.csv", 2 * 1024 * KB));
+        assertEquals(cache.getTotalBytes(), 0);
+        assertEquals(cache.getEvictionCount(), 0);
+        assertFalse(cache.copyTo(TABLE_ID, ETAG, MODIFIED_ON, inMemoryFileHelper.newFile(tmpDir, "copy.csv")));
+    }
+
+    private File createFile(String name, int length) throws IOException {
+        byte[] content = new byte[length];
+        Arrays.fill(content, (byte) 'a');
+        File file = inMemoryFileHelper.newFile(tmpDir, name);
+        try (OutputStream outputStream = inMemoryFileHelper.getOutputStream(file)) {
+            outputStream.write(content);
+        }
+        return file;
+    }
+}
@@ -5,7 +5,9 @@ import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
@@ -19,13 +21,18 @@ import java.io.File;
 import java.io.Reader;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
 import au.com.bytecode.opencsv.CSVReader;
+import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.io.CharStreams;
+import org.joda.time.DateTime;
 import org.joda.time.LocalDate;
 import org.mockito.ArgumentCaptor;
 import org.sagebionetworks.client.exceptions.SynapseException;
@@ -36,10 +43,18 @@ import org.testng.annotations.Test;
 import org.sagebionetworks.bridge.file.InMemoryFileHelper;
 import org.sagebionetworks.bridge.schema.UploadSchema;
 import org.sagebionetworks.bridge.schema.UploadSchemaKey;
+import org.sagebionetworks.bridge.udd.concurrent.CancellationToken;
+import org.sagebionetworks.bridge.udd.concurrent.PackagingStage;
+import org.sagebionetworks.bridge.udd.concurrent.TaskGraphExecutorTest;
+import org.sagebionetworks.bridge.udd.dynamodb.SynapseTableStats;
 import org.sagebionetworks.bridge.udd.exceptions.AsyncTaskExecutionException;
+import org.sagebionetworks.bridge.udd.s3.RequestCheckpoint;
+import org.sagebionetworks.bridge.udd.s3.RequestCheckpointStore;
+import org.sagebionetworks.bridge.udd.s3.UserTableDayStore;
 
 @SuppressWarnings({ "rawtypes", "unchecked" })
 public class SynapseDownloadFromTableTaskTest {
+    private static final DateTime COVERAGE_STORED_ON = DateTime.parse("2015-07-01T12:00Z");
     private static final UploadSchemaKey TEST_SCHEMA_KEY = new UploadSchemaKey.Builder().withStudyId("test-study")
             .withSchemaId("test-schema").withRevision(42).build();
 
@@ -51,6 +66,7 @@ public class SynapseDownloadFromTableTaskTest {
     private InMemoryFileHelper inMemoryFileHelper;
     private ArgumentCaptor<String> synapseQueryCaptor;
     private ArgumentCaptor<Set> synapseFileHandleIdSetCaptor;
+    private SynapseHelper mockSynapseHelper;
     private SynapseDownloadFromTableTask task;
     private File tmpDir;
 
@@ -346,6 +362,300 @@ public class SynapseDownloadFromTableTaskTest {
         postValidation(null);
     }
 
+    @Test
+    public void stagedCsvAndBulkDownload() throws Exception {
+        // setup
+        String csvContent = "\"recordId\",\"healthCode\",\"foo\",\"bar\",\"baz\"\n" +
+                "\"record-1\",\"test-health-code\",\"1337\",\"test-file-handle\",";
+
+        FileDownloadSummary fileSummary = new FileDownloadSummary();
+        fileSummary.setFileHandleId("test-file-handle");
+        fileSummary.setZipEntryName("test-zip-entry");
+
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, csvContent, null, ImmutableList.of(fileSummary));
+
+        // execute
+        SynapseDownloadFromTableResult result = task.submitStages(TaskGraphExecutorTest.newDirectExecutor()).get();
+
+        // validate CSV
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.size(), 2);
+        assertEquals(parsedCsv.get(1)[0], "record-1");
+        assertTrue(Strings.isNullOrEmpty(parsedCsv.get(1)[1]));
+        assertEquals(parsedCsv.get(1)[2], "1337");
+        assertEquals(parsedCsv.get(1)[3], "test-zip-entry");
+
+        // validate bulk download file
+        try (Reader bulkDownloadFileReader = inMemoryFileHelper.getReader(result.getBulkDownloadFile())) {
+            assertEquals(CharStreams.toString(bulkDownloadFileReader), "dummy zip content");
+        }
+
+        // validate stats
+        SynapseTableStats stats = result.getStats();
+        assertEquals(stats.getSynapseTableId(), "test-table-id");
+        assertEquals(stats.getCsvBytes(), csvContent.length());
+        assertEquals(stats.getAttachmentCount(), 1);
+        assertEquals(stats.getStageMillisMap().keySet(), EnumSet.of(PackagingStage.QUERY, PackagingStage.POLL,
+                PackagingStage.DOWNLOAD, PackagingStage.SCAN, PackagingStage.BULK_DOWNLOAD, PackagingStage.EDIT));
+
+        postValidation(result);
+    }
+
+    @Test
+    public void stagedNoUserRows() throws Exception {
+        // setup
+        String csvContent = "\"recordId\",\"healthCode\",\"foo\",\"bar\",\"baz\"";
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, csvContent, null, null);
+
+        // execute and validate
+        SynapseDownloadFromTableResult result = task.submitStages(TaskGraphExecutorTest.newDirectExecutor()).get();
+        assertNull(result.getCsvFile());
+        assertNull(result.getBulkDownloadFile());
+
+        // Stats are recorded even if there's no data, so we know this table is cheap.
+        SynapseTableStats stats = result.getStats();
+        assertEquals(stats.getCsvBytes(), 0);
+        assertEquals(stats.getAttachmentCount(), 0);
+        assertEquals(stats.getStageMillisMap().keySet(), EnumSet.of(PackagingStage.QUERY, PackagingStage.POLL,
+                PackagingStage.DOWNLOAD, PackagingStage.SCAN));
+
+        postValidation(result);
+    }
+
+    @Test
+    public void stagedErrorCase() throws Exception {
+        // Same as lastErrorCase, except through the task graph executor.
+        String csvContent = "\"recordId\",\"healthCode\",\"foo\",\"bar\",\"baz\"\n" +
+                "\"record-1\",\"test-health-code\",\"1337\",\"test-file-handle\",";
+
+        FileDownloadSummary fileSummary = new FileDownloadSummary();
+        fileSummary.setFileHandleId("test-file-handle");
+        fileSummary.setZipEntryName("test-zip-entry");
+
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, csvContent, null, ImmutableList.of(fileSummary));
+
+        task = spy(task);
+        doThrow(new AsyncTaskExecutionException()).when(task).editCsv();
+
+        // execute
+        Exception thrownEx = null;
+        try {
+            task.submitStages(TaskGraphExecutorTest.newDirectExecutor()).get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            thrownEx = ex;
+        }
+        assertTrue(thrownEx.getCause() instanceof AsyncTaskExecutionException);
+        postValidation(null);
+    }
+
+    @Test
+    public void allDaysStoredSkipsQuery() throws Exception {
+        // setup
+        UploadSchema schema = new UploadSchema.Builder().withKey(TEST_SCHEMA_KEY).addField("foo", "INT").build();
+        setupTestWithArgs(schema, null, null, null);
+        UserTableDayStore mockStore = mockUserTableDayStore("2015-01-01", "2015-12-31");
+        when(mockStore.listDays("test-health-code", "test-table-id")).thenReturn(ImmutableSortedSet.of(
+                LocalDate.parse("2015-01-15"), LocalDate.parse("2015-04-01")));
+        mockStoredDay(mockStore, "2015-04-01", "\"recordId\",\"healthCode\",\"uploadDate\",\"foo\"\n" +
+                "\"record-1\",,\"2015-04-01\",\"37\"");
+
+        // execute
+        SynapseDownloadFromTableResult result = task.submitStages(TaskGraphExecutorTest.newDirectExecutor()).get();
+
+        // validate - Only the stored day in the requested range is read, and Synapse isn't queried.
+        List<String[]> csvLines = parseCsv(result.getCsvFile());
+        assertEquals(csvLines.size(), 2);
+        assertEquals(csvLines.get(1)[0], "record-1");
+        assertEquals(csvLines.get(1)[3], "37");
+
+        verify(mockStore, never()).getDay(eq("test-health-code"), eq("test-table-id"),
+                eq(LocalDate.parse("2015-01-15")), any(File.class));
+        verify(mockStore, never()).putCoverage(any(String.class), any(String.class),
+                any(UserTableDayStore.DayRange.class));
+        assertTrue(synapseQueryCaptor.getAllValues().isEmpty());
+        validateFilesCleanedUp(result);
+    }
+
+    @Test
+    public void storedPrefixThenQuery() throws Exception {
+        // setup - The stored segment is missing the "bar" column, which was added to the table later.
+        UploadSchema schema = new UploadSchema.Builder().withKey(TEST_SCHEMA_KEY).addField("foo", "INT")
+                .addField("bar", "STRING").build();
+        String csvContent = "\"recordId\",\"healthCode\",\"uploadDate\",\"foo\",\"bar\"\n" +
+                "\"record-2\",\"test-health-code\",\"2015-07-05\",\"42\",\"new-column\"\n" +
+                "\"record-3\",\"test-health-code\",\"2015-09-15\",\"43\",";
+        setupTestWithArgs(schema, csvContent, null, null);
+
+        UserTableDayStore mockStore = mockUserTableDayStore("2015-03-01", "2015-06-30");
+        when(mockStore.getLastFinalDate()).thenReturn(LocalDate.parse("2015-09-10"));
+        when(mockStore.listDays("test-health-code", "test-table-id")).thenReturn(ImmutableSortedSet.of(
+                LocalDate.parse("2015-04-01")));
+        mockStoredDay(mockStore, "2015-04-01", "\"recordId\",\"healthCode\",\"uploadDate\",\"foo\"\n" +
+                "\"record-1\",,\"2015-04-01\",\"37\"");
+
+        ArgumentCaptor<byte[]> segmentCaptor = ArgumentCaptor.forClass(byte[].class);
+        ArgumentCaptor<UserTableDayStore.DayRange> coverageCaptor = ArgumentCaptor.forClass(
+                UserTableDayStore.DayRange.class);
+
+        // Capture the merged CSV before the edit stage clears the health codes.
+        List<List<String[]>> mergedCsvHolder = new ArrayList<>();
+        task = spy(task);
+        doAnswer(invocation -> {
+            mergedCsvHolder.add(parseCsv(task.getContext().getCsvFile()));
+            return invocation.callRealMethod();
+        }).when(task).editCsv();
+
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
+
+        // Merged rows all have the health code, whether they were stored or queried.
+        List<String[]> mergedCsvLines = mergedCsvHolder.get(0);
+        assertEquals(mergedCsvLines.size(), 4);
+        for (int i = 1; i < mergedCsvLines.size(); i++) {
+            assertEquals(mergedCsvLines.get(i)[1], "test-health-code");
+        }
+
+        // validate - Only days after the stored coverage are queried.
+        String query = synapseQueryCaptor.getValue();
+        assertTrue(query.contains("2015-07-01"));
+        assertFalse(query.contains("2015-03-09"));
+
+        // Stored rows come first, and columns are matched by name.
+        List<String[]> csvLines = parseCsv(result.getCsvFile());
+        assertEquals(csvLines.size(), 4);
+        assertEquals(csvLines.get(0)[4], "bar");
+        assertEquals(csvLines.get(1)[0], "record-1");
+        assertEquals(csvLines.get(1)[3], "37");
+        assertTrue(Strings.isNullOrEmpty(csvLines.get(1)[4]));
+        assertEquals(csvLines.get(2)[0], "record-2");
+        assertEquals(csvLines.get(2)[4], "new-column");
+        assertEquals(csvLines.get(3)[0], "record-3");
+        for (int i = 1; i < csvLines.size(); i++) {
+            assertTrue(Strings.isNullOrEmpty(csvLines.get(i)[1]));
+        }
+
+        // Only the final day is stored, without the health code, and coverage is extended to the last final day.
+        verify(mockStore).putDay(eq("test-health-code"), eq("test-table-id"), eq(LocalDate.parse("2015-07-05")),
+                segmentCaptor.capture());
+        verify(mockStore, never()).putDay(eq("test-health-code"), eq("test-table-id"),
+                eq(LocalDate.parse("2015-09-15")), any(byte[].class));
+        String segment = new String(segmentCaptor.getValue(), Charsets.UTF_8);
+        assertTrue(segment.contains("record-2"));
+        assertFalse(segment.contains("test-health-code"));
+
+        verify(mockStore).putCoverage(eq("test-health-code"), eq("test-table-id"), coverageCaptor.capture());
+        assertEquals(coverageCaptor.getValue().getStartDate(), LocalDate.parse("2015-03-01"));
+        assertEquals(coverageCaptor.getValue().getEndDate(), LocalDate.parse("2015-09-10"));
+
+        // The extended coverage keeps the old coverage's stored-on, since its segments weren't written again.
+        assertEquals(coverageCaptor.getValue().getStoredOn(), COVERAGE_STORED_ON);
+
+        validateFilesCleanedUp(result);
+    }
+
+    @Test
+    public void resumedQueryIsPolled() throws Exception {
+        // setup - An earlier attempt at the request started the query, and saved it to the checkpoint.
+        UploadSchema schema = new UploadSchema.Builder().withKey(TEST_SCHEMA_KEY).addField("foo", "INT").build();
+        String csvContent = "\"recordId\",\"healthCode\",\"foo\"\n" +
+                "\"record-1\",\"test-health-code\",\"37\"";
+        setupTestWithArgs(schema, csvContent, null, null);
+        when(mockSynapseHelper.pollTableQuery(eq("resumed-job-token"), eq("test-table-id"),
+                any(CancellationToken.class))).thenReturn("query-csv-file-handle-id");
+
+        RequestCheckpoint checkpoint = new RequestCheckpoint("test-checkpoint");
+        checkpoint.recordQueryStarted("test-table-id", LocalDate.parse("2015-03-09"), "resumed-job-token");
+        RequestCheckpointStore mockCheckpointStore = mock(RequestCheckpointStore.class);
+        task.setCheckpoint(checkpoint, mockCheckpointStore);
+
+        // execute
+        SynapseDownloadFromTableResult result = task.submitStages(TaskGraphExecutorTest.newDirectExecutor()).get();
+
+        // validate - The query wasn't started again.
+        List<String[]> csvLines = parseCsv(result.getCsvFile());
+        assertEquals(csvLines.size(), 2);
+        assertEquals(csvLines.get(1)[0], "record-1");
+        assertTrue(synapseQueryCaptor.getAllValues().isEmpty());
+        verify(mockCheckpointStore, never()).save(any(RequestCheckpoint.class));
+        validateFilesCleanedUp(result);
+    }
+
+    @Test
+    public void failedResumedQueryStartsOver() throws Exception {
+        // setup - Synapse no longer has the job from the checkpoint.
+        UploadSchema schema = new UploadSchema.Builder().withKey(TEST_SCHEMA_KEY).addField("foo", "INT").build();
+        String csvContent = "\"recordId\",\"healthCode\",\"foo\"\n" +
+                "\"record-1\",\"test-health-code\",\"37\"";
+        setupTestWithArgs(schema, csvContent, null, null);
+        when(mockSynapseHelper.pollTableQuery(eq("resumed-job-token"), eq("test-table-id"),
+                any(CancellationToken.class))).thenThrow(TestSynapseException.class);
+
+        RequestCheckpoint checkpoint = new RequestCheckpoint("test-checkpoint");
+        checkpoint.recordQueryStarted("test-table-id", LocalDate.parse("2015-03-09"), "resumed-job-token");
+        RequestCheckpointStore mockCheckpointStore = mock(RequestCheckpointStore.class);
+        task.setCheckpoint(checkpoint, mockCheckpointStore);
+
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
+
+        // validate - A new query was started, and saved to the checkpoint in place of the old one.
+        assertEquals(parseCsv(result.getCsvFile()).size(), 2);
+        assertEquals(synapseQueryCaptor.getAllValues().size(), 1);
+        assertEquals(checkpoint.getQueryJobToken("test-table-id", LocalDate.parse("2015-03-09")),
+                "query-job-token");
+        verify(mockCheckpointStore).save(checkpoint);
+        validateFilesCleanedUp(result);
+    }
+
+    @Test
+    public void queryForDifferentDaysIsNotResumed() throws Exception {
+        // setup - The checkpoint's query started on a different day, so it can't be reused.
+        UploadSchema schema = new UploadSchema.Builder().withKey(TEST_SCHEMA_KEY).addField("foo", "INT").build();
+        String csvContent = "\"recordId\",\"healthCode\",\"foo\"\n" +
+                "\"record-1\",\"test-health-code\",\"37\"";
+        setupTestWithArgs(schema, csvContent, null, null);
+
+        RequestCheckpoint checkpoint = new RequestCheckpoint("test-checkpoint");
+        checkpoint.recordQueryStarted("test-table-id", LocalDate.parse("2015-07-01"), "resumed-job-token");
+        RequestCheckpointStore mockCheckpointStore = mock(RequestCheckpointStore.class);
+        task.setCheckpoint(checkpoint, mockCheckpointStore);
+
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
+
+        // validate
+        assertEquals(synapseQueryCaptor.getAllValues().size(), 1);
+        verify(mockSynapseHelper, never()).pollTableQuery(eq("resumed-job-token"), any(String.class),
+                any(CancellationToken.class));
+        assertEquals(checkpoint.getQueryJobToken("test-table-id", LocalDate.parse("2015-03-09")),
+                "query-job-token");
+        validateFilesCleanedUp(result);
+    }
+
+    private UserTableDayStore mockUserTableDayStore(String coverageStart, String coverageEnd) {
+        UserTableDayStore mockStore = mock(UserTableDayStore.class);
+        when(mockStore.isEnabled()).thenReturn(true);
+        when(mockStore.getLastFinalDate()).thenReturn(LocalDate.parse("2015-12-31"));
+        when(mockStore.getCoverage("test-health-code", "test-table-id")).thenReturn(new UserTableDayStore.DayRange(
+                LocalDate.parse(coverageStart), LocalDate.parse(coverageEnd), COVERAGE_STORED_ON));
+        task.setUserTableDayStore(mockStore);
+        return mockStore;
+    }
+
+    private void mockStoredDay(UserTableDayStore mockStore, String day, String content) throws Exception {
+        doAnswer(invocation -> {
+            File targetFile = invocation.getArgumentAt(3, File.class);
+            try (Writer targetFileWriter = inMemoryFileHelper.getWriter(targetFile)) {
+                targetFileWriter.write(content);
+            }
+
+            // Needed because Answer declares a return type, even if it's null.
+            return null;
+        }).when(mockStore).getDay(eq("test-health-code"), eq("test-table-id"), eq(LocalDate.parse(day)),
+                any(File.class));
+    }
+
     private void setupTestWithArgs(UploadSchema schema, String csvContent, SynapseException csvException,
             List<FileDownloadSummary> fileSummaryList) throws Exception {
         // mock file helper and temp dir
@@ -361,9 +671,12 @@ public class SynapseDownloadFromTableTaskTest {
         task.setFileHelper(inMemoryFileHelper);
 
         // mock Synapse CSV content
-        SynapseHelper mockSynapseHelper = mock(SynapseHelper.class);
+        mockSynapseHelper = mock(SynapseHelper.class);
         synapseQueryCaptor = ArgumentCaptor.forClass(String.class);
-        when(mockSynapseHelper.generateFileHandleFromTableQuery(synapseQueryCaptor.capture(), eq("test-table-id")))
+        when(mockSynapseHelper.startTableQuery(synapseQueryCaptor.capture(), eq("test-table-id")))
+                .thenReturn("query-job-token");
+        when(mockSynapseHelper.pollTableQuery(eq("query-job-token"), eq("test-table-id"),
+                any(CancellationToken.class)))
                 .thenReturn("query-csv-file-handle-id");
         doAnswer(invocation -> {
             if (csvException != null) {
@@ -387,7 +700,8 @@ public class SynapseDownloadFromTableTaskTest {
 
             synapseFileHandleIdSetCaptor = ArgumentCaptor.forClass(Set.class);
             when(mockSynapseHelper.generateBulkDownloadFileHandle(eq("test-table-id"),
-                    synapseFileHandleIdSetCaptor.capture())).thenReturn(bulkDownloadResponse);
+                    synapseFileHandleIdSetCaptor.capture(), any(CancellationToken.class)))
+                    .thenReturn(bulkDownloadResponse);
 
             doAnswer(invocation -> {
                 File targetFile = invocation.getArgumentAt(1, File.class);
@@ -412,6 +726,18 @@ public class SynapseDownloadFromTableTaskTest {
     }
 
     private void postValidation(SynapseDownloadFromTableResult result) throws Exception {
+        validateFilesCleanedUp(result);
+
+        // Validate the Synapse query contains the expected values. Don't string match the entire string. Just validate
+        // that table ID, health code, start date, and end date were used.
+        String query = synapseQueryCaptor.getValue();
+        assertTrue(query.contains("test-table-id"));
+        assertTrue(query.contains("test-health-code"));
+        assertTrue(query.contains("2015-03-09"));
+        assertTrue(query.contains("2015-09-16"));
+    }
+
+    private void validateFilesCleanedUp(SynapseDownloadFromTableResult result) throws Exception {
         // SynapseDownloadFromTableTask should only leave behind the files it returned and the temp dir. Clean these
         // files up (which is what the packager would do) and then verify that the mock file system is now empty.
         if (result != null) {
@@ -426,13 +752,5 @@ public class SynapseDownloadFromTableTaskTest {
 
         inMemoryFileHelper.deleteDir(tmpDir);
         assertTrue(inMemoryFileHelper.isEmpty());
-
-        // Validate the Synapse query contains the expected values. Don't string match the entire string. Just validate
-        // that table ID, health code, start date, and end date were used.
-        String query = synapseQueryCaptor.getValue();
-        assertTrue(query.contains("test-table-id"));
-        assertTrue(query.contains("test-health-code"));
-        assertTrue(query.contains("2015-03-09"));
-        assertTrue(query.contains("2015-09-16"));
     }
 }
@@ -0,0 +1,45 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.io.File;
+
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.udd.helper.ZipSegment;
+
+public class SynapseDownloadSurveyResultTest {
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void neitherFileNorSegment() {
+        new SynapseDownloadSurveyResult.Builder().withEtag("test-etag").build();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void bothFileAndSegment() {
+        new SynapseDownloadSurveyResult.Builder().withFile(mock(File.class)).withSharedSegment(mock(ZipSegment.class))
+                .build();
+    }
+
+    @Test
+    public void withFile() {
+        File mockFile = mock(File.class);
+        SynapseDownloadSurveyResult result = new SynapseDownloadSurveyResult.Builder().withFile(mockFile)
+                .withEtag("test-etag").build();
+        assertSame(result.getFile(), mockFile);
+        assertNull(result.getSharedSegment());
+        assertEquals(result.getEtag(), "test-etag");
+    }
+
+    @Test
+    public void withSharedSegment() {
+        ZipSegment mockSegment = mock(ZipSegment.class);
+        SynapseDownloadSurveyResult result = new SynapseDownloadSurveyResult.Builder().withSharedSegment(mockSegment)
+                .build();
+        assertNull(result.getFile());
+        assertSame(result.getSharedSegment(), mockSegment);
+        assertNull(result.getEtag());
+    }
+}
@@ -1,19 +1,26 @@
 package org.sagebionetworks.bridge.udd.synapse;
 
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.notNull;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
 import java.io.File;
 import java.io.Reader;
 import java.io.Writer;
+import java.util.Date;
 
 import com.google.common.io.CharStreams;
 import org.sagebionetworks.client.exceptions.SynapseException;
@@ -22,9 +29,16 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.file.InMemoryFileHelper;
+import org.sagebionetworks.bridge.udd.concurrent.CancellationToken;
+import org.sagebionetworks.bridge.udd.concurrent.TaskGraphExecutorTest;
+import org.sagebionetworks.bridge.udd.helper.ZipSegment;
+import org.sagebionetworks.bridge.udd.s3.SharedSurveyStore;
 
 public class SynapseDownloadSurveyTaskTest {
+    private static final String TEST_ETAG = "test-etag";
+    private static final Date TEST_MODIFIED_ON = new Date(1496318400000L);
     private static final String TEST_FILE_HANDLE = "test-file-handle";
+    private static final String TEST_JOB_TOKEN = "test-job-token";
     private static final String TEST_SYNAPSE_TABLE_ID = "test-table";
     private static final String TEST_SYNAPSE_TABLE_NAME = "Test Table";
 
@@ -41,10 +55,14 @@ public class SynapseDownloadSurveyTaskTest {
         TableEntity table = new TableEntity();
         table.setId(TEST_SYNAPSE_TABLE_ID);
         table.setName(TEST_SYNAPSE_TABLE_NAME);
+        table.setEtag(TEST_ETAG);
+        table.setModifiedOn(TEST_MODIFIED_ON);
         when(synapseHelper.getTable(TEST_SYNAPSE_TABLE_ID)).thenReturn(table);
 
-        when(synapseHelper.generateFileHandleFromTableQuery("SELECT * FROM " + TEST_SYNAPSE_TABLE_ID,
-                TEST_SYNAPSE_TABLE_ID)).thenReturn(TEST_FILE_HANDLE);
+        when(synapseHelper.startTableQuery("SELECT * FROM " + TEST_SYNAPSE_TABLE_ID, TEST_SYNAPSE_TABLE_ID))
+                .thenReturn(TEST_JOB_TOKEN);
+        when(synapseHelper.pollTableQuery(eq(TEST_JOB_TOKEN), eq(TEST_SYNAPSE_TABLE_ID),
+                any(CancellationToken.class))).thenReturn(TEST_FILE_HANDLE);
 
         // create in-memory file helper
         fileHelper = new InMemoryFileHelper();
@@ -118,7 +136,10 @@ public class SynapseDownloadSurveyTaskTest {
         }).when(synapseHelper).downloadFileHandle(eq(TEST_FILE_HANDLE), notNull(File.class));
 
         // execute and validate
-        File file = task.call();
+        SynapseDownloadSurveyResult result = task.call();
+        assertNull(result.getSharedSegment());
+        assertEquals(result.getEtag(), TEST_ETAG);
+        File file = result.getFile();
         try (Reader reader = fileHelper.getReader(file)) {
             assertEquals(CharStreams.toString(reader), "dummy survey content");
         }
@@ -128,6 +149,142 @@ public class SynapseDownloadSurveyTaskTest {
         postValidation();
     }
 
+    @Test
+    public void stagedHappyCase() throws Exception {
+        // set up Synapse helper
+        doAnswer(invocation -> {
+            File targetFile = invocation.getArgumentAt(1, File.class);
+            try (Writer targetFileWriter = fileHelper.getWriter(targetFile)) {
+                targetFileWriter.write("dummy survey content");
+            }
+
+            // Answer declares return type, even if Void
+            return null;
+        }).when(synapseHelper).downloadFileHandle(eq(TEST_FILE_HANDLE), notNull(File.class));
+
+        // execute and validate
+        File file = task.submitStages(TaskGraphExecutorTest.newDirectExecutor()).get().getFile();
+        assertEquals(file.getName(), TEST_SYNAPSE_TABLE_NAME + ".csv");
+        try (Reader reader = fileHelper.getReader(file)) {
+            assertEquals(CharStreams.toString(reader), "dummy survey content");
+        }
+
+        // cleanup/post-validation
+        fileHelper.deleteFile(file);
+        postValidation();
+    }
+
+    @Test
+    public void cachedCsvSkipsSynapse() throws Exception {
+        // set up survey CSV cache
+        SurveyCsvCache mockSurveyCsvCache = mock(SurveyCsvCache.class);
+        when(mockSurveyCsvCache.copyTo(eq(TEST_SYNAPSE_TABLE_ID), eq(TEST_ETAG), eq(TEST_MODIFIED_ON),
+                notNull(File.class))).then(invocation -> {
+                    File targetFile = invocation.getArgumentAt(3, File.class);
+                    try (Writer targetFileWriter = fileHelper.getWriter(targetFile)) {
+                        targetFileWriter.write("cached survey content");
+                    }
+                    return true;
+                });
+        task.setSurveyCsvCache(mockSurveyCsvCache);
+
+        // The shared survey store is never checked, since the local cache comes first.
+        SharedSurveyStore mockSharedSurveyStore = mock(SharedSurveyStore.class);
+        task.setSharedSurveyStore(mockSharedSurveyStore);
+
+        // execute and validate
+        SynapseDownloadSurveyResult result = task.submitStages(TaskGraphExecutorTest.newDirectExecutor()).get();
+        assertNull(result.getSharedSegment());
+        assertNull(result.getEtag());
+        File file = result.getFile();
+        assertEquals(file.getName(), TEST_SYNAPSE_TABLE_NAME + ".csv");
+        try (Reader reader = fileHelper.getReader(file)) {
+            assertEquals(CharStreams.toString(reader), "cached survey content");
+        }
+
+        verifyZeroInteractions(mockSharedSurveyStore);
+        verify(synapseHelper, never()).startTableQuery(any(), any());
+        verify(synapseHelper, never()).downloadFileHandle(any(), any());
+        verify(mockSurveyCsvCache, never()).put(any(), any(), any(), any());
+
+        // cleanup/post-validation
+        fileHelper.deleteFile(file);
+        postValidation();
+    }
+
+    @Test
+    public void downloadedCsvIsCached() throws Exception {
+        SurveyCsvCache mockSurveyCsvCache = mock(SurveyCsvCache.class);
+        task.setSurveyCsvCache(mockSurveyCsvCache);
+
+        // set up Synapse helper
+        doAnswer(invocation -> {
+            File targetFile = invocation.getArgumentAt(1, File.class);
+            try (Writer targetFileWriter = fileHelper.getWriter(targetFile)) {
+                targetFileWriter.write("dummy survey content");
+            }
+
+            // Answer declares return type, even if Void
+            return null;
+        }).when(synapseHelper).downloadFileHandle(eq(TEST_FILE_HANDLE), notNull(File.class));
+
+        // execute and validate
+        SynapseDownloadSurveyResult result = task.call();
+        assertEquals(result.getEtag(), TEST_ETAG);
+        verify(mockSurveyCsvCache).put(TEST_SYNAPSE_TABLE_ID, TEST_ETAG, TEST_MODIFIED_ON, result.getFile());
+
+        // cleanup/post-validation
+        fileHelper.deleteFile(result.getFile());
+        postValidation();
+    }
+
+    @Test
+    public void sharedSegmentSkipsSynapse() throws Exception {
+        // set up shared survey store
+        ZipSegment sharedSegment = mock(ZipSegment.class);
+        SharedSurveyStore mockSharedSurveyStore = mock(SharedSurveyStore.class);
+        when(mockSharedSurveyStore.find(TEST_SYNAPSE_TABLE_ID, TEST_ETAG)).thenReturn(sharedSegment);
+        task.setSharedSurveyStore(mockSharedSurveyStore);
+
+        // execute and validate
+        SynapseDownloadSurveyResult result = task.submitStages(TaskGraphExecutorTest.newDirectExecutor()).get();
+        assertNull(result.getFile());
+        assertSame(result.getSharedSegment(), sharedSegment);
+        assertEquals(result.getEtag(), TEST_ETAG);
+
+        verify(synapseHelper, never()).startTableQuery(any(), any());
+        verify(synapseHelper, never()).downloadFileHandle(any(), any());
+        postValidation();
+    }
+
+    @Test
+    public void sharedSegmentMissDownloadsFromSynapse() throws Exception {
+        // set up shared survey store, which doesn't have the survey
+        SharedSurveyStore mockSharedSurveyStore = mock(SharedSurveyStore.class);
+        task.setSharedSurveyStore(mockSharedSurveyStore);
+
+        // set up Synapse helper
+        doAnswer(invocation -> {
+            File targetFile = invocation.getArgumentAt(1, File.class);
+            try (Writer targetFileWriter = fileHelper.getWriter(targetFile)) {
+                targetFileWriter.write("dummy survey content");
+            }
+
+            // Answer declares return type, even if Void
+            return null;
+        }).when(synapseHelper).downloadFileHandle(eq(TEST_FILE_HANDLE), notNull(File.class));
+
+        // execute and validate
+        SynapseDownloadSurveyResult result = task.call();
+        assertNull(result.getSharedSegment());
+        assertEquals(result.getEtag(), TEST_ETAG);
+        verify(mockSharedSurveyStore).find(TEST_SYNAPSE_TABLE_ID, TEST_ETAG);
+
+        // cleanup/post-validation
+        fileHelper.deleteFile(result.getFile());
+        postValidation();
+    }
+
     // We can't use an AfterMethod, because AfterMethod doesn't report which method failed.
     private void postValidation() throws Exception {
         fileHelper.deleteDir(tmpDir);
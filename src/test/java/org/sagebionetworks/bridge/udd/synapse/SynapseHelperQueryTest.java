@@ -9,6 +9,9 @@ import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.fail;
 
+import java.util.concurrent.CancellationException;
+
+import org.joda.time.DateTimeUtils;
 import org.sagebionetworks.client.SynapseClient;
 import org.sagebionetworks.client.exceptions.SynapseResultNotReadyException;
 import org.sagebionetworks.repo.model.table.DownloadFromTableResult;
@@ -16,6 +19,7 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.udd.concurrent.CancellationToken;
 import org.sagebionetworks.bridge.udd.exceptions.AsyncTimeoutException;
 
 @SuppressWarnings("unchecked")
@@ -76,6 +80,60 @@ public class SynapseHelperQueryTest {
         verify(mockClient, times(2)).downloadCsvFromTableAsyncGet(anyString(), anyString());
     }
 
+    @Test
+    public void startAndPollSeparately() throws Exception {
+        // set up get call
+        DownloadFromTableResult result = new DownloadFromTableResult();
+        result.setResultsFileHandleId(TEST_RESULT_FILE_HANDLE_ID);
+        when(mockClient.downloadCsvFromTableAsyncGet(TEST_ASYNC_JOB_TOKEN, TEST_SYNAPSE_TABLE_ID)).thenReturn(result);
+
+        // execute and validate
+        String jobToken = helper.startTableQuery(DUMMY_QUERY, TEST_SYNAPSE_TABLE_ID);
+        assertEquals(jobToken, TEST_ASYNC_JOB_TOKEN);
+        verify(mockClient, times(0)).downloadCsvFromTableAsyncGet(anyString(), anyString());
+
+        String retval = helper.pollTableQuery(jobToken, TEST_SYNAPSE_TABLE_ID, new CancellationToken());
+        assertEquals(retval, TEST_RESULT_FILE_HANDLE_ID);
+        verify(mockClient, times(1)).downloadCsvFromTableAsyncGet(anyString(), anyString());
+    }
+
+    @Test
+    public void cancelled() throws Exception {
+        CancellationToken cancellationToken = new CancellationToken();
+        cancellationToken.cancel("test cancel");
+
+        // execute and validate
+        Exception thrownEx = null;
+        try {
+            helper.pollTableQuery(TEST_ASYNC_JOB_TOKEN, TEST_SYNAPSE_TABLE_ID, cancellationToken);
+            fail("expected exception");
+        } catch (CancellationException ex) {
+            thrownEx = ex;
+        }
+        assertNotNull(thrownEx);
+
+        // We never poll Synapse.
+        verify(mockClient, times(0)).downloadCsvFromTableAsyncGet(anyString(), anyString());
+    }
+
+    @Test
+    public void deadlineExceeded() throws Exception {
+        // The deadline is in the past, so we time out without polling.
+        CancellationToken cancellationToken = new CancellationToken(DateTimeUtils.currentTimeMillis() - 1000);
+
+        // execute and validate
+        Exception thrownEx = null;
+        try {
+            helper.pollTableQuery(TEST_ASYNC_JOB_TOKEN, TEST_SYNAPSE_TABLE_ID, cancellationToken);
+            fail("expected exception");
+        } catch (AsyncTimeoutException ex) {
+            thrownEx = ex;
+        }
+        assertNotNull(thrownEx);
+
+        verify(mockClient, times(0)).downloadCsvFromTableAsyncGet(anyString(), anyString());
+    }
+
     @Test
     public void timeout() throws Exception {
         // set up get call
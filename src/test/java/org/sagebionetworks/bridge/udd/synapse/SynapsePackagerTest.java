@@ -1,13 +1,15 @@
 package org.sagebionetworks.bridge.udd.synapse;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.contains;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.same;
 import static org.mockito.Matchers.startsWith;
-import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
@@ -18,21 +20,39 @@ import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Writer;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.zip.ZipInputStream;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.HttpMethod;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeUtils;
 import org.joda.time.LocalDate;
@@ -43,9 +63,25 @@ import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.file.InMemoryFileHelper;
 import org.sagebionetworks.bridge.s3.S3Helper;
 import org.sagebionetworks.bridge.schema.UploadSchema;
+import org.sagebionetworks.bridge.udd.concurrent.CancellationToken;
+import org.sagebionetworks.bridge.udd.concurrent.PackagingStage;
+import org.sagebionetworks.bridge.udd.concurrent.StageCallable;
+import org.sagebionetworks.bridge.udd.concurrent.StageFunction;
+import org.sagebionetworks.bridge.udd.concurrent.StagedTask;
+import org.sagebionetworks.bridge.udd.concurrent.TaskGraphExecutor;
+import org.sagebionetworks.bridge.udd.dynamodb.DynamoHelper;
+import org.sagebionetworks.bridge.udd.dynamodb.SynapseTableStats;
+import org.sagebionetworks.bridge.udd.exceptions.TempStorageQuotaExceededException;
+import org.sagebionetworks.bridge.udd.helper.TempStorageManager;
+import org.sagebionetworks.bridge.udd.helper.ZipCompressionPolicy;
 import org.sagebionetworks.bridge.udd.helper.ZipHelper;
 import org.sagebionetworks.bridge.udd.helper.ZipHelperTest;
+import org.sagebionetworks.bridge.udd.helper.ZipSegment;
 import org.sagebionetworks.bridge.udd.s3.PresignedUrlInfo;
+import org.sagebionetworks.bridge.udd.s3.RequestCheckpoint;
+import org.sagebionetworks.bridge.udd.s3.RequestCheckpointStore;
+import org.sagebionetworks.bridge.udd.s3.S3ZipAssembler;
+import org.sagebionetworks.bridge.udd.s3.SharedSurveyStore;
 import org.sagebionetworks.bridge.udd.worker.BridgeUddRequest;
 
 @SuppressWarnings({ "unchecked", "rawtypes" })
@@ -57,6 +93,7 @@ public class SynapsePackagerTest {
     private static final String TEST_HEALTH_CODE = "test-health-code";
     private static final String TEST_MASTER_ZIP_FILE_PREFIX = "userdata-" + TEST_START_DATE + "-to-" +
             TEST_END_DATE + "-";
+    private static final String TEST_SURVEY_ETAG = "test-survey-etag";
     private static final int URL_EXPIRATION_HOURS = 12;
 
     // study and username don't matter for this class, only start date and end date
@@ -64,10 +101,33 @@ public class SynapsePackagerTest {
             .withUserId("dummy-user").withStartDate(LocalDate.parse(TEST_START_DATE))
             .withEndDate(LocalDate.parse(TEST_END_DATE)).build();
 
+    private AmazonS3Client mockS3Client;
+    private Config mockConfig;
     private S3Helper mockS3Helper;
+    private S3ZipAssembler s3ZipAssembler;
+    private TaskGraphExecutor mockTaskGraphExecutor;
+    private DynamoHelper mockDynamoHelper;
+    private List<String> submittedTableIdList;
+    private Map<String, SynapseTableStats> statsByTableId;
     private InMemoryFileHelper inMemoryFileHelper;
     private SynapsePackager packager;
     private byte[] s3FileBytes;
+    private Map<String, byte[]> s3FileBytesByKey;
+    private Set<CancellationToken> cancellationTokenSet;
+    private int surveyTaskCount;
+    private SharedSurveyStore mockSharedSurveyStore;
+
+    // Surveys that another request already stored in the shared survey store. These are read from the mock S3 client.
+    private Map<String, String> sharedSurveyToContent;
+
+    // Tables that finish late, after the packager has stopped waiting. These are completed when the master zip is
+    // uploaded to S3.
+    private Map<String, SynapseTaskResultContent> lateTableToResult;
+    private List<Runnable> lateCompletionList;
+
+    // Tables that never finish, even once cancelled, and their futures.
+    private Set<String> stuckTableIdSet;
+    private List<CompletableFuture<SynapseDownloadFromTableResult>> stuckFutureList;
 
     @Test
     public void noSchemas() throws Exception {
@@ -80,11 +140,14 @@ public class SynapsePackagerTest {
 
         // execute and validate
         PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE,
-                TEST_UDD_REQUEST, surveyTableIdSet);
+                TEST_UDD_REQUEST, surveyTableIdSet, new CancellationToken());
         assertNull(presignedUrlInfo);
 
+        // validate surveys never started
+        assertEquals(surveyTaskCount, 0);
+
         // validate S3 not called
-        verifyZeroInteractions(mockS3Helper);
+        verifyZeroInteractions(mockS3Client, mockS3Helper);
         assertNull(s3FileBytes);
 
         // validate mock file helper is clean
@@ -104,17 +167,95 @@ public class SynapsePackagerTest {
 
         // execute and validate
         PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE,
-                TEST_UDD_REQUEST, surveyTableIdSet);
+                TEST_UDD_REQUEST, surveyTableIdSet, new CancellationToken());
         assertNull(presignedUrlInfo);
 
+        // validate surveys never started
+        assertEquals(surveyTaskCount, 0);
+
         // validate S3 not called
-        verifyZeroInteractions(mockS3Helper);
+        verifyZeroInteractions(mockS3Client, mockS3Helper);
         assertNull(s3FileBytes);
 
         // validate mock file helper is clean
         assertTrue(inMemoryFileHelper.isEmpty());
     }
 
+    @Test
+    public void surveysStartedEarlyWithNoData() throws Exception {
+        // The caller starts surveys before it knows the health code. The user has no data, so the surveys are thrown
+        // away when the session is closed.
+        Map<String, UploadSchema> synapseTableToSchema = ImmutableMap.of("test-table-id", mock(UploadSchema.class));
+        Map<String, SynapseTaskResultContent> synapseTableToResult = ImmutableMap.of("test-table-id",
+                new SynapseTaskResultContent(null, null, null, null));
+        Map<String, String> surveyTableToResultContent = ImmutableMap.of("test-survey", "dummy survey content");
+        Set<String> surveyTableIdSet = surveyTableToResultContent.keySet();
+        setupPackager(synapseTableToSchema, synapseTableToResult, null, surveyTableToResultContent, null);
+
+        try (SynapsePackager.PackagingSession session = packager.startPackaging(TEST_UDD_REQUEST, surveyTableIdSet,
+                new CancellationToken())) {
+            session.startSurveys();
+            assertEquals(surveyTaskCount, 1);
+            assertNull(packager.packageSynapseData(session, synapseTableToSchema, TEST_HEALTH_CODE));
+        }
+
+        // Surveys were only started once. Nothing was uploaded, and the survey file was cleaned up.
+        assertEquals(surveyTaskCount, 1);
+        assertNull(s3FileBytes);
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void sessionClosedWithoutPackaging() throws Exception {
+        Map<String, String> surveyTableToResultContent = ImmutableMap.of("test-survey", "dummy survey content");
+        setupPackager(ImmutableMap.of(), ImmutableMap.of(), null, surveyTableToResultContent, null);
+
+        SynapsePackager.PackagingSession session = packager.startPackaging(TEST_UDD_REQUEST,
+                surveyTableToResultContent.keySet(), new CancellationToken());
+        session.startSurveys();
+        session.close();
+        session.close();
+        assertTrue(inMemoryFileHelper.isEmpty());
+
+        try {
+            packager.packageSynapseData(session, ImmutableMap.of(), TEST_HEALTH_CODE);
+            fail("expected exception");
+        } catch (IllegalStateException ex) {
+            // expected exception
+        }
+    }
+
+    @Test
+    public void noDataTablesSkippedOnRepeatRequest() throws Exception {
+        Map<String, UploadSchema> synapseTableToSchema = ImmutableMap.of("test-table-id", mock(UploadSchema.class));
+        Map<String, SynapseTaskResultContent> synapseTableToResult = ImmutableMap.of("test-table-id",
+                new SynapseTaskResultContent(null, null, null, null));
+        Set<String> surveyTableIdSet = ImmutableSet.of();
+        setupPackager(synapseTableToSchema, synapseTableToResult, null, ImmutableMap.of(), null);
+
+        Config noDataConfig = mock(Config.class);
+        when(noDataConfig.getInt(NoDataCache.CONFIG_KEY_EXPORTER_LAG_HOURS)).thenReturn(24);
+        when(noDataConfig.getInt(NoDataCache.CONFIG_KEY_MAX_ENTRIES)).thenReturn(100);
+        NoDataCache noDataCache = new NoDataCache();
+        noDataCache.setConfig(noDataConfig);
+        noDataCache.init();
+        packager.setNoDataCache(noDataCache);
+
+        // First request queries the table and finds no data.
+        assertNull(packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE, TEST_UDD_REQUEST,
+                surveyTableIdSet, new CancellationToken()));
+        assertEquals(submittedTableIdList, ImmutableList.of("test-table-id"));
+
+        // Second request skips the table.
+        assertNull(packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE, TEST_UDD_REQUEST,
+                surveyTableIdSet, new CancellationToken()));
+        assertEquals(submittedTableIdList, ImmutableList.of("test-table-id"));
+        assertEquals(noDataCache.getHitCount(), 1);
+
+        // validate mock file helper is clean
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
     @Test
     public void normalCase() throws Exception {
         // For full branch coverage, we need the following cases:
@@ -172,7 +313,7 @@ public class SynapsePackagerTest {
         // execute and validate
         long expectedExpirationTimeMillis = MOCK_NOW.plusHours(URL_EXPIRATION_HOURS).getMillis();
         PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE,
-                TEST_UDD_REQUEST, surveyTableIdSet);
+                TEST_UDD_REQUEST, surveyTableIdSet, new CancellationToken());
         assertEquals(presignedUrlInfo.getUrl().toString(), "http://example.com/");
         assertEquals(presignedUrlInfo.getExpirationTime().getMillis(), expectedExpirationTimeMillis);
 
@@ -194,6 +335,15 @@ public class SynapsePackagerTest {
         assertTrue(metadataErrorLogContent.contains("test survey exception 1"));
         assertTrue(metadataErrorLogContent.contains("test survey exception 2"));
 
+        // validate all tasks share one cancellation token, which is cancelled once the request is done
+        assertEquals(surveyTaskCount, 4);
+        assertEquals(cancellationTokenSet.size(), 1);
+        assertTrue(cancellationTokenSet.iterator().next().isCancelled());
+
+        // validate the request is registered for fair share scheduling, then unregistered
+        CancellationToken requestToken = verifyRequestRegistered();
+        assertSame(requestToken, cancellationTokenSet.iterator().next());
+
         // validate expiration time
         DateTime expirationTime = expirationTimeCaptor.getValue();
         assertEquals(expirationTime.getMillis(), expectedExpirationTimeMillis);
@@ -202,6 +352,190 @@ public class SynapsePackagerTest {
         assertTrue(inMemoryFileHelper.isEmpty());
     }
 
+    @Test
+    public void allTablesFailed() throws Exception {
+        // If all tables fail, no table reports data, but we still send the error log. Surveys are started by the
+        // packager after the table tasks are done.
+        Map<String, UploadSchema> synapseTableToSchema = ImmutableMap.of("error-table", mock(UploadSchema.class));
+        Map<String, ExecutionException> synapseTableToException = ImmutableMap.of("error-table",
+                new ExecutionException("test exception", null));
+        Map<String, String> surveyTableToResultContent = ImmutableMap.of("test-survey", "dummy survey content");
+        Set<String> surveyTableIdSet = surveyTableToResultContent.keySet();
+        setupPackager(synapseTableToSchema, ImmutableMap.of(), synapseTableToException, surveyTableToResultContent,
+                null);
+
+        // mock pre-signed URL call
+        when(mockS3Helper.generatePresignedUrl(eq(DUMMY_USER_DATA_BUCKET), startsWith(TEST_MASTER_ZIP_FILE_PREFIX),
+                any(DateTime.class), eq(HttpMethod.GET))).thenReturn(new URL("http://example.com/"));
+
+        // execute and validate
+        PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE,
+                TEST_UDD_REQUEST, surveyTableIdSet, new CancellationToken());
+        assertEquals(presignedUrlInfo.getUrl().toString(), "http://example.com/");
+        assertEquals(surveyTaskCount, 1);
+
+        Map<String, String> unzippedMap = ZipHelperTest.unzipHelper(s3FileBytes);
+        assertEquals(unzippedMap.size(), 2);
+        assertTrue(unzippedMap.get(SynapsePackager.ERROR_LOG_FILE_NAME).contains("test exception"));
+        assertEquals(unzippedMap.get("test-survey.csv"), "dummy survey content");
+
+        // validate mock file helper is clean
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void deadlineExceeded() throws Exception {
+        // One table finishes in time. The other is still running at the deadline, so its data is missing. It finishes
+        // after we stop waiting, and we still need to clean up its files.
+        Map<String, UploadSchema> synapseTableToSchema = new ImmutableMap.Builder()
+                .put("fast-table", mock(UploadSchema.class))
+                .put("slow-table", mock(UploadSchema.class))
+                .build();
+        Map<String, SynapseTaskResultContent> synapseTableToResult = ImmutableMap.of("fast-table",
+                new SynapseTaskResultContent("fast.csv", "fast dummy csv", null, null));
+        Map<String, String> surveyTableToResultContent = ImmutableMap.of("test-survey", "dummy survey content");
+        Set<String> surveyTableIdSet = surveyTableToResultContent.keySet();
+        setupPackager(synapseTableToSchema, synapseTableToResult, null, surveyTableToResultContent, null);
+        lateTableToResult.put("slow-table", new SynapseTaskResultContent("slow.csv", "slow dummy csv", "slow.zip",
+                "slow dummy zip"));
+
+        // mock pre-signed URL call
+        when(mockS3Helper.generatePresignedUrl(eq(DUMMY_USER_DATA_BUCKET), startsWith(TEST_MASTER_ZIP_FILE_PREFIX),
+                any(DateTime.class), eq(HttpMethod.GET))).thenReturn(new URL("http://example.com/"));
+
+        // execute - The clock is fixed at MOCK_NOW, so this deadline has already passed.
+        CancellationToken cancellationToken = new CancellationToken(MOCK_NOW.getMillis());
+        PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE,
+                TEST_UDD_REQUEST, surveyTableIdSet, cancellationToken);
+        assertEquals(presignedUrlInfo.getUrl().toString(), "http://example.com/");
+
+        // validate uploaded S3 file - It has the finished tables, and the error log lists the missing table.
+        Map<String, String> unzippedMap = ZipHelperTest.unzipHelper(s3FileBytes);
+        assertEquals(unzippedMap.size(), 3);
+        assertEquals(unzippedMap.get("fast.csv"), "fast dummy csv");
+        assertEquals(unzippedMap.get("test-survey.csv"), "dummy survey content");
+        String errorLogContent = unzippedMap.get(SynapsePackager.ERROR_LOG_FILE_NAME);
+        assertTrue(errorLogContent.contains("slow-table"));
+        assertTrue(errorLogContent.contains("deadline"));
+        assertFalse(errorLogContent.contains("fast-table"));
+
+        // validate pending work was cancelled
+        assertEquals(cancellationToken.getReason(), CancellationToken.REASON_DEADLINE_EXCEEDED);
+        assertEquals(cancellationTokenSet, ImmutableSet.of(cancellationToken));
+
+        // validate mock file helper is clean, including the late table's files
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void surveysNotStartedAfterDeadline() throws Exception {
+        // The only table fails, so no table reports data, and the deadline has already passed by the time we'd start
+        // the surveys. They'd only fail, so they're never started, and the metadata error log says why.
+        Map<String, UploadSchema> synapseTableToSchema = ImmutableMap.of("error-table", mock(UploadSchema.class));
+        Map<String, ExecutionException> synapseTableToException = ImmutableMap.of("error-table",
+                new ExecutionException("test exception", null));
+        Map<String, String> surveyTableToResultContent = ImmutableMap.of("test-survey", "dummy survey content");
+        Set<String> surveyTableIdSet = surveyTableToResultContent.keySet();
+        setupPackager(synapseTableToSchema, ImmutableMap.of(), synapseTableToException, surveyTableToResultContent,
+                null);
+
+        // mock pre-signed URL call
+        when(mockS3Helper.generatePresignedUrl(eq(DUMMY_USER_DATA_BUCKET), startsWith(TEST_MASTER_ZIP_FILE_PREFIX),
+                any(DateTime.class), eq(HttpMethod.GET))).thenReturn(new URL("http://example.com/"));
+
+        // execute - The clock is fixed at MOCK_NOW, so this deadline has already passed.
+        PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE,
+                TEST_UDD_REQUEST, surveyTableIdSet, new CancellationToken(MOCK_NOW.getMillis()));
+        assertEquals(presignedUrlInfo.getUrl().toString(), "http://example.com/");
+        assertEquals(surveyTaskCount, 0);
+
+        Map<String, String> unzippedMap = ZipHelperTest.unzipHelper(s3FileBytes);
+        assertEquals(unzippedMap.size(), 2);
+        assertTrue(unzippedMap.get(SynapsePackager.ERROR_LOG_FILE_NAME).contains("test exception"));
+        assertTrue(unzippedMap.get(SynapsePackager.METADATA_ERROR_LOG_FILE_NAME).contains("Surveys were not " +
+                "downloaded"));
+
+        // validate mock file helper is clean
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test(timeOut = 10000)
+    public void stuckTaskAbandonedAfterGracePeriod() throws Exception {
+        // The stuck table never finishes, even once cancelled. Closing the session gives up on it after the grace
+        // period, instead of waiting forever.
+        Map<String, UploadSchema> synapseTableToSchema = ImmutableMap.of("stuck-table", mock(UploadSchema.class));
+        setupPackager(synapseTableToSchema, ImmutableMap.of(), null, ImmutableMap.of(), null);
+        stuckTableIdSet.add("stuck-table");
+        when(mockConfig.getInt(SynapsePackager.CONFIG_KEY_DRAIN_GRACE_SECONDS)).thenReturn(1);
+        packager.setConfig(mockConfig);
+
+        // mock pre-signed URL call
+        when(mockS3Helper.generatePresignedUrl(eq(DUMMY_USER_DATA_BUCKET), startsWith(TEST_MASTER_ZIP_FILE_PREFIX),
+                any(DateTime.class), eq(HttpMethod.GET))).thenReturn(new URL("http://example.com/"));
+
+        // execute - The clock is fixed at MOCK_NOW, so this deadline has already passed.
+        PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE,
+                TEST_UDD_REQUEST, ImmutableSet.of(), new CancellationToken(MOCK_NOW.getMillis()));
+        assertEquals(presignedUrlInfo.getUrl().toString(), "http://example.com/");
+
+        // The error log lists the missing table, and the stuck task was abandoned.
+        Map<String, String> unzippedMap = ZipHelperTest.unzipHelper(s3FileBytes);
+        assertTrue(unzippedMap.get(SynapsePackager.ERROR_LOG_FILE_NAME).contains("stuck-table"));
+        assertEquals(stuckFutureList.size(), 1);
+        assertTrue(stuckFutureList.get(0).isCancelled());
+    }
+
+    @Test
+    public void largestTableFirst() throws Exception {
+        // Tables with no stats go first, then the rest, most expensive first.
+        Map<String, UploadSchema> synapseTableToSchema = new ImmutableMap.Builder()
+                .put("small-table", mock(UploadSchema.class))
+                .put("large-table", mock(UploadSchema.class))
+                .put("new-table", mock(UploadSchema.class))
+                .put("medium-table", mock(UploadSchema.class))
+                .build();
+        SynapseTaskResultContent noFileResult = new SynapseTaskResultContent(null, null, null, null);
+        Map<String, SynapseTaskResultContent> synapseTableToResult = new ImmutableMap.Builder()
+                .put("small-table", noFileResult)
+                .put("large-table", noFileResult)
+                .put("new-table", noFileResult)
+                .put("medium-table", noFileResult)
+                .build();
+        setupPackager(synapseTableToSchema, synapseTableToResult, null, null, null);
+
+        mockTableStats("small-table", 10);
+        mockTableStats("large-table", 1000);
+        mockTableStats("medium-table", 100);
+
+        // execute and validate
+        PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE,
+                TEST_UDD_REQUEST, ImmutableSet.of(), new CancellationToken());
+        assertNull(presignedUrlInfo);
+        assertEquals(submittedTableIdList, ImmutableList.of("new-table", "large-table", "medium-table",
+                "small-table"));
+
+        // validate mock file helper is clean
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void tableStatsRecorded() throws Exception {
+        Map<String, UploadSchema> synapseTableToSchema = ImmutableMap.of("test-table-id", mock(UploadSchema.class));
+        Map<String, SynapseTaskResultContent> synapseTableToResult = ImmutableMap.of("test-table-id",
+                new SynapseTaskResultContent(null, null, null, null));
+        setupPackager(synapseTableToSchema, synapseTableToResult, null, null, null);
+
+        // The task result has stats.
+        SynapseTableStats sampleStats = new SynapseTableStats.Builder().withSynapseTableId("test-table-id")
+                .withCsvBytes(1234).withStageMillis(PackagingStage.QUERY, 56).build();
+        statsByTableId.put("test-table-id", sampleStats);
+
+        // execute and validate
+        packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE, TEST_UDD_REQUEST, ImmutableSet.of(),
+                new CancellationToken());
+        verify(mockDynamoHelper).putSynapseTableStats(same(sampleStats));
+    }
+
     @Test
     public void noSurveys() throws Exception {
         // setup test
@@ -222,7 +556,7 @@ public class SynapsePackagerTest {
         // execute and validate
         long expectedExpirationTimeMillis = MOCK_NOW.plusHours(URL_EXPIRATION_HOURS).getMillis();
         PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE,
-                TEST_UDD_REQUEST, surveyTableIdSet);
+                TEST_UDD_REQUEST, surveyTableIdSet, new CancellationToken());
         assertEquals(presignedUrlInfo.getUrl().toString(), "http://example.com/");
         assertEquals(presignedUrlInfo.getExpirationTime().getMillis(), expectedExpirationTimeMillis);
 
@@ -240,6 +574,220 @@ public class SynapsePackagerTest {
         assertTrue(inMemoryFileHelper.isEmpty());
     }
 
+    @Test
+    public void sameFilesSameZipName() throws Exception {
+        // The zip is named by its content, so repeating the request makes the same zip.
+        Map<String, UploadSchema> synapseTableToSchema = ImmutableMap.of("foo-table-id", mock(UploadSchema.class),
+                "bar-table-id", mock(UploadSchema.class));
+        Map<String, SynapseTaskResultContent> synapseTableToResult = ImmutableMap.of(
+                "foo-table-id", new SynapseTaskResultContent("foo-table.csv", "foo csv content", null, null),
+                "bar-table-id", new SynapseTaskResultContent("bar-table.csv", "bar csv content", null, null));
+        setupPackager(synapseTableToSchema, synapseTableToResult, null, ImmutableMap.of(), null);
+        when(mockS3Helper.generatePresignedUrl(eq(DUMMY_USER_DATA_BUCKET), startsWith(TEST_MASTER_ZIP_FILE_PREFIX),
+                any(DateTime.class), eq(HttpMethod.GET))).thenReturn(new URL("http://example.com/"));
+
+        packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE, TEST_UDD_REQUEST, ImmutableSet.of(),
+                new CancellationToken());
+        packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE, TEST_UDD_REQUEST, ImmutableSet.of(),
+                new CancellationToken());
+
+        assertEquals(s3FileBytesByKey.size(), 1);
+        String zipKey = s3FileBytesByKey.keySet().iterator().next();
+        assertTrue(zipKey.matches(TEST_MASTER_ZIP_FILE_PREFIX + "[0-9a-f]{64}\\.zip"), zipKey);
+
+        // Entries are in name order, not the order the tables were submitted in.
+        assertEquals(submittedTableIdList.subList(0, 2), ImmutableList.of("foo-table-id", "bar-table-id"));
+        try (ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(s3FileBytes))) {
+            assertEquals(zipInputStream.getNextEntry().getName(), "bar-table.csv");
+            assertEquals(zipInputStream.getNextEntry().getName(), "foo-table.csv");
+        }
+    }
+
+    @Test
+    public void existingZipReused() throws Exception {
+        Map<String, UploadSchema> synapseTableToSchema = ImmutableMap.of("test-table-id", mock(UploadSchema.class));
+        Map<String, SynapseTaskResultContent> synapseTableToResult = ImmutableMap.of("test-table-id",
+                new SynapseTaskResultContent("test-table.csv", "dummy csv content", null, null));
+        setupPackager(synapseTableToSchema, synapseTableToResult, null, ImmutableMap.of(), null);
+
+        // An earlier request already uploaded this zip.
+        when(mockConfig.getInt("archive.reuse.max.age.hours")).thenReturn(24);
+        s3ZipAssembler.setConfig(mockConfig);
+        when(mockS3Client.listObjectsV2(any(ListObjectsV2Request.class))).then(invocation -> {
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setKey(invocation.getArgumentAt(0, ListObjectsV2Request.class).getPrefix());
+            summary.setLastModified(DateTime.now().minusHours(1).toDate());
+            ListObjectsV2Result listResult = new ListObjectsV2Result();
+            listResult.getObjectSummaries().add(summary);
+            return listResult;
+        });
+
+        ArgumentCaptor<String> zipKeyCaptor = ArgumentCaptor.forClass(String.class);
+        when(mockS3Helper.generatePresignedUrl(eq(DUMMY_USER_DATA_BUCKET), zipKeyCaptor.capture(),
+                any(DateTime.class), eq(HttpMethod.GET))).thenReturn(new URL("http://example.com/"));
+
+        // execute and validate
+        PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE,
+                TEST_UDD_REQUEST, ImmutableSet.of(), new CancellationToken());
+        assertEquals(presignedUrlInfo.getUrl().toString(), "http://example.com/");
+        assertTrue(zipKeyCaptor.getValue().startsWith(TEST_MASTER_ZIP_FILE_PREFIX));
+
+        // Nothing was uploaded, and the files were still cleaned up.
+        verify(mockS3Client, never()).putObject(any(PutObjectRequest.class));
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void sharedSurvey() throws Exception {
+        // One survey is in the shared survey store, the other is downloaded from Synapse and stored for later requests.
+        Map<String, UploadSchema> synapseTableToSchema = ImmutableMap.of("test-table-id", mock(UploadSchema.class));
+        Map<String, SynapseTaskResultContent> synapseTableToResult = ImmutableMap.of("test-table-id",
+                new SynapseTaskResultContent("test-table.csv", "dummy csv content", null, null));
+        Map<String, String> surveyTableToResultContent = ImmutableMap.of("synapse-survey", "synapse survey content");
+        setupPackager(synapseTableToSchema, synapseTableToResult, null, surveyTableToResultContent, null);
+        sharedSurveyToContent.put("shared-survey", "shared survey content");
+
+        when(mockS3Helper.generatePresignedUrl(eq(DUMMY_USER_DATA_BUCKET), startsWith(TEST_MASTER_ZIP_FILE_PREFIX),
+                any(DateTime.class), eq(HttpMethod.GET))).thenReturn(new URL("http://example.com/"));
+
+        // execute and validate
+        PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE,
+                TEST_UDD_REQUEST, ImmutableSet.of("synapse-survey", "shared-survey"), new CancellationToken());
+        assertEquals(presignedUrlInfo.getUrl().toString(), "http://example.com/");
+
+        Map<String, String> unzippedMap = ZipHelperTest.unzipHelper(s3FileBytes);
+        assertEquals(unzippedMap.size(), 3);
+        assertEquals(unzippedMap.get("test-table.csv"), "dummy csv content");
+        assertEquals(unzippedMap.get("synapse-survey.csv"), "synapse survey content");
+        assertEquals(unzippedMap.get("shared-survey.csv"), "shared survey content");
+
+        // Only the survey from Synapse is stored.
+        verify(mockSharedSurveyStore).put(eq("synapse-survey"), eq(TEST_SURVEY_ETAG), any(ZipSegment.class));
+        verify(mockSharedSurveyStore, never()).put(eq("shared-survey"), any(String.class), any(ZipSegment.class));
+
+        // validate mock file helper is clean
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void resumeFromCheckpoint() throws Exception {
+        // An earlier attempt at the request finished one table with data and one with no data, then failed. The retry
+        // only downloads the remaining table, and saves it to the checkpoint as soon as it's uploaded.
+        Map<String, UploadSchema> synapseTableToSchema = ImmutableMap.of("done-table", mock(UploadSchema.class),
+                "no-data-table", mock(UploadSchema.class), "new-table", mock(UploadSchema.class));
+        Map<String, SynapseTaskResultContent> synapseTableToResult = ImmutableMap.of("new-table",
+                new SynapseTaskResultContent("new-table.csv", "new csv content", null, null));
+        setupPackager(synapseTableToSchema, synapseTableToResult, null, ImmutableMap.of(), null);
+
+        File segmentDir = inMemoryFileHelper.createTempDir();
+        ZipSegment doneSegment = createRemoteSegment(segmentDir, "done-table.csv", "done csv content",
+                "request-checkpoints/test-checkpoint/segments/done-table.csv");
+        inMemoryFileHelper.deleteDir(segmentDir);
+
+        RequestCheckpoint checkpoint = new RequestCheckpoint("test-checkpoint");
+        checkpoint.recordTableDone("done-table", ImmutableList.of(doneSegment));
+        checkpoint.recordTableDone("no-data-table", ImmutableList.of());
+
+        RequestCheckpointStore mockCheckpointStore = mock(RequestCheckpointStore.class);
+        when(mockCheckpointStore.isEnabled()).thenReturn(true);
+        when(mockCheckpointStore.load(TEST_HEALTH_CODE, TEST_UDD_REQUEST.getStartDate(),
+                TEST_UDD_REQUEST.getEndDate())).thenReturn(checkpoint);
+        when(mockCheckpointStore.putSegment(same(checkpoint), any(ZipSegment.class))).then(invocation -> {
+            ZipSegment segment = invocation.getArgumentAt(1, ZipSegment.class);
+            return segment.withS3Key("request-checkpoints/test-checkpoint/segments/" + segment.getEntryName());
+        });
+        packager.setRequestCheckpointStore(mockCheckpointStore);
+
+        when(mockS3Helper.generatePresignedUrl(eq(DUMMY_USER_DATA_BUCKET), startsWith(TEST_MASTER_ZIP_FILE_PREFIX),
+                any(DateTime.class), eq(HttpMethod.GET))).thenReturn(new URL("http://example.com/"));
+
+        // execute and validate
+        PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE,
+                TEST_UDD_REQUEST, ImmutableSet.of(), new CancellationToken());
+        assertEquals(presignedUrlInfo.getUrl().toString(), "http://example.com/");
+        assertEquals(submittedTableIdList, ImmutableList.of("new-table"));
+
+        Map<String, String> unzippedMap = ZipHelperTest.unzipHelper(s3FileBytes);
+        assertEquals(unzippedMap.size(), 2);
+        assertEquals(unzippedMap.get("done-table.csv"), "done csv content");
+        assertEquals(unzippedMap.get("new-table.csv"), "new csv content");
+
+        // The new table was saved to the checkpoint, and the checkpoint was deleted once the download was uploaded.
+        assertEquals(checkpoint.getDoneSegmentList("new-table").size(), 1);
+        verify(mockCheckpointStore).save(checkpoint);
+        verify(mockCheckpointStore).delete(checkpoint);
+
+        // validate mock file helper is clean
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void splitIntoParts() throws Exception {
+        // setup test - Each table has about 1 MB of CSV, which doesn't compress well. With a max part size of 1 MB,
+        // each table goes in its own part. Files are sorted by name, so the survey goes in the first part.
+        Map<String, UploadSchema> synapseTableToSchema = new LinkedHashMap<>();
+        Map<String, SynapseTaskResultContent> synapseTableToResult = new HashMap<>();
+        Map<String, String> csvContentByName = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 1; i <= 3; i++) {
+            String tableId = "test-table-" + i;
+            String csvContent = randomText(random, 1024 * 1024);
+            synapseTableToSchema.put(tableId, mock(UploadSchema.class));
+            synapseTableToResult.put(tableId, new SynapseTaskResultContent(tableId + ".csv", csvContent, null,
+                    null));
+            csvContentByName.put(tableId + ".csv", csvContent);
+        }
+        Map<String, String> surveyTableToResultContent = ImmutableMap.of("test-survey", "dummy survey content");
+        setupPackager(synapseTableToSchema, synapseTableToResult, null, surveyTableToResultContent, null);
+
+        when(mockConfig.getInt(SynapsePackager.CONFIG_KEY_ARCHIVE_MAX_PART_MB)).thenReturn(1);
+        packager.setConfig(mockConfig);
+
+        // mock pre-signed URL call - Each part gets its own URL.
+        when(mockS3Helper.generatePresignedUrl(eq(DUMMY_USER_DATA_BUCKET), startsWith(TEST_MASTER_ZIP_FILE_PREFIX),
+                any(DateTime.class), eq(HttpMethod.GET))).then(invocation -> new URL("http://example.com/" +
+                invocation.getArgumentAt(1, String.class)));
+
+        // execute
+        PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE,
+                TEST_UDD_REQUEST, surveyTableToResultContent.keySet(), new CancellationToken());
+
+        // validate parts
+        List<String> partKeyList = new ArrayList<>(s3FileBytesByKey.keySet());
+        assertEquals(partKeyList.size(), 3);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(partKeyList.get(i).endsWith("-part" + (i + 1) + "-of-3.zip"), partKeyList.get(i));
+        }
+
+        List<URL> urlList = presignedUrlInfo.getUrlList();
+        assertEquals(urlList.size(), 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(urlList.get(i).toString(), "http://example.com/" + partKeyList.get(i));
+        }
+
+        Map<String, String> part1Map = ZipHelperTest.unzipHelper(s3FileBytesByKey.get(partKeyList.get(0)));
+        assertEquals(part1Map.keySet(), ImmutableSet.of("test-survey.csv", "test-table-1.csv"));
+        assertEquals(part1Map.get("test-survey.csv"), "dummy survey content");
+
+        Map<String, String> part2Map = ZipHelperTest.unzipHelper(s3FileBytesByKey.get(partKeyList.get(1)));
+        assertEquals(part2Map.keySet(), ImmutableSet.of("test-table-2.csv"));
+
+        Map<String, String> part3Map = ZipHelperTest.unzipHelper(s3FileBytesByKey.get(partKeyList.get(2)));
+        assertEquals(part3Map.keySet(), ImmutableSet.of("test-table-3.csv"));
+
+        // validate contents
+        for (Map<String, String> onePartMap : ImmutableList.of(part1Map, part2Map, part3Map)) {
+            for (Map.Entry<String, String> oneEntry : onePartMap.entrySet()) {
+                if (oneEntry.getKey().startsWith("test-table-")) {
+                    assertEquals(oneEntry.getValue(), csvContentByName.get(oneEntry.getKey()));
+                }
+            }
+        }
+
+        // validate mock file helper is clean
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
     @Test
     public void firstErrorCase() throws Exception {
         // Test getting an error on the first step. The easiest way to inject the exception is to spy the packager and
@@ -252,22 +800,30 @@ public class SynapsePackagerTest {
         // set up mocks - We bypass most of the stuff in setupPackager()
         packager = spy(new SynapsePackager());
         doThrow(RuntimeException.class).when(packager).initAsyncQueryTasks(same(synapseTableToSchema),
-                eq(TEST_HEALTH_CODE), same(TEST_UDD_REQUEST), any(File.class));
+                eq(TEST_HEALTH_CODE), same(TEST_UDD_REQUEST), any(File.class), any(CancellationToken.class),
+                any(RequestCheckpoint.class), any(BiConsumer.class));
 
         inMemoryFileHelper = new InMemoryFileHelper();
         packager.setFileHelper(inMemoryFileHelper);
+        packager.setTempStorageManager(createTempStorageManager());
+
+        mockTaskGraphExecutor = mock(TaskGraphExecutor.class);
+        packager.setTaskGraphExecutor(mockTaskGraphExecutor);
 
         // execute
         Exception thrownEx = null;
         try {
             packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE, TEST_UDD_REQUEST,
-                    ImmutableSet.of("test-survey"));
+                    ImmutableSet.of("test-survey"), new CancellationToken());
             fail("expected exception");
         } catch (RuntimeException ex) {
             thrownEx = ex;
         }
         assertNotNull(thrownEx);
 
+        // validate the request is unregistered, even on error
+        verifyRequestRegistered();
+
         // validate mock file helper is clean
         assertTrue(inMemoryFileHelper.isEmpty());
     }
@@ -294,13 +850,18 @@ public class SynapsePackagerTest {
         // execute
         Exception thrownEx = null;
         try {
-            packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE, TEST_UDD_REQUEST, surveyTableIdSet);
+            packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE, TEST_UDD_REQUEST, surveyTableIdSet,
+                    new CancellationToken());
             fail("expected exception");
         } catch (AmazonClientException ex) {
             thrownEx = ex;
         }
         assertNotNull(thrownEx);
 
+        // validate outstanding work was cancelled
+        assertEquals(cancellationTokenSet.size(), 1);
+        assertTrue(cancellationTokenSet.iterator().next().isCancelled());
+
         // validate uploaded S3 file
         Map<String, String> unzippedMap = ZipHelperTest.unzipHelper(s3FileBytes);
         assertEquals(unzippedMap.size(), 3);
@@ -316,10 +877,44 @@ public class SynapsePackagerTest {
         assertTrue(inMemoryFileHelper.isEmpty());
     }
 
+    @Test
+    public void tempStorageQuotaExceeded() throws Exception {
+        // Just need a packager with a temp storage manager that's at quota.
+        TempStorageManager mockTempStorageManager = mock(TempStorageManager.class);
+        when(mockTempStorageManager.allocate(any(String.class))).thenThrow(TempStorageQuotaExceededException.class);
+
+        packager = new SynapsePackager();
+        packager.setTempStorageManager(mockTempStorageManager);
+
+        mockTaskGraphExecutor = mock(TaskGraphExecutor.class);
+        packager.setTaskGraphExecutor(mockTaskGraphExecutor);
+
+        // execute
+        try {
+            packager.packageSynapseData(ImmutableMap.of("test-table-id", mock(UploadSchema.class)), TEST_HEALTH_CODE,
+                    TEST_UDD_REQUEST, ImmutableSet.of(), new CancellationToken());
+            fail("expected exception");
+        } catch (TempStorageQuotaExceededException ex) {
+            // expected exception
+        }
+
+        // We never got as far as registering the request.
+        verifyZeroInteractions(mockTaskGraphExecutor);
+    }
+
+    // Real temp storage manager, on top of the in-memory file helper. Files are deleted on the calling thread, so
+    // tests can check the file helper is clean as soon as the packager returns.
+    private TempStorageManager createTempStorageManager() {
+        TempStorageManager tempStorageManager = new TempStorageManager();
+        tempStorageManager.setCleanupExecutor(MoreExecutors.newDirectExecutorService());
+        tempStorageManager.setFileHelper(inMemoryFileHelper);
+        return tempStorageManager;
+    }
+
     private void setupPackager(Map<String, UploadSchema> synapseTableToSchema,
             Map<String, SynapseTaskResultContent> synapseTableToResult,
             Map<String, ExecutionException> synapseTableToException, Map<String, String> surveyTableToResultContent,
-            Map<String, ExecutionException> surveyTableToException) {
+            Map<String, ExecutionException> surveyTableToException) throws IOException {
         // spy "now" and replace it with MOCK_NOW
         packager = new SynapsePackager();
 
@@ -329,21 +924,44 @@ public class SynapsePackagerTest {
         // branch coverage: noop synapse helper
         packager.setSynapseHelper(mock(SynapseHelper.class));
 
+        // Use a real stats tracker. By default, the mock DDB helper has no stats, so tables keep their order.
+        mockDynamoHelper = mock(DynamoHelper.class);
+        SynapseTableStatsTracker statsTracker = new SynapseTableStatsTracker();
+        statsTracker.setDynamoHelper(mockDynamoHelper);
+        packager.setSynapseTableStatsTracker(statsTracker);
+
         // mock file helper
         inMemoryFileHelper = new InMemoryFileHelper();
         packager.setFileHelper(inMemoryFileHelper);
-
-        // mock executor service to just call the callables directly
-        ExecutorService mockExecutorService = mock(ExecutorService.class);
-        packager.setAuxiliaryExecutorService(mockExecutorService);
-
-        // mock executor - Because of the way Mockito works, we can only put one Answer on the mock. So the answer
-        // needs to get the Callable, check it's type, and multiplex accordingly.
-        when(mockExecutorService.submit(any(Callable.class))).then(invocation -> {
-            Callable<?> callable = invocation.getArgumentAt(0, Callable.class);
-            if (callable instanceof SynapseDownloadFromTableTask) {
+        packager.setTempStorageManager(createTempStorageManager());
+
+        // mock task graph executor
+        mockTaskGraphExecutor = mock(TaskGraphExecutor.class);
+        packager.setTaskGraphExecutor(mockTaskGraphExecutor);
+
+        // Single stages (zip segments, zipping, and assembling the zip) are just called directly. Chained stages go
+        // through the real thenStage(), which calls submitStage().
+        when(mockTaskGraphExecutor.submitStage(any(PackagingStage.class), any(String.class),
+                any(CancellationToken.class), any(StageCallable.class))).then(invocation -> {
+                    StageCallable<?> callable = invocation.getArgumentAt(3, StageCallable.class);
+                    CompletableFuture<Object> future = new CompletableFuture<>();
+                    try {
+                        future.complete(callable.call());
+                    } catch (Exception ex) {
+                        future.completeExceptionally(ex);
+                    }
+                    return future;
+                });
+        when(mockTaskGraphExecutor.thenStage(any(CompletableFuture.class), any(PackagingStage.class),
+                any(String.class), any(CancellationToken.class), any(StageFunction.class))).thenCallRealMethod();
+
+        // Staged tasks - Because of the way Mockito works, we can only put one Answer on the mock. So the answer
+        // needs to get the task, check it's type, and multiplex accordingly.
+        when(mockTaskGraphExecutor.submit(any(StagedTask.class))).then(invocation -> {
+            StagedTask<?> stagedTask = invocation.getArgumentAt(0, StagedTask.class);
+            if (stagedTask instanceof SynapseDownloadFromTableTask) {
                 // validate params
-                SynapseDownloadFromTableTask task = (SynapseDownloadFromTableTask) callable;
+                SynapseDownloadFromTableTask task = (SynapseDownloadFromTableTask) stagedTask;
                 SynapseDownloadFromTableParameters params = task.getParameters();
                 String synapseTableId = params.getSynapseTableId();
                 File tmpDir = params.getTempDir();
@@ -353,36 +971,49 @@ public class SynapsePackagerTest {
                 assertEquals(params.getEndDate().toString(), TEST_END_DATE);
                 assertNotNull(tmpDir);
                 assertSame(params.getSchema(), synapseTableToSchema.get(synapseTableId));
+                cancellationTokenSet.add(task.getCancellationToken());
+                submittedTableIdList.add(synapseTableId);
+
+                if (stuckTableIdSet.contains(synapseTableId)) {
+                    CompletableFuture<SynapseDownloadFromTableResult> stuckFuture = new CompletableFuture<>();
+                    stuckFutureList.add(stuckFuture);
+                    return stuckFuture;
+                }
 
-                Future<SynapseDownloadFromTableResult> mockFuture = mock(Future.class);
+                // If the table finishes late, return a future that completes when the master zip is uploaded.
+                SynapseTaskResultContent lateResultContent = lateTableToResult.get(synapseTableId);
+                if (lateResultContent != null) {
+                    CompletableFuture<SynapseDownloadFromTableResult> lateFuture = new CompletableFuture<>();
+                    lateCompletionList.add(() -> {
+                        try {
+                            lateFuture.complete(createTaskResult(tmpDir, lateResultContent));
+                        } catch (IOException ex) {
+                            lateFuture.completeExceptionally(ex);
+                        }
+                    });
+                    return lateFuture;
+                }
 
                 // If we have an exception in the exception map, the future should throw that.
                 if (synapseTableToException != null) {
                     ExecutionException ex = synapseTableToException.get(synapseTableId);
                     if (ex != null) {
-                        when(mockFuture.get()).thenThrow(ex);
-                        return mockFuture;
+                        CompletableFuture<SynapseDownloadFromTableResult> failedFuture = new CompletableFuture<>();
+                        failedFuture.completeExceptionally(ex);
+                        return failedFuture;
                     }
                 }
 
                 // create a mock Future that returns the result from the synapseTableToResult map
                 SynapseTaskResultContent taskResultContent = synapseTableToResult.get(synapseTableId);
-                SynapseDownloadFromTableResult.Builder taskResultBuilder =
-                        new SynapseDownloadFromTableResult.Builder();
-                if (taskResultContent.getCsvFileContent() != null) {
-                    File csvFile = createFileWithContent(tmpDir, taskResultContent.getCsvFileName(),
-                            taskResultContent.getCsvFileContent());
-                    taskResultBuilder.withCsvFile(csvFile);
+                SynapseDownloadFromTableResult taskResult = createTaskResult(tmpDir, taskResultContent);
+                if (statsByTableId.containsKey(synapseTableId)) {
+                    taskResult = new SynapseDownloadFromTableResult.Builder().withCsvFile(taskResult.getCsvFile())
+                            .withBulkDownloadFile(taskResult.getBulkDownloadFile())
+                            .withStats(statsByTableId.get(synapseTableId)).build();
                 }
-                if (taskResultContent.getBulkDownloadFileContent() != null) {
-                    File bulkDownloadFile = createFileWithContent(tmpDir, taskResultContent.getBulkDownloadFileName(),
-                            taskResultContent.getBulkDownloadFileContent());
-                    taskResultBuilder.withBulkDownloadFile(bulkDownloadFile);
-                }
-
-                when(mockFuture.get()).thenReturn(taskResultBuilder.build());
-                return mockFuture;
-            } else if (callable instanceof SynapseDownloadSurveyTask) {
+                return CompletableFuture.completedFuture(taskResult);
+            } else if (stagedTask instanceof SynapseDownloadSurveyTask) {
                 // validate params
                 SynapseDownloadSurveyTask task = invocation.getArgumentAt(0, SynapseDownloadSurveyTask.class);
                 SynapseDownloadSurveyParameters params = task.getParameters();
@@ -390,61 +1021,175 @@ public class SynapsePackagerTest {
                 assertFalse(Strings.isNullOrEmpty(synapseTableId));
                 File tmpDir = params.getTempDir();
                 assertNotNull(tmpDir);
-
-                Future<File> mockFuture = mock(Future.class);
+                cancellationTokenSet.add(task.getCancellationToken());
+                surveyTaskCount++;
 
                 // If we have an exception in the exception map, the future should throw that.
                 if (surveyTableToException != null) {
                     ExecutionException ex = surveyTableToException.get(synapseTableId);
                     if (ex != null) {
-                        when(mockFuture.get()).thenThrow(ex);
-                        return mockFuture;
+                        CompletableFuture<SynapseDownloadSurveyResult> failedFuture = new CompletableFuture<>();
+                        failedFuture.completeExceptionally(ex);
+                        return failedFuture;
                     }
                 }
 
-                // create a mock Future that returns the result from the surveyTableToResultContent map
+                // If the survey is in the shared survey store, return the shared segment.
+                String sharedContent = sharedSurveyToContent.get(synapseTableId);
+                if (sharedContent != null) {
+                    ZipSegment sharedSegment = createSharedSegment(tmpDir, synapseTableId, sharedContent);
+                    return CompletableFuture.completedFuture(new SynapseDownloadSurveyResult.Builder()
+                            .withSharedSegment(sharedSegment).withEtag(TEST_SURVEY_ETAG).build());
+                }
+
+                // create a Future that returns the result from the surveyTableToResultContent map
                 String resultContent = surveyTableToResultContent.get(synapseTableId);
                 File resultFile = createFileWithContent(tmpDir, synapseTableId + ".csv", resultContent);
-                when(mockFuture.get()).thenReturn(resultFile);
-                return mockFuture;
+                return CompletableFuture.completedFuture(new SynapseDownloadSurveyResult.Builder()
+                        .withFile(resultFile).withEtag(TEST_SURVEY_ETAG).build());
             } else {
-                fail("Unexpected task type: " + callable.getClass().getName());
+                fail("Unexpected task type: " + stagedTask.getClass().getName());
 
                 // Java doesn't know this is unreachable. Return null.
                 return null;
             }
         });
 
-        // Use real zip helper. It's easier to use the real one than to mock it out.
+        // Use real zip helper and compression policy. It's easier to use the real ones than to mock them out.
+        ZipCompressionPolicy zipCompressionPolicy = new ZipCompressionPolicy();
+        packager.setZipCompressionPolicy(zipCompressionPolicy);
+
         ZipHelper zipHelper = new ZipHelper();
+        zipHelper.setCompressionPolicy(zipCompressionPolicy);
         zipHelper.setFileHelper(inMemoryFileHelper);
         packager.setZipHelper(zipHelper);
 
         // mock config
-        Config mockConfig = mock(Config.class);
+        mockConfig = mock(Config.class);
         when(mockConfig.getInt(SynapsePackager.CONFIG_KEY_EXPIRATION_HOURS)).thenReturn(URL_EXPIRATION_HOURS);
         when(mockConfig.get(SynapsePackager.CONFIG_KEY_USERDATA_BUCKET)).thenReturn(DUMMY_USER_DATA_BUCKET);
         packager.setConfig(mockConfig);
 
-        // Clean up s3FileBytes. Apparently, TestNG doesn't clean state between each test.
+        // Clean up s3FileBytes and task tracking. Apparently, TestNG doesn't clean state between each test.
         s3FileBytes = null;
+        s3FileBytesByKey = new LinkedHashMap<>();
+        cancellationTokenSet = new HashSet<>();
+        surveyTaskCount = 0;
+        lateTableToResult = new HashMap<>();
+        submittedTableIdList = new ArrayList<>();
+        statsByTableId = new HashMap<>();
+        lateCompletionList = new ArrayList<>();
+        stuckTableIdSet = new HashSet<>();
+        stuckFutureList = new ArrayList<>();
+
+        // Use a real S3 zip assembler with a mock S3 client. Test files are small, so segments are never uploaded on
+        // their own, and the zip is uploaded with a single put.
+        mockS3Client = mock(AmazonS3Client.class);
+        when(mockS3Client.putObject(any(PutObjectRequest.class))).then(invocation -> {
+            PutObjectRequest putRequest = invocation.getArgumentAt(0, PutObjectRequest.class);
+            assertEquals(putRequest.getBucketName(), DUMMY_USER_DATA_BUCKET);
+            assertTrue(putRequest.getKey().startsWith(TEST_MASTER_ZIP_FILE_PREFIX));
+            try (InputStream zipInputStream = putRequest.getInputStream()) {
+                s3FileBytes = ByteStreams.toByteArray(zipInputStream);
+            }
+            s3FileBytesByKey.put(putRequest.getKey(), s3FileBytes);
+
+            // late tables finish after the upload
+            lateCompletionList.forEach(Runnable::run);
+
+            return null;
+        });
+
+        s3ZipAssembler = new S3ZipAssembler();
+        s3ZipAssembler.setConfig(mockConfig);
+        s3ZipAssembler.setFileHelper(inMemoryFileHelper);
+        s3ZipAssembler.setS3Client(mockS3Client);
+        s3ZipAssembler.setZipHelper(zipHelper);
+        packager.setS3ZipAssembler(s3ZipAssembler);
+
+        // mock shared survey store, which stores segments without uploading them
+        sharedSurveyToContent = new HashMap<>();
+        mockSharedSurveyStore = mock(SharedSurveyStore.class);
+        when(mockSharedSurveyStore.put(any(String.class), any(String.class), any(ZipSegment.class))).then(
+                invocation -> invocation.getArgumentAt(2, ZipSegment.class));
+        packager.setSharedSurveyStore(mockSharedSurveyStore);
 
         // mock S3 helper
         // Different tests do different things with pre-signed URL, so leave that one alone.
         mockS3Helper = mock(S3Helper.class);
-        doAnswer(invocation -> {
-            // on cleanup, the file is destroyed, so we need to intercept that file now
-            File s3File = invocation.getArgumentAt(2, File.class);
-            s3FileBytes = inMemoryFileHelper.getBytes(s3File);
-
-            // needed because Answer declares a return type, even if it's Void
-            return null;
-        }).when(mockS3Helper).writeFileToS3(eq(DUMMY_USER_DATA_BUCKET), startsWith(TEST_MASTER_ZIP_FILE_PREFIX),
-                any(File.class));
         packager.setS3Helper(mockS3Helper);
     }
 
-    private File createFileWithContent(File tmpDir, String filename, String content) throws Exception {
+    // Random letters and digits. Deflate can only squeeze these down to about 3/4 of their size.
+    private static String randomText(Random random, int length) {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return builder.toString();
+    }
+
+    private void mockTableStats(String synapseTableId, long queryMillis) {
+        when(mockDynamoHelper.getSynapseTableStats(synapseTableId)).thenReturn(new SynapseTableStats.Builder()
+                .withSynapseTableId(synapseTableId).withStageMillis(PackagingStage.QUERY, queryMillis).build());
+    }
+
+    // Verifies the request was registered with and unregistered from the task graph executor. Returns the request's
+    // cancellation token.
+    private CancellationToken verifyRequestRegistered() {
+        ArgumentCaptor<CancellationToken> tokenCaptor = ArgumentCaptor.forClass(CancellationToken.class);
+        verify(mockTaskGraphExecutor).startRequest(tokenCaptor.capture(), contains("dummy-user"), eq("dummy-study"));
+        CancellationToken cancellationToken = tokenCaptor.getValue();
+        verify(mockTaskGraphExecutor).finishRequest(same(cancellationToken));
+        return cancellationToken;
+    }
+
+    private SynapseDownloadFromTableResult createTaskResult(File tmpDir, SynapseTaskResultContent taskResultContent)
+            throws IOException {
+        SynapseDownloadFromTableResult.Builder taskResultBuilder = new SynapseDownloadFromTableResult.Builder();
+        if (taskResultContent.getCsvFileContent() != null) {
+            File csvFile = createFileWithContent(tmpDir, taskResultContent.getCsvFileName(),
+                    taskResultContent.getCsvFileContent());
+            taskResultBuilder.withCsvFile(csvFile);
+        }
+        if (taskResultContent.getBulkDownloadFileContent() != null) {
+            File bulkDownloadFile = createFileWithContent(tmpDir, taskResultContent.getBulkDownloadFileName(),
+                    taskResultContent.getBulkDownloadFileContent());
+            taskResultBuilder.withBulkDownloadFile(bulkDownloadFile);
+        }
+        return taskResultBuilder.build();
+    }
+
+    // Creates a shared segment that only exists in the mock S3 client.
+    private ZipSegment createSharedSegment(File tmpDir, String synapseTableId, String content) throws IOException {
+        return createRemoteSegment(tmpDir, synapseTableId + ".csv", content, "survey-segments/" + synapseTableId +
+                "/" + TEST_SURVEY_ETAG + "/dummy-hash");
+    }
+
+    // Creates a segment that only exists in S3, under the given key, which is read from the mock S3 client.
+    private ZipSegment createRemoteSegment(File tmpDir, String filename, String content, String key)
+            throws IOException {
+        ZipHelper zipHelper = new ZipHelper();
+        zipHelper.setCompressionPolicy(new ZipCompressionPolicy());
+        zipHelper.setFileHelper(inMemoryFileHelper);
+
+        File file = createFileWithContent(tmpDir, filename, content);
+        File segmentFile = inMemoryFileHelper.newFile(tmpDir, filename + ".remote");
+        ZipSegment localSegment = zipHelper.writeSegment(file, segmentFile);
+        byte[] segmentBytes = inMemoryFileHelper.getBytes(segmentFile);
+        inMemoryFileHelper.deleteFile(file);
+        inMemoryFileHelper.deleteFile(segmentFile);
+
+        when(mockS3Client.getObject(DUMMY_USER_DATA_BUCKET, key)).then(invocation -> {
+            S3Object s3Object = new S3Object();
+            s3Object.setObjectContent(new ByteArrayInputStream(segmentBytes));
+            return s3Object;
+        });
+        return ZipSegment.fromS3Metadata(key, segmentBytes.length, localSegment.toS3Metadata());
+    }
+
+    private File createFileWithContent(File tmpDir, String filename, String content) throws IOException {
         File file = inMemoryFileHelper.newFile(tmpDir, filename);
         try (Writer fileWriter = inMemoryFileHelper.getWriter(file)) {
             fileWriter.write(content);
@@ -0,0 +1,114 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.udd.concurrent.PackagingStage;
+import org.sagebionetworks.bridge.udd.dynamodb.DynamoHelper;
+import org.sagebionetworks.bridge.udd.dynamodb.SynapseTableStats;
+
+public class SynapseTableStatsTrackerTest {
+    private DynamoHelper mockDynamoHelper;
+    private SynapseTableStatsTracker tracker;
+
+    @BeforeMethod
+    public void setup() {
+        mockDynamoHelper = mock(DynamoHelper.class);
+        tracker = new SynapseTableStatsTracker();
+        tracker.setDynamoHelper(mockDynamoHelper);
+    }
+
+    @Test
+    public void orderLargestFirst() {
+        mockStats("small-table", 10, 5);
+        mockStats("large-table", 1000, 0);
+        mockStats("medium-table", 50, 50);
+        mockStats("tied-table", 100, 0);
+
+        List<String> orderedList = tracker.orderLargestFirst(ImmutableList.of("small-table", "new-table-1",
+                "large-table", "medium-table", "new-table-2", "tied-table"));
+        assertEquals(orderedList, ImmutableList.of("new-table-1", "new-table-2", "large-table", "medium-table",
+                "tied-table", "small-table"));
+    }
+
+    @Test
+    public void statsCached() {
+        mockStats("test-table", 10, 20);
+        tracker.getStats("test-table");
+        tracker.getStats("test-table");
+        assertNull(tracker.getStats("new-table"));
+        assertNull(tracker.getStats("new-table"));
+
+        verify(mockDynamoHelper, times(1)).getSynapseTableStats("test-table");
+        verify(mockDynamoHelper, times(1)).getSynapseTableStats("new-table");
+    }
+
+    @Test
+    public void firstRunRecordedAsIs() {
+        SynapseTableStats sample = new SynapseTableStats.Builder().withSynapseTableId("test-table").withCsvBytes(100)
+                .withAttachmentCount(4).withStageMillis(PackagingStage.QUERY, 40).build();
+        tracker.recordRun(sample);
+
+        verify(mockDynamoHelper).putSynapseTableStats(sample);
+        assertSame(tracker.getStats("test-table"), sample);
+    }
+
+    @Test
+    public void runMergedIntoHistory() {
+        when(mockDynamoHelper.getSynapseTableStats("test-table")).thenReturn(new SynapseTableStats.Builder()
+                .withSynapseTableId("test-table").withRunCount(3).withCsvBytes(1000).withAttachmentCount(100)
+                .withStageMillis(PackagingStage.QUERY, 400).withStageMillis(PackagingStage.BULK_DOWNLOAD, 800)
+                .build());
+
+        tracker.recordRun(new SynapseTableStats.Builder().withSynapseTableId("test-table").withCsvBytes(2000)
+                .withAttachmentCount(0).withStageMillis(PackagingStage.QUERY, 800)
+                .withStageMillis(PackagingStage.EDIT, 400).build());
+
+        // The newest run has a weight of 25%.
+        ArgumentCaptor<SynapseTableStats> statsCaptor = ArgumentCaptor.forClass(SynapseTableStats.class);
+        verify(mockDynamoHelper).putSynapseTableStats(statsCaptor.capture());
+        SynapseTableStats merged = statsCaptor.getValue();
+        assertEquals(merged.getSynapseTableId(), "test-table");
+        assertEquals(merged.getRunCount(), 4);
+        assertEquals(merged.getCsvBytes(), 1250);
+        assertEquals(merged.getAttachmentCount(), 75);
+        assertEquals(merged.getStageMillisMap().get(PackagingStage.QUERY).longValue(), 500);
+        assertEquals(merged.getStageMillisMap().get(PackagingStage.BULK_DOWNLOAD).longValue(), 600);
+        assertEquals(merged.getStageMillisMap().get(PackagingStage.EDIT).longValue(), 100);
+        assertSame(tracker.getStats("test-table"), merged);
+    }
+
+    @Test
+    public void ddbErrorsIgnored() {
+        when(mockDynamoHelper.getSynapseTableStats("test-table")).thenThrow(RuntimeException.class);
+        doThrow(RuntimeException.class).when(mockDynamoHelper).putSynapseTableStats(any(SynapseTableStats.class));
+
+        assertNull(tracker.getStats("test-table"));
+
+        SynapseTableStats sample = new SynapseTableStats.Builder().withSynapseTableId("test-table").build();
+        tracker.recordRun(sample);
+
+        // We still keep the stats in memory.
+        assertSame(tracker.getStats("test-table"), sample);
+    }
+
+    private void mockStats(String synapseTableId, long queryMillis, long editMillis) {
+        when(mockDynamoHelper.getSynapseTableStats(synapseTableId)).thenReturn(new SynapseTableStats.Builder()
+                .withSynapseTableId(synapseTableId).withStageMillis(PackagingStage.QUERY, queryMillis)
+                .withStageMillis(PackagingStage.EDIT, editMillis).build());
+    }
+}
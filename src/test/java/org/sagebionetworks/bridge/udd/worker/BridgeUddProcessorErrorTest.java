@@ -15,6 +15,7 @@ import org.sagebionetworks.bridge.json.DefaultObjectMapper;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
 import org.sagebionetworks.bridge.udd.accounts.BridgeHelper;
 import org.sagebionetworks.bridge.udd.dynamodb.DynamoHelper;
+import org.sagebionetworks.bridge.udd.dynamodb.StudyMetadataCache;
 import org.sagebionetworks.bridge.udd.helper.SesHelper;
 import org.sagebionetworks.bridge.udd.synapse.SynapsePackager;
 
@@ -44,10 +45,15 @@ public class BridgeUddProcessorErrorTest {
         // mock Synapse packager
         SynapsePackager mockPackager = mock(SynapsePackager.class);
 
+        // Study metadata cache with no config, so it's disabled and passes through to the mock dynamo helper.
+        StudyMetadataCache studyMetadataCache = new StudyMetadataCache();
+        studyMetadataCache.setDynamoHelper(mockDynamoHelper);
+        studyMetadataCache.init();
+
         // set up callback
         BridgeUddProcessor callback = new BridgeUddProcessor();
         callback.setBridgeHelper(mockBridgeHelper);
-        callback.setDynamoHelper(mockDynamoHelper);
+        callback.setStudyMetadataCache(studyMetadataCache);
         callback.setSesHelper(mockSesHelper);
         callback.setSynapsePackager(mockPackager);
 
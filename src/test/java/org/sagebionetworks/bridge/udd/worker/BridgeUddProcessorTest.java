@@ -3,23 +3,33 @@ package org.sagebionetworks.bridge.udd.worker;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.fail;
 
 import java.io.IOException;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+import org.joda.time.DateTimeUtils;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
 import org.sagebionetworks.bridge.rest.exceptions.BridgeSDKException;
 import org.sagebionetworks.bridge.rest.exceptions.EntityNotFoundException;
 import org.sagebionetworks.bridge.rest.model.Phone;
@@ -27,11 +37,14 @@ import org.sagebionetworks.bridge.schema.UploadSchema;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
 import org.sagebionetworks.bridge.udd.accounts.AccountInfo;
 import org.sagebionetworks.bridge.udd.accounts.BridgeHelper;
+import org.sagebionetworks.bridge.udd.concurrent.CancellationToken;
 import org.sagebionetworks.bridge.udd.dynamodb.DynamoHelper;
 import org.sagebionetworks.bridge.udd.dynamodb.StudyInfo;
+import org.sagebionetworks.bridge.udd.dynamodb.StudyMetadataCache;
 import org.sagebionetworks.bridge.udd.helper.SesHelper;
 import org.sagebionetworks.bridge.udd.helper.SnsHelper;
 import org.sagebionetworks.bridge.udd.s3.PresignedUrlInfo;
+import org.sagebionetworks.bridge.udd.synapse.ResultIndex;
 import org.sagebionetworks.bridge.udd.synapse.SynapsePackager;
 
 @SuppressWarnings("unchecked")
@@ -77,6 +90,7 @@ public class BridgeUddProcessorTest {
     private BridgeUddProcessor callback;
     private BridgeHelper mockBridgeHelper;
     private SynapsePackager mockPackager;
+    private SynapsePackager.PackagingSession mockPackagingSession;
     private SesHelper mockSesHelper;
     private SnsHelper mockSnsHelper;
 
@@ -90,7 +104,7 @@ public class BridgeUddProcessorTest {
     public void setup() throws Exception {
         // mock BridgeHelper
         mockBridgeHelper = mock(BridgeHelper.class);
-        when(mockBridgeHelper.getAccountInfo(STUDY_ID, USER_ID)).thenReturn(USER_ID_ACCOUNT_INFO);
+        mockAccountInfo(USER_ID_ACCOUNT_INFO);
 
         // mock dynamo helper
         DynamoHelper mockDynamoHelper = mock(DynamoHelper.class);
@@ -106,22 +120,35 @@ public class BridgeUddProcessorTest {
         
         // mock Synapse packager
         mockPackager = mock(SynapsePackager.class);
+        mockPackagingSession = mock(SynapsePackager.PackagingSession.class);
+        when(mockPackager.startPackaging(any(BridgeUddRequest.class), same(MOCK_SURVEY_TABLE_ID_SET),
+                any(CancellationToken.class))).thenReturn(mockPackagingSession);
+
+        // Study metadata cache with no config, so it's disabled and passes through to the mock dynamo helper.
+        StudyMetadataCache studyMetadataCache = new StudyMetadataCache();
+        studyMetadataCache.setDynamoHelper(mockDynamoHelper);
+        studyMetadataCache.init();
 
         // set up callback
         callback = new BridgeUddProcessor();
         callback.setBridgeHelper(mockBridgeHelper);
-        callback.setDynamoHelper(mockDynamoHelper);
+        callback.setStudyMetadataCache(studyMetadataCache);
         callback.setSesHelper(mockSesHelper);
         callback.setSnsHelper(mockSnsHelper);
         callback.setSynapsePackager(mockPackager);
     }
 
+    @AfterMethod
+    public void cleanup() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
     @Test
     public void noData() throws Exception {
         mockPackagerWithResult(null);
         callback.process(userIdRequestJson);
         verifySesNoData();
-        verify(mockBridgeHelper).getAccountInfo(STUDY_ID, USER_ID);
+        verify(mockBridgeHelper).getAccountInfoAsync(STUDY_ID, USER_ID);
     }
 
     @Test
@@ -129,15 +156,86 @@ public class BridgeUddProcessorTest {
         mockPackagerWithResult(MOCK_PRESIGNED_URL_INFO);
         callback.process(userIdRequestJson);
         verifySesSendsData();
-        verify(mockBridgeHelper).getAccountInfo(STUDY_ID, USER_ID);
+        verify(mockBridgeHelper).getAccountInfoAsync(STUDY_ID, USER_ID);
+        verify(mockPackagingSession).close();
+    }
+
+    @Test
+    public void surveysStartWhileAccountLookupRuns() throws Exception {
+        // The account lookup finishes once surveys have started, so this also checks they start before we wait.
+        CompletableFuture<AccountInfo> accountInfoFuture = new CompletableFuture<>();
+        when(mockBridgeHelper.getAccountInfoAsync(STUDY_ID, USER_ID)).thenReturn(accountInfoFuture);
+        doAnswer(invocation -> accountInfoFuture.complete(USER_ID_ACCOUNT_INFO)).when(mockPackagingSession)
+                .startSurveys();
+
+        mockPackagerWithResult(MOCK_PRESIGNED_URL_INFO);
+        callback.process(userIdRequestJson);
+        verifySesSendsData();
+        verify(mockPackagingSession).startSurveys();
+        verify(mockPackagingSession).close();
+    }
+
+    @Test
+    public void surveysStartEvenIfAccountAlreadyKnown() throws Exception {
+        // Whether surveys start early doesn't depend on how fast the account lookup was.
+        mockPackagerWithResult(MOCK_PRESIGNED_URL_INFO);
+        callback.process(userIdRequestJson);
+        verify(mockPackagingSession).startSurveys();
+    }
+
+    @Test
+    public void noHealthCode() throws Exception {
+        mockAccountInfo(ACCOUNT_INFO_NO_HEALTH_CODE);
+        try {
+            callback.process(userIdRequestJson);
+            fail("expected exception");
+        } catch (PollSqsWorkerBadRequestException ex) {
+            // expected exception
+        }
+
+        // The packaging session is cleaned up, even though we never packaged.
+        verify(mockPackager, never()).packageSynapseData(any(SynapsePackager.PackagingSession.class),
+                any(Map.class), any(String.class));
+        verify(mockPackagingSession).close();
+    }
+
+    @Test
+    public void requestTimeBudget() throws Exception {
+        // Fix the clock, so we can check the deadline exactly.
+        DateTimeUtils.setCurrentMillisFixed(1000);
+
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(BridgeUddProcessor.CONFIG_KEY_REQUEST_TIME_BUDGET_MINUTES)).thenReturn(60);
+        callback.setConfig(mockConfig);
+
+        mockPackagerWithResult(MOCK_PRESIGNED_URL_INFO);
+        callback.process(userIdRequestJson);
+        verifySesSendsData();
+
+        CancellationToken cancellationToken = verifyPackagerCancellationToken();
+        assertEquals(cancellationToken.getRemainingMillis(), 60 * 60 * 1000);
+        assertFalse(cancellationToken.isCancelled());
+    }
+
+    @Test
+    public void noRequestTimeBudget() throws Exception {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(BridgeUddProcessor.CONFIG_KEY_REQUEST_TIME_BUDGET_MINUTES)).thenReturn(0);
+        callback.setConfig(mockConfig);
+
+        mockPackagerWithResult(MOCK_PRESIGNED_URL_INFO);
+        callback.process(userIdRequestJson);
+        verifySesSendsData();
+
+        CancellationToken cancellationToken = verifyPackagerCancellationToken();
+        assertEquals(cancellationToken.getRemainingMillis(), Long.MAX_VALUE);
     }
 
     @Test(expectedExceptions = PollSqsWorkerBadRequestException.class)
     public void byUserIdBadRequest() throws Exception {
         // Note: We need to manuall instantiate the exception. Otherwise, mock does something funky and bypasses the
         // constructor that sets the status code.
-        when(mockBridgeHelper.getAccountInfo(STUDY_ID, USER_ID)).thenThrow(new EntityNotFoundException(
-                "text exception", null));
+        mockAccountInfoError(new EntityNotFoundException("text exception", null));
         callback.process(userIdRequestJson);
     }
 
@@ -145,8 +243,7 @@ public class BridgeUddProcessorTest {
     public void byUserIdBridgeInternalError() throws Exception {
         // Note: We need to manuall instantiate the exception. Otherwise, mock does something funky and bypasses the
         // constructor that sets the status code.
-        when(mockBridgeHelper.getAccountInfo(STUDY_ID, USER_ID)).thenThrow(new BridgeSDKException("test exception",
-                null));
+        mockAccountInfoError(new BridgeSDKException("test exception", null));
         callback.process(userIdRequestJson);
     }
 
@@ -161,7 +258,7 @@ public class BridgeUddProcessorTest {
         
         AccountInfo accountInfo = new AccountInfo.Builder().withHealthCode(HEALTH_CODE).withUserId(USER_ID)
                 .withPhone(phone).build();
-        when(mockBridgeHelper.getAccountInfo(STUDY_ID, USER_ID)).thenReturn(accountInfo);
+        mockAccountInfo(accountInfo);
         
         mockPackagerWithResult(MOCK_PRESIGNED_URL_INFO);
         callback.process(userIdRequestJson);
@@ -169,7 +266,7 @@ public class BridgeUddProcessorTest {
                 same(accountInfo));
         verifyNoMoreInteractions(mockSnsHelper);
         verifyNoMoreInteractions(mockSesHelper);
-        verify(mockBridgeHelper).getAccountInfo(STUDY_ID, USER_ID);
+        verify(mockBridgeHelper).getAccountInfoAsync(STUDY_ID, USER_ID);
     }
     
     @Test
@@ -178,7 +275,7 @@ public class BridgeUddProcessorTest {
         
         AccountInfo accountInfo = new AccountInfo.Builder().withHealthCode(HEALTH_CODE).withUserId(USER_ID)
                 .withPhone(phone).build();
-        when(mockBridgeHelper.getAccountInfo(STUDY_ID, USER_ID)).thenReturn(accountInfo);
+        mockAccountInfo(accountInfo);
         
         mockPackagerWithResult(null);
         callback.process(userIdRequestJson);
@@ -186,12 +283,114 @@ public class BridgeUddProcessorTest {
         verify(mockSnsHelper).sendNoDataMessageToAccount(same(MOCK_STUDY_INFO), same(accountInfo));
         verifyNoMoreInteractions(mockSnsHelper);
         verifyNoMoreInteractions(mockSesHelper);
-        verify(mockBridgeHelper).getAccountInfo(STUDY_ID, USER_ID);        
+        verify(mockBridgeHelper).getAccountInfoAsync(STUDY_ID, USER_ID);        
+    }
+
+    @Test
+    public void resultIndexHit() throws Exception {
+        ResultIndex mockResultIndex = mockResultIndex();
+        when(mockResultIndex.find("test-fingerprint")).thenReturn(MOCK_PRESIGNED_URL_INFO);
+        callback.setResultIndex(mockResultIndex);
+
+        callback.process(userIdRequestJson);
+        verifySesSendsData();
+
+        // Packaging never starts, so the request takes no temp storage and downloads no surveys.
+        verify(mockPackager, never()).startPackaging(any(BridgeUddRequest.class), any(Set.class),
+                any(CancellationToken.class));
+        verify(mockResultIndex, never()).put(any(String.class), any(PresignedUrlInfo.class));
+    }
+
+    @Test
+    public void resultIndexMiss() throws Exception {
+        ResultIndex mockResultIndex = mockResultIndex();
+        when(mockResultIndex.find("test-fingerprint")).thenReturn(null);
+        callback.setResultIndex(mockResultIndex);
+
+        mockPackagerWithResult(MOCK_PRESIGNED_URL_INFO);
+        callback.process(userIdRequestJson);
+        verifySesSendsData();
+        verify(mockPackagingSession).close();
+
+        // Surveys wait for the index lookup, so they only start once a table has data.
+        verify(mockPackagingSession, never()).startSurveys();
+
+        // The new download is recorded, so the next identical request can reuse it.
+        verify(mockResultIndex).put("test-fingerprint", MOCK_PRESIGNED_URL_INFO);
+    }
+
+    @Test
+    public void resultIndexDisabled() throws Exception {
+        ResultIndex mockResultIndex = mock(ResultIndex.class);
+        when(mockResultIndex.isEnabled()).thenReturn(false);
+        callback.setResultIndex(mockResultIndex);
+
+        mockPackagerWithResult(MOCK_PRESIGNED_URL_INFO);
+        callback.process(userIdRequestJson);
+        verifySesSendsData();
+
+        // Packaged as if there were no index.
+        verify(mockPackagingSession).startSurveys();
+        verify(mockResultIndex, never()).getFingerprint(any(String.class), any(BridgeUddRequest.class),
+                any(Map.class), any(Set.class));
+        verify(mockResultIndex, never()).put(any(String.class), any(PresignedUrlInfo.class));
+    }
+
+    @Test
+    public void coalescedRequest() throws Exception {
+        // An identical request is in flight, so the coalescer returns its result without packaging.
+        RequestCoalescer mockCoalescer = mock(RequestCoalescer.class);
+        when(mockCoalescer.coalesce(any(BridgeUddRequest.class), any(CancellationToken.class),
+                any(RequestCoalescer.PackagingCall.class))).thenReturn(MOCK_PRESIGNED_URL_INFO);
+        callback.setRequestCoalescer(mockCoalescer);
+
+        callback.process(userIdRequestJson);
+
+        // This request still sends its own notification.
+        verifySesSendsData();
+        verify(mockBridgeHelper).getAccountInfoAsync(STUDY_ID, USER_ID);
+        verify(mockPackager, never()).startPackaging(any(BridgeUddRequest.class), any(Set.class),
+                any(CancellationToken.class));
+    }
+
+    @Test
+    public void coalescerRunsPackaging() throws Exception {
+        callback.setRequestCoalescer(new RequestCoalescer());
+        mockPackagerWithResult(MOCK_PRESIGNED_URL_INFO);
+        callback.process(userIdRequestJson);
+        verifySesSendsData();
+        verify(mockPackagingSession).close();
+    }
+
+    private static ResultIndex mockResultIndex() {
+        ResultIndex mockResultIndex = mock(ResultIndex.class);
+        when(mockResultIndex.isEnabled()).thenReturn(true);
+        when(mockResultIndex.getFingerprint(eq(HEALTH_CODE), any(BridgeUddRequest.class),
+                same(MOCK_SYNAPSE_TO_SCHEMA), same(MOCK_SURVEY_TABLE_ID_SET))).thenReturn("test-fingerprint");
+        return mockResultIndex;
+    }
+
+    private void mockAccountInfo(AccountInfo accountInfo) {
+        when(mockBridgeHelper.getAccountInfoAsync(STUDY_ID, USER_ID)).thenReturn(CompletableFuture.completedFuture(
+                accountInfo));
+    }
+
+    private void mockAccountInfoError(Exception ex) {
+        CompletableFuture<AccountInfo> accountInfoFuture = new CompletableFuture<>();
+        accountInfoFuture.completeExceptionally(ex);
+        when(mockBridgeHelper.getAccountInfoAsync(STUDY_ID, USER_ID)).thenReturn(accountInfoFuture);
     }
 
     private void mockPackagerWithResult(PresignedUrlInfo presignedUrlInfo) throws Exception {
-        when(mockPackager.packageSynapseData(same(MOCK_SYNAPSE_TO_SCHEMA), eq(HEALTH_CODE),
-                any(BridgeUddRequest.class), same(MOCK_SURVEY_TABLE_ID_SET))).thenReturn(presignedUrlInfo);
+        when(mockPackager.packageSynapseData(same(mockPackagingSession), same(MOCK_SYNAPSE_TO_SCHEMA),
+                eq(HEALTH_CODE))).thenReturn(presignedUrlInfo);
+    }
+
+    private CancellationToken verifyPackagerCancellationToken() throws Exception {
+        ArgumentCaptor<CancellationToken> cancellationTokenCaptor = ArgumentCaptor.forClass(CancellationToken.class);
+        verify(mockPackager).startPackaging(any(BridgeUddRequest.class), same(MOCK_SURVEY_TABLE_ID_SET),
+                cancellationTokenCaptor.capture());
+        return cancellationTokenCaptor.getValue();
     }
 
     private void verifySesNoData() {
@@ -0,0 +1,302 @@
+package org.sagebionetworks.bridge.udd.worker;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.joda.time.DateTimeUtils;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
+
+public class BridgeUddWorkerPoolTest {
+    private static final long NOW_MILLIS = 1500000000000L;
+    private static final String QUEUE_URL = "https://example.com/test-queue";
+    private static final String RECEIPT_HANDLE = "test-receipt-handle";
+    private static final String REQUEST_JSON_TEXT = "{\"studyId\":\"test-study\",\"userId\":\"test-user\"," +
+            "\"startDate\":\"2017-01-01\",\"endDate\":\"2017-01-31\"}";
+
+    private BridgeUddWorkerPool pool;
+    private BridgeUddProcessor mockProcessor;
+    private RequestSlotManager slotManager;
+    private AmazonSQSClient mockSqsClient;
+
+    @BeforeMethod
+    public void setup() {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get(BridgeUddWorkerPool.CONFIG_KEY_QUEUE_URL)).thenReturn(QUEUE_URL);
+        when(mockConfig.getInt(BridgeUddWorkerPool.CONFIG_KEY_SLEEP_TIME_MILLIS)).thenReturn(0);
+        when(mockConfig.getInt(RequestSlotManager.CONFIG_KEY_MAX_COUNT)).thenReturn(1);
+
+        slotManager = new RequestSlotManager();
+        slotManager.setConfig(mockConfig);
+        slotManager.init();
+
+        mockProcessor = mock(BridgeUddProcessor.class);
+        mockSqsClient = mock(AmazonSQSClient.class);
+
+        pool = new BridgeUddWorkerPool();
+        pool.setConfig(mockConfig);
+        pool.setProcessor(mockProcessor);
+        pool.setSlotManager(slotManager);
+        pool.setSqsClient(mockSqsClient);
+    }
+
+    @Test
+    public void success() throws Exception {
+        mockMessage(REQUEST_JSON_TEXT);
+        assertTrue(pool.pollOnce());
+
+        ArgumentCaptor<JsonNode> bodyCaptor = ArgumentCaptor.forClass(JsonNode.class);
+        verify(mockProcessor).process(bodyCaptor.capture());
+        assertEquals(bodyCaptor.getValue().get("userId").textValue(), "test-user");
+        verify(mockSqsClient).deleteMessage(QUEUE_URL, RECEIPT_HANDLE);
+
+        // The receive waits for a message, and only takes one.
+        ArgumentCaptor<ReceiveMessageRequest> receiveCaptor = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+        verify(mockSqsClient).receiveMessage(receiveCaptor.capture());
+        assertEquals(receiveCaptor.getValue().getQueueUrl(), QUEUE_URL);
+        assertEquals(receiveCaptor.getValue().getMaxNumberOfMessages().intValue(), 1);
+        assertEquals(receiveCaptor.getValue().getWaitTimeSeconds().intValue(),
+                BridgeUddWorkerPool.RECEIVE_WAIT_SECONDS);
+
+        // The slot is released, with metrics.
+        RequestSlot slot = slotManager.getSlotList().get(0);
+        assertEquals(slotManager.getBusyCount(), 0);
+        assertEquals(slot.getRequestCount(), 1);
+        assertEquals(slot.getFailureCount(), 0);
+    }
+
+    @Test
+    public void badRequestIsDeleted() throws Exception {
+        mockMessage(REQUEST_JSON_TEXT);
+        doThrow(PollSqsWorkerBadRequestException.class).when(mockProcessor).process(any(JsonNode.class));
+        assertTrue(pool.pollOnce());
+
+        verify(mockSqsClient).deleteMessage(QUEUE_URL, RECEIPT_HANDLE);
+        assertEquals(slotManager.getSlotList().get(0).getFailureCount(), 1);
+    }
+
+    @Test
+    public void malformedMessageIsDeleted() throws Exception {
+        mockMessage("not json");
+        assertTrue(pool.pollOnce());
+
+        verify(mockProcessor, never()).process(any(JsonNode.class));
+        verify(mockSqsClient).deleteMessage(QUEUE_URL, RECEIPT_HANDLE);
+    }
+
+    @Test
+    public void errorIsRetried() throws Exception {
+        mockMessage(REQUEST_JSON_TEXT);
+        doThrow(RuntimeException.class).when(mockProcessor).process(any(JsonNode.class));
+        assertTrue(pool.pollOnce());
+
+        // The message isn't deleted, so SQS makes it visible again.
+        verify(mockSqsClient, never()).deleteMessage(any(String.class), any(String.class));
+        assertEquals(slotManager.getSlotList().get(0).getFailureCount(), 1);
+        assertEquals(slotManager.getBusyCount(), 0);
+    }
+
+    @Test
+    public void deleteErrorIsLogged() throws Exception {
+        mockMessage(REQUEST_JSON_TEXT);
+        doThrow(AmazonClientException.class).when(mockSqsClient).deleteMessage(QUEUE_URL, RECEIPT_HANDLE);
+        assertTrue(pool.pollOnce());
+        assertEquals(slotManager.getBusyCount(), 0);
+    }
+
+    @Test
+    public void noMessage() throws Exception {
+        when(mockSqsClient.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(new ReceiveMessageResult());
+        assertFalse(pool.pollOnce());
+        verifyZeroInteractions(mockProcessor);
+        assertEquals(slotManager.getBusyCount(), 0);
+    }
+
+    @Test
+    public void noSlot() throws Exception {
+        // The only slot is taken, so we don't receive any messages.
+        slotManager.tryAcquire();
+        assertFalse(pool.pollOnce());
+        verifyZeroInteractions(mockSqsClient, mockProcessor);
+    }
+
+    @Test
+    public void claimedRequestRunsWithHeartbeat() throws Exception {
+        RequestClaim claim = RequestClaim.owned("test-key", "test-owner");
+        RequestClaimManager mockClaimManager = mockClaimManager(claim);
+        ScheduledFuture<?> mockHeartbeatFuture = mock(ScheduledFuture.class);
+        VisibilityHeartbeat mockHeartbeat = mock(VisibilityHeartbeat.class);
+        doReturn(mockHeartbeatFuture).when(mockHeartbeat).start(eq(QUEUE_URL), eq(RECEIPT_HANDLE),
+                any(Runnable.class));
+        pool.setHeartbeat(mockHeartbeat);
+
+        mockMessage(REQUEST_JSON_TEXT);
+        assertTrue(pool.pollOnce());
+
+        verify(mockProcessor).process(any(JsonNode.class));
+        verify(mockSqsClient).deleteMessage(QUEUE_URL, RECEIPT_HANDLE);
+        verify(mockHeartbeatFuture).cancel(false);
+        verify(mockClaimManager).complete(claim);
+        verify(mockClaimManager, never()).release(any(RequestClaim.class));
+
+        // The heartbeat renews the claim.
+        ArgumentCaptor<Runnable> onBeatCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(mockHeartbeat).start(eq(QUEUE_URL), eq(RECEIPT_HANDLE), onBeatCaptor.capture());
+        onBeatCaptor.getValue().run();
+        verify(mockClaimManager).renew(claim);
+    }
+
+    @Test
+    public void failedRequestReleasesClaim() throws Exception {
+        RequestClaim claim = RequestClaim.owned("test-key", "test-owner");
+        RequestClaimManager mockClaimManager = mockClaimManager(claim);
+        mockMessage(REQUEST_JSON_TEXT);
+        doThrow(RuntimeException.class).when(mockProcessor).process(any(JsonNode.class));
+        assertTrue(pool.pollOnce());
+
+        verify(mockSqsClient, never()).deleteMessage(any(String.class), any(String.class));
+        verify(mockClaimManager).release(claim);
+        verify(mockClaimManager, never()).complete(any(RequestClaim.class));
+    }
+
+    @Test
+    public void duplicateIsDropped() throws Exception {
+        RequestClaimManager mockClaimManager = mockClaimManager(RequestClaim.heldElsewhere("test-key",
+                "other-message", false, 0));
+        mockMessage(REQUEST_JSON_TEXT);
+        assertTrue(pool.pollOnce());
+
+        verify(mockProcessor, never()).process(any(JsonNode.class));
+        verify(mockSqsClient).deleteMessage(QUEUE_URL, RECEIPT_HANDLE);
+        verify(mockClaimManager, never()).complete(any(RequestClaim.class));
+        verify(mockClaimManager, never()).release(any(RequestClaim.class));
+        assertEquals(slotManager.getSlotList().get(0).getFailureCount(), 0);
+    }
+
+    @Test
+    public void redeliveryOfDoneMessageIsDropped() throws Exception {
+        mockClaimManager(RequestClaim.heldElsewhere("test-key", "test-message", true, 0));
+        mockMessage(REQUEST_JSON_TEXT);
+        assertTrue(pool.pollOnce());
+
+        verify(mockProcessor, never()).process(any(JsonNode.class));
+        verify(mockSqsClient).deleteMessage(QUEUE_URL, RECEIPT_HANDLE);
+    }
+
+    @Test
+    public void repeatOfDoneRequestRuns() throws Exception {
+        // The user asked again after the earlier request finished. They still need to be sent the result.
+        RequestClaimManager mockClaimManager = mockClaimManager(RequestClaim.heldElsewhere("test-key",
+                "other-message", true, 0));
+        mockMessage(REQUEST_JSON_TEXT);
+        assertTrue(pool.pollOnce());
+
+        verify(mockProcessor).process(any(JsonNode.class));
+        verify(mockSqsClient).deleteMessage(QUEUE_URL, RECEIPT_HANDLE);
+        verify(mockClaimManager, never()).complete(any(RequestClaim.class));
+        verify(mockClaimManager, never()).release(any(RequestClaim.class));
+    }
+
+    @Test
+    public void redeliveryOfRunningMessageIsLeft() throws Exception {
+        DateTimeUtils.setCurrentMillisFixed(NOW_MILLIS);
+        try {
+            mockClaimManager(RequestClaim.heldElsewhere("test-key", "test-message", false, NOW_MILLIS + 300 * 1000));
+            mockMessage(REQUEST_JSON_TEXT);
+            assertTrue(pool.pollOnce());
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+
+        // The node running the message might fail, so the message is left in the queue, hidden until the claim lapses.
+        verify(mockProcessor, never()).process(any(JsonNode.class));
+        verify(mockSqsClient, never()).deleteMessage(any(String.class), any(String.class));
+        verify(mockSqsClient).changeMessageVisibility(QUEUE_URL, RECEIPT_HANDLE, 300);
+    }
+
+    @Test
+    public void redeliveryOfRunningMessageHideError() throws Exception {
+        mockClaimManager(RequestClaim.heldElsewhere("test-key", "test-message", false,
+                DateTimeUtils.currentTimeMillis() + 300 * 1000));
+        doThrow(AmazonClientException.class).when(mockSqsClient).changeMessageVisibility(eq(QUEUE_URL),
+                eq(RECEIPT_HANDLE), any(Integer.class));
+        mockMessage(REQUEST_JSON_TEXT);
+
+        // The error is logged. The message reappears when its current visibility timeout runs out.
+        assertTrue(pool.pollOnce());
+        verify(mockSqsClient, never()).deleteMessage(any(String.class), any(String.class));
+    }
+
+    @Test
+    public void noHeartbeatWhenDisabled() throws Exception {
+        RequestClaim claim = RequestClaim.untracked("test-key");
+        mockClaimManager(claim);
+        VisibilityHeartbeat mockHeartbeat = mock(VisibilityHeartbeat.class);
+        when(mockHeartbeat.start(eq(QUEUE_URL), eq(RECEIPT_HANDLE), any(Runnable.class))).thenReturn(null);
+        pool.setHeartbeat(mockHeartbeat);
+
+        mockMessage(REQUEST_JSON_TEXT);
+        assertTrue(pool.pollOnce());
+        verify(mockProcessor).process(any(JsonNode.class));
+        verify(mockSqsClient).deleteMessage(QUEUE_URL, RECEIPT_HANDLE);
+    }
+
+    @Test
+    public void disabledDoesNotStart() {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(RequestSlotManager.CONFIG_KEY_MAX_COUNT)).thenReturn(0);
+        slotManager.setConfig(mockConfig);
+        slotManager.init();
+
+        ExecutorService mockExecutor = mock(ExecutorService.class);
+        pool.setSlotExecutor(mockExecutor);
+        pool.start();
+        verifyZeroInteractions(mockExecutor);
+    }
+
+    @Test
+    public void startsPollerPerSlot() {
+        ExecutorService mockExecutor = mock(ExecutorService.class);
+        pool.setSlotExecutor(mockExecutor);
+        pool.start();
+        verify(mockExecutor).execute(any(Runnable.class));
+        pool.stop();
+    }
+
+    private RequestClaimManager mockClaimManager(RequestClaim claim) {
+        RequestClaimManager mockClaimManager = mock(RequestClaimManager.class);
+        when(mockClaimManager.tryClaim(any(BridgeUddRequest.class), eq("test-message"))).thenReturn(claim);
+        pool.setClaimManager(mockClaimManager);
+        return mockClaimManager;
+    }
+
+    private void mockMessage(String body) {
+        Message message = new Message().withMessageId("test-message").withReceiptHandle(RECEIPT_HANDLE)
+                .withBody(body);
+        when(mockSqsClient.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(new ReceiveMessageResult()
+                .withMessages(message));
+    }
+}
@@ -0,0 +1,253 @@
+package org.sagebionetworks.bridge.udd.worker;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Map;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.DeleteItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import org.joda.time.DateTimeUtils;
+import org.joda.time.LocalDate;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+
+public class RequestClaimManagerTest {
+    private static final long NOW_MILLIS = 1500000000000L;
+    private static final String MESSAGE_ID = "test-message";
+    private static final BridgeUddRequest REQUEST = new BridgeUddRequest.Builder().withStudyId("test-study")
+            .withUserId("test-user").withStartDate(LocalDate.parse("2017-01-01"))
+            .withEndDate(LocalDate.parse("2017-01-31")).build();
+    private static final String REQUEST_KEY = "test-study:test-user:2017-01-01:2017-01-31";
+
+    private RequestClaimManager manager;
+    private Table mockTable;
+
+    @BeforeMethod
+    public void setup() {
+        DateTimeUtils.setCurrentMillisFixed(NOW_MILLIS);
+
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get(RequestClaimManager.CONFIG_KEY_ENABLED)).thenReturn("true");
+        when(mockConfig.getInt(RequestClaimManager.CONFIG_KEY_TTL_SECONDS)).thenReturn(600);
+        when(mockConfig.getInt(RequestClaimManager.CONFIG_KEY_DONE_RETENTION_MINUTES)).thenReturn(60);
+
+        mockTable = mock(Table.class);
+
+        manager = new RequestClaimManager();
+        manager.setConfig(mockConfig);
+        manager.setClaimTable(mockTable);
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void claimed() {
+        RequestClaim claim = manager.tryClaim(REQUEST, MESSAGE_ID);
+        assertTrue(claim.isClaimed());
+        assertTrue(claim.isTracked());
+        assertNotNull(claim.getOwnerId());
+        assertEquals(claim.getRequestKey(), REQUEST_KEY);
+
+        ArgumentCaptor<Item> itemCaptor = ArgumentCaptor.forClass(Item.class);
+        ArgumentCaptor<Map> valueMapCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(mockTable).putItem(itemCaptor.capture(), eq("attribute_not_exists(requestKey) OR expiresOn < :now"),
+                any(Map.class), valueMapCaptor.capture());
+
+        Item item = itemCaptor.getValue();
+        assertEquals(item.getString(RequestClaimManager.KEY_REQUEST_KEY), REQUEST_KEY);
+        assertEquals(item.getString(RequestClaimManager.KEY_OWNER_ID), claim.getOwnerId());
+        assertEquals(item.getString(RequestClaimManager.KEY_MESSAGE_ID), MESSAGE_ID);
+        assertEquals(item.getString(RequestClaimManager.KEY_CLAIM_STATUS), RequestClaimManager.STATUS_RUNNING);
+        assertEquals(item.getLong(RequestClaimManager.KEY_EXPIRES_ON), NOW_MILLIS + 600 * 1000);
+        assertEquals(item.getLong(RequestClaimManager.KEY_EXPIRES_ON_SECONDS), NOW_MILLIS / 1000 + 600);
+        assertEquals(((Number) valueMapCaptor.getValue().get(":now")).longValue(), NOW_MILLIS);
+        assertEquals(manager.getDuplicateCount(), 0);
+    }
+
+    @Test
+    public void duplicate() {
+        mockHeldClaim("other-message", RequestClaimManager.STATUS_RUNNING);
+
+        RequestClaim claim = manager.tryClaim(REQUEST, MESSAGE_ID);
+        assertFalse(claim.isClaimed());
+        assertFalse(claim.isTracked());
+        assertEquals(claim.getHeldMessageId(), "other-message");
+        assertFalse(claim.isHeldDone());
+        assertFalse(claim.isHeldByRunningMessage(MESSAGE_ID));
+        assertTrue(claim.isDuplicate(MESSAGE_ID));
+        assertEquals(manager.getDuplicateCount(), 1);
+    }
+
+    @Test
+    public void redeliveryOfRunningMessage() {
+        mockHeldClaim(MESSAGE_ID, RequestClaimManager.STATUS_RUNNING);
+
+        RequestClaim claim = manager.tryClaim(REQUEST, MESSAGE_ID);
+        assertFalse(claim.isClaimed());
+        assertTrue(claim.isHeldByRunningMessage(MESSAGE_ID));
+        assertEquals(claim.getHeldExpiresOnMillis(), NOW_MILLIS + 1000);
+    }
+
+    @Test
+    public void redeliveryOfDoneMessage() {
+        // The request finished, but deleting the message failed. This is a duplicate, and can be deleted.
+        mockHeldClaim(MESSAGE_ID, RequestClaimManager.STATUS_DONE);
+
+        RequestClaim claim = manager.tryClaim(REQUEST, MESSAGE_ID);
+        assertFalse(claim.isClaimed());
+        assertTrue(claim.isHeldDone());
+        assertFalse(claim.isHeldByRunningMessage(MESSAGE_ID));
+        assertFalse(claim.isHeldDoneByOtherMessage(MESSAGE_ID));
+        assertTrue(claim.isDuplicate(MESSAGE_ID));
+    }
+
+    @Test
+    public void repeatOfDoneRequest() {
+        // The user asked again after the earlier request finished. This isn't a duplicate.
+        mockHeldClaim("other-message", RequestClaimManager.STATUS_DONE);
+
+        RequestClaim claim = manager.tryClaim(REQUEST, MESSAGE_ID);
+        assertFalse(claim.isClaimed());
+        assertTrue(claim.isHeldDoneByOtherMessage(MESSAGE_ID));
+        assertFalse(claim.isDuplicate(MESSAGE_ID));
+        assertEquals(manager.getDuplicateCount(), 0);
+    }
+
+    @Test
+    public void releasedWhileClaiming() {
+        // The first write fails, but the claim is gone by the time we read it. The second write succeeds.
+        when(mockTable.putItem(any(Item.class), anyString(), anyMapOf(String.class, String.class),
+                anyMapOf(String.class, Object.class))).thenThrow(new ConditionalCheckFailedException("test"))
+                .thenReturn(null);
+        when(mockTable.getItem(any(GetItemSpec.class))).thenReturn(null);
+
+        RequestClaim claim = manager.tryClaim(REQUEST, MESSAGE_ID);
+        assertTrue(claim.isClaimed());
+        assertTrue(claim.isTracked());
+    }
+
+    @Test
+    public void ddbErrorRunsWithoutClaim() {
+        when(mockTable.putItem(any(Item.class), anyString(), anyMapOf(String.class, String.class),
+                anyMapOf(String.class, Object.class))).thenThrow(new AmazonClientException("test"));
+
+        RequestClaim claim = manager.tryClaim(REQUEST, MESSAGE_ID);
+        assertTrue(claim.isClaimed());
+        assertFalse(claim.isTracked());
+        assertEquals(manager.getErrorCount(), 1);
+
+        // Untracked claims are never written.
+        assertTrue(manager.renew(claim));
+        manager.complete(claim);
+        manager.release(claim);
+        verify(mockTable).putItem(any(Item.class), anyString(), anyMapOf(String.class, String.class),
+                anyMapOf(String.class, Object.class));
+    }
+
+    @Test
+    public void disabled() {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get(RequestClaimManager.CONFIG_KEY_ENABLED)).thenReturn("false");
+        manager.setConfig(mockConfig);
+
+        RequestClaim claim = manager.tryClaim(REQUEST, MESSAGE_ID);
+        assertTrue(claim.isClaimed());
+        assertFalse(claim.isTracked());
+        assertNull(claim.getOwnerId());
+        verifyZeroInteractions(mockTable);
+    }
+
+    @Test
+    public void renew() {
+        RequestClaim claim = manager.tryClaim(REQUEST, MESSAGE_ID);
+        DateTimeUtils.setCurrentMillisFixed(NOW_MILLIS + 1000);
+        assertTrue(manager.renew(claim));
+
+        UpdateItemSpec spec = captureUpdate();
+        assertEquals(spec.getConditionExpression(), "ownerId = :ownerId");
+        assertEquals(spec.getValueMap().get(":ownerId"), claim.getOwnerId());
+        assertEquals(spec.getValueMap().get(":status"), RequestClaimManager.STATUS_RUNNING);
+        assertEquals(((Number) spec.getValueMap().get(":expiresOn")).longValue(), NOW_MILLIS + 1000 + 600 * 1000);
+    }
+
+    @Test
+    public void renewLostClaim() {
+        RequestClaim claim = manager.tryClaim(REQUEST, MESSAGE_ID);
+        when(mockTable.updateItem(any(UpdateItemSpec.class))).thenThrow(new ConditionalCheckFailedException("test"));
+        assertFalse(manager.renew(claim));
+        assertEquals(manager.getLostCount(), 1);
+    }
+
+    @Test
+    public void complete() {
+        RequestClaim claim = manager.tryClaim(REQUEST, MESSAGE_ID);
+        manager.complete(claim);
+
+        UpdateItemSpec spec = captureUpdate();
+        assertEquals(spec.getValueMap().get(":status"), RequestClaimManager.STATUS_DONE);
+        assertEquals(((Number) spec.getValueMap().get(":expiresOn")).longValue(), NOW_MILLIS + 60 * 60 * 1000);
+        assertEquals(((Number) spec.getValueMap().get(":expiresOnSeconds")).longValue(),
+                NOW_MILLIS / 1000 + 60 * 60);
+    }
+
+    @Test
+    public void release() {
+        RequestClaim claim = manager.tryClaim(REQUEST, MESSAGE_ID);
+        manager.release(claim);
+
+        ArgumentCaptor<DeleteItemSpec> specCaptor = ArgumentCaptor.forClass(DeleteItemSpec.class);
+        verify(mockTable).deleteItem(specCaptor.capture());
+        assertEquals(specCaptor.getValue().getConditionExpression(), "ownerId = :ownerId");
+        assertEquals(specCaptor.getValue().getValueMap().get(":ownerId"), claim.getOwnerId());
+    }
+
+    @Test
+    public void releaseError() {
+        RequestClaim claim = manager.tryClaim(REQUEST, MESSAGE_ID);
+        when(mockTable.deleteItem(any(DeleteItemSpec.class))).thenThrow(new AmazonClientException("test"));
+        manager.release(claim);
+        assertEquals(manager.getErrorCount(), 1);
+    }
+
+    private void mockHeldClaim(String messageId, String status) {
+        when(mockTable.putItem(any(Item.class), anyString(), anyMapOf(String.class, String.class),
+                anyMapOf(String.class, Object.class))).thenThrow(new ConditionalCheckFailedException("test"));
+        Item heldItem = new Item().withPrimaryKey(RequestClaimManager.KEY_REQUEST_KEY, REQUEST_KEY)
+                .withString(RequestClaimManager.KEY_OWNER_ID, "other-owner")
+                .withString(RequestClaimManager.KEY_MESSAGE_ID, messageId)
+                .withString(RequestClaimManager.KEY_CLAIM_STATUS, status)
+                .withLong(RequestClaimManager.KEY_EXPIRES_ON, NOW_MILLIS + 1000);
+        when(mockTable.getItem(any(GetItemSpec.class))).thenReturn(heldItem);
+    }
+
+    private UpdateItemSpec captureUpdate() {
+        ArgumentCaptor<UpdateItemSpec> specCaptor = ArgumentCaptor.forClass(UpdateItemSpec.class);
+        verify(mockTable).updateItem(specCaptor.capture());
+        return specCaptor.getValue();
+    }
+}
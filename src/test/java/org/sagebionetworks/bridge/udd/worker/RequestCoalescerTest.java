@@ -0,0 +1,236 @@
+package org.sagebionetworks.bridge.udd.worker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.udd.concurrent.CancellationToken;
+import org.sagebionetworks.bridge.udd.s3.PresignedUrlInfo;
+
+public class RequestCoalescerTest {
+    private static final LocalDate START_DATE = LocalDate.parse("2017-01-01");
+    private static final LocalDate END_DATE = LocalDate.parse("2017-01-31");
+    private static final BridgeUddRequest REQUEST = new BridgeUddRequest.Builder().withStudyId("test-study")
+            .withUserId("test-user").withStartDate(START_DATE).withEndDate(END_DATE).build();
+
+    private RequestCoalescer coalescer;
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void setup() {
+        coalescer = new RequestCoalescer();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void singleRequest() throws Exception {
+        PresignedUrlInfo presignedUrlInfo = makePresignedUrlInfo();
+        assertSame(coalescer.coalesce(REQUEST, new CancellationToken(), () -> presignedUrlInfo), presignedUrlInfo);
+        assertEquals(coalescer.getCoalescedCount(), 0);
+        assertEquals(coalescer.getInFlightCount(), 0);
+    }
+
+    @Test
+    public void identicalRequestsShareResult() throws Exception {
+        PresignedUrlInfo presignedUrlInfo = makePresignedUrlInfo();
+        CountDownLatch leaderStartedLatch = new CountDownLatch(1);
+        CountDownLatch leaderReleaseLatch = new CountDownLatch(1);
+
+        // The leader blocks until the follower attaches.
+        Future<PresignedUrlInfo> leaderFuture = executor.submit(() -> coalescer.coalesce(REQUEST,
+                new CancellationToken(), () -> {
+                    leaderStartedLatch.countDown();
+                    awaitLatch(leaderReleaseLatch);
+                    return presignedUrlInfo;
+                }));
+        awaitLatch(leaderStartedLatch);
+        assertEquals(coalescer.getInFlightCount(), 1);
+
+        CompletableFuture<PresignedUrlInfo> followerFuture = CompletableFuture.supplyAsync(() -> {
+            try {
+                return coalescer.coalesce(REQUEST, new CancellationToken(), () -> {
+                    fail("follower should not package");
+                    return null;
+                });
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        waitForWaitingCount(1);
+        leaderReleaseLatch.countDown();
+
+        assertSame(leaderFuture.get(5, TimeUnit.SECONDS), presignedUrlInfo);
+        assertSame(followerFuture.get(5, TimeUnit.SECONDS), presignedUrlInfo);
+        assertEquals(coalescer.getCoalescedCount(), 1);
+        assertEquals(coalescer.getInFlightCount(), 0);
+        assertEquals(coalescer.getWaitingCount(), 0);
+    }
+
+    @Test
+    public void noDataIsShared() throws Exception {
+        CountDownLatch leaderStartedLatch = new CountDownLatch(1);
+        CountDownLatch leaderReleaseLatch = new CountDownLatch(1);
+        executor.submit(() -> coalescer.coalesce(REQUEST, new CancellationToken(), () -> {
+            leaderStartedLatch.countDown();
+            awaitLatch(leaderReleaseLatch);
+            return null;
+        }));
+        awaitLatch(leaderStartedLatch);
+
+        CompletableFuture<PresignedUrlInfo> followerFuture = CompletableFuture.supplyAsync(() -> {
+            try {
+                return coalescer.coalesce(REQUEST, new CancellationToken(), () -> {
+                    fail("follower should not package");
+                    return null;
+                });
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        waitForWaitingCount(1);
+        leaderReleaseLatch.countDown();
+
+        assertNull(followerFuture.get(5, TimeUnit.SECONDS));
+        assertEquals(coalescer.getCoalescedCount(), 1);
+    }
+
+    @Test
+    public void followerPackagesIfLeaderFails() throws Exception {
+        PresignedUrlInfo presignedUrlInfo = makePresignedUrlInfo();
+        CountDownLatch leaderStartedLatch = new CountDownLatch(1);
+        CountDownLatch leaderReleaseLatch = new CountDownLatch(1);
+
+        Future<PresignedUrlInfo> leaderFuture = executor.submit(() -> coalescer.coalesce(REQUEST,
+                new CancellationToken(), () -> {
+                    leaderStartedLatch.countDown();
+                    awaitLatch(leaderReleaseLatch);
+                    throw new IOException("test exception");
+                }));
+        awaitLatch(leaderStartedLatch);
+
+        AtomicInteger followerCallCount = new AtomicInteger();
+        CompletableFuture<PresignedUrlInfo> followerFuture = CompletableFuture.supplyAsync(() -> {
+            try {
+                return coalescer.coalesce(REQUEST, new CancellationToken(), () -> {
+                    followerCallCount.incrementAndGet();
+                    return presignedUrlInfo;
+                });
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        waitForWaitingCount(1);
+        leaderReleaseLatch.countDown();
+
+        // The leader's failure isn't shared. The follower packages the request itself.
+        try {
+            leaderFuture.get(5, TimeUnit.SECONDS);
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertEquals(ex.getCause().getClass(), IOException.class);
+        }
+        assertSame(followerFuture.get(5, TimeUnit.SECONDS), presignedUrlInfo);
+        assertEquals(followerCallCount.get(), 1);
+        assertEquals(coalescer.getCoalescedCount(), 0);
+        assertEquals(coalescer.getInFlightCount(), 0);
+    }
+
+    @Test
+    public void differentRequestsDontCoalesce() throws Exception {
+        CountDownLatch leaderStartedLatch = new CountDownLatch(1);
+        CountDownLatch leaderReleaseLatch = new CountDownLatch(1);
+        executor.submit(() -> coalescer.coalesce(REQUEST, new CancellationToken(), () -> {
+            leaderStartedLatch.countDown();
+            awaitLatch(leaderReleaseLatch);
+            return null;
+        }));
+        awaitLatch(leaderStartedLatch);
+
+        try {
+            // Same user, different date range. This runs right away, even though the other request is in flight.
+            BridgeUddRequest otherRequest = new BridgeUddRequest.Builder().withStudyId("test-study")
+                    .withUserId("test-user").withStartDate(START_DATE).withEndDate(END_DATE.plusDays(1)).build();
+            PresignedUrlInfo presignedUrlInfo = makePresignedUrlInfo();
+            assertSame(coalescer.coalesce(otherRequest, new CancellationToken(), () -> presignedUrlInfo),
+                    presignedUrlInfo);
+            assertEquals(coalescer.getCoalescedCount(), 0);
+            assertEquals(coalescer.getInFlightCount(), 1);
+        } finally {
+            leaderReleaseLatch.countDown();
+        }
+    }
+
+    @Test
+    public void deadlinePassesWhileWaiting() throws Exception {
+        CountDownLatch leaderStartedLatch = new CountDownLatch(1);
+        CountDownLatch leaderReleaseLatch = new CountDownLatch(1);
+        executor.submit(() -> coalescer.coalesce(REQUEST, new CancellationToken(), () -> {
+            leaderStartedLatch.countDown();
+            awaitLatch(leaderReleaseLatch);
+            return null;
+        }));
+        awaitLatch(leaderStartedLatch);
+
+        try {
+            coalescer.coalesce(REQUEST, CancellationToken.withTimeBudget(0), () -> {
+                fail("follower should not package");
+                return null;
+            });
+            fail("expected exception");
+        } catch (RuntimeException ex) {
+            // expected exception
+        } finally {
+            leaderReleaseLatch.countDown();
+        }
+        assertEquals(coalescer.getWaitingCount(), 0);
+    }
+
+    private static void awaitLatch(CountDownLatch latch) {
+        try {
+            if (!latch.await(5, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Timed out waiting for latch");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private void waitForWaitingCount(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (coalescer.getWaitingCount() < expected) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for " + expected + " waiting requests");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static PresignedUrlInfo makePresignedUrlInfo() throws Exception {
+        return new PresignedUrlInfo.Builder().withUrl(new URL("https://example.com/test.zip"))
+                .withExpirationTime(DateTime.parse("2017-02-01T00:00Z")).build();
+    }
+}
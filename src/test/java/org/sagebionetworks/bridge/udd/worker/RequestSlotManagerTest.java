@@ -0,0 +1,138 @@
+package org.sagebionetworks.bridge.udd.worker;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+
+import org.joda.time.DateTimeUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.udd.helper.TempStorageManager;
+
+public class RequestSlotManagerTest {
+    private static final long BYTES_PER_MB = 1024 * 1024;
+
+    private long freeHeapBytes;
+    private RequestSlotManager manager;
+    private TempStorageManager mockTempStorageManager;
+
+    @BeforeMethod
+    public void setup() {
+        DateTimeUtils.setCurrentMillisFixed(1000);
+
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(RequestSlotManager.CONFIG_KEY_MAX_COUNT)).thenReturn(3);
+        when(mockConfig.getInt(RequestSlotManager.CONFIG_KEY_MIN_FREE_DISK_MB)).thenReturn(100);
+        when(mockConfig.getInt(RequestSlotManager.CONFIG_KEY_MIN_FREE_HEAP_MB)).thenReturn(10);
+
+        // Plenty of disk and heap, by default.
+        mockTempStorageManager = mock(TempStorageManager.class);
+        when(mockTempStorageManager.getFreeBytes()).thenReturn(1000 * BYTES_PER_MB);
+        freeHeapBytes = 1000 * BYTES_PER_MB;
+
+        manager = new RequestSlotManager() {
+            @Override
+            long getFreeHeapBytes() {
+                return freeHeapBytes;
+            }
+        };
+        manager.setConfig(mockConfig);
+        manager.setTempStorageManager(mockTempStorageManager);
+        manager.init();
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void maxCount() {
+        assertEquals(manager.getMaxCount(), 3);
+        RequestSlot slot0 = manager.tryAcquire();
+        RequestSlot slot1 = manager.tryAcquire();
+        RequestSlot slot2 = manager.tryAcquire();
+        assertEquals(slot0.getIndex(), 0);
+        assertEquals(slot1.getIndex(), 1);
+        assertEquals(slot2.getIndex(), 2);
+        assertEquals(manager.getBusyCount(), 3);
+        assertNull(manager.tryAcquire());
+
+        // Released slots are reused.
+        manager.release(slot1);
+        assertEquals(manager.getBusyCount(), 2);
+        assertEquals(manager.tryAcquire().getIndex(), 1);
+    }
+
+    @Test
+    public void disabled() {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(RequestSlotManager.CONFIG_KEY_MAX_COUNT)).thenReturn(0);
+        manager.setConfig(mockConfig);
+        manager.init();
+
+        assertEquals(manager.getMaxCount(), 0);
+        assertNull(manager.tryAcquire());
+    }
+
+    @Test
+    public void lowDisk() {
+        when(mockTempStorageManager.getFreeBytes()).thenReturn(50 * BYTES_PER_MB);
+
+        // The first slot always opens. The next one needs free disk.
+        assertNotNull(manager.tryAcquire());
+        assertNull(manager.tryAcquire());
+        assertEquals(manager.getDiskRefusalCount(), 1);
+        assertEquals(manager.getHeapRefusalCount(), 0);
+
+        when(mockTempStorageManager.getFreeBytes()).thenReturn(100 * BYTES_PER_MB);
+        assertNotNull(manager.tryAcquire());
+    }
+
+    @Test
+    public void lowHeap() {
+        freeHeapBytes = 5 * BYTES_PER_MB;
+
+        assertNotNull(manager.tryAcquire());
+        assertNull(manager.tryAcquire());
+        assertEquals(manager.getHeapRefusalCount(), 1);
+        assertEquals(manager.getDiskRefusalCount(), 0);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void releaseFreeSlot() {
+        RequestSlot slot = manager.tryAcquire();
+        manager.release(slot);
+        manager.release(slot);
+    }
+
+    @Test
+    public void slotMetrics() {
+        RequestSlot slot = manager.tryAcquire();
+
+        slot.startRequest();
+        DateTimeUtils.setCurrentMillisFixed(1300);
+        assertEquals(slot.finishRequest(true), 300);
+
+        DateTimeUtils.setCurrentMillisFixed(1500);
+        slot.startRequest();
+        DateTimeUtils.setCurrentMillisFixed(2000);
+        assertEquals(slot.finishRequest(false), 500);
+
+        assertEquals(slot.getRequestCount(), 2);
+        assertEquals(slot.getFailureCount(), 1);
+        assertEquals(slot.getBusyMillis(), 800);
+        assertEquals(slot.getBusyPercent(), 80);
+        assertEquals(manager.getSlotList().get(0), slot);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void finishWithoutStart() {
+        manager.tryAcquire().finishRequest(true);
+    }
+}
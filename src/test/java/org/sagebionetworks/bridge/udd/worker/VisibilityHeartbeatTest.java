@@ -0,0 +1,100 @@
+package org.sagebionetworks.bridge.udd.worker;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+
+public class VisibilityHeartbeatTest {
+    private static final String QUEUE_URL = "https://example.com/test-queue";
+    private static final String RECEIPT_HANDLE = "test-receipt-handle";
+
+    private VisibilityHeartbeat heartbeat;
+    private ScheduledExecutorService mockScheduler;
+    private AmazonSQSClient mockSqsClient;
+
+    @BeforeMethod
+    public void setup() {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(VisibilityHeartbeat.CONFIG_KEY_HEARTBEAT_SECONDS)).thenReturn(120);
+        when(mockConfig.getInt(VisibilityHeartbeat.CONFIG_KEY_TIMEOUT_SECONDS)).thenReturn(600);
+
+        mockScheduler = mock(ScheduledExecutorService.class);
+        mockSqsClient = mock(AmazonSQSClient.class);
+
+        heartbeat = new VisibilityHeartbeat();
+        heartbeat.setConfig(mockConfig);
+        heartbeat.setScheduler(mockScheduler);
+        heartbeat.setSqsClient(mockSqsClient);
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Test
+    public void start() {
+        ScheduledFuture mockFuture = mock(ScheduledFuture.class);
+        when(mockScheduler.scheduleWithFixedDelay(any(Runnable.class), eq(120L), eq(120L), eq(TimeUnit.SECONDS)))
+                .thenReturn(mockFuture);
+        assertSame(heartbeat.start(QUEUE_URL, RECEIPT_HANDLE, null), mockFuture);
+    }
+
+    @Test
+    public void disabled() {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(VisibilityHeartbeat.CONFIG_KEY_HEARTBEAT_SECONDS)).thenReturn(0);
+        heartbeat.setConfig(mockConfig);
+
+        assertNull(heartbeat.start(QUEUE_URL, RECEIPT_HANDLE, null));
+        verifyZeroInteractions(mockScheduler);
+    }
+
+    @Test
+    public void beat() {
+        Runnable mockOnBeat = mock(Runnable.class);
+        heartbeat.beat(QUEUE_URL, RECEIPT_HANDLE, mockOnBeat);
+
+        verify(mockSqsClient).changeMessageVisibility(QUEUE_URL, RECEIPT_HANDLE, 600);
+        verify(mockOnBeat).run();
+        assertEquals(heartbeat.getBeatCount(), 1);
+        assertEquals(heartbeat.getErrorCount(), 0);
+    }
+
+    @Test
+    public void sqsErrorStillRunsCallback() {
+        doThrow(AmazonClientException.class).when(mockSqsClient).changeMessageVisibility(QUEUE_URL, RECEIPT_HANDLE,
+                600);
+        Runnable mockOnBeat = mock(Runnable.class);
+        heartbeat.beat(QUEUE_URL, RECEIPT_HANDLE, mockOnBeat);
+
+        verify(mockOnBeat).run();
+        assertEquals(heartbeat.getBeatCount(), 0);
+        assertEquals(heartbeat.getErrorCount(), 1);
+    }
+
+    @Test
+    public void callbackErrorIsLogged() {
+        Runnable mockOnBeat = mock(Runnable.class);
+        doThrow(RuntimeException.class).when(mockOnBeat).run();
+
+        // Doesn't throw.
+        heartbeat.beat(QUEUE_URL, RECEIPT_HANDLE, mockOnBeat);
+        assertEquals(heartbeat.getBeatCount(), 1);
+        assertEquals(heartbeat.getErrorCount(), 1);
+    }
+}